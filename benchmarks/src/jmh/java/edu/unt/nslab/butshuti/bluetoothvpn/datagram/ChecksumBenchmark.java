@@ -0,0 +1,74 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Crc32c;
+
+/**
+ * Frame integrity checks over a payload (1KB by default, for per-KB costs): the legacy 16-bit XOR, CRC32C in Java and, when
+ * the JVM has one, the platform's CRC32C; alone and fused with the copy into the transmit ring.
+ */
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+    @Param({"1024"})
+    public int size;
+
+    private byte src[], dst[];
+    private final Checksum java = new Crc32c();
+    private Checksum platform;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        src = new byte[size];
+        dst = new byte[size];
+        new Random(size).nextBytes(src);
+        platform = Crc32c.newChecksum();
+    }
+
+    @Benchmark
+    public short xor(){
+        return WireInterface.calcBufXor(src, 0, size);
+    }
+
+    @Benchmark
+    public long crc32cJava(){
+        java.reset();
+        java.update(src, 0, size);
+        return java.getValue();
+    }
+
+    @Benchmark
+    public long crc32cPlatform(){
+        platform.reset();
+        platform.update(src, 0, size);
+        return platform.getValue();
+    }
+
+    @Benchmark
+    public byte[] copy(){
+        System.arraycopy(src, 0, dst, 0, size);
+        return dst;
+    }
+
+    @Benchmark
+    public long copyCrc32cJava(){
+        java.reset();
+        Crc32c.copy(java, src, 0, dst, 0, size);
+        return java.getValue();
+    }
+
+    @Benchmark
+    public long copyCrc32cPlatform(){
+        platform.reset();
+        Crc32c.copy(platform, src, 0, dst, 0, size);
+        return platform.getValue();
+    }
+}
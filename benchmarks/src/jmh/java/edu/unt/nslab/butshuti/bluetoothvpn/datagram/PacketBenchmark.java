@@ -0,0 +1,49 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.IPv4Header;
+
+/**
+ * Packet creation and classification, wrapped or pooled.
+ */
+@State(Scope.Thread)
+public class PacketBenchmark {
+    private byte datagram[];
+    private Packet pooled;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        datagram = new byte[512];
+        datagram[0] = 0x45;
+        datagram[9] = (byte) IPv4Header.PROTO_UDP;
+        datagram[16] = 10;
+        datagram[19] = 2;
+        pooled = PacketPool.getDefault().acquire(datagram.length);
+        System.arraycopy(datagram, 0, pooled.getData(), 0, datagram.length);
+    }
+
+    @Benchmark
+    public Packet wrap(){
+        return Packet.wrap(datagram);
+    }
+
+    @Benchmark
+    public byte acquireClassifyRelease(){
+        Packet pkt = PacketPool.getDefault().acquire(datagram.length);
+        System.arraycopy(datagram, 0, pkt.getData(), 0, datagram.length);
+        byte protocol = pkt.classify().getProtocol();
+        pkt.release();
+        return protocol;
+    }
+
+    @Benchmark
+    public int ipv4Header(){
+        pooled.setLength(datagram.length);
+        return pooled.getIPv4Header().getDstAddr();
+    }
+}
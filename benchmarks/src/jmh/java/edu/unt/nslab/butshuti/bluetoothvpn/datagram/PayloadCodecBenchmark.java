@@ -0,0 +1,55 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Payload compression with the default codec, for text-like payloads (HTTP headers) and random ones (as TLS records look).
+ * Random payloads measure how fast compression gives up.
+ */
+@State(Scope.Thread)
+public class PayloadCodecBenchmark {
+    @Param({"64", "512", "1400"})
+    public int size;
+
+    @Param({"text", "random"})
+    public String payload;
+
+    private final PayloadCodec codec = new PayloadCodec.Deflate();
+    private byte src[], compressed[], decompressed[];
+    private int compressedSize;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        src = new byte[size];
+        if("random".equals(payload)){
+            new Random(size).nextBytes(src);
+        }else{
+            byte text[] = ("GET /index.html HTTP/1.1\r\nHost: www.example.com\r\nAccept: */*\r\nConnection: keep-alive\r\n")
+                    .getBytes(Charset.forName("ISO-8859-1"));
+            for(int i=0; i<size; i++){
+                src[i] = text[i % text.length];
+            }
+        }
+        compressed = new byte[size];
+        decompressed = new byte[size];
+        compressedSize = codec.compress(src, 0, size, compressed, 0, size);
+    }
+
+    @Benchmark
+    public int compress(){
+        return codec.compress(src, 0, size, compressed, 0, size);
+    }
+
+    @Benchmark
+    public int decompress(){
+        return compressedSize < 0 ? -1 : codec.decompress(compressed, 0, compressedSize, decompressed, 0, size);
+    }
+}
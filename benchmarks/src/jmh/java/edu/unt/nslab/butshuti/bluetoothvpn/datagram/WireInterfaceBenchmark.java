@@ -0,0 +1,159 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Crc32c;
+
+/**
+ * Frame encoding and decoding, per packet, for combinations of the negotiated features: the CRC32C trailer (1),
+ * superframes (2, for sizes that fit), compact headers (4) and compression (8: the payloads here are random, so
+ * it measures the cost of the adaptive skipping). features=0 is the legacy format.
+ */
+@State(Scope.Thread)
+public class WireInterfaceBenchmark {
+    private static final int FRAMES_PER_STREAM = 64;
+
+    /**
+     * Replays an encoded stream of frames, as if read off a socket in chunks of up to {@link #chunkSize} bytes.
+     */
+    private static final class ReplayWire extends WireInterface {
+        private final byte stream[];
+        private final int chunkSize;
+        private int offs = 0;
+
+        private ReplayWire(byte stream[], int chunkSize){
+            this.stream = stream;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected int read(byte buffer[], int offset, int max){
+            if(offs == stream.length){
+                offs = 0;
+            }
+            int len = Math.min(Math.min(max, chunkSize), stream.length - offs);
+            System.arraycopy(stream, offs, buffer, offset, len);
+            offs += len;
+            return len;
+        }
+    }
+
+    @Param({"64", "512", "1400"})
+    public int size;
+
+    @Param({"0", "1", "2", "3", "4", "5", "6", "7", "15"})
+    public int features;
+
+    private Packet pkt;
+    private ByteBuffer frameBuffer;
+    private final byte header[] = new byte[WireInterface.MAX_HEADER_SIZE];
+    private final FrameCoalescer coalescer = new FrameCoalescer(990);
+    private final ReplayWire sender = new ReplayWire(new byte[0], 0); //Only encodes headers
+    private ReplayWire wire;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        byte datagram[] = new byte[size];
+        new Random(size).nextBytes(datagram);
+        datagram[0] = 0x45;
+        pkt = Packet.wrap(datagram);
+        pkt.setSrcBDAddr(0x0A0B0C0D0E0FL);
+        pkt.setDstBDAddr(0x0102030405FFL);
+        frameBuffer = ByteBuffer.allocate(WireInterface.encodedSize(pkt));
+        boolean coalesce = (features & WireInterface.FEATURE_SUPERFRAME) != 0 && coalescer.accepts(pkt);
+        //Bounds each frame, or each packet's superframe (header, trailer and a sub-frame with addresses) if alone in it.
+        int frameBound = WireInterface.encodedSize(pkt, features) + (coalesce ? WireInterface.SUBFRAME_HEADER_SIZE + WireInterface.SUBFRAME_ADDRS_SIZE : 0);
+        ByteBuffer stream = ByteBuffer.allocate(frameBound * FRAMES_PER_STREAM);
+        for(int i=0; i<FRAMES_PER_STREAM; i++){
+            if(coalesce){
+                if(!coalescer.add(pkt)){
+                    putSuperframe(stream);
+                    coalescer.add(pkt);
+                }
+            }else{
+                putFrame(stream, encodeHeader());
+            }
+        }
+        if(!coalescer.isEmpty()){
+            putSuperframe(stream);
+        }
+        stream.flip();
+        wire = new ReplayWire(Arrays.copyOf(stream.array(), stream.limit()), 990); //The typical RFCOMM read size
+    }
+
+    private void putSuperframe(ByteBuffer stream){
+        putFrame(stream, coalescer.encodeHeader(sender, header, 0, features));
+        sender.onHeaderQueued();
+        coalescer.reset();
+    }
+
+    /**
+     * Append the header just encoded by the sender, and its payload.
+     */
+    private void putFrame(ByteBuffer stream, int headerSize){
+        byte payload[] = sender.getTxPayload();
+        int offs = sender.getTxPayloadOffset(), length = sender.getTxPayloadLength();
+        stream.put(header, 0, headerSize).put(payload, offs, length);
+        if((features & WireInterface.FEATURE_CRC32C) != 0){
+            stream.putInt(Integer.reverseBytes(Crc32c.compute(payload, offs, length))); //Little-endian trailer
+        }
+    }
+
+    @Benchmark
+    public byte[] toBytes(){
+        return WireInterface.toBytes(pkt);
+    }
+
+    @Benchmark
+    public int encode(){
+        frameBuffer.clear();
+        return WireInterface.encode(pkt, frameBuffer);
+    }
+
+    /**
+     * The header of a frame sent on an established link: its context is installed (with compact headers).
+     */
+    @Benchmark
+    public int encodeHeader(){
+        int size = sender.encodeHeader(pkt, header, 0, features);
+        sender.onHeaderQueued();
+        return size;
+    }
+
+    /**
+     * Pack the packet into a superframe, sealing the superframe when full: the sender's work per packet when coalescing.
+     */
+    @Benchmark
+    public int coalesce(){
+        if(!coalescer.add(pkt)){
+            coalescer.encodeHeader(sender, header, 0, features);
+            sender.onHeaderQueued();
+            coalescer.reset();
+            coalescer.add(pkt);
+        }
+        return coalescer.size();
+    }
+
+    @Benchmark
+    public int readMultipartNext() throws IOException {
+        Packet next = wire.readMultipartNext();
+        int len = next.getLength();
+        next.release();
+        return len;
+    }
+
+    @Benchmark
+    public short calcBufXor(){
+        return WireInterface.calcBufXor(pkt.getData(), 0, pkt.getLength());
+    }
+}
@@ -0,0 +1,219 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketPool;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.WireInterface;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+
+/**
+ * Throughput of a {@link ChannelGroup} striping 16 UDP flows of 512-byte datagrams over 1, 2 or 4 channels.
+ * <p>
+ *     Each channel is a loopback TCP connection with RFCOMM-sized socket buffers, written by its own thread and read by a
+ *     {@link WireInterface} decoding frames on the far end, as a {@link RemoteInterfaceAdaptor.Connection} pair would.
+ *     A batch is sent, blocking while the next packet's channel is full, and timed until the far ends decoded all of it.
+ *     The gain comes from the channels' windows and threads working in parallel, so it needs several cores to show.
+ * </p>
+ */
+@State(Scope.Thread)
+public class ChannelGroupBenchmark {
+    private static final int BATCH = 256;
+    private static final int FLOWS = 16;
+    private static final int SOCKET_BUFFER_SIZE = 8 << 10;
+    private static final int CHANNEL_QUEUE_SIZE = 64;
+
+    /**
+     * Decodes the frames read off a socket.
+     */
+    private static final class SocketWire extends WireInterface {
+        private final InputStream inputStream;
+
+        private SocketWire(InputStream inputStream){
+            this.inputStream = inputStream;
+        }
+
+        @Override
+        protected int read(byte buffer[], int offset, int max) throws IOException {
+            int len = inputStream.read(buffer, offset, max);
+            if(len < 0){
+                throw new IOException("Closed");
+            }
+            return len;
+        }
+    }
+
+    /**
+     * A channel over a loopback socket pair: a bounded queue drained by a writer thread, and a reader thread counting the
+     * decoded packets.
+     */
+    private static final class LoopbackChannel implements InterfaceController.RemoteDatagramDeliveryListener {
+        private final BlockingQueue<Packet> queue = new ArrayBlockingQueue<>(CHANNEL_QUEUE_SIZE);
+        private final Socket sender, receiver;
+        private final Thread writer, reader;
+        private volatile boolean closed = false;
+
+        private LoopbackChannel(ServerSocket listener, final AtomicLong received) throws IOException {
+            sender = new Socket();
+            sender.setSendBufferSize(SOCKET_BUFFER_SIZE);
+            sender.setTcpNoDelay(true);
+            sender.connect(listener.getLocalSocketAddress());
+            receiver = listener.accept();
+            receiver.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            final OutputStream outputStream = sender.getOutputStream();
+            final SocketWire wire = new SocketWire(receiver.getInputStream());
+            writer = new Thread(){
+                @Override
+                public void run(){
+                    ByteBuffer frame = ByteBuffer.allocate(PacketPool.DEFAULT_BUFFER_SIZE + WireInterface.MAX_HEADER_SIZE);
+                    try {
+                        while (!closed){
+                            Packet pkt = queue.take();
+                            try {
+                                frame.clear();
+                                WireInterface.encode(pkt, frame);
+                            }finally {
+                                pkt.release();
+                            }
+                            outputStream.write(frame.array(), 0, frame.position());
+                        }
+                    } catch (InterruptedException | IOException e) {
+                        //Closed
+                    }
+                }
+            };
+            reader = new Thread(){
+                @Override
+                public void run(){
+                    try {
+                        while (!closed){
+                            wire.readMultipartNext().release();
+                            received.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        //Closed
+                    }
+                }
+            };
+            writer.setDaemon(true);
+            reader.setDaemon(true);
+            writer.start();
+            reader.start();
+        }
+
+        @Override
+        public boolean write(Packet pkt, boolean async) throws IOException {
+            if(closed){
+                throw new IOException("Channel closed");
+            }
+            try {
+                queue.put(pkt.retain());
+                return true;
+            } catch (InterruptedException e) {
+                pkt.release();
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            closed = true;
+            writer.interrupt();
+            try {
+                sender.close();
+                receiver.close();
+            } catch (IOException e) {
+                //Already closed
+            }
+            Packet pkt;
+            while ((pkt = queue.poll()) != null){
+                pkt.release();
+            }
+        }
+
+        @Override
+        public boolean isPrimary() {
+            return true;
+        }
+    }
+
+    @Param({"1", "2", "4"})
+    public int channels;
+
+    private ChannelGroup group;
+    private final AtomicLong received = new AtomicLong(0);
+    private final byte datagram[] = new byte[512];
+    private long sent = 0;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Logger.setLevel(Logger.Level.WARN);
+        datagram[0] = 0x45;
+        datagram[9] = 17; //UDP
+        datagram[16] = 10;
+        datagram[19] = 3;
+        group = new ChannelGroup(0x020000000003L);
+        ServerSocket listener = new ServerSocket(0, channels, InetAddress.getLoopbackAddress());
+        try {
+            for(int i=0; i<channels; i++){
+                group.add(new LoopbackChannel(listener, received));
+            }
+        }finally {
+            listener.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        group.shutdown();
+    }
+
+    private Packet nextPacket(){
+        Packet pkt = PacketPool.getDefault().acquire(datagram.length);
+        System.arraycopy(datagram, 0, pkt.getData(), 0, datagram.length);
+        int port = next++ % FLOWS;
+        pkt.getData()[20] = (byte)(port >> 8);
+        pkt.getData()[21] = (byte)port;
+        return pkt.classify();
+    }
+
+    /**
+     * Send a batch across the flows, and wait until the far ends decoded it.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long stripe() throws IOException {
+        for(int i=0; i<BATCH; i++){
+            Packet pkt = nextPacket();
+            try {
+                group.write(pkt, true);
+            }finally {
+                pkt.release();
+            }
+        }
+        sent += BATCH;
+        while (received.get() < sent){
+            Thread.yield();
+        }
+        return sent;
+    }
+}
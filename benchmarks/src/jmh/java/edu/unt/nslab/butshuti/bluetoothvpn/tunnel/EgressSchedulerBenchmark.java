@@ -0,0 +1,71 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketPool;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+
+/**
+ * {@link EgressScheduler} offer and poll, with a backlog spread over 1, 16 or 256 TCP flows of 512-byte datagrams.
+ * The backlog drains in microseconds, well under CoDel's target, so this measures the scheduling cost without drops.
+ */
+@State(Scope.Thread)
+public class EgressSchedulerBenchmark {
+    private static final int BACKLOG = 128;
+
+    @Param({"1", "16", "256"})
+    public int flows;
+
+    private EgressScheduler scheduler;
+    private final byte datagram[] = new byte[512];
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        Logger.setLevel(Logger.Level.WARN);
+        datagram[0] = 0x45;
+        datagram[9] = 6; //TCP
+        datagram[16] = 10;
+        datagram[19] = 3;
+        scheduler = new EgressScheduler();
+        for(int i=0; i<BACKLOG; i++){
+            scheduler.offer(nextPacket());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        scheduler.close();
+    }
+
+    private Packet nextPacket(){
+        Packet pkt = PacketPool.getDefault().acquire(datagram.length);
+        System.arraycopy(datagram, 0, pkt.getData(), 0, datagram.length);
+        int port = next++ % flows;
+        pkt.getData()[20] = (byte)(port >> 8);
+        pkt.getData()[21] = (byte)port;
+        return pkt.classify();
+    }
+
+    /**
+     * One packet in, one packet out, the backlog staying constant.
+     */
+    @Benchmark
+    public int offerPoll(){
+        scheduler.offer(nextPacket());
+        Packet pkt = scheduler.poll();
+        if(pkt == null){
+            return 0;
+        }
+        int len = pkt.getLength();
+        pkt.release();
+        return len;
+    }
+}
@@ -0,0 +1,95 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketPool;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+/**
+ * {@link InterfaceController#process(long, Packet)} on the calling thread, for packets delivered locally or forwarded to a peer.
+ * Each operation includes getting the packet from the pool, as the connection readers do.
+ */
+@State(Scope.Thread)
+public class ForwardingBenchmark {
+    private static final long LOCAL = 0x020000000001L, PREVIOUS_HOP = 0x020000000002L, NEXT_HOP = 0x020000000003L;
+
+    private InterfaceController controller;
+    private final byte datagram[] = new byte[512];
+
+    @Setup(Level.Trial)
+    public void setup(){
+        Logger.setLevel(Logger.Level.WARN);
+        datagram[0] = 0x45;
+        datagram[16] = 10;
+        datagram[19] = 3;
+        controller = new InterfaceController(new InterfaceController.InterfaceConfigurationView() {
+            @Override
+            public String getLocalBDAddr() {
+                return BDAddr.toString(LOCAL);
+            }
+
+            @Override
+            public String getInterfaceAddress() {
+                return "10.0.0.1/24";
+            }
+
+            @Override
+            public void updateLocalBDAddr(String addr) {
+            }
+        }, 1);
+        controller.registerLocalDeliveryListener(new InterfaceController.LocalDatagramDeliveryListener() {
+            @Override
+            public boolean deliver(Packet pkt) {
+                return true;
+            }
+        });
+        controller.registerRemoteDeliveryListener(NEXT_HOP, "next", new InterfaceController.RemoteDatagramDeliveryListener() {
+            @Override
+            public boolean write(Packet pkt, boolean async) {
+                return true;
+            }
+
+            @Override
+            public void shutdown() {
+            }
+
+            @Override
+            public boolean isPrimary() {
+                return true;
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        controller.shutdown();
+    }
+
+    private boolean process(long dst){
+        Packet pkt = PacketPool.getDefault().acquire(datagram.length);
+        System.arraycopy(datagram, 0, pkt.getData(), 0, datagram.length);
+        pkt.classify().setDstBDAddr(dst);
+        try {
+            return controller.process(PREVIOUS_HOP, pkt);
+        }finally {
+            pkt.release();
+        }
+    }
+
+    @Benchmark
+    public boolean deliverLocally(){
+        return process(LOCAL);
+    }
+
+    @Benchmark
+    public boolean forward(){
+        return process(NEXT_HOP);
+    }
+}
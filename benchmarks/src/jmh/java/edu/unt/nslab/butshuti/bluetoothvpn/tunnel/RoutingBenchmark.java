@@ -0,0 +1,48 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+
+/**
+ * Route lookups in a bridge holding 10, 100 or 10k host routes.
+ */
+@State(Scope.Thread)
+public class RoutingBenchmark {
+    private static final int LOOKUPS = 1024; //Power of two
+
+    @Param({"10", "100", "10000"})
+    public int routes;
+
+    private LocalInterfaceBridge bridge;
+    private final int destinations[] = new int[LOOKUPS];
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        Logger.setLevel(Logger.Level.WARN);
+        bridge = new LocalInterfaceBridge();
+        Random random = new Random(routes);
+        int hosts[] = new int[routes];
+        for(int i=0; i<routes; i++){
+            hosts[i] = 0x0A000000 | (i + 1);
+            bridge.addRoute(hosts[i], 32, 0x020000000000L + random.nextInt(8) + 1);
+        }
+        for(int i=0; i<LOOKUPS; i++){
+            destinations[i] = hosts[random.nextInt(routes)];
+        }
+    }
+
+    @Benchmark
+    public long getRoute(){
+        next = (next + 1) & (LOOKUPS - 1);
+        return bridge.getRoute(destinations[next]);
+    }
+}
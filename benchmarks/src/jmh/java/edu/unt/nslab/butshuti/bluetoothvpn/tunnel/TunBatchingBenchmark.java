@@ -0,0 +1,160 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+/**
+ * The {@link VPNFDController} reader moving 512-byte datagrams from the interface to a peer, one or 16 datagrams per batch.
+ * <p>
+ *     An in-memory source stands in for the interface: like a TUN descriptor (and unlike a pipe), each read returns exactly
+ *     one datagram, and available() tells whether another one is waiting. A batch of datagrams is made available at once,
+ *     and timed until the peer got all of them.
+ * </p>
+ */
+@State(Scope.Thread)
+public class TunBatchingBenchmark {
+    private static final int DATAGRAMS = 256;
+    private static final int MTU = 1500;
+    private static final long LOCAL = 0x020000000001L, PEER = 0x020000000003L;
+
+    /**
+     * Datagrams from local applications, one per read.
+     */
+    private static final class DatagramSource extends InputStream {
+        private final byte datagram[];
+        private int pending = 0;
+
+        private DatagramSource(byte datagram[]){
+            this.datagram = datagram;
+        }
+
+        synchronized void offer(int count){
+            pending += count;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read(byte buffer[], int offset, int max) throws IOException {
+            try {
+                while (pending == 0){
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            }
+            pending--;
+            int len = Math.min(max, datagram.length);
+            System.arraycopy(datagram, 0, buffer, offset, len);
+            return len;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException("Datagrams only");
+        }
+
+        @Override
+        public synchronized int available() {
+            return pending > 0 ? datagram.length : 0;
+        }
+    }
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    private InterfaceController controller;
+    private VPNFDController vpn;
+    private DatagramSource source;
+    private final AtomicLong received = new AtomicLong(0);
+    private long sent = 0;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        Logger.setLevel(Logger.Level.WARN);
+        byte datagram[] = new byte[512];
+        datagram[0] = 0x45;
+        datagram[9] = 17; //UDP
+        datagram[16] = 10;
+        datagram[19] = 3;
+        controller = new InterfaceController(new InterfaceController.InterfaceConfigurationView() {
+            @Override
+            public String getLocalBDAddr() {
+                return BDAddr.toString(LOCAL);
+            }
+
+            @Override
+            public String getInterfaceAddress() {
+                return "10.0.0.1/24";
+            }
+
+            @Override
+            public void updateLocalBDAddr(String addr) {
+            }
+        }, 1);
+        controller.getBridge().addRoute(RoutingTable.addrToInt(datagram, 16), 32, PEER);
+        controller.registerRemoteDeliveryListener(PEER, "peer", new InterfaceController.RemoteDatagramDeliveryListener() {
+            @Override
+            public boolean write(Packet pkt, boolean async) {
+                received.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            public void shutdown() {
+            }
+
+            @Override
+            public boolean isPrimary() {
+                return true;
+            }
+        });
+        source = new DatagramSource(datagram);
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte buffer[], int offset, int len) {
+            }
+        };
+        vpn = new VPNFDController(source, sink, controller, MTU, PacketQueue.DEFAULT_CAPACITY, PacketQueue.DropPolicy.PRIORITY, batchSize);
+        vpn.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        vpn.terminate();
+        controller.shutdown();
+    }
+
+    /**
+     * Make datagrams available on the interface, and wait until the reader handed all of them to the peer.
+     */
+    @Benchmark
+    @OperationsPerInvocation(DATAGRAMS)
+    public long read(){
+        source.offer(DATAGRAMS);
+        sent += DATAGRAMS;
+        while (received.get() < sent){
+            Thread.yield();
+        }
+        return sent;
+    }
+}
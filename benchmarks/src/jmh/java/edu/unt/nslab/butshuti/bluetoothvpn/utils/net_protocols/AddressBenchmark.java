@@ -0,0 +1,58 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.InetAddress;
+
+/**
+ * Address conversions and IP header parsing: the legacy helpers against their allocation-free replacements.
+ */
+@State(Scope.Thread)
+public class AddressBenchmark {
+    private static final String BD_ADDR = "A4:5E:60:C2:11:0F";
+
+    private byte datagram[];
+    private long bdAddr;
+    private final IPv4Header header = new IPv4Header();
+
+    @Setup(Level.Trial)
+    public void setup(){
+        datagram = new byte[512];
+        datagram[0] = 0x45;
+        datagram[12] = 10;
+        datagram[15] = 1;
+        datagram[16] = 10;
+        datagram[19] = 2;
+        bdAddr = BDAddr.parse(BD_ADDR);
+    }
+
+    @Benchmark
+    public String addressConversionsRoundTrip() throws AddressConversions.InvalidBluetoothAdddressException {
+        return AddressConversions.BDAddrToStr(AddressConversions.stringToBDAddr(BD_ADDR));
+    }
+
+    @Benchmark
+    public long bdAddrParse(){
+        return BDAddr.parse(BD_ADDR);
+    }
+
+    @Benchmark
+    public String bdAddrToString(){
+        return BDAddr.toString(bdAddr);
+    }
+
+    @Benchmark
+    public InetAddress parseInetAddr() throws InternetLayerHeaders.InvalidDatagramException {
+        return InternetLayerHeaders.parseInetAddr(datagram, datagram.length).getTo();
+    }
+
+    @Benchmark
+    public int ipv4HeaderWrap(){
+        header.wrap(datagram, datagram.length);
+        return header.getDstAddr();
+    }
+}
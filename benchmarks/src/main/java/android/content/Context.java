@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * JVM stand-in for the Android context type referenced (but not used) by the datapath's network utilities.
+ */
+public abstract class Context {
+}
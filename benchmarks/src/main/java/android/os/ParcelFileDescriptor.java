@@ -0,0 +1,21 @@
+package android.os;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+
+/**
+ * JVM stand-in for the VPN interface's descriptor type, so that {@link edu.unt.nslab.butshuti.bluetoothvpn.tunnel.VPNFDController}
+ * compiles off the device. The benchmarks run the controller over streams instead.
+ */
+public class ParcelFileDescriptor implements Closeable {
+    private ParcelFileDescriptor(){
+    }
+
+    public FileDescriptor getFileDescriptor(){
+        throw new UnsupportedOperationException("No file descriptors off the device");
+    }
+
+    @Override
+    public void close(){
+    }
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android clock used by the datapath, so the benchmarks can run off the device.
+ */
+public final class SystemClock {
+    private SystemClock(){
+    }
+
+    public static long elapsedRealtime(){
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long uptimeMillis(){
+        return System.nanoTime() / 1000000;
+    }
+}
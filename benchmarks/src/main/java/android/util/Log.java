@@ -0,0 +1,30 @@
+package android.util;
+
+/**
+ * JVM stand-in for the Android log, printing to the standard streams.
+ */
+public final class Log {
+    private Log(){
+    }
+
+    public static int d(String tag, String msg){
+        return println(System.out, "D", tag, msg);
+    }
+
+    public static int i(String tag, String msg){
+        return println(System.out, "I", tag, msg);
+    }
+
+    public static int w(String tag, String msg){
+        return println(System.err, "W", tag, msg);
+    }
+
+    public static int e(String tag, String msg){
+        return println(System.err, "E", tag, msg);
+    }
+
+    private static int println(java.io.PrintStream out, String level, String tag, String msg){
+        out.println(level + "/" + tag + ": " + msg);
+        return 0;
+    }
+}
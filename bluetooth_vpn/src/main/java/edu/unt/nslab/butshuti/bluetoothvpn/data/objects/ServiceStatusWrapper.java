@@ -6,6 +6,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
+
 public final class ServiceStatusWrapper {
     private long pktCount;
     private long uptime;
@@ -16,6 +18,7 @@ public final class ServiceStatusWrapper {
     private Set<Peer> servers;
     private Set<Peer> clients;
     private Peer.Status status;
+    private MetricsRegistry.Snapshot metrics;
 
     public ServiceStatusWrapper(){
         servers = new HashSet<>();
@@ -65,6 +68,17 @@ public final class ServiceStatusWrapper {
         return this;
     }
 
+    /**
+     * @return The datapath metrics at the time of this status, or NULL if not reported.
+     */
+    public MetricsRegistry.Snapshot getMetrics(){
+        return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry.Snapshot metrics) {
+        this.metrics = metrics;
+    }
+
     public void setPktCount(long pktCount) {
         this.pktCount = pktCount;
     }
@@ -10,12 +10,14 @@ import java.util.List;
 
 import edu.unt.nslab.butshuti.bluetoothvpn.data.objects.Peer;
 import edu.unt.nslab.butshuti.bluetoothvpn.data.objects.ServiceStatusWrapper;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
 
 public class Repository implements Observer<ServiceStatusWrapper> {
     private static final Repository INSTANCE = new Repository();
 
     private final MediatorLiveData<ServiceStatusWrapper> serviceStatusDescriptionMediatorLiveData = new MediatorLiveData<>();
     private final MutableLiveData<List<Peer>> peersLiveData = new MutableLiveData<>();
+    private final MutableLiveData<MetricsRegistry.Snapshot> metricsLiveData = new MutableLiveData<>();
 
     private Repository() {}
 
@@ -31,6 +33,13 @@ public class Repository implements Observer<ServiceStatusWrapper> {
         return peersLiveData;
     }
 
+    /**
+     * @return The datapath metrics reported with the latest service status.
+     */
+    public LiveData<MetricsRegistry.Snapshot> getMetrics(){
+        return metricsLiveData;
+    }
+
     public void addDataSource(LiveData<ServiceStatusWrapper> data) {
         serviceStatusDescriptionMediatorLiveData.addSource(data, this);
     }
@@ -44,6 +53,9 @@ public class Repository implements Observer<ServiceStatusWrapper> {
         if(serviceStatusWrapper != null) {
             serviceStatusDescriptionMediatorLiveData.setValue(serviceStatusWrapper);
             peersLiveData.setValue(serviceStatusWrapper.getClients());
+            if(serviceStatusWrapper.getMetrics() != null){
+                metricsLiveData.setValue(serviceStatusWrapper.getMetrics());
+            }
         }
     }
 }
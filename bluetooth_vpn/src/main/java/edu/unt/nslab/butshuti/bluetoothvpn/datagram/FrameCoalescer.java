@@ -0,0 +1,134 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static edu.unt.nslab.butshuti.bluetoothvpn.datagram.WireInterface.CRC_TRAILER_SIZE;
+import static edu.unt.nslab.butshuti.bluetoothvpn.datagram.WireInterface.FEATURE_SUPERFRAME;
+import static edu.unt.nslab.butshuti.bluetoothvpn.datagram.WireInterface.FRAME_FLAG_SUPERFRAME;
+import static edu.unt.nslab.butshuti.bluetoothvpn.datagram.WireInterface.PREAMBLE_SIZE;
+import static edu.unt.nslab.butshuti.bluetoothvpn.datagram.WireInterface.SUBFRAME_ADDRS_SIZE;
+import static edu.unt.nslab.butshuti.bluetoothvpn.datagram.WireInterface.SUBFRAME_FLAG_ADDRS;
+import static edu.unt.nslab.butshuti.bluetoothvpn.datagram.WireInterface.SUBFRAME_HEADER_SIZE;
+import static edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.AddressConversions.BD_ADDR_SIZE;
+
+/**
+ * Packs packets bound to the same peer into one superframe (see {@link WireInterface}), to pay for one preamble and one
+ * stream write for several small datagrams (TCP ACKs, DNS...).
+ * <p>
+ *     Packets are copied in as they are added, so they are only borrowed. The superframe is then sent as a header
+ *     ({@link #encodeHeader(WireInterface, byte[], int, int)}) followed by the payload in {@link #getPayload()}.
+ *     A superframe holding a single packet is sent as that packet's plain frame, which is smaller.
+ *     Not thread-safe: senders serialize, as they do for the transmit buffer.
+ * </p>
+ */
+public final class FrameCoalescer {
+    private static final int MAX_SUBFRAMES = 0xFF; //Counted in the preamble's TTL
+
+    private final byte payload[];
+    private int length = 0, count = 0;
+    private byte firstProtocol, firstTtl;
+    private long lastSrcBDAddr, lastDstBDAddr, firstSrcBDAddr, firstDstBDAddr;
+
+    /**
+     * @param maxFrameSize The largest superframe to build, preamble and trailer included (e.g. the link's MTU).
+     */
+    public FrameCoalescer(int maxFrameSize){
+        if(maxFrameSize <= PREAMBLE_SIZE + CRC_TRAILER_SIZE + SUBFRAME_HEADER_SIZE + SUBFRAME_ADDRS_SIZE){
+            throw new IllegalArgumentException("Superframe size too small: " + maxFrameSize);
+        }
+        payload = new byte[Math.min(maxFrameSize - PREAMBLE_SIZE - CRC_TRAILER_SIZE, Short.MAX_VALUE)];
+    }
+
+    /**
+     * @return True if the packet is small enough to ever be coalesced.
+     */
+    public boolean accepts(Packet pkt){
+        return SUBFRAME_HEADER_SIZE + SUBFRAME_ADDRS_SIZE + pkt.getLength() <= payload.length;
+    }
+
+    /**
+     * Append a packet to the superframe.
+     * @param pkt The packet, borrowed for the duration of the call.
+     * @return False if the superframe has no room left for it (nothing is added).
+     */
+    public boolean add(Packet pkt){
+        int pktSize = pkt.getLength();
+        long src = pkt.getSrcBDAddr(), dst = pkt.getDstBDAddr();
+        boolean addrs = count == 0 || src != lastSrcBDAddr || dst != lastDstBDAddr;
+        int offs = length;
+        int dataOffs = offs + SUBFRAME_HEADER_SIZE + (addrs ? SUBFRAME_ADDRS_SIZE : 0);
+        if(pktSize <= 0 || count == MAX_SUBFRAMES || dataOffs + pktSize > payload.length){
+            return false;
+        }
+        payload[offs] = (byte)(addrs ? pkt.getProtocol() | SUBFRAME_FLAG_ADDRS : pkt.getProtocol());
+        payload[offs + 1] = pkt.getTtl();
+        WireInterface.putShort(payload, offs + 2, (short) pktSize);
+        if(addrs){
+            BDAddr.write(src, payload, offs + SUBFRAME_HEADER_SIZE);
+            BDAddr.write(dst, payload, offs + SUBFRAME_HEADER_SIZE + BD_ADDR_SIZE);
+            lastSrcBDAddr = src;
+            lastDstBDAddr = dst;
+        }
+        System.arraycopy(pkt.getData(), 0, payload, dataOffs, pktSize);
+        if(count == 0){
+            firstProtocol = pkt.getProtocol();
+            firstTtl = pkt.getTtl();
+            firstSrcBDAddr = src;
+            firstDstBDAddr = dst;
+        }
+        length = dataOffs + pktSize;
+        count++;
+        return true;
+    }
+
+    public boolean isEmpty(){
+        return count == 0;
+    }
+
+    /**
+     * @return The number of packets in the superframe.
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * Encode the frame's header (see {@link WireInterface#encodeHeader(Packet, byte[], int, int)}).
+     * @param link The link the frame is sent on.
+     * @param dst The destination, with at least {@link WireInterface#MAX_HEADER_SIZE} bytes from offs.
+     * @param features The features in use (see {@link WireInterface#getTxFeatures()}).
+     * @return The header's size.
+     */
+    public int encodeHeader(WireInterface link, byte dst[], int offs, int features){
+        features &= ~FEATURE_SUPERFRAME;
+        if(count == 1){
+            return link.encodeHeader(dst, offs, firstProtocol, firstTtl, firstSrcBDAddr, firstDstBDAddr,
+                    payload, getPayloadOffset(), getPayloadLength(), features);
+        }
+        return link.encodeHeader(dst, offs, FRAME_FLAG_SUPERFRAME, (byte) count, Packet.NULL_BD_ADDR, Packet.NULL_BD_ADDR,
+                payload, 0, length, features);
+    }
+
+    /**
+     * @return The frame's payload, from {@link #getPayloadOffset()}.
+     */
+    public byte[] getPayload(){
+        return payload;
+    }
+
+    public int getPayloadOffset(){
+        return count == 1 ? SUBFRAME_HEADER_SIZE + SUBFRAME_ADDRS_SIZE : 0;
+    }
+
+    public int getPayloadLength(){
+        return length - getPayloadOffset();
+    }
+
+    /**
+     * Start a new superframe.
+     */
+    public void reset(){
+        length = 0;
+        count = 0;
+    }
+}
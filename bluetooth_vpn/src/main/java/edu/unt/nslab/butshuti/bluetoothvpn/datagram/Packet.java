@@ -1,15 +1,21 @@
 package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
 
-import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.AddressConversions.InvalidBluetoothAdddressException;
-import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.InternetLayerHeaders;
-import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
-import static edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.AddressConversions.stringToBDAddr;
-import static edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.AddressConversions.BDAddrToStr;
-import static edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.AddressConversions.BD_ADDR_SIZE;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.IPv4Header;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
 
 /**
  * Created by butshuti on 5/18/18.
+ *
+ * A datagram as carried over the wire.
+ * <p>
+ *     Packets are reference-counted so that their buffers can be recycled through a {@link PacketPool}: see the pool for ownership rules.
+ *     The payload buffer may be larger than the datagram: only the first {@link #getLength()} bytes of {@link #getData()} are valid.
+ *     Source and destination device addresses are kept as {@link BDAddr} longs; the string accessors are for logging and the UI.
+ *     The payload's IPv4 header is parsed at most once, on demand, into a view cached with the packet (see {@link #getIPv4Header()}).
+ * </p>
  */
 
 public class Packet {
@@ -19,54 +25,193 @@ public class Packet {
     public static final byte PROTOCOL_PROXIMITY_ACK = 0x04;
     public static final byte PROTOCOL_PATH_PROPAGATION = 0x05;
     public static final byte PROTOCOL_TRACEROUTE = 0x06;
+    public static final byte PROTOCOL_LINK_NEGOTIATION = 0x07; //Link-local: consumed by the connection, never routed
 
     private static final byte DEFAULT_TTL = (byte)64;
+    private static final int ITEST_ADDR_SUFFIX = 0x0303; //Interface tests are sent to x.x.3.3
+
+    public static final long NULL_BD_ADDR = BDAddr.NULL;
+    public static final String NULL_BD_ADDR_STR = BDAddr.toString(NULL_BD_ADDR);
 
-    public static final byte NULL_BD_ADDR[] = new byte[]{0, 0, 0, 0, 0, 0};
-    public static final String NULL_BD_ADDR_STR = uncheckedParseDBAddr(NULL_BD_ADDR);
+    private static final AtomicIntegerFieldUpdater<Packet> REF_COUNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Packet.class, "refCount");
 
-    private byte[] srcBDAddr, dstBDAddr;
+    private long srcBDAddr, dstBDAddr;
+    private long receivedFrom;
+    private long ingressTs;
+    private PacketTrace trace;
     private byte buf[]; // IP packet
+    private int length;
     private byte protocol, ttl;
+    private final PacketPool pool;
+    private volatile int refCount;
+    private final IPv4Header ipHeader = new IPv4Header();
+    private boolean ipHeaderParsed = false;
 
+    /**
+     * @return The payload buffer. Only the first {@link #getLength()} bytes are valid.
+     */
     public byte[] getData(){
         return buf;
     }
 
-    byte[] getSrcBDAddr(){
+    public int getLength(){
+        return length;
+    }
+
+    /**
+     * Set the number of valid payload bytes, e.g. after reading a datagram into {@link #getData()}.
+     * @param length The payload length, at most the buffer's capacity.
+     */
+    public void setLength(int length){
+        if(length < 0 || length > buf.length){
+            throw new IllegalArgumentException(String.format("Invalid length %d for capacity %d", length, buf.length));
+        }
+        this.length = length;
+        ipHeaderParsed = false;
+    }
+
+    /**
+     * Parse the payload's IPv4 header, once: the view is cached until the payload changes through {@link #setLength(int)} or the packet is recycled.
+     * Callers writing into {@link #getData()} must call {@link #setLength(int)} afterwards.
+     * @return A view of the header, or NULL if the payload is not an IPv4 datagram. The view is owned by the packet.
+     */
+    public IPv4Header getIPv4Header(){
+        if(!ipHeaderParsed){
+            ipHeader.wrap(buf, length);
+            ipHeaderParsed = true;
+        }
+        return ipHeader.isValid() ? ipHeader : null;
+    }
+
+    /**
+     * Add a reference to this packet.
+     * @return This packet.
+     */
+    public Packet retain(){
+        REF_COUNT_UPDATER.incrementAndGet(this);
+        return this;
+    }
+
+    /**
+     * Drop a reference to this packet, returning it to its pool when no references are left.
+     */
+    public void release(){
+        int refs = REF_COUNT_UPDATER.decrementAndGet(this);
+        if(pool != null){
+            if(refs == 0){
+                pool.recycle(this);
+            }else if(refs < 0){
+                pool.onOverRelease(this);
+            }
+        }
+    }
+
+    boolean isPooled(){
+        return pool != null;
+    }
+
+    /**
+     * Reset this packet for reuse by its pool.
+     */
+    void recycle(int size){
+        protocol = PROTOCOL_DATA;
+        ttl = DEFAULT_TTL;
+        srcBDAddr = NULL_BD_ADDR;
+        dstBDAddr = NULL_BD_ADDR;
+        receivedFrom = NULL_BD_ADDR;
+        ingressTs = 0;
+        trace = null;
+        length = size;
+        ipHeaderParsed = false;
+        refCount = 1;
+    }
+
+    /**
+     * Fill in a pooled packet's header fields.
+     */
+    Packet set(byte protocol, byte ttl, long srcBDAddr, long dstBDAddr){
+        this.protocol = protocol;
+        this.ttl = ttl;
+        this.srcBDAddr = srcBDAddr;
+        this.dstBDAddr = dstBDAddr;
+        return this;
+    }
+
+    public long getSrcBDAddr(){
         return srcBDAddr;
     }
 
-    byte[] getDstBDAddr(){
+    public long getDstBDAddr(){
         return dstBDAddr;
     }
 
-    public String getSrcBDAddrStr() throws InvalidBluetoothAdddressException{
-        return parseBDAddr(srcBDAddr);
+    public void setSrcBDAddr(long addr){
+        srcBDAddr = addr;
     }
 
-    public String getDstBDAddrStr() throws InvalidBluetoothAdddressException{
-        return parseBDAddr(dstBDAddr);
+    public void setDstBDAddr(long addr){
+        dstBDAddr = addr;
+    }
+
+    /**
+     * @return The peer this packet was received from, {@link #NULL_BD_ADDR} for local datagrams.
+     */
+    public long getReceivedFrom(){
+        return receivedFrom;
+    }
+
+    public void setReceivedFrom(long addr){
+        receivedFrom = addr;
+    }
+
+    /**
+     * @return When this packet entered the node ({@link System#nanoTime()}), 0 if not recorded.
+     */
+    public long getIngressTs(){
+        return ingressTs;
+    }
+
+    public void setIngressTs(long ts){
+        ingressTs = ts;
+    }
+
+    /**
+     * @return The stage timestamps of this packet if it was sampled for tracing, otherwise NULL.
+     */
+    public PacketTrace getTrace(){
+        return trace;
+    }
+
+    public void setTrace(PacketTrace trace){
+        this.trace = trace;
+    }
+
+    public String getSrcBDAddrStr(){
+        return BDAddr.toString(srcBDAddr);
+    }
+
+    public String getDstBDAddrStr(){
+        return BDAddr.toString(dstBDAddr);
     }
 
     public boolean updateSrcBTAddr(String addr){
-        try{
-            srcBDAddr = stringToBDAddr(addr);
-            return true;
-        }catch (InvalidBluetoothAdddressException e){
-            Logger.logE(e.getMessage());
+        long val = BDAddr.parse(addr);
+        if(val == BDAddr.INVALID){
+            Logger.logE("Malformed BD_ADDR: " + addr);
+            return false;
         }
-        return false;
+        srcBDAddr = val;
+        return true;
     }
 
     public boolean updateDstBTAddr(String addr){
-        try{
-            dstBDAddr = stringToBDAddr(addr);
-            return true;
-        }catch (InvalidBluetoothAdddressException e){
-            Logger.logE(e.getMessage());
+        long val = BDAddr.parse(addr);
+        if(val == BDAddr.INVALID){
+            Logger.logE("Malformed BD_ADDR: " + addr);
+            return false;
         }
-        return false;
+        dstBDAddr = val;
+        return true;
     }
 
     public void setProtocol(int protocol){
@@ -90,51 +235,53 @@ public class Packet {
         return this;
     }
 
-    private static String parseBDAddr(byte addr[]) throws InvalidBluetoothAdddressException {
-        if(addr == null){
-            throw new InvalidBluetoothAdddressException("NULL address");
-        }
-        if(addr.length != BD_ADDR_SIZE){
-            throw new InvalidBluetoothAdddressException(String.format("Invalid BD_ADDR size: %d; expected: %d", addr.length, BD_ADDR_SIZE));
-        }
-        /**
-         * It would be nice to have a formatter here, but since this method is called way too many times, we cannot afford it.
-         * String.format("%02X:%02X:%02X:%02X:%02X:%02X", addr[0], addr[1], addr[2], addr[3], addr[4], addr[5]) is the format.
-         */
-        return BDAddrToStr(addr);
-    }
-
-    private static String uncheckedParseDBAddr(byte addr[]){
-        try {
-            return parseBDAddr(addr);
-        } catch (InvalidBluetoothAdddressException e) {
-            Logger.logE(e.getMessage());
-        }
-        return null;
+    public static boolean isValidBDAddr(String addr){
+        return isValidBDAddr(BDAddr.parse(addr));
     }
 
-    public static boolean isValidBDAddr(String addr){
-        if(!NULL_BD_ADDR_STR.equals(addr)){
-            try {
-                stringToBDAddr(addr);
-                return true;
-            } catch (InvalidBluetoothAdddressException e) {
-                return false;
-            }
-        }
-        return false;
+    public static boolean isValidBDAddr(long addr){
+        return BDAddr.isValid(addr);
+    }
+
+    /**
+     * Create a response to this packet, with a copy of this packet's payload.
+     * @return A pooled packet, owned by the caller.
+     */
+    public Packet resp(){
+        return PacketPool.getDefault().acquire(length).set(protocol, DEFAULT_TTL, dstBDAddr, srcBDAddr).fill(buf, 0, length);
     }
 
+    /**
+     * Create a response to this packet.
+     * @param data The response's payload, copied. If NULL, a fake payload is used.
+     * @return A pooled packet, owned by the caller.
+     */
     public Packet resp(byte data[]){
         if(data == null){
             //Fake payload
             data = NULL_BD_ADDR_STR.getBytes();
         }
-        return new Packet(protocol, DEFAULT_TTL, dstBDAddr, srcBDAddr, data);
+        return PacketPool.getDefault().acquire(data.length).set(protocol, DEFAULT_TTL, dstBDAddr, srcBDAddr).fill(data, 0, data.length);
     }
 
+    /**
+     * @return A pooled copy of the reference packet, with source and destination swapped, owned by the caller.
+     */
     public static Packet copy(Packet ref){
-        return new Packet(ref.protocol, ref.ttl, ref.dstBDAddr, ref.srcBDAddr, ref.getData().clone());
+        return PacketPool.getDefault().acquire(ref.length).set(ref.protocol, ref.ttl, ref.dstBDAddr, ref.srcBDAddr).fill(ref.buf, 0, ref.length);
+    }
+
+    /**
+     * @return A pooled copy of this packet, with the same header fields, owned by the caller (e.g. what a peer decodes off the wire).
+     */
+    public Packet duplicate(){
+        return PacketPool.getDefault().acquire(length).set(protocol, ttl, srcBDAddr, dstBDAddr).fill(buf, 0, length);
+    }
+
+    private Packet fill(byte data[], int offs, int len){
+        System.arraycopy(data, offs, buf, 0, len);
+        ipHeaderParsed = false;
+        return this;
     }
 
     public static Packet wrap(byte data[]){
@@ -143,24 +290,56 @@ public class Packet {
             //Fake payload
             data = NULL_BD_ADDR_STR.getBytes();
             protocol = PROTOCOL_PROXIMITY;
-        }else{
-            try {
-                InternetLayerHeaders.AddressHeaders addressHeaders = InternetLayerHeaders.parseInetAddr(data);
-                if(addressHeaders.getTo().getHostAddress().endsWith(".3.3")){
-                    protocol = PROTOCOL_ITEST;
-                }
-            } catch (InternetLayerHeaders.InvalidDatagramException e) {
-                e.printStackTrace();
-            }
         }
-        return new Packet(protocol, DEFAULT_TTL, NULL_BD_ADDR, NULL_BD_ADDR, data);
+        Packet pkt = new Packet(protocol, DEFAULT_TTL, NULL_BD_ADDR, NULL_BD_ADDR, data);
+        if(protocol == PROTOCOL_DATA){
+            pkt.protocol = pkt.classifyPayload();
+        }
+        return pkt;
     }
 
-    Packet(byte protocol, byte ttl, byte srcBDAddr[], byte dstBDAddr[], byte data[]){
+    /**
+     * Mark a packet holding a local datagram (e.g. read from the VPN interface into a pooled packet) the way {@link #wrap(byte[])} would.
+     * @return This packet.
+     */
+    public Packet classify(){
+        protocol = classifyPayload();
+        ttl = DEFAULT_TTL;
+        return this;
+    }
+
+    private byte classifyPayload(){
+        IPv4Header header = getIPv4Header();
+        if(header != null && (header.getDstAddr() & 0xFFFF) == ITEST_ADDR_SUFFIX){
+            return PROTOCOL_ITEST;
+        }
+        return PROTOCOL_DATA;
+    }
+
+    /**
+     * Wrap a datagram in an unpooled packet.
+     */
+    Packet(byte protocol, byte ttl, long srcBDAddr, long dstBDAddr, byte data[]){
         this.protocol = protocol;
         this.ttl = ttl;
         this.srcBDAddr = srcBDAddr;
         this.dstBDAddr = dstBDAddr;
         this.buf = data;
+        length = data.length;
+        pool = null;
+        refCount = 1;
+    }
+
+    /**
+     * Create a packet around a buffer owned by a pool (or an oversized, unpooled buffer if the pool is NULL).
+     */
+    Packet(PacketPool pool, byte buf[]){
+        this.pool = pool;
+        this.buf = buf;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("Packet(proto=%d, ttl=%d, len=%d, refs=%d)", protocol, ttl, length, refCount);
     }
 }
\ No newline at end of file
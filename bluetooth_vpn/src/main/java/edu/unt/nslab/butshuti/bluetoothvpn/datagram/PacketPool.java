@@ -0,0 +1,168 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+
+/**
+ * A pool of reference-counted {@link Packet}s with fixed-size payload buffers.
+ * <p>
+ *     Ownership rules along the datapath:
+ *     <ul>
+ *         <li>{@link #acquire(int)} returns a packet holding one reference, owned by the caller.</li>
+ *         <li>A method that is handed a packet only borrows it for the duration of the call.
+ *         If it keeps the packet beyond that (e.g. queues it for another thread), it must {@link Packet#retain()} it first.</li>
+ *         <li>Whoever owns a reference gives it up with {@link Packet#release()}: the packet returns to the pool when the last reference is released.</li>
+ *     </ul>
+ *     Packets larger than the pool's buffer size, and packets created with {@link Packet#wrap(byte[])}, are not pooled:
+ *     releasing them simply lets them be garbage-collected.
+ * </p>
+ * <p>
+ *     In leak-detection mode, the pool records where each outstanding packet was acquired, so tests can assert that
+ *     every acquired packet has been released (see {@link #getLeaks()}).
+ * </p>
+ */
+public final class PacketPool {
+    public static final int DEFAULT_BUFFER_SIZE = 2048;
+    public static final int DEFAULT_MAX_POOLED = 256;
+    private static final PacketPool DEFAULT_POOL = new PacketPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int bufferSize;
+    private final Packet freeList[];
+    private int freeCount = 0;
+    private volatile boolean leakDetection = false;
+    private final Map<Packet, Throwable> outstanding = new IdentityHashMap<>();
+    private long acquired = 0, allocated = 0, recycled = 0;
+
+    /**
+     * Create a pool.
+     * @param bufferSize The payload capacity of pooled packets.
+     * @param maxPooled The maximum number of idle packets kept for reuse.
+     */
+    public PacketPool(int bufferSize, int maxPooled){
+        this.bufferSize = bufferSize;
+        freeList = new Packet[maxPooled];
+    }
+
+    public static PacketPool getDefault(){
+        return DEFAULT_POOL;
+    }
+
+    public int getBufferSize(){
+        return bufferSize;
+    }
+
+    /**
+     * Get a packet with room for at least size bytes of payload.
+     * <p>
+     *     The packet's length is set to size; its protocol, TTL and addresses are reset.
+     * </p>
+     * @param size The payload size.
+     * @return A packet holding one reference, owned by the caller.
+     */
+    public Packet acquire(int size){
+        Packet pkt = null;
+        if(size <= bufferSize){
+            synchronized (this){
+                acquired++;
+                if(freeCount > 0){
+                    pkt = freeList[--freeCount];
+                    freeList[freeCount] = null;
+                }else{
+                    allocated++;
+                }
+            }
+            if(pkt == null){
+                pkt = new Packet(this, new byte[bufferSize]);
+            }
+        }else{
+            pkt = new Packet(null, new byte[size]);
+        }
+        pkt.recycle(size);
+        if(leakDetection && pkt.isPooled()){
+            synchronized (outstanding){
+                outstanding.put(pkt, new Throwable("Packet acquired here"));
+            }
+        }
+        return pkt;
+    }
+
+    /**
+     * Return a packet whose last reference was released.
+     */
+    void recycle(Packet pkt){
+        if(leakDetection){
+            synchronized (outstanding){
+                outstanding.remove(pkt);
+            }
+        }
+        synchronized (this){
+            recycled++;
+            if(freeCount < freeList.length){
+                freeList[freeCount++] = pkt;
+            }
+        }
+    }
+
+    /**
+     * Enable or disable leak detection.
+     * <p>
+     *     This records a stack trace per acquired packet, so it is meant for tests only.
+     *     Toggling it clears previously recorded packets.
+     * </p>
+     * @param enable True to track outstanding packets.
+     */
+    public void setLeakDetection(boolean enable){
+        synchronized (outstanding){
+            outstanding.clear();
+        }
+        leakDetection = enable;
+    }
+
+    public boolean isLeakDetectionEnabled(){
+        return leakDetection;
+    }
+
+    /**
+     * @return The acquisition sites of packets acquired (since leak detection was enabled) and not yet released.
+     */
+    public Collection<Throwable> getLeaks(){
+        synchronized (outstanding){
+            return new ArrayList<>(outstanding.values());
+        }
+    }
+
+    /**
+     * Log the acquisition sites of outstanding packets.
+     * @return The number of outstanding packets.
+     */
+    public int reportLeaks(){
+        List<Throwable> leaks = new ArrayList<>(getLeaks());
+        for(Throwable leak : leaks){
+            StackTraceElement ste[] = leak.getStackTrace();
+            Logger.logE("Leaked packet, acquired at " + (ste.length > 1 ? ste[1] : "?"));
+        }
+        return leaks.size();
+    }
+
+    /**
+     * Report a packet released more times than it was retained.
+     */
+    void onOverRelease(Packet pkt){
+        IllegalStateException e = new IllegalStateException("Packet released more times than retained: " + pkt);
+        if(leakDetection){
+            throw e;
+        }
+        Logger.logE(e.getMessage());
+    }
+
+    @Override
+    public synchronized String toString(){
+        return String.format("PacketPool(buf=%d, idle=%d/%d, acquired=%d, allocated=%d, recycled=%d)",
+                bufferSize, freeCount, freeList.length, acquired, allocated, recycled);
+    }
+}
@@ -0,0 +1,81 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import java.util.Arrays;
+
+/**
+ * Timestamps of a sampled packet's way through the tunnel stages.
+ * <p>
+ *     Outbound packets go TUN_READ, CONTROLLER_ENQUEUE, ROUTED, WIRE_ENQUEUE, WIRE_WRITE.
+ *     Inbound packets go WIRE_READ, CONTROLLER_ENQUEUE, ROUTED, then TUN_ENQUEUE, TUN_WRITE if delivered locally,
+ *     or WIRE_ENQUEUE, WIRE_WRITE if forwarded.
+ *     A trace is only carried by sampled packets (see {@link Packet#getTrace()}): other packets pay a null check per stage.
+ * </p>
+ */
+public final class PacketTrace {
+
+    public enum Stage {
+        TUN_READ, WIRE_READ, CONTROLLER_ENQUEUE, ROUTED, WIRE_ENQUEUE, WIRE_WRITE, TUN_ENQUEUE, TUN_WRITE
+    }
+
+    private static final Stage STAGES[] = Stage.values();
+
+    private final long timestamps[] = new long[STAGES.length];
+    private final long peer;
+    private final int length;
+    private long wireEndPos;
+
+    /**
+     * @param first The stage the packet entered the node through (TUN_READ or WIRE_READ), stamped now.
+     * @param peer The peer the packet came from, {@link Packet#NULL_BD_ADDR} for local datagrams.
+     * @param length The datagram's length.
+     */
+    public PacketTrace(Stage first, long peer, int length){
+        this.peer = peer;
+        this.length = length;
+        mark(first);
+    }
+
+    /**
+     * Stamp a stage with the current time. Only the first stamp of a stage is kept.
+     */
+    public void mark(Stage stage){
+        if(timestamps[stage.ordinal()] == 0){
+            timestamps[stage.ordinal()] = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return The time ({@link System#nanoTime()}) a stage was reached, 0 if not reached.
+     */
+    public long getTimestamp(Stage stage){
+        return timestamps[stage.ordinal()];
+    }
+
+    public boolean isOutbound(){
+        return timestamps[Stage.TUN_READ.ordinal()] != 0;
+    }
+
+    public long getPeer(){
+        return peer;
+    }
+
+    public int getLength(){
+        return length;
+    }
+
+    /**
+     * @return The position, in its connection's transmit stream, of the end of the packet's frame (set at WIRE_ENQUEUE).
+     */
+    public long getWireEndPos(){
+        return wireEndPos;
+    }
+
+    public void setWireEndPos(long pos){
+        wireEndPos = pos;
+    }
+
+    @Override
+    public String toString(){
+        return "PacketTrace(" + Arrays.toString(timestamps) + ")";
+    }
+}
@@ -0,0 +1,118 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression for frame payloads on links where the peer accepted {@link WireInterface#FEATURE_COMPRESSION}.
+ * <p>
+ *     Each payload is compressed on its own, so that frames stay independently decodable.
+ *     Both ends of a link must use the same codec (see {@link WireInterface#createPayloadCodec()}).
+ *     Instances are used by one thread at a time, but may be closed from any.
+ * </p>
+ */
+public interface PayloadCodec {
+
+    /**
+     * Compress a payload, giving up as soon as the output would not fit.
+     * @param maxLen The room available in dst: the caller's limit for the compression to be worth it.
+     * @return The compressed size, or -1 if it would exceed maxLen.
+     */
+    int compress(byte src[], int offs, int len, byte dst[], int dstOffs, int maxLen);
+
+    /**
+     * @param dstLen The expected decompressed size.
+     * @return The decompressed size, or -1 if the input is malformed or does not decompress to dstLen bytes.
+     */
+    int decompress(byte src[], int offs, int len, byte dst[], int dstOffs, int dstLen);
+
+    /**
+     * Free the codec's resources. Once closed, it compresses and decompresses nothing (both return -1).
+     */
+    void close();
+
+    /**
+     * Raw Deflate at the fastest level, with a preset dictionary of bytes common in IP traffic
+     * (header fields, HTTP and DNS text) so that even small packets shrink.
+     */
+    final class Deflate implements PayloadCodec {
+        private static final byte DICTIONARY[] = createDictionary();
+
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final Inflater inflater = new Inflater(true);
+        private final byte probe[] = new byte[1];
+        private boolean closed = false;
+
+        private static byte[] createDictionary(){
+            String text = "Accept-Encoding: gzip, deflate\r\nAccept-Language: en-US,en;q=0.9\r\nAccept: */*\r\n"
+                    + "User-Agent: Mozilla/5.0 (Linux; Android 8.0.0) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/70.0 Mobile Safari/537.36\r\n"
+                    + "Cache-Control: no-cache\r\nConnection: keep-alive\r\nContent-Type: application/json; charset=utf-8\r\n"
+                    + "Content-Length: \r\nDate: \r\nServer: \r\nHost: www.\r\nHTTP/1.1 200 OK\r\nGET / HTTP/1.1\r\nPOST /"
+                    + ".com.net.org.local.arpa\u0000\u0000\u0001\u0000\u0001";
+            byte textBytes[] = text.getBytes(Charset.forName("ISO-8859-1"));
+            //Zeroed header fields (IPv4 flags, checksums, TCP options padding...), then the text.
+            byte dictionary[] = new byte[64 + textBytes.length];
+            dictionary[0] = 0x45;
+            dictionary[20] = 0x45;
+            System.arraycopy(textBytes, 0, dictionary, 64, textBytes.length);
+            return dictionary;
+        }
+
+        @Override
+        public synchronized int compress(byte src[], int offs, int len, byte dst[], int dstOffs, int maxLen){
+            if(closed){
+                return -1;
+            }
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(src, offs, len);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished() && size < maxLen){
+                size += deflater.deflate(dst, dstOffs + size, maxLen - size);
+            }
+            return deflater.finished() ? size : -1;
+        }
+
+        @Override
+        public synchronized int decompress(byte src[], int offs, int len, byte dst[], int dstOffs, int dstLen){
+            if(closed){
+                return -1;
+            }
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(src, offs, len);
+            try {
+                int size = 0;
+                while (size < dstLen && !inflater.finished()){
+                    int n = inflater.inflate(dst, dstOffs + size, dstLen - size);
+                    if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                        return -1;
+                    }
+                    size += n;
+                }
+                //The end of the stream may not be consumed yet: it must not hold any more data.
+                if(!inflater.finished() && inflater.inflate(probe, 0, 1) != 0){
+                    return -1;
+                }
+                return size == dstLen && inflater.finished() ? size : -1;
+            } catch (DataFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Release the zlib streams' native memory now rather than when the codec is garbage collected.
+         */
+        @Override
+        public synchronized void close(){
+            if(!closed){
+                closed = true;
+                deflater.end();
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.IPv4Header;
+
+/**
+ * Priority classes for queued packets, highest priority first.
+ */
+public enum TrafficClass {
+    /**
+     * Link-local signalling (proximity probes, path propagation, ...): small, rare, and needed to keep routes alive.
+     */
+    CONTROL,
+    /**
+     * Latency-sensitive datagrams: expedited DSCP markings, ICMP, and small packets such as TCP ACKs or DNS queries.
+     */
+    INTERACTIVE,
+    /**
+     * Everything else.
+     */
+    BULK;
+
+    private static final int SMALL_DATAGRAM_SIZE = 128;
+    private static final int DSCP_CS5 = 40;
+
+    /**
+     * Classify a packet from its protocol and, for IP datagrams, its header.
+     * This only reads a few header bytes, through the packet's cached header view, and allocates nothing.
+     * @param pkt The packet.
+     * @return The packet's class.
+     */
+    public static TrafficClass of(Packet pkt){
+        if(pkt.getProtocol() != Packet.PROTOCOL_DATA && pkt.getProtocol() != Packet.PROTOCOL_ITEST){
+            return CONTROL;
+        }
+        IPv4Header header = pkt.getIPv4Header();
+        if(header == null){
+            return BULK;
+        }
+        if(header.getDscp() >= DSCP_CS5 || header.getProtocol() == IPv4Header.PROTO_ICMP || pkt.getLength() <= SMALL_DATAGRAM_SIZE){
+            return INTERACTIVE;
+        }
+        return BULK;
+    }
+}
@@ -2,11 +2,13 @@ package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.zip.Checksum;
 
 
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Crc32c;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
 
 import static edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.AddressConversions.BD_ADDR_SIZE;
 
@@ -14,6 +16,7 @@ import static edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.AddressCon
 /**
  * Created by butshuti on 1/3/18.
  */
+
 public abstract class WireInterface {
 
     /**
@@ -29,96 +32,830 @@ public abstract class WireInterface {
      *         |------------------               >
      *      12 |     Destination BD_ADDR         |
      *         |----------------------------------
-     *      16 |         Preamble XOR            |
+     *      16 |  Preamble XOR   |  Payload XOR  |
      *      -- |---------------------------------|
+     *
+     * The protocol byte's high bits flag optional frame formats, only sent to peers that accepted them (see {@link #createFeatureOffer()}):
+     *  - {@link #FRAME_FLAG_CRC32C}: bytes 16-17 hold the low 16 bits of the CRC-32C of bytes 0-15, bytes 18-19 are zero,
+     *    and the payload is followed by its CRC-32C (4 bytes).
+     *  - {@link #FRAME_FLAG_SUPERFRAME}: the payload is a sequence of sub-frames packed by a {@link FrameCoalescer},
+     *    the TTL holds their number and the addresses are unused. The payload is checked as a whole (XOR or CRC-32C).
+     *  - {@link #FRAME_FLAG_COMPACT}: the preamble is replaced by the compact header below.
+     *  - {@link #FRAME_FLAG_COMPRESSED}: the payload is the varint size of the original payload followed by the original
+     *    payload compressed by the link's {@link PayloadCodec}. Checksums cover the payload as sent.
+     * Frames without flags are in the legacy format above, which every peer understands.
+     *
+     * Compact header format:
+     *      0  | Protocol + flags | TTL | Context | pkt_size (varint, 1-3 bytes) | [Source BD_ADDR | Destination BD_ADDR]
+     *         | Header check (2) | [Payload XOR (2)]
+     * The context indexes a table of address pairs kept by each end of the link. When {@link #CONTEXT_INSTALL} is set,
+     * the addresses follow and are stored at that index first; the sender does so for any pair not already in the
+     * peer's table, so relayed frames just carry full addresses again. The header check is the XOR, or the low 16 bits
+     * of the CRC-32C (with {@link #FRAME_FLAG_CRC32C}), of the header bytes before it; the payload XOR is omitted with
+     * the CRC-32C trailer. Superframes have no context.
+     *
+     * Sub-frame format (little-endian, like the preamble):
+     *      0  | Protocol + flags | TTL | pkt_size (2) | [Source BD_ADDR (6) | Destination BD_ADDR (6)] | payload
+     * The addresses are only present when {@link #SUBFRAME_FLAG_ADDRS} is set (always for the first sub-frame), and
+     * otherwise repeat those of the previous sub-frame.
      */
     public final static int PREAMBLE_SIZE = 20;
-    private final byte staticPreambleByteArr[] = new byte[PREAMBLE_SIZE];
-    private byte savedPreamble[] = null;
+    public final static int CRC_TRAILER_SIZE = 4;
+    final static int SUBFRAME_HEADER_SIZE = 4;
+    final static int SUBFRAME_ADDRS_SIZE = 2 * BD_ADDR_SIZE;
+    private final static int COMPACT_LENGTH_OFFSET = 3;
+    private final static int MAX_VARINT_SIZE = 3;
+    /**
+     * Largest header of any format, for callers encoding headers with {@link #encodeHeader(Packet, byte[], int, int)}.
+     */
+    public final static int MAX_HEADER_SIZE = COMPACT_LENGTH_OFFSET + MAX_VARINT_SIZE + SUBFRAME_ADDRS_SIZE + 4;
+    private final static int MAX_FRAME_SIZE = MAX_HEADER_SIZE + Short.MAX_VALUE + CRC_TRAILER_SIZE;
+    private final static int RECEIVE_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Optional features, negotiated per connection.
+     */
+    public final static int FEATURE_CRC32C = 0x01;
+    public final static int FEATURE_SUPERFRAME = 0x02;
+    public final static int FEATURE_COMPACT = 0x04;
+    public final static int FEATURE_COMPRESSION = 0x08;
+    public final static int FEATURES_ALL = FEATURE_CRC32C | FEATURE_SUPERFRAME | FEATURE_COMPACT | FEATURE_COMPRESSION;
+
+    final static int FRAME_FLAG_CRC32C = 0x80;
+    final static int FRAME_FLAG_COMPACT = 0x40;
+    final static int FRAME_FLAG_SUPERFRAME = 0x20;
+    final static int FRAME_FLAG_COMPRESSED = 0x10;
+    final static int SUBFRAME_FLAG_ADDRS = 0x80;
+    private final static int FRAME_FLAGS_MASK = 0xF0;
+    private final static int PROTOCOL_MASK = 0x0F;
+    private final static int CONTEXT_INSTALL = 0x80;
+    private final static int CONTEXTS = 0x80;
+    /**
+     * Payloads are only sent compressed if that saves at least this many bytes; smaller payloads are not tried.
+     */
+    private final static int MIN_COMPRESSION_GAIN = 8;
+    private final static int MIN_COMPRESSED_SIZE = 32;
+    /**
+     * After n payloads in a row failed to shrink, the next 2^n - 1 are sent as they are (n at most this).
+     */
+    private final static int MAX_COMPRESSION_BACKOFF = 6;
+
+    private final static byte OFFER_MAGIC[] = {'L', 'N'};
+    private final static byte OFFER_VERSION = 1;
+    private final static int OFFER_SIZE = OFFER_MAGIC.length + 1 + 4;
+    private final static Logger.Limiter CORRUPTION_LOGS = Logger.Limiter.perSecond(1);
+
+    private static volatile int localFeatures = FEATURES_ALL;
+
+    /**
+     * Reusable receive buffer: bytes in [rxStart, rxEnd) have been read but not yet decoded.
+     * It always has room for at least one maximum-sized frame, so frames never need to be reassembled elsewhere.
+     */
+    private final byte rxBuffer[] = new byte[RECEIVE_BUFFER_SIZE];
+    private int rxStart = 0, rxEnd = 0;
+    /**
+     * Sub-frames of the last superframe, left in [sfPos, sfEnd) of the receive buffer: no read happens until they are all returned.
+     */
+    private byte sfBuffer[] = rxBuffer;
+    private int sfPos = 0, sfEnd = 0;
+    private long sfSrcBDAddr, sfDstBDAddr;
+    /**
+     * Fields of the last header parsed.
+     */
+    private int hdrPktSize;
+    private short hdrPayloadXor;
+    private long hdrSrcBDAddr, hdrDstBDAddr;
+    /**
+     * Address pairs by compact header context, as installed by the peer (rx) and in the peer's table (tx).
+     */
+    private final long rxContextSrc[] = newContextTable(), rxContextDst[] = newContextTable();
+    private final long txContextSrc[] = newContextTable(), txContextDst[] = newContextTable();
+    private int pendingContext = -1;
+    private long pendingContextSrc, pendingContextDst;
+    /**
+     * Compression state, created with the first compressed frame.
+     */
+    private volatile PayloadCodec rxCodec, txCodec;
+    private byte inflated[], compressed[];
+    private int compressionFailures = 0, compressionBackoff = 0;
+    private volatile boolean codecsClosed = false;
+    private volatile long compressionInBytes = 0, compressionOutBytes = 0;
+    private int pendingCompressionIn = 0, pendingCompressionOut = 0; //Of the header encoded last, counted once queued
+    /**
+     * The payload to send after the header encoded last.
+     */
+    private byte txPayload[];
+    private int txPayloadOffs, txPayloadLength;
+    private final Checksum rxChecksum = Crc32c.newChecksum();
+    private volatile int txFeatures = 0;
+    private volatile long corruptedFrames = 0;
 
+    /**
+     * Set the features offered to peers by new connections, e.g. 0 to only ever use the legacy format.
+     */
+    public static void setLocalFeatures(int features){
+        localFeatures = features & FEATURES_ALL;
+    }
 
-    protected abstract int read(byte buffer[], int max) throws IOException;
+    public static int getLocalFeatures(){
+        return localFeatures;
+    }
 
+    /**
+     * Read available bytes from the wire.
+     * @param buffer The destination buffer.
+     * @param offset Where to start writing in the buffer.
+     * @param max The maximum number of bytes to read.
+     * @return The number of bytes read, 0 if none are available yet.
+     * @throws IOException If the stream failed or was closed.
+     */
+    protected abstract int read(byte buffer[], int offset, int max) throws IOException;
+
+    /**
+     * Decode the next frame.
+     * <p>
+     *     Frames are parsed in place from the receive buffer: several frames delivered by a single read are returned by
+     *     successive calls without reading again, and a frame split across reads is completed by the next read(s).
+     *     Frames failing the payload integrity check are dropped.
+     *     The datagrams packed in a superframe are returned one per call, once the whole superframe is checked.
+     *     Any frame format this end supports is accepted, whatever was negotiated for sending.
+     * </p>
+     * @return The next packet, acquired from the default {@link PacketPool} and owned by the caller; or NULL if no complete frame is available and {@link #read(byte[], int, int)} returned nothing.
+     * @throws IOException On read errors, or if a corrupted preamble makes the stream impossible to resynchronize.
+     */
     public final synchronized Packet readMultipartNext() throws IOException {
-        int size;
-        byte preamble[];
-        if(savedPreamble != null){
-            preamble = savedPreamble;
-            size = preamble.length;
-        }else{
-            preamble = staticPreambleByteArr;
-            size = read(preamble, PREAMBLE_SIZE);
-        }
-        if(size == PREAMBLE_SIZE){
-            ByteBuffer byteBuffer = ByteBuffer.wrap(preamble);
-            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            byte protocol = byteBuffer.get();
-            byte ttl = byteBuffer.get();
-            short pktSize = byteBuffer.getShort();
-            byte srcBDAddr[] = new byte[BD_ADDR_SIZE];
-            byte dstBDAddr[] = new byte[BD_ADDR_SIZE];
-            byteBuffer.get(srcBDAddr, 0, BD_ADDR_SIZE);
-            byteBuffer.get(dstBDAddr, 0, BD_ADDR_SIZE);
-            short preambleXor = byteBuffer.getShort();
-            short dataXor = byteBuffer.getShort();
-            if (pktSize <= 0 || preambleXor != calcPktPreambleXor(preamble)) {
-                IOException e = new IOException(String.format("Invalid or corrupted preamble: expected %d, got %d; sz=%d / [%s]", preambleXor, calcPktPreambleXor(preamble), pktSize, Arrays.toString(preamble)));
+        while (true){
+            if(sfPos < sfEnd){
+                Packet pkt = nextSubframe();
+                if(pkt != null){
+                    return pkt;
+                }
+                continue;
+            }
+            int buffered = rxEnd - rxStart;
+            int headerSize = buffered > 0 ? parseHeader(rxStart, buffered) : 0;
+            if(headerSize < 0){
+                IOException e = new IOException(String.format("Invalid or corrupted preamble: flags=%x, sz=%d / [%s]", rxBuffer[rxStart] & FRAME_FLAGS_MASK, hdrPktSize,
+                        Arrays.toString(Arrays.copyOfRange(rxBuffer, rxStart, rxStart + Math.min(buffered, PREAMBLE_SIZE)))));
                 Logger.logE(e.getMessage());
                 throw e;
             }
-            byte data[] = new byte[pktSize];
-            int embeddedSize = read(data, pktSize);
-            if(embeddedSize  == pktSize && dataXor == calcBufXor(data, pktSize)){
-                savedPreamble = null;
-                return new Packet(protocol, ttl, srcBDAddr, dstBDAddr, data);
-            }else if(embeddedSize == 0){
-                //Not enough data available, save preamble for next read.
-                savedPreamble = preamble;
-            }else{
-                Logger.logE("Read packet does not match preamble");
+            if(headerSize > 0){
+                int flags = rxBuffer[rxStart] & FRAME_FLAGS_MASK;
+                int frameSize = headerSize + hdrPktSize + ((flags & FRAME_FLAG_CRC32C) != 0 ? CRC_TRAILER_SIZE : 0);
+                if(buffered >= frameSize){
+                    int frameStart = rxStart;
+                    int payloadOffs = frameStart + headerSize;
+                    rxStart += frameSize;
+                    if(rxStart == rxEnd){
+                        //The frame's bytes stay in place until the next read.
+                        rxStart = rxEnd = 0;
+                    }
+                    if((flags & FRAME_FLAG_SUPERFRAME) != 0){
+                        if(isValidPayload(payloadOffs, hdrPktSize, flags)){
+                            if((flags & FRAME_FLAG_COMPRESSED) == 0){
+                                startSubframes(rxBuffer, payloadOffs, hdrPktSize);
+                                continue;
+                            }
+                            if(inflated == null){
+                                inflated = new byte[Short.MAX_VALUE];
+                            }
+                            int size = inflate(payloadOffs, hdrPktSize, inflated);
+                            if(size > 0){
+                                startSubframes(inflated, 0, size);
+                                continue;
+                            }
+                        }
+                    }else if(hdrSrcBDAddr == BDAddr.INVALID){
+                        onCorruptedFrame("Unknown header context");
+                        continue;
+                    }else if((flags & FRAME_FLAG_COMPRESSED) != 0){
+                        Packet pkt = isValidPayload(payloadOffs, hdrPktSize, flags) ? inflate(frameStart, payloadOffs, hdrPktSize) : null;
+                        if(pkt != null){
+                            return pkt;
+                        }
+                    }else{
+                        Packet pkt = decode(frameStart, payloadOffs, hdrPktSize, flags);
+                        if(pkt != null){
+                            return pkt;
+                        }
+                    }
+                    onCorruptedFrame("Read packet does not match preamble");
+                    continue;
+                }
+            }
+            if(rxEnd + MAX_FRAME_SIZE > rxBuffer.length && rxStart > 0){
+                //Not enough room left to complete the pending frame in place.
+                System.arraycopy(rxBuffer, rxStart, rxBuffer, 0, buffered);
+                rxStart = 0;
+                rxEnd = buffered;
             }
+            int len = read(rxBuffer, rxEnd, rxBuffer.length - rxEnd);
+            if(len <= 0){
+                return null;
+            }
+            rxEnd += len;
+        }
+    }
+
+    /**
+     * Parse the header of the frame at offs, into the hdr* fields.
+     * @param buffered The number of bytes available from offs.
+     * @return The header's size, 0 if more bytes are needed, or -1 if the header is invalid (its frame's length cannot be trusted).
+     */
+    private int parseHeader(int offs, int buffered){
+        int flags = rxBuffer[offs] & FRAME_FLAGS_MASK;
+        hdrPktSize = 0;
+        if((flags & ~(FRAME_FLAG_CRC32C | FRAME_FLAG_COMPACT | FRAME_FLAG_SUPERFRAME | FRAME_FLAG_COMPRESSED)) != 0){
+            //Unknown format
+            return -1;
         }
-        return null;
+        boolean crc = (flags & FRAME_FLAG_CRC32C) != 0;
+        if((flags & FRAME_FLAG_COMPACT) == 0){
+            if(buffered < PREAMBLE_SIZE){
+                return 0;
+            }
+            hdrPktSize = getShort(rxBuffer, offs + 2);
+            hdrPayloadXor = getShort(rxBuffer, offs + 18);
+            hdrSrcBDAddr = BDAddr.read(rxBuffer, offs + 4);
+            hdrDstBDAddr = BDAddr.read(rxBuffer, offs + 4 + BD_ADDR_SIZE);
+            boolean valid = crc ? getShort(rxBuffer, offs + 16) == calcHeaderCrc(rxBuffer, offs, PREAMBLE_SIZE - 4) && hdrPayloadXor == 0
+                    : getShort(rxBuffer, offs + 16) == calcBufXor(rxBuffer, offs, PREAMBLE_SIZE - 4);
+            return valid && hdrPktSize > 0 ? PREAMBLE_SIZE : -1;
+        }
+        //Compact header: its size depends on the length's encoding and on whether a context is installed.
+        int end = offs + buffered;
+        int pos = offs + COMPACT_LENGTH_OFFSET;
+        int pktSize = 0;
+        for(int shift = 0; ; shift += 7){
+            if(pos >= end){
+                return 0;
+            }
+            if(pos == offs + COMPACT_LENGTH_OFFSET + MAX_VARINT_SIZE){
+                return -1;
+            }
+            int b = rxBuffer[pos++];
+            pktSize |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                break;
+            }
+        }
+        int context = rxBuffer[offs + 2] & 0xFF;
+        int addrsOffs = pos;
+        int checkOffs = (context & CONTEXT_INSTALL) != 0 ? pos + SUBFRAME_ADDRS_SIZE : pos;
+        int size = checkOffs + (crc ? 2 : 4) - offs;
+        if(buffered < size){
+            return 0;
+        }
+        short check = crc ? calcHeaderCrc(rxBuffer, offs, checkOffs - offs) : calcBufXor(rxBuffer, offs, checkOffs - offs);
+        if(getShort(rxBuffer, checkOffs) != check || pktSize <= 0 || pktSize > Short.MAX_VALUE){
+            return -1;
+        }
+        hdrPktSize = pktSize;
+        hdrPayloadXor = crc ? 0 : getShort(rxBuffer, checkOffs + 2);
+        if((flags & FRAME_FLAG_SUPERFRAME) != 0){
+            hdrSrcBDAddr = hdrDstBDAddr = Packet.NULL_BD_ADDR;
+            return size;
+        }
+        if((context & CONTEXT_INSTALL) != 0){
+            context &= ~CONTEXT_INSTALL;
+            rxContextSrc[context] = BDAddr.read(rxBuffer, addrsOffs);
+            rxContextDst[context] = BDAddr.read(rxBuffer, addrsOffs + BD_ADDR_SIZE);
+        }
+        //INVALID if the peer never installed the context
+        hdrSrcBDAddr = rxContextSrc[context];
+        hdrDstBDAddr = rxContextDst[context];
+        return size;
+    }
+
+    /**
+     * Check a complete frame's payload against its checksum, without copying it.
+     */
+    private boolean isValidPayload(int payloadOffs, int pktSize, int flags){
+        if((flags & FRAME_FLAG_CRC32C) != 0){
+            return Crc32c.compute(rxBuffer, payloadOffs, pktSize) == getInt(rxBuffer, payloadOffs + pktSize);
+        }
+        return hdrPayloadXor == calcBufXor(rxBuffer, payloadOffs, pktSize);
+    }
+
+    private void startSubframes(byte buf[], int offs, int size){
+        sfBuffer = buf;
+        sfPos = offs;
+        sfEnd = offs + size;
+        sfSrcBDAddr = sfDstBDAddr = BDAddr.INVALID;
+    }
+
+    /**
+     * Decompress a compressed payload in the receive buffer.
+     * @param dst The destination, from its first byte.
+     * @return The decompressed size, or -1 if the payload is malformed or does not fit in dst.
+     */
+    private int inflate(int payloadOffs, int pktSize, byte dst[]){
+        int size = readVarint(rxBuffer, payloadOffs, payloadOffs + pktSize);
+        if(size <= 0 || size > dst.length){
+            return -1;
+        }
+        int varintSize = varintSize(size);
+        return getRxCodec().decompress(rxBuffer, payloadOffs + varintSize, pktSize - varintSize, dst, 0, size);
+    }
+
+    private PayloadCodec getRxCodec(){
+        if(rxCodec == null){
+            rxCodec = createCodec();
+        }
+        return rxCodec;
+    }
+
+    /**
+     * Build a packet from a complete, checked frame holding a compressed payload.
+     * @return The packet, or NULL if the payload is malformed.
+     */
+    private Packet inflate(int offs, int payloadOffs, int pktSize){
+        int size = readVarint(rxBuffer, payloadOffs, payloadOffs + pktSize);
+        if(size <= 0 || size > Short.MAX_VALUE){
+            return null;
+        }
+        int varintSize = varintSize(size);
+        Packet pkt = PacketPool.getDefault().acquire(size);
+        if(getRxCodec().decompress(rxBuffer, payloadOffs + varintSize, pktSize - varintSize, pkt.getData(), 0, size) != size){
+            pkt.release();
+            return null;
+        }
+        return pkt.set((byte)(rxBuffer[offs] & PROTOCOL_MASK), rxBuffer[offs + 1], hdrSrcBDAddr, hdrDstBDAddr);
+    }
+
+    /**
+     * Build a packet from the next sub-frame of the current superframe.
+     * @return The packet, or NULL if the superframe is malformed (its remaining sub-frames are dropped).
+     */
+    private Packet nextSubframe(){
+        int offs = sfPos;
+        int pktSize = offs + SUBFRAME_HEADER_SIZE <= sfEnd ? getShort(sfBuffer, offs + 2) : 0;
+        boolean addrs = (sfBuffer[offs] & SUBFRAME_FLAG_ADDRS) != 0;
+        int payloadOffs = offs + SUBFRAME_HEADER_SIZE + (addrs ? SUBFRAME_ADDRS_SIZE : 0);
+        if(pktSize <= 0 || payloadOffs + pktSize > sfEnd || (!addrs && sfSrcBDAddr == BDAddr.INVALID)){
+            sfPos = sfEnd;
+            onCorruptedFrame("Malformed superframe");
+            return null;
+        }
+        if(addrs){
+            sfSrcBDAddr = BDAddr.read(sfBuffer, offs + SUBFRAME_HEADER_SIZE);
+            sfDstBDAddr = BDAddr.read(sfBuffer, offs + SUBFRAME_HEADER_SIZE + BD_ADDR_SIZE);
+        }
+        Packet pkt = PacketPool.getDefault().acquire(pktSize);
+        System.arraycopy(sfBuffer, payloadOffs, pkt.getData(), 0, pktSize);
+        sfPos = payloadOffs + pktSize;
+        return pkt.set((byte)(sfBuffer[offs] & PROTOCOL_MASK), sfBuffer[offs + 1], sfSrcBDAddr, sfDstBDAddr);
+    }
+
+    private void onCorruptedFrame(String msg){
+        corruptedFrames++;
+        if(Logger.admit(Logger.Level.ERROR, CORRUPTION_LOGS)){
+            Logger.log(Logger.Level.ERROR, CORRUPTION_LOGS, "{} ({} corrupted frames)", msg, corruptedFrames, null);
+        }
+    }
+
+    /**
+     * Build a packet from a complete frame in the receive buffer, whose header was just parsed.
+     * @return The packet, or NULL if the payload does not match the frame's checksum.
+     */
+    private Packet decode(int offs, int payloadOffs, int pktSize, int flags){
+        Packet pkt;
+        if((flags & FRAME_FLAG_CRC32C) != 0){
+            pkt = PacketPool.getDefault().acquire(pktSize);
+            //Checked while copying: the payload is only read once.
+            rxChecksum.reset();
+            Crc32c.copy(rxChecksum, rxBuffer, payloadOffs, pkt.getData(), 0, pktSize);
+            if((int) rxChecksum.getValue() != getInt(rxBuffer, payloadOffs + pktSize)){
+                pkt.release();
+                return null;
+            }
+        }else{
+            if(hdrPayloadXor != calcBufXor(rxBuffer, payloadOffs, pktSize)){
+                return null;
+            }
+            pkt = PacketPool.getDefault().acquire(pktSize);
+            System.arraycopy(rxBuffer, payloadOffs, pkt.getData(), 0, pktSize);
+        }
+        return pkt.set((byte)(rxBuffer[offs] & PROTOCOL_MASK), rxBuffer[offs + 1], hdrSrcBDAddr, hdrDstBDAddr);
+    }
+
+    /**
+     * @return The number of frames dropped because their payload failed the integrity check.
+     */
+    public long getCorruptedFrames(){
+        return corruptedFrames;
+    }
+
+    /**
+     * @return The features to use for frames sent to the peer: those both ends support, once the peer's offer was received.
+     */
+    public final int getTxFeatures(){
+        return txFeatures;
+    }
+
+    /**
+     * Build the offer of this end's features, to send to the peer in the legacy format when the connection starts.
+     * Peers too old to understand it drop it as a non-routable packet.
+     */
+    public static Packet createFeatureOffer(){
+        byte data[] = new byte[OFFER_SIZE];
+        ByteBuffer.wrap(data).put(OFFER_MAGIC).put(OFFER_VERSION).putInt(localFeatures);
+        return new Packet(Packet.PROTOCOL_LINK_NEGOTIATION, (byte) 1, Packet.NULL_BD_ADDR, Packet.NULL_BD_ADDR, data);
+    }
+
+    /**
+     * Adopt the features both ends support for the frames this end sends from now on.
+     * @param pkt A {@link Packet#PROTOCOL_LINK_NEGOTIATION} packet received from the peer. It is only borrowed.
+     * @return The features in use, or -1 if the offer is malformed (the current features are kept).
+     */
+    public final int acceptFeatureOffer(Packet pkt){
+        byte data[] = pkt.getData();
+        if(pkt.getLength() < OFFER_SIZE || data[0] != OFFER_MAGIC[0] || data[1] != OFFER_MAGIC[1] || data[2] < OFFER_VERSION){
+            return -1;
+        }
+        int peerFeatures = ByteBuffer.wrap(data, OFFER_MAGIC.length + 1, 4).getInt();
+        txFeatures = peerFeatures & localFeatures;
+        return txFeatures;
+    }
+
+    private static long[] newContextTable(){
+        long table[] = new long[CONTEXTS];
+        Arrays.fill(table, BDAddr.INVALID);
+        return table;
+    }
+
+    private static int contextSlot(long srcBDAddr, long dstBDAddr){
+        long h = srcBDAddr * 31 + dstBDAddr;
+        int x = (int)(h ^ (h >>> 32));
+        return (x ^ (x >>> 16) ^ (x >>> 8)) & (CONTEXTS - 1);
+    }
+
+    /**
+     * Write a varint: 7 bits per byte, least significant first, the high bit set on all bytes but the last.
+     * @return The position after the varint.
+     */
+    private static int putVarint(byte dst[], int pos, int val){
+        while (val >= 0x80){
+            dst[pos++] = (byte)((val & 0x7F) | 0x80);
+            val >>>= 7;
+        }
+        dst[pos++] = (byte) val;
+        return pos;
+    }
+
+    /**
+     * @return The value of the varint of at most {@link #MAX_VARINT_SIZE} bytes at pos, or -1 if it is malformed.
+     */
+    private static int readVarint(byte buf[], int pos, int end){
+        int val = 0;
+        for(int i=0; i<MAX_VARINT_SIZE && pos + i < end; i++){
+            int b = buf[pos + i];
+            val |= (b & 0x7F) << (7 * i);
+            if((b & 0x80) == 0){
+                return val;
+            }
+        }
+        return -1;
+    }
+
+    private static int varintSize(int val){
+        return val < (1 << 7) ? 1 : val < (1 << 14) ? 2 : 3;
+    }
+
+    private static short getShort(byte buf[], int offs){
+        return (short)((buf[offs] & 0xFF) | ((buf[offs + 1] & 0xFF) << 8));
+    }
+
+    private static int getInt(byte buf[], int offs){
+        return (buf[offs] & 0xFF) | (buf[offs + 1] & 0xFF) << 8 | (buf[offs + 2] & 0xFF) << 16 | (buf[offs + 3] & 0xFF) << 24;
     }
 
     public final static byte[] toBytes(Packet pkt){
         if(pkt != null){
-            byte ret[] = new byte[pkt.getData().length + PREAMBLE_SIZE];
-            ByteBuffer byteBuffer = ByteBuffer.wrap(ret);
-            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            byteBuffer.put(pkt.getProtocol());
-            byteBuffer.put(pkt.getTtl());
-            byteBuffer.putShort((short)pkt.getData().length);
-            byteBuffer.put(pkt.getSrcBDAddr(), 0, BD_ADDR_SIZE);
-            byteBuffer.put(pkt.getDstBDAddr(), 0, BD_ADDR_SIZE);
-            short preXor = calcPktPreambleXor(ret);
-            short dataXor = calcBufXor(pkt.getData(), pkt.getData().length);
-            byteBuffer.putShort(preXor);
-            byteBuffer.putShort(dataXor);
-            byteBuffer.put(pkt.getData(), 0, pkt.getData().length);
+            byte ret[] = new byte[encodedSize(pkt)];
+            encode(pkt, ByteBuffer.wrap(ret));
             return ret;
         }
         return new byte[]{};
     }
 
-    private final static short calcPktPreambleXor(byte buf[]){
-        return calcBufXor(buf, PREAMBLE_SIZE - 4);
+    /**
+     * @param pkt The packet to encode.
+     * @return The size of the packet's frame on the wire in the legacy format, preamble included.
+     */
+    public final static int encodedSize(Packet pkt){
+        return pkt.getLength() + PREAMBLE_SIZE;
     }
 
-    private final static short calcBufXor(byte buf[], int size){
-        if(buf == null || buf.length < size){
-            return -1;
+    /**
+     * @param pkt The packet to encode.
+     * @param features The features in use (see {@link #getTxFeatures()}).
+     * @return The size of the packet's frame on the wire, header and trailer included: an upper bound with
+     * {@link #FEATURE_COMPACT} (a compact header installing a context may take up to {@link #MAX_HEADER_SIZE} bytes)
+     * or {@link #FEATURE_COMPRESSION} (payloads are only sent compressed if they shrink).
+     */
+    public final static int encodedSize(Packet pkt, int features){
+        int headerSize = (features & FEATURE_COMPACT) != 0 ? MAX_HEADER_SIZE : PREAMBLE_SIZE;
+        return pkt.getLength() + headerSize + ((features & FEATURE_CRC32C) != 0 ? CRC_TRAILER_SIZE : 0);
+    }
+
+    /**
+     * Encode a full legacy frame (preamble and payload) into a caller-supplied buffer, heap or direct.
+     * <p>
+     *     The frame is written at the buffer's position, which is advanced past it. Nothing is allocated.
+     * </p>
+     * @param pkt The packet to encode.
+     * @param dst The destination buffer.
+     * @return The number of bytes written, or 0 if the buffer does not have room for the whole frame (the buffer is left untouched).
+     */
+    public final static int encode(Packet pkt, ByteBuffer dst){
+        int size = encodedSize(pkt);
+        if(dst.remaining() < size){
+            return 0;
+        }
+        encodePreamble(pkt, dst);
+        dst.put(pkt.getData(), 0, pkt.getLength());
+        return size;
+    }
+
+    /**
+     * Encode a legacy frame's preamble only, for gathering writes where the payload is written straight from {@link Packet#getData()}.
+     * <p>
+     *     The preamble is written at the buffer's position, which is advanced by {@link #PREAMBLE_SIZE}. Nothing is allocated.
+     * </p>
+     * @param pkt The packet to encode.
+     * @param dst The destination buffer, with at least {@link #PREAMBLE_SIZE} bytes remaining.
+     */
+    public final static void encodePreamble(Packet pkt, ByteBuffer dst){
+        byte data[] = pkt.getData();
+        int length = pkt.getLength();
+        int start = dst.position();
+        dst.put(pkt.getProtocol());
+        dst.put(pkt.getTtl());
+        putShort(dst, (short)length);
+        BDAddr.write(pkt.getSrcBDAddr(), dst);
+        BDAddr.write(pkt.getDstBDAddr(), dst);
+        putShort(dst, calcBufXor(dst, start, PREAMBLE_SIZE - 4));
+        putShort(dst, calcBufXor(data, 0, length));
+    }
+
+    /**
+     * Encode a frame's header for this link's peer, in the format selected by the features in use.
+     * <p>
+     *     With {@link #FEATURE_COMPACT}, the addresses are replaced by a context the peer already has, or installed
+     *     with this frame. Call {@link #onHeaderQueued()} once the frame is queued, so that later frames use it.
+     *     With {@link #FEATURE_COMPRESSION}, the payload may be compressed too: the payload to send after the header
+     *     is given by {@link #getTxPayload()}. Not thread-safe: senders serialize.
+     * </p>
+     * @param dst The destination array, with at least {@link #MAX_HEADER_SIZE} bytes from offs.
+     * @return The header's size.
+     */
+    public final int encodeHeader(Packet pkt, byte dst[], int offs, int features){
+        return encodeHeader(dst, offs, pkt.getProtocol(), pkt.getTtl(), pkt.getSrcBDAddr(), pkt.getDstBDAddr(), pkt.getData(), 0, pkt.getLength(), features);
+    }
+
+    final int encodeHeader(byte dst[], int offs, int protocol, byte ttl, long srcBDAddr, long dstBDAddr,
+                           byte payload[], int payloadOffs, int length, int features){
+        pendingContext = -1;
+        pendingCompressionIn = pendingCompressionOut = 0;
+        if((features & FEATURE_COMPRESSION) != 0 && compress(payload, payloadOffs, length)){
+            protocol |= FRAME_FLAG_COMPRESSED;
+            payload = compressed;
+            payloadOffs = 0;
+            length = txPayloadLength;
+        }else{
+            txPayload = payload;
+            txPayloadOffs = payloadOffs;
+            txPayloadLength = length;
+        }
+        if((features & FEATURE_COMPACT) == 0){
+            encodePreamble(dst, offs, protocol, ttl, srcBDAddr, dstBDAddr, payload, payloadOffs, length, features);
+            return PREAMBLE_SIZE;
+        }
+        boolean crc = (features & FEATURE_CRC32C) != 0;
+        dst[offs] = (byte)(protocol | FRAME_FLAG_COMPACT | (crc ? FRAME_FLAG_CRC32C : 0));
+        dst[offs + 1] = ttl;
+        int pos = putVarint(dst, offs + COMPACT_LENGTH_OFFSET, length);
+        int context = 0;
+        if((protocol & FRAME_FLAG_SUPERFRAME) == 0){
+            context = contextSlot(srcBDAddr, dstBDAddr);
+            if(txContextSrc[context] != srcBDAddr || txContextDst[context] != dstBDAddr){
+                BDAddr.write(srcBDAddr, dst, pos);
+                BDAddr.write(dstBDAddr, dst, pos + BD_ADDR_SIZE);
+                pos += SUBFRAME_ADDRS_SIZE;
+                pendingContext = context;
+                pendingContextSrc = srcBDAddr;
+                pendingContextDst = dstBDAddr;
+                context |= CONTEXT_INSTALL;
+            }
+        }
+        dst[offs + 2] = (byte) context;
+        putShort(dst, pos, crc ? calcHeaderCrc(dst, offs, pos - offs) : calcBufXor(dst, offs, pos - offs));
+        pos += 2;
+        if(!crc){
+            putShort(dst, pos, calcBufXor(payload, payloadOffs, length));
+            pos += 2;
+        }
+        return pos - offs;
+    }
+
+    /**
+     * @return The payload to send after the header encoded last: the frame's payload as given, or compressed.
+     */
+    public final byte[] getTxPayload(){
+        return txPayload;
+    }
+
+    public final int getTxPayloadOffset(){
+        return txPayloadOffs;
+    }
+
+    public final int getTxPayloadLength(){
+        return txPayloadLength;
+    }
+
+    /**
+     * Compress a payload into {@link #compressed}, if it is worth it.
+     * <p>
+     *     Payloads that do not shrink (encrypted or already compressed data) make the next ones skip compression
+     *     for a while, so that such traffic costs little CPU; any payload that shrinks resets this.
+     * </p>
+     * @return True if the payload was compressed: {@link #txPayload} is then set to the result.
+     */
+    private boolean compress(byte src[], int offs, int len){
+        if(len < MIN_COMPRESSED_SIZE){
+            return false;
+        }
+        if(compressionBackoff > 0){
+            compressionBackoff--;
+            return false;
+        }
+        if(txCodec == null){
+            txCodec = createCodec();
+            compressed = new byte[Short.MAX_VALUE];
+        }
+        int varintSize = putVarint(compressed, 0, len);
+        int size = txCodec.compress(src, offs, len, compressed, varintSize, len - varintSize - MIN_COMPRESSION_GAIN);
+        if(size < 0){
+            compressionFailures = Math.min(compressionFailures + 1, MAX_COMPRESSION_BACKOFF);
+            compressionBackoff = (1 << compressionFailures) - 1;
+            return false;
         }
+        compressionFailures = 0;
+        pendingCompressionIn = len;
+        pendingCompressionOut = varintSize + size;
+        txPayload = compressed;
+        txPayloadOffs = 0;
+        txPayloadLength = varintSize + size;
+        return true;
+    }
+
+    /**
+     * Create the codec used for compressed payloads, on both ends of the link.
+     * Subclasses may use another codec, as long as the peer uses the same.
+     */
+    protected PayloadCodec createPayloadCodec(){
+        return new PayloadCodec.Deflate();
+    }
+
+    /**
+     * @return A new codec, closed already if the codecs were (see {@link #closeCodecs()}).
+     */
+    private PayloadCodec createCodec(){
+        PayloadCodec codec = createPayloadCodec();
+        if(codecsClosed){
+            codec.close();
+        }
+        return codec;
+    }
+
+    /**
+     * Close the codecs, e.g. once the link is closed: frames are no longer compressed, and compressed frames received
+     * afterwards are dropped.
+     */
+    protected final void closeCodecs(){
+        codecsClosed = true;
+        PayloadCodec codec = txCodec;
+        if(codec != null){
+            codec.close();
+        }
+        codec = rxCodec;
+        if(codec != null){
+            codec.close();
+        }
+    }
+
+    /**
+     * @return The number of payload bytes sent compressed, before compression.
+     */
+    public long getCompressionInBytes(){
+        return compressionInBytes;
+    }
+
+    /**
+     * @return The number of bytes those payloads took once compressed.
+     */
+    public long getCompressionOutBytes(){
+        return compressionOutBytes;
+    }
+
+    /**
+     * Record that the frame whose header was encoded last was queued: the context it installs is now the peer's,
+     * and its payload counts as sent.
+     */
+    public final void onHeaderQueued(){
+        if(pendingContext >= 0){
+            txContextSrc[pendingContext] = pendingContextSrc;
+            txContextDst[pendingContext] = pendingContextDst;
+            pendingContext = -1;
+        }
+        if(pendingCompressionIn > 0){
+            compressionInBytes += pendingCompressionIn;
+            compressionOutBytes += pendingCompressionOut;
+            pendingCompressionIn = pendingCompressionOut = 0;
+        }
+    }
+
+    /**
+     * Encode a frame's full preamble in the format selected by the features in use ({@link #FEATURE_COMPACT} and
+     * {@link #FEATURE_COMPRESSION} aside: they need the link's state, see {@link #encodeHeader(Packet, byte[], int, int)}).
+     * <p>
+     *     With {@link #FEATURE_CRC32C}, the payload is not read: the caller appends the payload's CRC-32C after it,
+     *     typically computed while copying the payload out (see {@link Crc32c#copy(Checksum, byte[], int, byte[], int, int)}).
+     * </p>
+     * @param pkt The packet to encode.
+     * @param dst The destination array, with at least {@link #PREAMBLE_SIZE} bytes from offs.
+     * @param features The features in use (see {@link #getTxFeatures()}).
+     */
+    public final static void encodePreamble(Packet pkt, byte dst[], int offs, int features){
+        encodePreamble(dst, offs, pkt.getProtocol(), pkt.getTtl(), pkt.getSrcBDAddr(), pkt.getDstBDAddr(), pkt.getData(), 0, pkt.getLength(), features);
+    }
+
+    /**
+     * Encode a preamble from its fields.
+     * @param protocol The protocol, and any frame flag other than {@link #FRAME_FLAG_CRC32C} (set from the features).
+     * @param payload The payload, only read for the legacy checksum.
+     */
+    static void encodePreamble(byte dst[], int offs, int protocol, byte ttl, long srcBDAddr, long dstBDAddr,
+                               byte payload[], int payloadOffs, int length, int features){
+        boolean crc = (features & FEATURE_CRC32C) != 0;
+        dst[offs] = (byte)(crc ? protocol | FRAME_FLAG_CRC32C : protocol);
+        dst[offs + 1] = ttl;
+        putShort(dst, offs + 2, (short)length);
+        BDAddr.write(srcBDAddr, dst, offs + 4);
+        BDAddr.write(dstBDAddr, dst, offs + 4 + BD_ADDR_SIZE);
+        if(crc){
+            putShort(dst, offs + 16, calcHeaderCrc(dst, offs, PREAMBLE_SIZE - 4));
+            putShort(dst, offs + 18, (short) 0);
+        }else{
+            putShort(dst, offs + 16, calcBufXor(dst, offs, PREAMBLE_SIZE - 4));
+            putShort(dst, offs + 18, calcBufXor(payload, payloadOffs, length));
+        }
+    }
+
+    /**
+     * Write a short in the wire's (little-endian) order, whatever the buffer's configured order.
+     */
+    private static void putShort(ByteBuffer dst, short val){
+        dst.put((byte)(val & 0xFF));
+        dst.put((byte)((val >> 8) & 0xFF));
+    }
+
+    static void putShort(byte dst[], int offs, short val){
+        dst[offs] = (byte)(val & 0xFF);
+        dst[offs + 1] = (byte)((val >> 8) & 0xFF);
+    }
+
+    /**
+     * @return The low 16 bits of the CRC-32C of a header's bytes.
+     */
+    private static short calcHeaderCrc(byte buf[], int offs, int len){
+        return (short) Crc32c.compute(buf, offs, len);
+    }
+
+    /**
+     * The legacy frame checksum (package-private for the benchmarks).
+     */
+    final static short calcBufXor(byte buf[], int offs, int size){
         short ret = 0;
-        int offs;
-        for(offs = 0; offs < size/4; offs++){
-            int cur = offs * 4;
+        int end = offs + size;
+        int cur;
+        for(cur = offs; cur + 4 <= end; cur += 4){
             ret ^= ((byte) (buf[cur] & 0xFF)) ^ ((byte) (buf[cur+1] & 0xFF))
                     ^ ((byte) (buf[cur+2] & 0xFF)) ^ ((byte) (buf[cur+3] & 0xFF));
         }
-        for(int cur = offs * 4; cur < size; cur++){
+        for(; cur < end; cur++){
             ret ^= ((byte) (buf[cur] & 0xFF));
         }
         return ret;
     }
+
+    private final static short calcBufXor(ByteBuffer buf, int offs, int size){
+        short ret = 0;
+        for(int cur = offs; cur < offs + size; cur++){
+            ret ^= buf.get(cur);
+        }
+        return ret;
+    }
 }
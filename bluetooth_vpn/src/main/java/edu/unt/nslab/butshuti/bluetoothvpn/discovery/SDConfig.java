@@ -27,7 +27,7 @@ public class SDConfig {
     }
 
     private boolean clientModeEnabled, serverModeEnabled, defaultRoutesEnabled;
-    private int maxNumServers;
+    private int maxNumServers, packetTraceSampling;
     private String defaultRoutingMode;
 
     Context ctx;
@@ -53,6 +53,13 @@ public class SDConfig {
         return maxNumServers;
     }
 
+    /**
+     * @return Trace one packet out of this many, 0 if tracing is off.
+     */
+    public int getPacketTraceSampling() {
+        return packetTraceSampling;
+    }
+
     public String getFriendlyName(BluetoothDevice device){
         if(device != null){
             if(device.getAddress().equals(getConfiguredPeerSSID())){
@@ -131,6 +138,7 @@ public class SDConfig {
             defaultRoutesEnabled = sharedPref.getBoolean(ctx.getString(R.string.pref_key_install_default_routes), false);
             defaultRoutingMode = sharedPref.getString(ctx.getString(R.string.pref_key_routing_mode), "----");
             maxNumServers = Integer.valueOf(sharedPref.getString(ctx.getString(R.string.pref_key_num_active_connections), "-1"));
+            packetTraceSampling = Integer.valueOf(sharedPref.getString(ctx.getString(R.string.pref_key_packet_trace_sampling), "0"));
         }catch (RuntimeException e){
             Logger.logE(e.getMessage());
         }
@@ -0,0 +1,243 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.simulation;
+
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.InterfaceController;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.StripedCounter;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+/**
+ * One direction of an in-memory link between two simulated nodes, standing in for a {@code RemoteInterfaceAdaptor} connection.
+ * <p>
+ *     Packets written by the sending node's controller are copied (as if encoded and decoded), serialized at the link's bandwidth,
+ *     delayed by its latency and jitter, and handed to the receiving node's controller by the link's thread, in order.
+ *     Packets are dropped at random at the configured loss rate, and when the backlog would exceed the maximum queueing delay
+ *     (the equivalent of a full transmit buffer). Like a connection, the link tells local senders when it is full, and
+ *     when it has room again, so that they can be paced at the link's rate.
+ * </p>
+ */
+public class SimLink implements InterfaceController.FlowControlledListener {
+
+    /**
+     * Link characteristics, the same in both directions.
+     */
+    public static class Params {
+        public static final int DEFAULT_MAX_QUEUE_DELAY_MS = 200;
+
+        private final long bandwidthBps;
+        private final int latencyUs, jitterUs;
+        private final double lossRate;
+        private final int maxQueueDelayMs;
+
+        /**
+         * @param bandwidthBps The link's rate in bits per second, 0 for unlimited.
+         * @param latencyUs The propagation delay, in microseconds.
+         * @param jitterUs The maximum random delay added to the latency, in microseconds.
+         * @param lossRate The probability of losing a packet, from 0 to 1.
+         * @param maxQueueDelayMs The backlog, in milliseconds of transmission, beyond which packets are dropped.
+         */
+        public Params(long bandwidthBps, int latencyUs, int jitterUs, double lossRate, int maxQueueDelayMs){
+            this.bandwidthBps = bandwidthBps;
+            this.latencyUs = latencyUs;
+            this.jitterUs = jitterUs;
+            this.lossRate = lossRate;
+            this.maxQueueDelayMs = maxQueueDelayMs;
+        }
+
+        public Params(long bandwidthBps, int latencyUs, int jitterUs, double lossRate){
+            this(bandwidthBps, latencyUs, jitterUs, lossRate, DEFAULT_MAX_QUEUE_DELAY_MS);
+        }
+
+        /**
+         * @return Roughly a Bluetooth EDR RFCOMM link: 2 Mbps, 5 ms latency, 2 ms jitter, no loss.
+         */
+        public static Params bluetooth(){
+            return new Params(2000000, 5000, 2000, 0);
+        }
+
+        @Override
+        public String toString(){
+            return String.format("Params(%d bps, latency=%dus, jitter=%dus, loss=%.3f, maxQueue=%dms)", bandwidthBps, latencyUs, jitterUs,
+                    lossRate, maxQueueDelayMs);
+        }
+    }
+
+    private static final class Delivery implements Delayed {
+        private final Packet pkt;
+        private final long deliverAt;
+
+        private Delivery(Packet pkt, long deliverAt){
+            this.pkt = pkt;
+            this.deliverAt = deliverAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit){
+            return unit.convert(deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other){
+            long diff = deliverAt - ((Delivery) other).deliverAt;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    private final SimNode from, to;
+    private final Params params;
+    private final Random random;
+    private final DelayQueue<Delivery> inFlight = new DelayQueue<>();
+    private final Thread deliveryThread;
+    private final StripedCounter sent = new StripedCounter(), lost = new StripedCounter(), overflows = new StripedCounter();
+    private long nextFreeNs = 0, lastDeliveryNs = 0; //Guarded by this.
+    private volatile boolean up = true;
+
+    SimLink(SimNode from, SimNode to, Params params, long seed){
+        this.from = from;
+        this.to = to;
+        this.params = params;
+        random = new Random(seed);
+        deliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        }, "SimLink-" + from.getName() + "->" + to.getName());
+        deliveryThread.setDaemon(true);
+    }
+
+    void start(){
+        deliveryThread.start();
+    }
+
+    private void deliver(){
+        while (up){
+            Delivery delivery;
+            try {
+                delivery = inFlight.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            //The receiving controller takes over the copy.
+            to.getController().receive(from.getBDAddr(), delivery.pkt);
+        }
+        //Writes stop with the link, so whatever is left can be dropped (the iterator also returns unexpired deliveries).
+        for(Delivery delivery : inFlight){
+            delivery.pkt.release();
+        }
+        inFlight.clear();
+    }
+
+    @Override
+    public boolean write(Packet pkt, boolean async){
+        synchronized (this){
+            if(!up){
+                return false;
+            }
+            if(params.lossRate > 0 && random.nextDouble() < params.lossRate){
+                lost.increment();
+                return false;
+            }
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNs);
+            if(start - now > TimeUnit.MILLISECONDS.toNanos(params.maxQueueDelayMs)){
+                overflows.increment();
+                return false;
+            }
+            nextFreeNs = start + (params.bandwidthBps > 0 ? pkt.getLength() * 8L * 1000000000L / params.bandwidthBps : 0);
+            long deliverAt = nextFreeNs + TimeUnit.MICROSECONDS.toNanos(params.latencyUs);
+            if(params.jitterUs > 0){
+                deliverAt += TimeUnit.MICROSECONDS.toNanos(random.nextInt(params.jitterUs));
+            }
+            //Links are streams: jitter delays packets but never reorders them.
+            deliverAt = Math.max(deliverAt, lastDeliveryNs);
+            lastDeliveryNs = deliverAt;
+            inFlight.put(new Delivery(pkt.duplicate(), deliverAt));
+        }
+        sent.increment();
+        return true;
+    }
+
+    @Override
+    public boolean hasCapacity(Packet pkt){
+        return backlogExcessNs() <= 0;
+    }
+
+    @Override
+    public boolean awaitCapacity(Packet pkt, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long excess;
+        //The backlog drains at a known rate: sleep until it is short enough.
+        while ((excess = backlogExcessNs()) > 0){
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0){
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(excess, remaining));
+        }
+        return true;
+    }
+
+    /**
+     * @return How far the backlog is beyond the maximum queueing delay, in nanoseconds (0 or less if a packet would be accepted).
+     */
+    private synchronized long backlogExcessNs(){
+        if(!up){
+            return 0;
+        }
+        return nextFreeNs - System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(params.maxQueueDelayMs);
+    }
+
+    @Override
+    public void shutdown(){
+        synchronized (this){
+            up = false;
+        }
+        deliveryThread.interrupt();
+    }
+
+    @Override
+    public boolean isPrimary(){
+        return true;
+    }
+
+    public SimNode getFrom(){
+        return from;
+    }
+
+    public SimNode getTo(){
+        return to;
+    }
+
+    public Params getParams(){
+        return params;
+    }
+
+    public long getSent(){
+        return sent.sum();
+    }
+
+    public long getLost(){
+        return lost.sum();
+    }
+
+    public long getOverflows(){
+        return overflows.sum();
+    }
+
+    /**
+     * @return The number of packets sent but not yet delivered.
+     */
+    public int getInFlight(){
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString(){
+        return "SimLink(" + from.getName() + "->" + to.getName() + " [" + BDAddr.toString(to.getBDAddr()) + "], " + params + ")";
+    }
+}
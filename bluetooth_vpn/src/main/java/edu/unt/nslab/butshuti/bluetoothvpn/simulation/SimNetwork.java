@@ -0,0 +1,359 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.simulation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.DatapathMetrics;
+import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.PacketProcessingEngine;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.LatencyHistogram;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
+
+/**
+ * A mesh of simulated nodes in one JVM, for load-testing routing and forwarding without devices.
+ * <p>
+ *     Nodes get unique addresses (BD addresses 02:00:..., IPs in 10.0.0.0/8) and are connected with in-memory {@link SimLink}s.
+ *     {@link #installRoutes()} gives every node a host route to every other node through the first hop of a shortest path,
+ *     in place of the path discovery a real mesh would run.
+ *     {@link #run(Traffic)} then replays synthetic UDP flows and reports throughput, latency and drops.
+ * </p>
+ * <p>
+ *     Typical use:
+ *     <pre>
+ *     SimNetwork net = new SimNetwork(42);
+ *     List&lt;SimNode&gt; line = net.addNodes(5);
+ *     net.connectChain(line, SimLink.Params.bluetooth());
+ *     net.installRoutes();
+ *     SimNetwork.Report report = net.run(new SimNetwork.Traffic(200, 512, 1000).addFlow(line.get(0), line.get(4)));
+ *     net.shutdown();
+ *     </pre>
+ * </p>
+ * <p>
+ *     Datapath metrics of all nodes go to the default {@link MetricsRegistry}: the report includes the totals of its drop counters over the run.
+ * </p>
+ */
+public class SimNetwork {
+    private static final long BD_ADDR_BASE = 0x020000000000L; //Locally administered
+    private static final int IP_BASE = 0x0A000000; //10.0.0.0
+    private static final int ITEST_ADDR_SUFFIX = 0x0303; //Reserved for interface tests, see Packet#classify()
+
+    /**
+     * Synthetic traffic: flows of fixed-size datagrams between pairs of nodes, sent at a fixed rate.
+     */
+    public static class Traffic {
+        private final int packetsPerFlow, packetSize, packetsPerSecond;
+        private final List<SimNode[]> flows = new ArrayList<>();
+
+        /**
+         * @param packetsPerFlow The number of datagrams sent per flow.
+         * @param packetSize The datagrams' size, in bytes.
+         * @param packetsPerSecond The rate of each flow, 0 to send as fast as possible.
+         */
+        public Traffic(int packetsPerFlow, int packetSize, int packetsPerSecond){
+            this.packetsPerFlow = packetsPerFlow;
+            this.packetSize = Math.max(packetSize, SimNode.MIN_DATAGRAM_SIZE);
+            this.packetsPerSecond = packetsPerSecond;
+        }
+
+        public Traffic addFlow(SimNode src, SimNode dst){
+            flows.add(new SimNode[]{src, dst});
+            return this;
+        }
+
+        public List<SimNode[]> getFlows(){
+            return Collections.unmodifiableList(flows);
+        }
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Report {
+        private final long sent, delivered, deliveredBytes, linkLosses, linkOverflows, datapathDrops, durationNs;
+        private final LatencyHistogram.Snapshot latency;
+
+        private Report(long sent, long delivered, long deliveredBytes, long linkLosses, long linkOverflows, long datapathDrops, long durationNs,
+                       LatencyHistogram.Snapshot latency){
+            this.sent = sent;
+            this.delivered = delivered;
+            this.deliveredBytes = deliveredBytes;
+            this.linkLosses = linkLosses;
+            this.linkOverflows = linkOverflows;
+            this.datapathDrops = datapathDrops;
+            this.durationNs = durationNs;
+            this.latency = latency;
+        }
+
+        public long getSent(){
+            return sent;
+        }
+
+        public long getDelivered(){
+            return delivered;
+        }
+
+        /**
+         * @return Datagrams lost at random on the links.
+         */
+        public long getLinkLosses(){
+            return linkLosses;
+        }
+
+        /**
+         * @return Datagrams dropped because a link's backlog was full.
+         */
+        public long getLinkOverflows(){
+            return linkOverflows;
+        }
+
+        /**
+         * @return Datagrams dropped by the nodes' datapaths (no route, expired TTL, full queues...).
+         */
+        public long getDatapathDrops(){
+            return datapathDrops;
+        }
+
+        public long getDurationNs(){
+            return durationNs;
+        }
+
+        public double getThroughputPps(){
+            return durationNs == 0 ? 0 : delivered * 1e9 / durationNs;
+        }
+
+        public double getThroughputBps(){
+            return durationNs == 0 ? 0 : deliveredBytes * 8e9 / durationNs;
+        }
+
+        /**
+         * @return The one-way latency of delivered datagrams.
+         */
+        public LatencyHistogram.Snapshot getLatency(){
+            return latency;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("Report(sent=%d, delivered=%d, lost=%d, overflows=%d, datapath drops=%d, %.1f pkt/s, %.1f kbps, latency: %s)",
+                    sent, delivered, linkLosses, linkOverflows, datapathDrops, getThroughputPps(), getThroughputBps() / 1000, latency);
+        }
+    }
+
+    private final List<SimNode> nodes = new ArrayList<>();
+    private final List<SimLink> links = new ArrayList<>();
+    private final List<List<SimNode>> neighbors = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Random random;
+    private final int workersPerNode;
+    private int nextHost = 0;
+
+    /**
+     * @param seed The seed of the links' random losses and jitter, for reproducible runs.
+     */
+    public SimNetwork(long seed){
+        this(seed, 1);
+    }
+
+    /**
+     * @param seed The seed of the links' random losses and jitter, for reproducible runs.
+     * @param workersPerNode The number of packet processing workers of each node's controller.
+     */
+    public SimNetwork(long seed, int workersPerNode){
+        random = new Random(seed);
+        this.workersPerNode = workersPerNode;
+    }
+
+    public synchronized SimNode addNode(){
+        int host;
+        do {
+            host = ++nextHost;
+        }while ((host & 0xFF) == 0 || (host & 0xFF) == 0xFF || (host & 0xFFFF) == ITEST_ADDR_SUFFIX);
+        int index = nodes.size();
+        SimNode node = new SimNode("node" + index, BD_ADDR_BASE + index + 1, IP_BASE | host, latency, workersPerNode);
+        nodes.add(node);
+        neighbors.add(new ArrayList<SimNode>());
+        return node;
+    }
+
+    public List<SimNode> addNodes(int count){
+        List<SimNode> ret = new ArrayList<>(count);
+        for(int i=0; i<count; i++){
+            ret.add(addNode());
+        }
+        return ret;
+    }
+
+    public synchronized List<SimNode> getNodes(){
+        return new ArrayList<>(nodes);
+    }
+
+    public synchronized List<SimLink> getLinks(){
+        return new ArrayList<>(links);
+    }
+
+    /**
+     * Connect two nodes with a link in each direction, as a Bluetooth connection between them would.
+     */
+    public synchronized void connect(SimNode a, SimNode b, SimLink.Params params){
+        SimLink ab = new SimLink(a, b, params, random.nextLong());
+        SimLink ba = new SimLink(b, a, params, random.nextLong());
+        links.add(ab);
+        links.add(ba);
+        neighbors.get(nodes.indexOf(a)).add(b);
+        neighbors.get(nodes.indexOf(b)).add(a);
+        ab.start();
+        ba.start();
+        String channelID = a.getName() + "-" + b.getName();
+        a.getController().registerRemoteDeliveryListener(b.getBDAddr(), channelID, ab);
+        b.getController().registerRemoteDeliveryListener(a.getBDAddr(), channelID, ba);
+    }
+
+    /**
+     * Connect nodes in a line.
+     */
+    public void connectChain(List<SimNode> chain, SimLink.Params params){
+        for(int i=1; i<chain.size(); i++){
+            connect(chain.get(i - 1), chain.get(i), params);
+        }
+    }
+
+    /**
+     * Connect each node to a number of random other nodes (plus a chain through all of them, so the mesh is connected).
+     */
+    public void connectRandom(int extraLinksPerNode, SimLink.Params params){
+        List<SimNode> all = getNodes();
+        connectChain(all, params);
+        for(SimNode node : all){
+            for(int i=0; i<extraLinksPerNode; i++){
+                SimNode other = all.get(random.nextInt(all.size()));
+                if(other != node && !isConnected(node, other)){
+                    connect(node, other, params);
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isConnected(SimNode a, SimNode b){
+        return neighbors.get(nodes.indexOf(a)).contains(b);
+    }
+
+    /**
+     * Add a /32 route to every other reachable node to each node's bridge, through the first hop of a shortest path.
+     */
+    public synchronized void installRoutes(){
+        for(int src=0; src<nodes.size(); src++){
+            SimNode firstHops[] = new SimNode[nodes.size()];
+            ArrayDeque<Integer> pending = new ArrayDeque<>();
+            for(SimNode neighbor : neighbors.get(src)){
+                int index = nodes.indexOf(neighbor);
+                if(firstHops[index] == null){
+                    firstHops[index] = neighbor;
+                    pending.add(index);
+                }
+            }
+            while (!pending.isEmpty()){
+                int cur = pending.poll();
+                for(SimNode neighbor : neighbors.get(cur)){
+                    int index = nodes.indexOf(neighbor);
+                    if(index != src && firstHops[index] == null){
+                        firstHops[index] = firstHops[cur];
+                        pending.add(index);
+                    }
+                }
+            }
+            SimNode node = nodes.get(src);
+            for(int dst=0; dst<nodes.size(); dst++){
+                if(dst != src && firstHops[dst] != null){
+                    node.getController().getBridge().addRoute(nodes.get(dst).getIPAddr(), 32, firstHops[dst].getBDAddr());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay synthetic traffic, wait for it to drain, and report on it.
+     * @param traffic The flows to send. Flows are interleaved, each paced at the traffic's rate.
+     * @return The report on this run.
+     * @throws InterruptedException If interrupted while sending or draining.
+     */
+    public Report run(Traffic traffic) throws InterruptedException {
+        long sent0 = 0, delivered0 = 0, bytes0 = 0, losses0 = 0, overflows0 = 0;
+        for(SimNode node : getNodes()){
+            sent0 += node.getSent();
+            delivered0 += node.getDelivered();
+            bytes0 += node.getDeliveredBytes();
+        }
+        for(SimLink link : getLinks()){
+            losses0 += link.getLost();
+            overflows0 += link.getOverflows();
+        }
+        long drops0 = MetricsRegistry.getDefault().snapshot().sum(DatapathMetrics.DROPS);
+        latency.reset();
+
+        long start = System.nanoTime();
+        long intervalNs = traffic.packetsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / traffic.packetsPerSecond : 0;
+        for(int seq=0; seq<traffic.packetsPerFlow; seq++){
+            for(SimNode flow[] : traffic.flows){
+                flow[0].send(flow[1].getIPAddr(), seq, traffic.packetSize);
+            }
+            if(intervalNs > 0){
+                long wait = start + (seq + 1) * intervalNs - System.nanoTime();
+                if(wait > 0){
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+        }
+        awaitQuiescence();
+        long duration = System.nanoTime() - start;
+
+        long sent = 0, delivered = 0, bytes = 0, losses = 0, overflows = 0;
+        for(SimNode node : getNodes()){
+            sent += node.getSent();
+            delivered += node.getDelivered();
+            bytes += node.getDeliveredBytes();
+        }
+        for(SimLink link : getLinks()){
+            losses += link.getLost();
+            overflows += link.getOverflows();
+        }
+        long drops = MetricsRegistry.getDefault().snapshot().sum(DatapathMetrics.DROPS);
+        return new Report(sent - sent0, delivered - delivered0, bytes - bytes0, losses - losses0, overflows - overflows0, drops - drops0,
+                duration, latency.snapshot());
+    }
+
+    /**
+     * Wait until no packet is in flight on any link or queued for any worker of any node, for a while.
+     */
+    private void awaitQuiescence() throws InterruptedException {
+        int idleRounds = 0;
+        while (idleRounds < 5){
+            TimeUnit.MILLISECONDS.sleep(10);
+            boolean idle = true;
+            for(SimLink link : getLinks()){
+                idle &= link.getInFlight() == 0;
+            }
+            for(SimNode node : getNodes()){
+                PacketProcessingEngine engine = node.getController().getProcessingEngine();
+                for(int i=0; i<engine.getWorkerCount(); i++){
+                    idle &= engine.getQueue(i).size() == 0;
+                }
+            }
+            idleRounds = idle ? idleRounds + 1 : 0;
+        }
+    }
+
+    /**
+     * Stop all links and nodes.
+     */
+    public synchronized void shutdown(){
+        for(SimLink link : links){
+            link.shutdown();
+        }
+        for(SimNode node : nodes){
+            node.shutdown();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.simulation;
+
+import java.util.Arrays;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketPool;
+import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.DatapathMetrics;
+import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.InterfaceController;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.LatencyHistogram;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.StripedCounter;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.IPv4Header;
+
+/**
+ * A simulated device: its own {@link InterfaceController} and bridge, and a local end standing in for the VPN interface.
+ * <p>
+ *     Datagrams the controller delivers locally are counted (with their one-way latency) if addressed to this node,
+ *     and sent back into the controller otherwise, like the device's IP stack would route them: this is how traffic crosses multiple hops.
+ * </p>
+ * <p>
+ *     Synthetic datagrams are IPv4/UDP, carrying a sequence number and their send time ({@link System#nanoTime()}) after the UDP header.
+ * </p>
+ */
+public class SimNode implements InterfaceController.InterfaceConfigurationView, InterfaceController.LocalDatagramDeliveryListener {
+    private static final int UDP_HEADER_SIZE = 8;
+    private static final int PAYLOAD_OFFS = IPv4Header.MIN_HEADER_SIZE + UDP_HEADER_SIZE;
+    public static final int MIN_DATAGRAM_SIZE = PAYLOAD_OFFS + 12;
+    private static final int SIM_PORT = 9000;
+    private static final StripedCounter BACKPRESSURE_DROPS = MetricsRegistry.getDefault().counter(DatapathMetrics.DROPS_BACKPRESSURE);
+
+    private final String name;
+    private final long bdAddr;
+    private final String bdAddrStr;
+    private final int ipAddr;
+    private final InterfaceController controller;
+    private final StripedCounter sent = new StripedCounter(), delivered = new StripedCounter(), deliveredBytes = new StripedCounter();
+    private final StripedCounter relayed = new StripedCounter(), ttlExpired = new StripedCounter();
+    private final LatencyHistogram latency;
+
+    /**
+     * @param latency The histogram recording the latency of datagrams delivered to this node (may be shared by all nodes).
+     * @param workers The number of packet processing workers of the node's controller.
+     */
+    SimNode(String name, long bdAddr, int ipAddr, LatencyHistogram latency, int workers){
+        this.name = name;
+        this.bdAddr = bdAddr;
+        this.ipAddr = ipAddr;
+        this.latency = latency;
+        bdAddrStr = BDAddr.toString(bdAddr);
+        controller = new InterfaceController(this, workers);
+        controller.registerLocalDeliveryListener(this);
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public long getBDAddr(){
+        return bdAddr;
+    }
+
+    /**
+     * @return The node's IP address, as an int in network order.
+     */
+    public int getIPAddr(){
+        return ipAddr;
+    }
+
+    public InterfaceController getController(){
+        return controller;
+    }
+
+    @Override
+    public String getLocalBDAddr(){
+        return bdAddrStr;
+    }
+
+    @Override
+    public String getInterfaceAddress(){
+        return IPv4Header.addrToString(ipAddr) + "/32";
+    }
+
+    @Override
+    public void updateLocalBDAddr(String addr){
+        //Simulated nodes know their address.
+    }
+
+    /**
+     * Send a synthetic datagram, as if read from the VPN interface.
+     * @param dst The destination's IP address.
+     * @param seq The datagram's sequence number.
+     * @param size The datagram's size, at least {@link #MIN_DATAGRAM_SIZE}.
+     */
+    public void send(int dst, int seq, int size){
+        size = Math.max(size, MIN_DATAGRAM_SIZE);
+        Packet pkt = PacketPool.getDefault().acquire(size);
+        byte buf[] = pkt.getData();
+        Arrays.fill(buf, 0, PAYLOAD_OFFS, (byte) 0);
+        buf[0] = 0x45;
+        writeShort(buf, 2, size);
+        buf[8] = 64;
+        buf[9] = IPv4Header.PROTO_UDP;
+        writeInt(buf, 12, ipAddr);
+        writeInt(buf, 16, dst);
+        writeShort(buf, 20, SIM_PORT);
+        writeShort(buf, 22, SIM_PORT);
+        writeShort(buf, 24, size - IPv4Header.MIN_HEADER_SIZE);
+        writeInt(buf, PAYLOAD_OFFS, seq);
+        writeLong(buf, PAYLOAD_OFFS + 4, System.nanoTime());
+        pkt.setLength(size);
+        sent.increment();
+        try {
+            sendLocal(pkt.classify());
+        }finally {
+            pkt.release();
+        }
+    }
+
+    @Override
+    public boolean deliver(Packet pkt){
+        IPv4Header header = pkt.getIPv4Header();
+        if(header == null){
+            return false;
+        }
+        if(header.getDstAddr() == ipAddr){
+            delivered.increment();
+            deliveredBytes.add(pkt.getLength());
+            if(pkt.getLength() >= MIN_DATAGRAM_SIZE){
+                latency.recordSince(readLong(pkt.getData(), PAYLOAD_OFFS + 4));
+            }
+            return true;
+        }
+        if(header.getTtl() <= 1){
+            ttlExpired.increment();
+            return false;
+        }
+        //Route it on, as a fresh local datagram.
+        Packet next = PacketPool.getDefault().acquire(pkt.getLength());
+        try {
+            System.arraycopy(pkt.getData(), 0, next.getData(), 0, pkt.getLength());
+            next.getData()[8]--; //TTL (the simulation does not check header checksums)
+            next.setLength(pkt.getLength());
+            relayed.increment();
+            sendLocal(next.classify());
+        }finally {
+            next.release();
+        }
+        return true;
+    }
+
+    /**
+     * Hand a local datagram to the controller. Like an interface reader with {@code BackpressurePolicy.DROP}, this drops
+     * datagrams whose next hop is full rather than slowing the traffic down.
+     */
+    private void sendLocal(Packet pkt){
+        if(controller.send(pkt, true) == InterfaceController.SendResult.BACKPRESSURE){
+            BACKPRESSURE_DROPS.increment();
+        }
+    }
+
+    public long getSent(){
+        return sent.sum();
+    }
+
+    public long getDelivered(){
+        return delivered.sum();
+    }
+
+    public long getDeliveredBytes(){
+        return deliveredBytes.sum();
+    }
+
+    public long getRelayed(){
+        return relayed.sum();
+    }
+
+    /**
+     * @return The number of datagrams this node could not route on because their IP TTL expired.
+     */
+    public long getTtlExpired(){
+        return ttlExpired.sum();
+    }
+
+    void shutdown(){
+        controller.shutdown();
+    }
+
+    private static void writeShort(byte buf[], int offs, int val){
+        buf[offs] = (byte)(val >> 8);
+        buf[offs + 1] = (byte) val;
+    }
+
+    private static void writeInt(byte buf[], int offs, int val){
+        writeShort(buf, offs, val >>> 16);
+        writeShort(buf, offs + 2, val);
+    }
+
+    private static void writeLong(byte buf[], int offs, long val){
+        writeInt(buf, offs, (int)(val >>> 32));
+        writeInt(buf, offs + 4, (int) val);
+    }
+
+    private static long readLong(byte buf[], int offs){
+        long ret = 0;
+        for(int i=0; i<8; i++){
+            ret = (ret << 8) | (buf[offs + i] & 0xFF);
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString(){
+        return "SimNode(" + name + ", " + bdAddrStr + ", " + IPv4Header.addrToString(ipAddr) + ")";
+    }
+}
@@ -7,9 +7,15 @@ import android.bluetooth.BluetoothSocket;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.unt.nslab.butshuti.bluetoothvpn.discovery.ApplicationService;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
@@ -19,19 +25,36 @@ import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
  */
 
 public class BluetoothSocketWrappers {
-    static final int MAX_NUM_CHANNELS = 1;
+    /**
+     * The number of RFCOMM channels servers listen on: clients may connect to a server on several at once.
+     */
+    public static final int MAX_NUM_CHANNELS = 4;
+    /**
+     * The channel clients connect on first, the only one servers listened on before channels were striped.
+     */
+    public static final int PRIMARY_CHANNEL_IDX = 0;
     private final static boolean REVERSE_CONNECT = false;
-    private static int SELECTED_CHANNEL_IDX = 0;
     private static final int CLIENT_SOCKET_POLL_INDEX = 20;
     private static final int CONNECTION_WAIT_TIMEOUT = -3000;
     private static final int REVERSE_CONNECT_WAIT_INTERVAL = 1000;
     private static final boolean FORCE_DEFAULT_SECURE = false;
+    private static ConnectionManager<BluetoothSocket> connectionManager = null;
 
+    /**
+     * A server socket listening on {@link #MAX_NUM_CHANNELS} RFCOMM channels.
+     * <p>
+     *     Each channel is accepted on by its own thread, since a client may connect on several channels at once.
+     * </p>
+     */
     public static class ServerSocket implements Closeable {
-        private int channelIndex;
+        private static final int ACCEPT_POLL_INTERVAL = 1000;
         private BluetoothServerSocket channels[];
-        private Map<BluetoothDevice, BluetoothSocket> connectedClients;
+        private final Map<String, BluetoothSocket> connectedClients; //By device and channel
+        private final BlockingQueue<BluetoothSocket> acceptedSockets = new LinkedBlockingQueue<>();
+        private final AtomicInteger listeningChannels = new AtomicInteger(0);
         private boolean secure;
+        private boolean acceptorsStarted = false;
+        private volatile boolean closed = false;
 
         public ServerSocket(BluetoothAdapter bluetoothAdapter) throws IOException{
             this(bluetoothAdapter, FORCE_DEFAULT_SECURE);
@@ -41,32 +64,84 @@ public class BluetoothSocketWrappers {
             this.secure = secure;
             channels = new BluetoothServerSocket[MAX_NUM_CHANNELS];
             connectedClients = new HashMap<>();
-            for(int i=0; i<MAX_NUM_CHANNELS; i++) {
-                if(secure){
-                    channels[i] = bluetoothAdapter.listenUsingRfcommWithServiceRecord(ApplicationService.getServiceName(i), ApplicationService.getServiceUUID(i));
-                }else {
-                    channels[i] = bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(ApplicationService.getServiceName(i), ApplicationService.getServiceUUID(i));
+            try {
+                for(int i=0; i<MAX_NUM_CHANNELS; i++) {
+                    if(secure){
+                        channels[i] = bluetoothAdapter.listenUsingRfcommWithServiceRecord(ApplicationService.getServiceName(i), ApplicationService.getServiceUUID(i));
+                    }else {
+                        channels[i] = bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(ApplicationService.getServiceName(i), ApplicationService.getServiceUUID(i));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                //Do not leave the channels already listening registered.
+                for(BluetoothServerSocket channel : channels){
+                    if(channel != null){
+                        try {
+                            channel.close();
+                        } catch (IOException e1) {
+                            Logger.logE(e1.getMessage());
+                        }
+                    }
                 }
+                throw e;
             }
-            channelIndex = 0;
         }
 
+        /**
+         * Wait for a connection on any channel.
+         * @return The connected socket.
+         * @throws IOException If no channel is listening anymore.
+         */
         public BluetoothSocket accept() throws IOException {
-            if(channelIndex >= MAX_NUM_CHANNELS){
-                channelIndex = 0;
-            }
-            BluetoothServerSocket nextChannel = channels[channelIndex++];
-            if(nextChannel != null){
-                BluetoothSocket socket;
-                try {
-                    socket = manageConnection(nextChannel.accept());//CONNECTION_WAIT_TIMEOUT/MAX_NUM_CHANNELS));
-                }catch (IOException e){
-                    return null;
+            startAcceptors();
+            try {
+                while (true){
+                    BluetoothSocket socket = acceptedSockets.poll(ACCEPT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if(socket != null){
+                        return socket;
+                    }
+                    if(closed || listeningChannels.get() == 0){
+                        throw new IOException("No channel available.");
+                    }
                 }
-                recordConnection(socket);
-                return socket;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while accepting connections.");
+            }
+        }
+
+        private synchronized void startAcceptors(){
+            if(acceptorsStarted){
+                return;
+            }
+            acceptorsStarted = true;
+            for(int i=0; i<channels.length; i++){
+                final int channelIdx = i;
+                listeningChannels.incrementAndGet();
+                Thread acceptor = new Thread(){
+                    @Override
+                    public void run(){
+                        try {
+                            while (!closed){
+                                BluetoothSocket socket = manageConnection(channels[channelIdx].accept());
+                                if(socket != null){
+                                    recordConnection(socket, channelIdx);
+                                    acceptedSockets.offer(socket);
+                                }
+                            }
+                        } catch (IOException e) {
+                            if(!closed){
+                                Logger.logE("Channel #" + channelIdx + ": " + e.getMessage());
+                            }
+                        } finally {
+                            listeningChannels.decrementAndGet();
+                        }
+                    }
+                };
+                acceptor.setDaemon(true);
+                acceptor.setName("ServerSocket::acceptor(#" + channelIdx + ")");
+                acceptor.start();
             }
-            throw new IOException("No channel available.");
         }
 
         private BluetoothSocket manageConnection(BluetoothSocket incomingConnectionRequest) throws IOException {
@@ -107,18 +182,21 @@ public class BluetoothSocketWrappers {
             return null;
         }
 
-        private void recordConnection(BluetoothSocket socket){
+        /**
+         * Record a connection, closing the device's previous connection on the same channel.
+         */
+        private void recordConnection(BluetoothSocket socket, int channelIdx){
             if(socket != null){
-                if(connectedClients.containsKey(socket.getRemoteDevice())){
-                    BluetoothSocket previousSocket = connectedClients.get(socket.getRemoteDevice());
-                    if(previousSocket != null){
-                        try {
-                            previousSocket.close();
-                        } catch (IOException e) {}
-                    }
+                BluetoothSocket previousSocket;
+                synchronized (connectedClients){
+                    previousSocket = connectedClients.put(socket.getRemoteDevice().getAddress() + "#" + channelIdx, socket);
+                }
+                if(previousSocket != null){
+                    try {
+                        previousSocket.close();
+                    } catch (IOException e) {}
                 }
-                connectedClients.put(socket.getRemoteDevice(), socket);
-                Logger.logD("Accepted connection from " + socket.getRemoteDevice() + " on channel #" + (channelIndex-1));
+                Logger.logD("Accepted connection from " + socket.getRemoteDevice() + " on channel #" + channelIdx);
             }
         }
 
@@ -131,135 +209,202 @@ public class BluetoothSocketWrappers {
          */
         @Override
         public void close() throws IOException {
+            closed = true;
             for(int i=0; i<channels.length; i++){
                 channels[i].close();
             }
-            for(BluetoothSocket socket : connectedClients.values()) {
-                try {
-                    socket.close();
-                } catch (IOException e) {}
+            synchronized (connectedClients){
+                for(BluetoothSocket socket : connectedClients.values()) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {}
+                }
+                connectedClients.clear();
             }
         }
     }
 
+    /**
+     * Creates RFCOMM sockets to the application's service channels.
+     */
+    public static class RfcommSocketFactory implements ConnectionManager.SocketFactory<BluetoothSocket> {
+        private final BluetoothAdapter bluetoothAdapter;
+        private final boolean secure;
+
+        public RfcommSocketFactory(BluetoothAdapter bluetoothAdapter, boolean secure){
+            this.bluetoothAdapter = bluetoothAdapter;
+            this.secure = secure;
+        }
+
+        @Override
+        public BluetoothSocket createSocket(String address, int channelIdx) throws IOException {
+            if(channelIdx < 0 || channelIdx >= MAX_NUM_CHANNELS){
+                throw new IOException("No such channel: #" + channelIdx);
+            }
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+            if(secure){
+                return device.createRfcommSocketToServiceRecord(ApplicationService.getServiceUUID(channelIdx));
+            }
+            return device.createInsecureRfcommSocketToServiceRecord(ApplicationService.getServiceUUID(channelIdx));
+        }
+
+        @Override
+        public void connect(BluetoothSocket socket) throws IOException {
+            //Discovery slows connections down.
+            bluetoothAdapter.cancelDiscovery();
+            Logger.logD("Sending connection request to " + socket.getRemoteDevice());
+            socket.connect();
+        }
+    }
+
+    /**
+     * @return The connection manager dialing the application's RFCOMM channels, shared by all clients.
+     */
+    public static synchronized ConnectionManager<BluetoothSocket> getConnectionManager(BluetoothAdapter bluetoothAdapter){
+        if(connectionManager == null){
+            connectionManager = new ConnectionManager<>(new RfcommSocketFactory(bluetoothAdapter, FORCE_DEFAULT_SECURE));
+        }
+        return connectionManager;
+    }
+
+    /**
+     * A client's connections to one server: its primary channel, and the extra channels opened by {@link #connectChannel(int)}.
+     * <p>
+     *     Dials go through a {@link ConnectionManager}, so that clients of different servers connect in parallel, each server
+     *     with its own backoff.
+     * </p>
+     */
     public static class ClientSocket implements Closeable{
         private static final int MAX_TIMEOUT_COUNT = 3;
-        private static final ReentrantLock CLIENT_GLOBAL_SOCKET_LOCK = new ReentrantLock();
-        private BluetoothAdapter bluetoothAdapter;
-        private BluetoothDevice remoteDevice;
-        private static BluetoothSocket lastConnectedSocket;
-        private boolean secure;
-        private static int timeoutCount = 0;
+        /**
+         * How long dialing the primary channel may take, retries included.
+         */
+        public static final long CONNECT_BUDGET_MS = 30000;
+        private static final AtomicInteger timeoutCount = new AtomicInteger(0); //Across all servers
+        private final BluetoothAdapter bluetoothAdapter;
+        private final BluetoothDevice remoteDevice;
+        private final ConnectionManager<BluetoothSocket> connectionManager;
+        private volatile BluetoothSocket lastConnectedSocket;
+        private final List<BluetoothSocket> channelSockets = new ArrayList<>(); //Opened by connectChannel()
+        private final boolean secure = FORCE_DEFAULT_SECURE;
 
         public ClientSocket(BluetoothAdapter bluetoothAdapter, BluetoothDevice device){
-            this(bluetoothAdapter, device, FORCE_DEFAULT_SECURE);
+            this(bluetoothAdapter, device, getConnectionManager(bluetoothAdapter));
         }
 
-        private ClientSocket(BluetoothAdapter bluetoothAdapter, BluetoothDevice device, boolean secure) {
+        public ClientSocket(BluetoothAdapter bluetoothAdapter, BluetoothDevice device, ConnectionManager<BluetoothSocket> connectionManager) {
             this.bluetoothAdapter = bluetoothAdapter;
-            this.secure = secure;
+            this.connectionManager = connectionManager;
             remoteDevice = device;
-            lastConnectedSocket = null;
             if(!bluetoothAdapter.isEnabled()){
                 bluetoothAdapter.enable();
             }
         }
 
-        public BluetoothSocket newConnectedSocket() throws IOException{
-            //Important: Executions of this method must not overlap, to avoid inconsistent connection states.
-            if(CLIENT_GLOBAL_SOCKET_LOCK.tryLock()){
+        /**
+         * Connect the primary channel, or return it if already connected.
+         * @throws ConnectionManager.BackoffException If the server failed recently, and is not to be dialed again yet.
+         * @throws IOException
+         */
+        public synchronized BluetoothSocket newConnectedSocket() throws IOException{
+            if(lastConnectedSocket != null){
+                if(lastConnectedSocket.isConnected()){
+                    return lastConnectedSocket;
+                }
                 try{
-                    boolean connectionRequestAccepted = false;
-                    bluetoothAdapter.cancelDiscovery();
-                    if(lastConnectedSocket != null){
-                        if(lastConnectedSocket.isConnected()){
-                            return lastConnectedSocket;
-                        }
-                        try{
-                            lastConnectedSocket.close();
-                            lastConnectedSocket = null;
-                        }catch (IOException e){
-                            //Ignore exception, remote peer may already have disconnected
-                            lastConnectedSocket = null;
-                        }
-                    }
-                    BluetoothSocket ret;
-                    IOException lastIOException = null;
-                    int channelIdx = (SELECTED_CHANNEL_IDX++) % MAX_NUM_CHANNELS;
-                    Logger.logD("Attempting connection on channel ID " + channelIdx);
-                    BluetoothSocket connectionRequest;
-                    if(secure){
-                        connectionRequest = remoteDevice.createRfcommSocketToServiceRecord(ApplicationService.getServiceUUID(channelIdx));
-                    }else {
-                        connectionRequest = remoteDevice.createInsecureRfcommSocketToServiceRecord(ApplicationService.getServiceUUID(channelIdx));
-                    }
-                    Logger.logD("Sending connection request on ch#" + channelIdx);
-                    try{
-                        try {
-                            connectionRequest.connect();
-                            connectionRequestAccepted = true;
-                            Logger.logD("Request accepted: ch#" + channelIdx + "... waiting for incoming connection.");
-                        }catch (IOException e){
-                            Logger.logE("connect failed.");
-                            //throw new HostUnreachableException(e);
-                        }
-                        if(connectionRequestAccepted){
-                            if(!REVERSE_CONNECT){
-                                lastConnectedSocket = connectionRequest;
-                                return connectionRequest;
-                            }else{
-                                BluetoothServerSocket connectionPollSocket;
-                                if(secure){
-                                    connectionPollSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(ApplicationService.getServiceName(CLIENT_SOCKET_POLL_INDEX),
-                                            ApplicationService.getServiceUUID(CLIENT_SOCKET_POLL_INDEX));
-                                }else{
-                                    connectionPollSocket = bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(ApplicationService.getServiceName(CLIENT_SOCKET_POLL_INDEX),
-                                            ApplicationService.getServiceUUID(CLIENT_SOCKET_POLL_INDEX));
-                                }
-                                //Clients must timeout fast and retry if no connection is established.
-                                int timeout = MAX_NUM_CHANNELS*CONNECTION_WAIT_TIMEOUT/Math.max(MAX_NUM_CHANNELS, MAX_TIMEOUT_COUNT/MAX_NUM_CHANNELS);
-                                ret = connectionPollSocket.accept(timeout + REVERSE_CONNECT_WAIT_INTERVAL);
-                                timeoutCount = 0;
-                                try{
-                                    connectionRequest.close();
-                                }catch (IOException e){
-                                    //Ignore exception, remote peer may already have disconnected.
-                                }
-                                connectionPollSocket.close();
-                                lastConnectedSocket = ret;
-                                Logger.logD("Connected to " + remoteDevice);
-                                return ret;
-                            }
-                        }
-                    }catch (IOException e){
-                        if(e.getMessage().startsWith("Try again")){
-                            timeoutCount++;
-                            Logger.logE("Timeout #" + timeoutCount + ": " + e.getMessage());
-                        }else{
-                            Logger.logE(e.getMessage());
-                        }
-                        if(timeoutCount >= MAX_TIMEOUT_COUNT){
-                            bluetoothAdapter.disable();
-                        }
-                        lastIOException = e;
-                        if(channelIdx >= MAX_NUM_CHANNELS){
-                            throw e;
-                        }
+                    lastConnectedSocket.close();
+                }catch (IOException e){
+                    //Ignore exception, remote peer may already have disconnected
+                }
+                lastConnectedSocket = null;
+            }
+            Logger.logD("Attempting connection on channel ID " + PRIMARY_CHANNEL_IDX);
+            try{
+                BluetoothSocket connectionRequest = connectionManager.connect(remoteDevice.getAddress(), PRIMARY_CHANNEL_IDX, CONNECT_BUDGET_MS);
+                timeoutCount.set(0);
+                Logger.logD("Request accepted: ch#" + PRIMARY_CHANNEL_IDX + "... waiting for incoming connection.");
+                if(!REVERSE_CONNECT){
+                    lastConnectedSocket = connectionRequest;
+                    return connectionRequest;
+                }
+                BluetoothServerSocket connectionPollSocket;
+                if(secure){
+                    connectionPollSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(ApplicationService.getServiceName(CLIENT_SOCKET_POLL_INDEX),
+                            ApplicationService.getServiceUUID(CLIENT_SOCKET_POLL_INDEX));
+                }else{
+                    connectionPollSocket = bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(ApplicationService.getServiceName(CLIENT_SOCKET_POLL_INDEX),
+                            ApplicationService.getServiceUUID(CLIENT_SOCKET_POLL_INDEX));
+                }
+                //Clients must timeout fast and retry if no connection is established.
+                int timeout = MAX_NUM_CHANNELS*CONNECTION_WAIT_TIMEOUT/Math.max(MAX_NUM_CHANNELS, MAX_TIMEOUT_COUNT/MAX_NUM_CHANNELS);
+                BluetoothSocket ret = connectionPollSocket.accept(timeout + REVERSE_CONNECT_WAIT_INTERVAL);
+                try{
+                    connectionRequest.close();
+                }catch (IOException e){
+                    //Ignore exception, remote peer may already have disconnected.
+                }
+                connectionPollSocket.close();
+                lastConnectedSocket = ret;
+                Logger.logD("Connected to " + remoteDevice);
+                return ret;
+            }catch (IOException e){
+                if(e.getMessage() != null && e.getMessage().startsWith("Try again")){
+                    int count = timeoutCount.incrementAndGet();
+                    Logger.logE("Timeout #" + count + ": " + e.getMessage());
+                    if(count >= MAX_TIMEOUT_COUNT){
+                        bluetoothAdapter.disable();
                     }
-                    if(lastIOException == null){
-                        lastIOException = new IOException("Unable to connect to " + remoteDevice);
+                }else{
+                    Logger.logE(e.getMessage());
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Open an additional connection to the remote device, on another channel of its server.
+         * Unlike {@link #newConnectedSocket()}, this never returns an existing socket, and only gets about one attempt's time.
+         * @param channelIdx The server's channel, from 0 to {@link #MAX_NUM_CHANNELS} - 1.
+         * @return The connected socket, closed along with this client socket.
+         * @throws IOException If the remote device does not accept the connection (e.g. it does not listen on that channel),
+         * or the channel failed recently and is not to be dialed again yet.
+         */
+        public BluetoothSocket connectChannel(int channelIdx) throws IOException {
+            if(channelIdx < 0 || channelIdx >= MAX_NUM_CHANNELS){
+                throw new IOException("No such channel: #" + channelIdx);
+            }
+            //Room for a full attempt, so that its timing out counts against the channel.
+            long budgetMs = connectionManager.getAttemptTimeout() + connectionManager.getMinAttemptTimeout();
+            BluetoothSocket socket = connectionManager.connect(remoteDevice.getAddress(), channelIdx, budgetMs);
+            List<BluetoothSocket> disconnected = new ArrayList<>();
+            synchronized (channelSockets){
+                for(int i=channelSockets.size() - 1; i>=0; i--){
+                    if(!channelSockets.get(i).isConnected()){
+                        disconnected.add(channelSockets.remove(i));
                     }
-                    throw lastIOException;
-                }finally {
-                    CLIENT_GLOBAL_SOCKET_LOCK.unlock();
                 }
-            }else {
-                throw new IOException("Unable to obtain connection CLIENT_GLOBAL_SOCKET_LOCK.");
+                channelSockets.add(socket);
+            }
+            for(BluetoothSocket old : disconnected){
+                try {
+                    old.close();
+                } catch (IOException e) {
+                    //Already disconnected.
+                }
             }
+            return socket;
+        }
+
+        /**
+         * @return The dial results for the remote device, null if it was never dialed.
+         */
+        public ConnectionManager.PeerState getPeerState(){
+            return connectionManager.getPeerState(remoteDevice.getAddress());
         }
 
         public boolean isConnected(){
-            return lastConnectedSocket != null && lastConnectedSocket.isConnected();
+            BluetoothSocket socket = lastConnectedSocket;
+            return socket != null && socket.isConnected();
         }
 
         public BluetoothDevice getRemoteDevice(){
@@ -267,10 +412,19 @@ public class BluetoothSocketWrappers {
         }
 
         public void close() throws IOException{
-            if(lastConnectedSocket != null){
-                lastConnectedSocket.close();
+            synchronized (channelSockets){
+                for(BluetoothSocket socket : channelSockets){
+                    try {
+                        socket.close();
+                    }catch (IOException e){}
+                }
+                channelSockets.clear();
             }
+            BluetoothSocket socket = lastConnectedSocket;
             lastConnectedSocket = null;
+            if(socket != null){
+                socket.close();
+            }
         }
     }
 
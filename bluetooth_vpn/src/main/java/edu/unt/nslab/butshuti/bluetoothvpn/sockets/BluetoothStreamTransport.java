@@ -0,0 +1,49 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.sockets;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.StreamTransport;
+
+/**
+ * A {@link StreamTransport} over a connected RFCOMM socket.
+ */
+public class BluetoothStreamTransport implements StreamTransport {
+    private final BluetoothSocket socket;
+    private final String remoteAddress;
+
+    public BluetoothStreamTransport(BluetoothSocket socket){
+        this.socket = socket;
+        remoteAddress = socket.getRemoteDevice().getAddress();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.getInputStream().close();
+        socket.getOutputStream().close();
+        socket.close();
+    }
+}
@@ -4,6 +4,8 @@ import android.bluetooth.BluetoothSocket;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.InterfaceController;
 import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.LocalInterfaceBridge;
@@ -15,13 +17,21 @@ import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
  *
  * A client implementation of the {@link RemoteInterfaceAdaptor}.
  * Client adaptors are basic in the fact that they maintain a connection to exactly one server at a time.
- * That means exactly one socket, one local bridge.
+ * That means one local bridge, and one socket per channel: besides the primary channel, the adaptor opens
+ * extra channels to the server (see {@link #setChannelCount(int)}), over which the {@link InterfaceController} stripes flows.
  */
 
 public class ClientBluetoothSocketAdaptor extends RemoteInterfaceAdaptor{
+    /**
+     * Channels opened to the server by default: a second channel keeps bulk flows from holding up the others.
+     */
+    public static final int DEFAULT_CHANNEL_COUNT = 2;
 
     private BluetoothSocketWrappers.ClientSocket clientSocket;
-    private Connection connectionPipe;
+    private volatile Connection connectionPipe;
+    private final Connection extraChannels[] = new Connection[BluetoothSocketWrappers.MAX_NUM_CHANNELS]; //By server channel
+    private final boolean dialing[] = new boolean[BluetoothSocketWrappers.MAX_NUM_CHANNELS]; //Guarded by extraChannels
+    private volatile int channelCount = DEFAULT_CHANNEL_COUNT;
 
     public ClientBluetoothSocketAdaptor(BluetoothSocketWrappers.ClientSocket socket, InterfaceController interfaceController){
         super(interfaceController);
@@ -36,22 +46,24 @@ public class ClientBluetoothSocketAdaptor extends RemoteInterfaceAdaptor{
             {
                 btSocket = clientSocket.newConnectedSocket();
             }
+            LocalInterfaceBridge bridge = getInterfaceController().getBridge();
             try {
-                if(!LocalInterfaceBridge.isInitialized()) {
-                    LocalInterfaceBridge.reset();
-                    LocalInterfaceBridge.initialize(InetAddress.getByName(getInterfaceController().getLocalInterfaceAddress()));
+                if(!bridge.isInitialized()) {
+                    bridge.reset();
+                    bridge.initialize(InetAddress.getByName(getInterfaceController().getLocalInterfaceAddress()));
                 }
             } catch (IOException e) {
                 throw new RemoteInterfaceException(e);
             }
             try{
                 reportNewConnection(clientSocket.getRemoteDevice().getAddress());
-                connectionPipe = new Connection(btSocket, this);
-                LocalInterfaceBridge.addGateway(btSocket.getRemoteDevice().getAddress());
+                connectionPipe = new Connection(new BluetoothStreamTransport(btSocket), this);
+                bridge.addGateway(btSocket.getRemoteDevice().getAddress());
                 connectionPipe.start();
+                refreshChannels();
             }catch (Exception e) {
                 setLastException(new Exception(String.format("Failed to connect to %s: %s", clientSocket.getRemoteDevice(), e.getMessage())));
-                LocalInterfaceBridge.deleteGateway(btSocket.getRemoteDevice().getAddress());
+                bridge.deleteGateway(btSocket.getRemoteDevice().getAddress());
                 Logger.logE(e.getMessage());
                 if(btSocket != null){
                     try {
@@ -70,6 +82,134 @@ public class ClientBluetoothSocketAdaptor extends RemoteInterfaceAdaptor{
         }
     }
 
+    /**
+     * Set the number of channels to the server, opening or closing extra channels as needed.
+     * <p>
+     *     This can be changed while connected: the flows of closed channels move to the remaining ones.
+     *     Servers of older versions only listen on the primary channel, so fewer channels may end up open.
+     * </p>
+     * @param count From 1 (the primary channel only) to {@link BluetoothSocketWrappers#MAX_NUM_CHANNELS}.
+     * @return The number of channels open.
+     */
+    public int setChannelCount(int count){
+        if(count < 1 || count > BluetoothSocketWrappers.MAX_NUM_CHANNELS){
+            throw new IllegalArgumentException("Invalid channel count: " + count);
+        }
+        channelCount = count;
+        return refreshChannels();
+    }
+
+    public int getChannelCount(){
+        return channelCount;
+    }
+
+    /**
+     * Open or close extra channels until {@link #getChannelCount()} are open, replacing the ones that failed.
+     * Channels are only opened while the primary channel is connected.
+     * <p>
+     *     Channels are dialed without holding the channel table, so that a slow or failing dial does not hold up
+     *     the adaptor's other callers: concurrent refreshes dial different channels, and dialed channels no longer needed are closed.
+     * </p>
+     * @return The number of channels open.
+     */
+    public int refreshChannels(){
+        List<Integer> toDial = new ArrayList<>();
+        synchronized (extraChannels){
+            int open = pruneChannels();
+            if(!isPrimaryConnected()){
+                return 0;
+            }
+            //Channels close from the last one, and open from the first free one.
+            for(int i=extraChannels.length - 1; i>=0 && open + 1 > channelCount; i--){
+                if(extraChannels[i] != null){
+                    extraChannels[i].interrupt();
+                    extraChannels[i] = null;
+                    open--;
+                }
+            }
+            for(int i=0; i<extraChannels.length && open + dialing() + 1 < channelCount; i++){
+                if(i != BluetoothSocketWrappers.PRIMARY_CHANNEL_IDX && extraChannels[i] == null && !dialing[i]){
+                    dialing[i] = true;
+                    toDial.add(i);
+                }
+            }
+        }
+        try {
+            for(int i : toDial){
+                BluetoothSocket btSocket;
+                try {
+                    btSocket = clientSocket.connectChannel(i);
+                } catch (IOException e) {
+                    Logger.logE(String.format("Channel #%d to %s: %s", i, clientSocket.getRemoteDevice(), e.getMessage()));
+                    break;
+                }
+                if(!publishChannel(i, btSocket)){
+                    try {
+                        btSocket.close();
+                    } catch (IOException e) {
+                        Logger.logE(e.getMessage());
+                    }
+                }
+            }
+        }finally {
+            synchronized (extraChannels){
+                for(int i : toDial){
+                    dialing[i] = false;
+                }
+            }
+        }
+        synchronized (extraChannels){
+            return isPrimaryConnected() ? pruneChannels() + 1 : 0;
+        }
+    }
+
+    /**
+     * Start a dialed channel, unless it is no longer needed.
+     * @return True if the channel was added, false if its socket should be closed.
+     */
+    private boolean publishChannel(int idx, BluetoothSocket btSocket){
+        synchronized (extraChannels){
+            if(!isPrimaryConnected() || pruneChannels() + 1 >= channelCount){
+                return false;
+            }
+            Connection channel = new Connection(new BluetoothStreamTransport(btSocket), this);
+            channel.start();
+            extraChannels[idx] = channel;
+            return true;
+        }
+    }
+
+    /**
+     * Forget the extra channels that failed. Must hold the channel table.
+     * @return The number of extra channels open.
+     */
+    private int pruneChannels(){
+        int open = 0;
+        for(int i=0; i<extraChannels.length; i++){
+            if(extraChannels[i] != null && !extraChannels[i].isConnected()){
+                extraChannels[i] = null;
+            }
+            open += extraChannels[i] != null ? 1 : 0;
+        }
+        return open;
+    }
+
+    /**
+     * @return The number of channels being dialed. Must hold the channel table.
+     */
+    private int dialing(){
+        int count = 0;
+        for(boolean d : dialing){
+            count += d ? 1 : 0;
+        }
+        return count;
+    }
+
+    private boolean isPrimaryConnected(){
+        Connection primary = connectionPipe;
+        return primary != null && primary.isConnected();
+    }
+
     /**
      * Start the adaptor.
      */
@@ -79,6 +219,14 @@ public class ClientBluetoothSocketAdaptor extends RemoteInterfaceAdaptor{
             clientSocket.close();
         } catch (IOException e) {
 
+        }
+        synchronized (extraChannels){
+            for(int i=0; i<extraChannels.length; i++){
+                if(extraChannels[i] != null){
+                    extraChannels[i].interrupt();
+                    extraChannels[i] = null;
+                }
+            }
         }
         if(connectionPipe != null){
             connectionPipe.interrupt();
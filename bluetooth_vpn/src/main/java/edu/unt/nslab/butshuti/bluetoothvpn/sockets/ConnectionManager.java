@@ -0,0 +1,398 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.sockets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+
+/**
+ * Dials remote devices, several in parallel, keeping per-device state.
+ * <p>
+ *     Dials to different devices are independent. Dials to the same device are serialized: a second caller waits for the
+ *     first one's attempt rather than failing. After a failed attempt, a device's channel is not dialed again before an
+ *     exponential backoff (with jitter, so that peers failing together do not retry together) has elapsed.
+ * </p>
+ * <p>
+ *     Each dial has a time budget: attempts are retried, after their backoff, until one succeeds or the budget is spent.
+ *     Each attempt is bounded by the attempt timeout, even if the socket's connect() is not: the socket is closed to abort it.
+ *     An attempt cut short by the end of the budget is only made if it gets at least the minimum attempt timeout, and
+ *     its timing out is not held against the device.
+ *     Sockets come from a {@link SocketFactory}, so that the manager can be exercised with fake sockets.
+ * </p>
+ * @param <S> The socket type.
+ */
+public class ConnectionManager<S extends Closeable> {
+    public static final long DEFAULT_ATTEMPT_TIMEOUT_MS = 12000;
+    public static final long DEFAULT_MIN_ATTEMPT_TIMEOUT_MS = 3000;
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 60000;
+
+    /**
+     * Creates and connects sockets to remote devices.
+     * @param <S> The socket type.
+     */
+    public interface SocketFactory<S extends Closeable> {
+        /**
+         * Create an unconnected socket.
+         * @param address The remote device's address.
+         * @param channelIdx The remote service's channel.
+         */
+        S createSocket(String address, int channelIdx) throws IOException;
+
+        /**
+         * Connect a socket, blocking until connected. Closing the socket from another thread must abort the call.
+         */
+        void connect(S socket) throws IOException;
+    }
+
+    /**
+     * Thrown when a device's channel is backing off from earlier failures for longer than the dial's budget.
+     */
+    public static class BackoffException extends IOException {
+        private final long remainingMs;
+
+        BackoffException(String address, int channelIdx, long remainingMs, IOException lastError){
+            super(String.format("%s#%d: backing off for %d ms after: %s", address, channelIdx, remainingMs,
+                    lastError != null ? lastError.getMessage() : "failure"), lastError);
+            this.remainingMs = remainingMs;
+        }
+
+        /**
+         * @return How long until the channel may be dialed again.
+         */
+        public long getRemainingMs(){
+            return remainingMs;
+        }
+    }
+
+    /**
+     * The dial results for one remote device.
+     */
+    public static final class PeerState {
+        private final String address;
+        private final ReentrantLock dialLock = new ReentrantLock();
+        private final Map<Integer, Integer> failures = new HashMap<>(); //Consecutive failures, by channel
+        private final Map<Integer, Long> retryTs = new HashMap<>(); //When each channel may be dialed again
+        private int attempts = 0, successes = 0, totalFailures = 0;
+        private long lastConnectTs = 0, lastConnectDurationMs = 0;
+        private IOException lastError = null;
+
+        private PeerState(String address){
+            this.address = address;
+        }
+
+        public String getAddress(){
+            return address;
+        }
+
+        public synchronized int getAttempts(){
+            return attempts;
+        }
+
+        public synchronized int getSuccesses(){
+            return successes;
+        }
+
+        public synchronized int getFailures(){
+            return totalFailures;
+        }
+
+        /**
+         * @return The failures on a channel since its last success.
+         */
+        public synchronized int getConsecutiveFailures(int channelIdx){
+            Integer count = failures.get(channelIdx);
+            return count != null ? count : 0;
+        }
+
+        /**
+         * @return When the last successful connection was made (System.currentTimeMillis()), 0 if none was.
+         */
+        public synchronized long getLastConnectTs(){
+            return lastConnectTs;
+        }
+
+        /**
+         * @return How long the last successful attempt took to connect.
+         */
+        public synchronized long getLastConnectDurationMs(){
+            return lastConnectDurationMs;
+        }
+
+        /**
+         * @return The error of the last failed attempt, null if none failed.
+         */
+        public synchronized IOException getLastError(){
+            return lastError;
+        }
+
+        /**
+         * @return How long until a channel may be dialed again, 0 if it may be now.
+         */
+        public synchronized long getBackoffRemainingMs(int channelIdx){
+            Long ts = retryTs.get(channelIdx);
+            return ts != null ? Math.max(ts - System.currentTimeMillis(), 0) : 0;
+        }
+
+        private synchronized void onAttempt(){
+            attempts++;
+        }
+
+        private synchronized void onSuccess(int channelIdx, long durationMs){
+            successes++;
+            failures.remove(channelIdx);
+            retryTs.remove(channelIdx);
+            lastConnectTs = System.currentTimeMillis();
+            lastConnectDurationMs = durationMs;
+        }
+
+        /**
+         * @return The backoff before the channel's next attempt.
+         */
+        private synchronized long onFailure(int channelIdx, IOException e, long initialBackoffMs, long maxBackoffMs){
+            totalFailures++;
+            lastError = e;
+            int count = getConsecutiveFailures(channelIdx) + 1;
+            failures.put(channelIdx, count);
+            //Doubled per consecutive failure, then half of it randomized ("equal jitter").
+            long backoff = count > 30 ? maxBackoffMs : Math.min(maxBackoffMs, initialBackoffMs << (count - 1));
+            backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            retryTs.put(channelIdx, System.currentTimeMillis() + backoff);
+            return backoff;
+        }
+
+        @Override
+        public synchronized String toString(){
+            return String.format("%s(attempts=%d, successes=%d, failures=%d, last error=%s)", address, attempts, successes, totalFailures,
+                    lastError != null ? lastError.getMessage() : null);
+        }
+    }
+
+    private final SocketFactory<S> socketFactory;
+    private final ConcurrentHashMap<String, PeerState> peers = new ConcurrentHashMap<>();
+    private final ExecutorService dialExecutor;
+    private volatile long attemptTimeoutMs = DEFAULT_ATTEMPT_TIMEOUT_MS;
+    private volatile long minAttemptTimeoutMs = DEFAULT_MIN_ATTEMPT_TIMEOUT_MS;
+    private volatile long initialBackoffMs = DEFAULT_INITIAL_BACKOFF_MS, maxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+
+    public ConnectionManager(SocketFactory<S> socketFactory){
+        this.socketFactory = socketFactory;
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        dialExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ConnectionManager::dial#" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * @param timeoutMs The longest a single attempt may take.
+     */
+    public void setAttemptTimeout(long timeoutMs){
+        setAttemptTimeout(timeoutMs, Math.min(timeoutMs, DEFAULT_MIN_ATTEMPT_TIMEOUT_MS));
+    }
+
+    /**
+     * @param timeoutMs The longest a single attempt may take.
+     * @param minTimeoutMs The shortest attempt worth making when the dial's budget runs out: connecting takes time.
+     */
+    public void setAttemptTimeout(long timeoutMs, long minTimeoutMs){
+        if(minTimeoutMs <= 0 || timeoutMs < minTimeoutMs){
+            throw new IllegalArgumentException(String.format("Invalid attempt timeout: %d/%d ms", timeoutMs, minTimeoutMs));
+        }
+        attemptTimeoutMs = timeoutMs;
+        minAttemptTimeoutMs = minTimeoutMs;
+    }
+
+    public long getAttemptTimeout(){
+        return attemptTimeoutMs;
+    }
+
+    public long getMinAttemptTimeout(){
+        return minAttemptTimeoutMs;
+    }
+
+    /**
+     * @param initialMs The backoff after a first failure, doubled by each consecutive failure.
+     * @param maxMs The longest backoff.
+     */
+    public void setBackoff(long initialMs, long maxMs){
+        if(initialMs <= 0 || maxMs < initialMs){
+            throw new IllegalArgumentException(String.format("Invalid backoff: %d/%d ms", initialMs, maxMs));
+        }
+        initialBackoffMs = initialMs;
+        maxBackoffMs = maxMs;
+    }
+
+    /**
+     * @return The dial results for a device, null if it was never dialed.
+     */
+    public PeerState getPeerState(String address){
+        return peers.get(address);
+    }
+
+    /**
+     * @return The dial results for all devices dialed so far, by address.
+     */
+    public Map<String, PeerState> getPeerStates(){
+        return new HashMap<>(peers);
+    }
+
+    private PeerState peerState(String address){
+        PeerState state = peers.get(address);
+        if(state == null){
+            state = new PeerState(address);
+            PeerState current = peers.putIfAbsent(address, state);
+            if(current != null){
+                state = current;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Dial a device's channel, retrying within a time budget.
+     * @param address The remote device's address.
+     * @param channelIdx The remote service's channel.
+     * @param budgetMs The longest the dial may take, including backoffs and waiting for other dials to the device.
+     * @return The connected socket.
+     * @throws BackoffException If the channel is backing off for longer than the remaining budget allows.
+     * @throws IOException The last attempt's error, if the budget is spent (or too little of it is left for another attempt).
+     */
+    public S connect(String address, int channelIdx, long budgetMs) throws IOException {
+        long deadline = System.currentTimeMillis() + budgetMs;
+        PeerState peer = peerState(address);
+        try {
+            if(!peer.dialLock.tryLock(budgetMs, TimeUnit.MILLISECONDS)){
+                throw new SocketTimeoutException(String.format("%s#%d: still dialing after %d ms", address, channelIdx, budgetMs));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while dialing " + address);
+        }
+        try {
+            IOException lastError = null;
+            while (true){
+                long attemptTimeout = attemptTimeoutMs, minTimeout = minAttemptTimeoutMs;
+                long remaining = deadline - System.currentTimeMillis();
+                long backoff = peer.getBackoffRemainingMs(channelIdx);
+                if(backoff > 0){
+                    if(backoff + minTimeout > remaining){
+                        throw new BackoffException(address, channelIdx, backoff, lastError != null ? lastError : peer.getLastError());
+                    }
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while dialing " + address);
+                    }
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                if(remaining < minTimeout){
+                    throw lastError != null ? lastError : new SocketTimeoutException(String.format("%s#%d: no time left to dial", address, channelIdx));
+                }
+                long timeout = Math.min(attemptTimeout, remaining);
+                long start = System.currentTimeMillis();
+                peer.onAttempt();
+                try {
+                    S socket = attempt(address, channelIdx, timeout);
+                    peer.onSuccess(channelIdx, System.currentTimeMillis() - start);
+                    return socket;
+                } catch (IOException e) {
+                    if(Thread.currentThread().isInterrupted()){
+                        throw e;
+                    }
+                    lastError = e;
+                    if(timeout < attemptTimeout && e instanceof SocketTimeoutException && System.currentTimeMillis() - start >= timeout){
+                        //Cut short by the budget, not a failure of the device: its next dial starts without backoff.
+                        throw e;
+                    }
+                    long nextBackoff = peer.onFailure(channelIdx, e, initialBackoffMs, maxBackoffMs);
+                    Logger.logE(String.format("%s (retry in %d ms)", e.getMessage(), nextBackoff));
+                }
+            }
+        }finally {
+            peer.dialLock.unlock();
+        }
+    }
+
+    /**
+     * Dial a device's channel asynchronously (see {@link #connect(String, int, long)}), e.g. to dial several devices at once.
+     * @return The pending connection. Cancelling it aborts the dial.
+     */
+    public Future<S> dial(final String address, final int channelIdx, final long budgetMs){
+        return dialExecutor.submit(new Callable<S>() {
+            @Override
+            public S call() throws IOException {
+                return connect(address, channelIdx, budgetMs);
+            }
+        });
+    }
+
+    /**
+     * A single attempt, aborted by closing the socket once the timeout elapses.
+     */
+    private S attempt(String address, int channelIdx, long timeoutMs) throws IOException {
+        final S socket = socketFactory.createSocket(address, channelIdx);
+        Future<Void> connection = dialExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                socketFactory.connect(socket);
+                return null;
+            }
+        });
+        try {
+            connection.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return socket;
+        } catch (TimeoutException e) {
+            closeQuietly(socket);
+            connection.cancel(true);
+            throw new SocketTimeoutException(String.format("%s#%d: connect timed out after %d ms", address, channelIdx, timeoutMs));
+        } catch (ExecutionException e) {
+            closeQuietly(socket);
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            closeQuietly(socket);
+            connection.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while dialing " + address);
+        }
+    }
+
+    private static void closeQuietly(Closeable socket){
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //Already closed, or never connected.
+        }
+    }
+
+    /**
+     * Stop the threads running attempts. Dials in progress fail.
+     */
+    public void shutdown(){
+        dialExecutor.shutdownNow();
+    }
+}
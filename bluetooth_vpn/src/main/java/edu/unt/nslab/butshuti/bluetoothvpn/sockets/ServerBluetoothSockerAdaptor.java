@@ -8,6 +8,7 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.InterfaceController;
@@ -20,12 +21,13 @@ import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
  *
  * A server implementation of the {@link RemoteInterfaceAdaptor}.
  * The server case is only special in that it handles multiple client connections at the same time.
+ * A client may also connect on several channels at once: its connections are striped by the {@link InterfaceController}.
  */
 
 public class ServerBluetoothSockerAdaptor extends RemoteInterfaceAdaptor implements InterfaceController.NetworkEventListener {
 
     private BluetoothSocketWrappers.ServerSocket serverSocket = null; // The local server socket.
-    private Map<String, BluetoothSocket> openSockets; // BT-specific sockets from remote clients.
+    private Map<String, List<BluetoothSocket>> openSockets; // BT-specific sockets from remote clients, one per channel.
 
     /**
      * Crate a new server socket adaptor.
@@ -49,8 +51,8 @@ public class ServerBluetoothSockerAdaptor extends RemoteInterfaceAdaptor impleme
     @Override
     public void startAdaptor() throws LocalInterfaceBridge.BridgeException{
         try {
-            LocalInterfaceBridge.reset();
-            LocalInterfaceBridge.initialize(InetAddress.getByName(getInterfaceController().getLocalInterfaceAddress()));
+            getInterfaceController().getBridge().reset();
+            getInterfaceController().getBridge().initialize(InetAddress.getByName(getInterfaceController().getLocalInterfaceAddress()));
         } catch (UnknownHostException e) {
             throw new LocalInterfaceBridge.BridgeException(e);
         }
@@ -68,17 +70,23 @@ public class ServerBluetoothSockerAdaptor extends RemoteInterfaceAdaptor impleme
                 throw new LocalInterfaceBridge.BridgeException(e);
             }
             if(socket != null && socket.isConnected()){
-                Connection st = new Connection(socket, this);
-                LocalInterfaceBridge.addGateway(socket.getRemoteDevice().getAddress());
+                Connection st = new Connection(new BluetoothStreamTransport(socket), this);
+                getInterfaceController().getBridge().addGateway(socket.getRemoteDevice().getAddress());
                 String remoteDeviceAddress = socket.getRemoteDevice().getAddress();
-                if(openSockets.containsKey(remoteDeviceAddress)){
-                    try{
-                        openSockets.get(remoteDeviceAddress).close();
-                    }catch (IOException e){
-                        //Ignore this, remote peer might already have closed.
+                synchronized (openSockets){
+                    //A reconnection on the same channel closed the previous socket (see BluetoothSocketWrappers.ServerSocket).
+                    List<BluetoothSocket> sockets = openSockets.get(remoteDeviceAddress);
+                    if(sockets == null){
+                        sockets = new ArrayList<>();
+                        openSockets.put(remoteDeviceAddress, sockets);
                     }
+                    for(int i=sockets.size() - 1; i>=0; i--){
+                        if(!sockets.get(i).isConnected()){
+                            sockets.remove(i);
+                        }
+                    }
+                    sockets.add(socket);
                 }
-                openSockets.put(remoteDeviceAddress, socket);
                 st.start();
             }else{
                 throw new LocalInterfaceBridge.BridgeException("Invalid socket state");
@@ -96,19 +104,21 @@ public class ServerBluetoothSockerAdaptor extends RemoteInterfaceAdaptor impleme
     public void stopAdaptor() {
         getInterfaceController().deactivate();
         synchronized (openSockets){
-            for (Map.Entry<String, BluetoothSocket> entry : openSockets.entrySet()){
-                try {
-                    entry.getValue().getInputStream().close();
-                    entry.getValue().getOutputStream().close();
-                    entry.getValue().close();
-                } catch (IOException e) {}
+            for (Map.Entry<String, List<BluetoothSocket>> entry : openSockets.entrySet()){
+                for(BluetoothSocket socket : entry.getValue()){
+                    try {
+                        socket.getInputStream().close();
+                        socket.getOutputStream().close();
+                        socket.close();
+                    } catch (IOException e) {}
+                }
             }
+            openSockets.clear();
         }
-        openSockets.clear();
     }
 
     /**
-     * Signal an exception from which the only recovery is to clear the socket with the remote peer.
+     * Signal an exception from which the only recovery is to clear the sockets with the remote peer.
      * <p>
      *     This happens for instance when an attempt to read from a client socket's input stream results in an IO exception.
      * </p>
@@ -119,13 +129,14 @@ public class ServerBluetoothSockerAdaptor extends RemoteInterfaceAdaptor impleme
     public void notifyIrrecoverableException(String channelID, String remotePeerAddress) {
         synchronized (openSockets) {
             if (openSockets.containsKey(remotePeerAddress)) {
-                try {
-                    openSockets.get(remotePeerAddress).close();
-                } catch (IOException e) {
+                for(BluetoothSocket socket : openSockets.remove(remotePeerAddress)){
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
 
+                    }
                 }
-                openSockets.remove(remotePeerAddress);
-                LocalInterfaceBridge.deleteGateway(remotePeerAddress);
+                getInterfaceController().getBridge().deleteGateway(remotePeerAddress);
             }
         }
     }
@@ -137,9 +148,14 @@ public class ServerBluetoothSockerAdaptor extends RemoteInterfaceAdaptor impleme
 
     public Collection<String> getRecentClients(){
         Collection<String> ret = new ArrayList<>();
-        for(BluetoothSocket socket: openSockets.values()){
-            if(socket.isConnected()){
-                ret.add(socket.getRemoteDevice().getAddress());
+        synchronized (openSockets){
+            for(Map.Entry<String, List<BluetoothSocket>> entry : openSockets.entrySet()){
+                for(BluetoothSocket socket : entry.getValue()){
+                    if(socket.isConnected()){
+                        ret.add(entry.getKey());
+                        break;
+                    }
+                }
             }
         }
         return ret;
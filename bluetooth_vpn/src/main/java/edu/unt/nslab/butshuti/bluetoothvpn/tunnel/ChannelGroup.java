@@ -0,0 +1,205 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+/**
+ * The channels open to one peer (e.g. several RFCOMM connections), seen by the {@link InterfaceController} as one delivery listener.
+ * <p>
+ *     Packets are striped by flow: all packets of a 5-tuple take the same channel, so a flow is never reordered, while
+ *     different flows spread over the channels and do not queue behind each other. Packets that are not IPv4 datagrams
+ *     (proximity probes, path propagation...) all take the same channel.
+ * </p>
+ * <p>
+ *     Channels join and leave at runtime. Flows are mapped by rendezvous hashing: a new channel only takes over its share of
+ *     the flows, and a channel leaving only moves its own flows, so membership changes reorder as few flows as possible.
+ *     A channel failing a write (by throwing, as closed channels do) is removed and shut down, and the packet goes to
+ *     the channel taking over its flow.
+ * </p>
+ */
+public final class ChannelGroup implements InterfaceController.FlowControlledListener {
+    private static final Member NO_MEMBERS[] = new Member[0];
+
+    private static final class Member {
+        private final InterfaceController.RemoteDatagramDeliveryListener channel;
+        private final int salt;
+
+        private Member(InterfaceController.RemoteDatagramDeliveryListener channel, int salt){
+            this.channel = channel;
+            this.salt = salt;
+        }
+    }
+
+    private final long remoteAddress;
+    private volatile Member members[] = NO_MEMBERS; //Copied on write
+    private int nextSalt = 0;
+
+    /**
+     * @param remoteAddress The peer the channels lead to.
+     */
+    public ChannelGroup(long remoteAddress){
+        this.remoteAddress = remoteAddress;
+    }
+
+    public long getRemoteAddress(){
+        return remoteAddress;
+    }
+
+    /**
+     * Add a channel to the group.
+     * @return False if it is already a member.
+     */
+    public synchronized boolean add(InterfaceController.RemoteDatagramDeliveryListener channel){
+        if(channel == null || contains(channel)){
+            return false;
+        }
+        Member current[] = members;
+        Member updated[] = new Member[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        nextSalt += 0x9E3779B9;
+        updated[current.length] = new Member(channel, nextSalt);
+        members = updated;
+        return true;
+    }
+
+    /**
+     * Remove a channel from the group. It is not shut down.
+     * @return False if it was not a member.
+     */
+    public synchronized boolean remove(InterfaceController.RemoteDatagramDeliveryListener channel){
+        Member current[] = members;
+        for(int i=0; i<current.length; i++){
+            if(current[i].channel == channel){
+                Member updated[] = new Member[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                members = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean contains(InterfaceController.RemoteDatagramDeliveryListener channel){
+        for(Member member : members){
+            if(member.channel == channel){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of channels in the group.
+     */
+    public int size(){
+        return members.length;
+    }
+
+    public boolean isEmpty(){
+        return members.length == 0;
+    }
+
+    /**
+     * @return The channel carrying the packet's flow, null if the group is empty.
+     */
+    public InterfaceController.RemoteDatagramDeliveryListener select(Packet pkt){
+        Member current[] = members;
+        if(current.length < 2){
+            return current.length == 1 ? current[0].channel : null;
+        }
+        return select(current, EgressScheduler.flowHash(pkt));
+    }
+
+    /**
+     * Rendezvous hashing: the flow goes to the channel scoring highest for it.
+     */
+    private static InterfaceController.RemoteDatagramDeliveryListener select(Member current[], int flow){
+        Member selected = null;
+        int best = 0;
+        for(Member member : current){
+            int score = score(flow, member.salt);
+            if(selected == null || score > best){
+                selected = member;
+                best = score;
+            }
+        }
+        return selected != null ? selected.channel : null;
+    }
+
+    private static int score(int flow, int salt){
+        int h = (flow ^ salt) * 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Send a packet on the channel carrying its flow.
+     * @throws IOException If the last channel of the group failed.
+     */
+    @Override
+    public boolean write(Packet pkt, boolean async) throws IOException {
+        while (true){
+            InterfaceController.RemoteDatagramDeliveryListener channel = select(pkt);
+            if(channel == null){
+                return false;
+            }
+            try {
+                return channel.write(pkt, async);
+            }catch (IOException e){
+                //Only this channel failed: its flows move to the remaining ones.
+                remove(channel);
+                channel.shutdown();
+                if(isEmpty()){
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean hasCapacity(Packet pkt) {
+        InterfaceController.RemoteDatagramDeliveryListener channel = select(pkt);
+        return !(channel instanceof InterfaceController.FlowControlledListener) || ((InterfaceController.FlowControlledListener) channel).hasCapacity(pkt);
+    }
+
+    @Override
+    public boolean awaitCapacity(Packet pkt, long timeout, TimeUnit unit) throws InterruptedException {
+        InterfaceController.RemoteDatagramDeliveryListener channel = select(pkt);
+        return !(channel instanceof InterfaceController.FlowControlledListener) || ((InterfaceController.FlowControlledListener) channel).awaitCapacity(pkt, timeout, unit);
+    }
+
+    /**
+     * Shut down and remove all channels.
+     */
+    @Override
+    public void shutdown() {
+        Member current[];
+        synchronized (this){
+            current = members;
+            members = NO_MEMBERS;
+        }
+        for(Member member : current){
+            member.channel.shutdown();
+        }
+    }
+
+    @Override
+    public boolean isPrimary() {
+        return true;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("ChannelGroup(").append(BDAddr.toString(remoteAddress)).append(": ");
+        Member current[] = members;
+        for(int i=0; i<current.length; i++){
+            sb.append(i > 0 ? ", " : "").append(current[i].channel);
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,157 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+
+/**
+ * Readiness-driven I/O engine for {@link RemoteInterfaceAdaptor.Connection}s.
+ * <p>
+ *     Stream transports only offer blocking I/O, so nothing here polls a stream.
+ *     Each connection runs a reader that blocks on its input stream and decodes frames as they complete.
+ *     Producers signal this loop when they queue packets for a connection, and readers signal it when their stream fails.
+ *     The loop thread parks until a connection is signalled (or a keep-alive or a pending superframe is due), then flushes
+ *     that connection's pending output or invalidates it.
+ * </p>
+ * <p>
+ *     Socket writes for all connections happen on the loop thread only.
+ *     Reads never wait on the loop, so a connection looped back onto the same loop cannot deadlock it.
+ * </p>
+ */
+final class ConnectionEventLoop extends Thread {
+
+    static final int STREAM_REFRESH_INTERVAL = 5000;
+    private final Set<RemoteInterfaceAdaptor.Connection> connections; //A peer may have several connections (see ChannelGroup).
+    private final BlockingQueue<RemoteInterfaceAdaptor.Connection> readyQueue;
+
+    ConnectionEventLoop(){
+        setDaemon(false);
+        setName("Connections::event_loop");
+        connections = Collections.newSetFromMap(new ConcurrentHashMap<RemoteInterfaceAdaptor.Connection, Boolean>());
+        readyQueue = new LinkedBlockingQueue<>();
+    }
+
+    void addStream(RemoteInterfaceAdaptor.Connection connection){
+        connections.add(connection);
+    }
+
+    void removeStream(RemoteInterfaceAdaptor.Connection connection){
+        connections.remove(connection);
+    }
+
+    int size(){
+        return connections.size();
+    }
+
+    /**
+     * Mark a connection as ready for servicing: it has bytes queued to write, or it has failed.
+     * @param connection The connection.
+     */
+    void signal(RemoteInterfaceAdaptor.Connection connection){
+        if(connection.markPending()){
+            readyQueue.offer(connection);
+        }
+    }
+
+    @Override
+    public void run(){
+        Logger.logI("Connection event loop starting...");
+        while (!isInterrupted()){
+            RemoteInterfaceAdaptor.Connection connection;
+            try {
+                connection = readyQueue.poll(nextWakeupDelay(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if(connection != null){
+                connection.clearPending();
+                service(connection);
+            }
+            flushDueSuperframes();
+            refreshIdleStreams();
+        }
+        Logger.logI("Connection event loop terminating...");
+    }
+
+    /**
+     * Flush the connection's pending output, or invalidate it if its reader failed.
+     * @param connection The connection to service.
+     */
+    private void service(RemoteInterfaceAdaptor.Connection connection){
+        if(!connections.contains(connection)){
+            return;
+        }
+        try{
+            connection.checkReaderState();
+            connection.flush();
+        }catch (IOException e){
+            //Shutting down removes the connection from its peer's channels.
+            Logger.logE(String.format("IOException: %s. Invalidating adaptor for %s.", e.getMessage(), connection.getRemoteAddress()));
+            connection.shutdown();
+        }
+    }
+
+    /**
+     * Flush connections holding packets that waited long enough to be packed into a superframe.
+     */
+    private void flushDueSuperframes(){
+        long now = System.nanoTime();
+        for(RemoteInterfaceAdaptor.Connection connection : connections){
+            long deadline = connection.getCoalescingDeadline();
+            if(deadline != 0 && now - deadline >= 0){
+                service(connection);
+            }
+        }
+    }
+
+    /**
+     * Send keep-alives on connections that have not written anything for {@link #STREAM_REFRESH_INTERVAL} ms.
+     */
+    private void refreshIdleStreams(){
+        long curTs = SystemClock.elapsedRealtime();
+        for(RemoteInterfaceAdaptor.Connection connection : connections){
+            if(!connection.isConnected() || curTs < connection.getLastWriteTs() + STREAM_REFRESH_INTERVAL){
+                continue;
+            }
+            String remoteAddress = connection.getRemoteAddress();
+            byte data[] = String.format("dev(%s).keepAlive(%d) @%d", remoteAddress, STREAM_REFRESH_INTERVAL, connection.getLastWriteTs()).getBytes();
+            Packet keepAlivePkt = Packet.wrap(data);
+            keepAlivePkt.setProtocol(Packet.PROTOCOL_PROXIMITY);
+            try {
+                connection.writeDirect(keepAlivePkt);
+            } catch (IOException e) {
+                Logger.logE(String.format("IOException: %s. Invalidating adaptor for %s.", e.getMessage(), remoteAddress));
+                connection.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return Nanoseconds until the next keep-alive (at least 1ms away) or pending superframe is due.
+     */
+    private long nextWakeupDelay(){
+        long curTs = SystemClock.elapsedRealtime();
+        long now = System.nanoTime();
+        long delay = STREAM_REFRESH_INTERVAL;
+        long superframeDelay = Long.MAX_VALUE;
+        for(RemoteInterfaceAdaptor.Connection connection : connections){
+            if(connection.isConnected()){
+                delay = Math.min(delay, connection.getLastWriteTs() + STREAM_REFRESH_INTERVAL - curTs);
+                long deadline = connection.getCoalescingDeadline();
+                if(deadline != 0){
+                    superframeDelay = Math.min(superframeDelay, Math.max(deadline - now, 0));
+                }
+            }
+        }
+        return Math.min(TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 1)), superframeDelay);
+    }
+}
@@ -0,0 +1,93 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.LatencyHistogram;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.StripedCounter;
+
+/**
+ * Names of the datapath metrics in the default {@link MetricsRegistry}, and the shared metrics the tunnel updates.
+ */
+public final class DatapathMetrics {
+    public static final String TUN_RX_PKTS = "tun.rx.pkts";
+    public static final String TUN_RX_BYTES = "tun.rx.bytes";
+    public static final String TUN_TX_PKTS = "tun.tx.pkts";
+    public static final String TUN_TX_BYTES = "tun.tx.bytes";
+    public static final String TUN_QUEUE_DEPTH = "tun.queue.depth";
+    /**
+     * Times the interface reader waited for a full peer queue, see {@link VPNFDController.BackpressurePolicy#PAUSE}.
+     */
+    public static final String TUN_RX_PAUSES = "tun.rx.pauses";
+    public static final String ENGINE_QUEUE_DEPTH = "engine.queue.depth";
+
+    public static final String DROPS = "drops.";
+    public static final String DROPS_NO_ROUTE = DROPS + "no_route";
+    public static final String DROPS_TTL_EXPIRED = DROPS + "ttl_expired";
+    public static final String DROPS_INVALID = DROPS + "invalid";
+    public static final String DROPS_TX_BUFFER_FULL = DROPS + "tx_buffer_full";
+    public static final String DROPS_EGRESS_QUEUE = DROPS + "egress_queue";
+    public static final String DROPS_AQM = DROPS + "aqm";
+    /**
+     * Local datagrams given up on because their next hop's queue stayed full, see {@link InterfaceController.SendResult#BACKPRESSURE}.
+     */
+    public static final String DROPS_BACKPRESSURE = DROPS + "backpressure";
+    public static final String DROPS_TUN_QUEUE = DROPS + "tun_queue";
+    public static final String DROPS_ENGINE_QUEUE = DROPS + "engine_queue";
+
+    /**
+     * From reading a datagram off the VPN interface to writing its frame to the peer's stream, egress queueing and coalescing included.
+     */
+    public static final String LATENCY_TUN_TO_WIRE = "latency.tun_to_wire";
+    /**
+     * From decoding a packet received from a peer to writing its frame to the next hop's stream.
+     */
+    public static final String LATENCY_FORWARDING = "latency.forwarding";
+    /**
+     * Time packets spent in a peer's {@link EgressScheduler}.
+     */
+    public static final String LATENCY_EGRESS_SOJOURN = "latency.egress_sojourn";
+    /**
+     * How long the interface reader waited for a full peer queue.
+     */
+    public static final String LATENCY_TUN_PAUSE = "latency.tun_pause";
+
+    /**
+     * Active queue management on the peer egress queues: packets marked with ECN instead of dropped, and the CoDel
+     * parameters for new connections (see {@link RemoteInterfaceAdaptor#setQueueDelayTarget(long, long)}).
+     */
+    public static final String AQM_MARKS = "aqm.marks";
+    public static final String AQM_TARGET_US = "aqm.target_us";
+    public static final String AQM_INTERVAL_US = "aqm.interval_us";
+
+    /**
+     * Per-peer metric suffixes, see {@link MetricsRegistry#peerMetric(String, String)}.
+     */
+    public static final String PEER_RX_PKTS = "rx.pkts";
+    public static final String PEER_RX_BYTES = "rx.bytes";
+    public static final String PEER_TX_PKTS = "tx.pkts";
+    public static final String PEER_TX_BYTES = "tx.bytes";
+
+    static final StripedCounter tunRxPkts = MetricsRegistry.getDefault().counter(TUN_RX_PKTS);
+    static final StripedCounter tunRxBytes = MetricsRegistry.getDefault().counter(TUN_RX_BYTES);
+    static final StripedCounter tunTxPkts = MetricsRegistry.getDefault().counter(TUN_TX_PKTS);
+    static final StripedCounter tunTxBytes = MetricsRegistry.getDefault().counter(TUN_TX_BYTES);
+    static final StripedCounter tunRxPauses = MetricsRegistry.getDefault().counter(TUN_RX_PAUSES);
+    static final StripedCounter noRouteDrops = MetricsRegistry.getDefault().counter(DROPS_NO_ROUTE);
+    static final StripedCounter ttlExpiredDrops = MetricsRegistry.getDefault().counter(DROPS_TTL_EXPIRED);
+    static final StripedCounter invalidDrops = MetricsRegistry.getDefault().counter(DROPS_INVALID);
+    static final StripedCounter txBufferFullDrops = MetricsRegistry.getDefault().counter(DROPS_TX_BUFFER_FULL);
+    static final StripedCounter egressQueueDrops = MetricsRegistry.getDefault().counter(DROPS_EGRESS_QUEUE);
+    static final StripedCounter aqmDrops = MetricsRegistry.getDefault().counter(DROPS_AQM);
+    static final StripedCounter aqmMarks = MetricsRegistry.getDefault().counter(AQM_MARKS);
+    static final StripedCounter backpressureDrops = MetricsRegistry.getDefault().counter(DROPS_BACKPRESSURE);
+    static final LatencyHistogram tunToWireLatency = MetricsRegistry.getDefault().histogram(LATENCY_TUN_TO_WIRE);
+    static final LatencyHistogram forwardingLatency = MetricsRegistry.getDefault().histogram(LATENCY_FORWARDING);
+    static final LatencyHistogram egressSojourn = MetricsRegistry.getDefault().histogram(LATENCY_EGRESS_SOJOURN);
+    static final LatencyHistogram tunPause = MetricsRegistry.getDefault().histogram(LATENCY_TUN_PAUSE);
+
+    private DatapathMetrics(){
+    }
+
+    static StripedCounter peerCounter(String peerAddress, String metric){
+        return MetricsRegistry.getDefault().counter(MetricsRegistry.peerMetric(peerAddress, metric));
+    }
+}
@@ -0,0 +1,555 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.TrafficClass;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.IPv4Header;
+
+/**
+ * Per-peer egress queues: one bounded lane per {@link TrafficClass}, served in strict priority order.
+ * <p>
+ *     {@link TrafficClass#CONTROL} packets (proximity probes, path propagation, traceroutes, link negotiation) are kept in
+ *     a FIFO that always goes first, so that a bulk transfer cannot delay the signalling keeping routes alive.
+ *     Within the other lanes, packets are hashed by 5-tuple into flow buckets served by deficit round robin: each backlogged
+ *     flow sends about {@link #DEFAULT_QUANTUM} bytes per round, so a bulk transfer cannot starve the flows sharing its lane.
+ *     When a lane is full, the oldest packet of its longest flow is dropped to make room, unless the arriving packet
+ *     belongs to that flow, in which case it is dropped instead.
+ * </p>
+ * <p>
+ *     Each data flow is also managed by CoDel (RFC 8289): once a flow's packets have been queued for longer than the target
+ *     delay for a whole interval, packets are dropped at dequeue time, more and more often until the delay is back under the
+ *     target. Packets of ECN-capable transports are marked instead of dropped. Queues thus stay short (and pings fast)
+ *     under load, whatever their capacity.
+ * </p>
+ * <p>
+ *     Producers never block. The scheduler owns the references it is handed: packets are released when dropped, and
+ *     handed over to the single consumer by {@link #poll()}. Producers that would rather slow down than lose packets can
+ *     check for room with {@link #hasCapacity(TrafficClass)}, and wait for it with {@link #awaitCapacity(TrafficClass, long, TimeUnit)}.
+ * </p>
+ */
+public final class EgressScheduler {
+
+    public static final int DEFAULT_FLOWS = 64;
+    public static final int DEFAULT_QUANTUM = 1500;
+    public static final int DEFAULT_CONTROL_CAPACITY = 32;
+    public static final int DEFAULT_DATA_CAPACITY = 256;
+    /**
+     * CoDel's defaults are 5ms and 100ms on Ethernet. An RFCOMM link takes several milliseconds per datagram, and
+     * multi-hop RTTs are longer, so both are scaled up.
+     */
+    public static final long DEFAULT_TARGET_US = 20000;
+    public static final long DEFAULT_INTERVAL_US = 200000;
+
+    private static final TrafficClass CLASSES[] = TrafficClass.values();
+
+    /**
+     * The time source for sojourn times, in nanoseconds: {@link System#nanoTime()}, or a test's.
+     */
+    interface Clock {
+        long nanoTime();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * A bounded set of flow buckets sharing one packet store, served by deficit round robin, and optionally managed by CoDel.
+     */
+    private static final class Lane {
+        private final Packet slots[];
+        private final long enqueueTs[];
+        private final int nextSlot[];
+        private final int flowHead[], flowTail[], flowBytes[], deficit[];
+        private final int activeFlows[]; //Round-robin ring of backlogged flows
+        private final int quantum;
+        private final boolean managed;
+        //CoDel state, per flow.
+        private final long firstAboveTime[], dropNext[];
+        private final int dropCount[], lastDropCount[];
+        private final boolean dropping[];
+        private int freeSlot = 0, count = 0, activeHead = 0, activeCount = 0, turn = -1; //turn: the flow being served
+        private long drops = 0, aqmDrops = 0, aqmMarks = 0;
+
+        Lane(int capacity, int flows, int quantum, boolean managed){
+            slots = new Packet[capacity];
+            enqueueTs = new long[capacity];
+            nextSlot = new int[capacity];
+            for(int i=0; i<capacity; i++){
+                nextSlot[i] = i + 1 < capacity ? i + 1 : -1;
+            }
+            flowHead = new int[flows];
+            flowTail = new int[flows];
+            flowBytes = new int[flows];
+            deficit = new int[flows];
+            activeFlows = new int[flows];
+            this.quantum = quantum;
+            this.managed = managed;
+            firstAboveTime = new long[flows];
+            dropNext = new long[flows];
+            dropCount = new int[flows];
+            lastDropCount = new int[flows];
+            dropping = new boolean[flows];
+        }
+
+        /**
+         * @return The packet dropped to make room (the arriving one if it could not be queued), or NULL.
+         */
+        Packet offer(Packet pkt, int flow, long now){
+            Packet dropped = null;
+            if(count == slots.length){
+                int victim = longestFlow();
+                if(victim == flow){
+                    drops++;
+                    return pkt;
+                }
+                dropped = removeHead(victim);
+                drops++;
+            }
+            int slot = freeSlot;
+            freeSlot = nextSlot[slot];
+            slots[slot] = pkt;
+            enqueueTs[slot] = now;
+            nextSlot[slot] = -1;
+            if(flowBytes[flow] == 0){
+                flowHead[flow] = slot;
+                deficit[flow] = 0;
+                activeFlows[(activeHead + activeCount++) % activeFlows.length] = flow;
+            }else{
+                nextSlot[flowTail[flow]] = slot;
+            }
+            flowTail[flow] = slot;
+            flowBytes[flow] += pktSize(pkt);
+            count++;
+            return dropped;
+        }
+
+        /**
+         * @param sojourn Where to store the time the packet spent queued.
+         * @return The next packet, or NULL if the lane is empty. Packets dropped by CoDel on the way are released.
+         */
+        Packet poll(long now, long targetNs, long intervalNs, long sojourn[]){
+            while (count > 0){
+                int flow = activeFlows[activeHead];
+                if(flow != turn){
+                    //The flow's turn starts: it gets a new share.
+                    deficit[flow] += quantum;
+                    turn = flow;
+                }
+                if(deficit[flow] >= pktSize(slots[flowHead[flow]])){
+                    sojourn[0] = now - enqueueTs[flowHead[flow]];
+                    Packet pkt = removeHead(flow);
+                    if(managed && shouldDrop(flow, sojourn[0], now, targetNs, intervalNs)){
+                        IPv4Header header = pkt.getIPv4Header();
+                        if(header == null || !header.markCongestionExperienced()){
+                            aqmDrops++;
+                            DatapathMetrics.aqmDrops.increment();
+                            pkt.release();
+                            continue;
+                        }
+                        aqmMarks++;
+                        DatapathMetrics.aqmMarks.increment();
+                    }
+                    deficit[flow] -= pktSize(pkt);
+                    return pkt;
+                }
+                //The flow used up its share for this round.
+                activeHead = (activeHead + 1) % activeFlows.length;
+                activeFlows[(activeHead + activeCount - 1) % activeFlows.length] = flow;
+                turn = -1;
+            }
+            return null;
+        }
+
+        /**
+         * CoDel's dequeue decision for the flow's head packet, just removed.
+         * <p>
+         *     Unlike the reference dequeue, which drops in a loop until the next drop is not due, this decides for one
+         *     packet only. {@link #poll(long, long, long, long[])} makes up the loop: after a drop, it asks again for the
+         *     flow's next packet, which is also dropped if the (advanced) next drop time has passed already.
+         *     A packet marked instead of dropped ends the loop, as it is sent.
+         * </p>
+         * @return True if the packet should be dropped (or marked).
+         */
+        private boolean shouldDrop(int flow, long sojourn, long now, long targetNs, long intervalNs){
+            boolean aboveTarget;
+            if(sojourn < targetNs || flowBytes[flow] <= quantum){
+                //Below target, or too little left queued to be a standing queue.
+                firstAboveTime[flow] = 0;
+                aboveTarget = false;
+            }else if(firstAboveTime[flow] == 0){
+                firstAboveTime[flow] = now + intervalNs;
+                aboveTarget = false;
+            }else{
+                aboveTarget = now - firstAboveTime[flow] >= 0;
+            }
+            if(dropping[flow]){
+                if(!aboveTarget){
+                    dropping[flow] = false;
+                    return false;
+                }
+                if(now - dropNext[flow] >= 0){
+                    dropCount[flow]++;
+                    dropNext[flow] = controlLaw(dropNext[flow], dropCount[flow], intervalNs);
+                    return true;
+                }
+                return false;
+            }
+            if(aboveTarget){
+                dropping[flow] = true;
+                //Resume near the previous drop rate if the last dropping state ended recently.
+                int delta = dropCount[flow] - lastDropCount[flow];
+                dropCount[flow] = delta > 1 && now - dropNext[flow] < 16 * intervalNs ? delta : 1;
+                lastDropCount[flow] = dropCount[flow];
+                dropNext[flow] = controlLaw(now, dropCount[flow], intervalNs);
+                return true;
+            }
+            return false;
+        }
+
+        private static long controlLaw(long t, int count, long intervalNs){
+            return t + (long)(intervalNs / Math.sqrt(count));
+        }
+
+        private Packet removeHead(int flow){
+            int slot = flowHead[flow];
+            Packet pkt = slots[slot];
+            slots[slot] = null;
+            flowHead[flow] = nextSlot[slot];
+            nextSlot[slot] = freeSlot;
+            freeSlot = slot;
+            flowBytes[flow] -= pktSize(pkt);
+            count--;
+            if(flowBytes[flow] == 0){
+                deactivate(flow);
+            }
+            return pkt;
+        }
+
+        private void deactivate(int flow){
+            for(int i=0; i<activeCount; i++){
+                int idx = (activeHead + i) % activeFlows.length;
+                if(activeFlows[idx] == flow){
+                    //Close the gap, keeping the round-robin order of the other flows.
+                    for(int j=i; j<activeCount - 1; j++){
+                        activeFlows[(activeHead + j) % activeFlows.length] = activeFlows[(activeHead + j + 1) % activeFlows.length];
+                    }
+                    activeCount--;
+                    return;
+                }
+            }
+        }
+
+        private int longestFlow(){
+            int ret = 0;
+            for(int flow=1; flow<flowBytes.length; flow++){
+                if(flowBytes[flow] > flowBytes[ret]){
+                    ret = flow;
+                }
+            }
+            return ret;
+        }
+
+        private static int pktSize(Packet pkt){
+            return Math.max(pkt.getLength(), 1);
+        }
+    }
+
+    private final Lane lanes[] = new Lane[CLASSES.length];
+    private final int flowMask;
+    private final Clock clock;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final long sojourn[] = new long[1]; //Guarded by lock.
+    private volatile long targetNs = TimeUnit.MICROSECONDS.toNanos(DEFAULT_TARGET_US);
+    private volatile long intervalNs = TimeUnit.MICROSECONDS.toNanos(DEFAULT_INTERVAL_US);
+    private int count = 0;
+    private long enqueued = 0, dequeued = 0;
+    private boolean closed = false;
+
+    public EgressScheduler(){
+        this(DEFAULT_CONTROL_CAPACITY, DEFAULT_DATA_CAPACITY, DEFAULT_FLOWS, DEFAULT_QUANTUM);
+    }
+
+    /**
+     * @param controlCapacity The maximum number of queued control packets.
+     * @param dataCapacity The maximum number of queued packets in each of the other lanes.
+     * @param flows The number of flow buckets in each data lane, rounded up to the next power of two.
+     * @param quantum The bytes each backlogged flow may send per round.
+     */
+    public EgressScheduler(int controlCapacity, int dataCapacity, int flows, int quantum){
+        this(controlCapacity, dataCapacity, flows, quantum, SYSTEM_CLOCK);
+    }
+
+    EgressScheduler(int controlCapacity, int dataCapacity, int flows, int quantum, Clock clock){
+        if(controlCapacity <= 0 || dataCapacity <= 0 || flows <= 0 || quantum <= 0){
+            throw new IllegalArgumentException(String.format("Invalid scheduler parameters: capacity=%d/%d, flows=%d, quantum=%d",
+                    controlCapacity, dataCapacity, flows, quantum));
+        }
+        int buckets = Integer.highestOneBit(flows);
+        if(buckets < flows){
+            buckets <<= 1;
+        }
+        flowMask = buckets - 1;
+        this.clock = clock;
+        for(TrafficClass trafficClass : CLASSES){
+            lanes[trafficClass.ordinal()] = trafficClass == TrafficClass.CONTROL ? new Lane(controlCapacity, 1, quantum, false) : new Lane(dataCapacity, buckets, quantum, true);
+        }
+    }
+
+    /**
+     * Set CoDel's parameters for the data lanes.
+     * @param targetUs The acceptable standing queue delay, in microseconds.
+     * @param intervalUs How long the delay may stay above target before packets are dropped, in microseconds: about a worst-case RTT.
+     */
+    public void setTarget(long targetUs, long intervalUs){
+        if(targetUs <= 0 || intervalUs <= 0){
+            throw new IllegalArgumentException(String.format("Invalid CoDel parameters: target=%dus, interval=%dus", targetUs, intervalUs));
+        }
+        targetNs = TimeUnit.MICROSECONDS.toNanos(targetUs);
+        intervalNs = TimeUnit.MICROSECONDS.toNanos(intervalUs);
+    }
+
+    public long getTargetUs(){
+        return TimeUnit.NANOSECONDS.toMicros(targetNs);
+    }
+
+    public long getIntervalUs(){
+        return TimeUnit.NANOSECONDS.toMicros(intervalNs);
+    }
+
+    /**
+     * Queue a packet, taking over the caller's reference.
+     * @param pkt The packet.
+     * @return True if the packet was queued, false if it was dropped (it is released in that case).
+     */
+    public boolean offer(Packet pkt){
+        TrafficClass trafficClass = TrafficClass.of(pkt);
+        int flow = trafficClass == TrafficClass.CONTROL ? 0 : flowHash(pkt) & flowMask;
+        Packet dropped;
+        long now = clock.nanoTime();
+        lock.lock();
+        try {
+            if(closed){
+                dropped = pkt;
+            }else{
+                dropped = lanes[trafficClass.ordinal()].offer(pkt, flow, now);
+                if(dropped != pkt){
+                    enqueued++;
+                    if(dropped == null){
+                        count++;
+                    }
+                }
+            }
+        }finally {
+            lock.unlock();
+        }
+        if(dropped != null){
+            dropped.release();
+        }
+        return dropped != pkt;
+    }
+
+    /**
+     * @return The next packet to send, now owned by the caller, or NULL if nothing is queued.
+     */
+    public Packet poll(){
+        long now = clock.nanoTime();
+        long sojournNs = 0;
+        Packet ret = null;
+        lock.lock();
+        try {
+            for(int i=0; i<lanes.length && count > 0; i++){
+                Lane lane = lanes[i];
+                int before = lane.count;
+                ret = lane.poll(now, targetNs, intervalNs, sojourn);
+                count -= before - lane.count;
+                if(before == lane.slots.length && lane.count < before){
+                    notFull.signalAll();
+                }
+                if(ret != null){
+                    sojournNs = sojourn[0];
+                    dequeued++;
+                    break;
+                }
+            }
+        }finally {
+            lock.unlock();
+        }
+        if(ret != null){
+            DatapathMetrics.egressSojourn.record(sojournNs);
+        }
+        return ret;
+    }
+
+    /**
+     * Release all queued packets, and drop any packet offered from now on.
+     */
+    public void close(){
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+        }finally {
+            lock.unlock();
+        }
+        Packet pkt;
+        while ((pkt = poll()) != null){
+            pkt.release();
+        }
+    }
+
+    /**
+     * @return True if the lane for the given class has room, or if the scheduler is closed (offers then fail for good, waiting would not help).
+     */
+    public boolean hasCapacity(TrafficClass trafficClass){
+        lock.lock();
+        try {
+            Lane lane = lanes[trafficClass.ordinal()];
+            return closed || lane.count < lane.slots.length;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the lane for the given class has room (see {@link #hasCapacity(TrafficClass)}).
+     * @return True if there is room, false if the timeout elapsed first.
+     * @throws InterruptedException
+     */
+    public boolean awaitCapacity(TrafficClass trafficClass, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Lane lane = lanes[trafficClass.ordinal()];
+            while (!closed && lane.count == lane.slots.length){
+                if(nanos <= 0){
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hash a datagram's 5-tuple, so that the packets of a flow share a bucket.
+     * Packets that are not IPv4 datagrams all hash alike.
+     */
+    static int flowHash(Packet pkt){
+        IPv4Header header = pkt.getIPv4Header();
+        if(header == null){
+            return 0;
+        }
+        int h = header.getSrcAddr() * 31 + header.getDstAddr();
+        h = h * 31 + header.getProtocol();
+        h = h * 31 + header.getPorts();
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    public int size(){
+        lock.lock();
+        try {
+            return count;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of queued packets of the given class.
+     */
+    public int size(TrafficClass trafficClass){
+        lock.lock();
+        try {
+            return lanes[trafficClass.ordinal()].count;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEnqueued(){
+        return enqueued;
+    }
+
+    public long getDequeued(){
+        return dequeued;
+    }
+
+    /**
+     * @return The number of packets of the given class dropped, whether on arrival or pushed out.
+     */
+    public long getDrops(TrafficClass trafficClass){
+        lock.lock();
+        try {
+            return lanes[trafficClass.ordinal()].drops;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDrops(){
+        lock.lock();
+        try {
+            long ret = 0;
+            for(Lane lane : lanes){
+                ret += lane.drops;
+            }
+            return ret;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of packets CoDel dropped.
+     */
+    public long getAqmDrops(){
+        lock.lock();
+        try {
+            long ret = 0;
+            for(Lane lane : lanes){
+                ret += lane.aqmDrops;
+            }
+            return ret;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of packets CoDel marked with ECN Congestion Experienced instead of dropping them.
+     */
+    public long getAqmMarks(){
+        lock.lock();
+        try {
+            long ret = 0;
+            for(Lane lane : lanes){
+                ret += lane.aqmMarks;
+            }
+            return ret;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return String.format("EgressScheduler(depth=%d, in=%d, out=%d, drops=%d/%d/%d, codel=%dus/%dus drops=%d marks=%d)", size(), enqueued, dequeued,
+                getDrops(TrafficClass.CONTROL), getDrops(TrafficClass.INTERACTIVE), getDrops(TrafficClass.BULK),
+                getTargetUs(), getIntervalUs(), getAqmDrops(), getAqmMarks());
+    }
+}
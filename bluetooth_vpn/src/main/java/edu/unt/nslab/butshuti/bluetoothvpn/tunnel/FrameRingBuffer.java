@@ -0,0 +1,199 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Crc32c;
+
+/**
+ * Bounded single-producer/single-consumer byte ring for outbound frames.
+ * <p>
+ *     Frames are accepted whole or not at all, and only become visible to the consumer once completely copied in.
+ *     The consumer drains everything published so far with at most two bulk writes (the ring may wrap once),
+ *     straight from the backing array, so frame boundaries are never split between drains.
+ * </p>
+ * <p>
+ *     Producer and consumer never lock each other out: positions are published with ordered stores.
+ *     Concurrent producers must serialize among themselves before calling {@link #offer(byte[], int, int)}.
+ * </p>
+ */
+public final class FrameRingBuffer {
+    private final byte buffer[];
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(0); //Next byte to drain, owned by the consumer.
+    private final AtomicLong tail = new AtomicLong(0); //Next byte to fill, owned by the producer.
+    private volatile long framesOffered = 0, framesRejected = 0, bytesDrained = 0;
+    private volatile int highWatermark = 0;
+    private final byte trailer[] = new byte[4]; //Owned by the producer.
+
+    /**
+     * Create a ring buffer.
+     * @param capacity Capacity in bytes, rounded up to the next power of two.
+     */
+    public FrameRingBuffer(int capacity){
+        if(capacity <= 0){
+            throw new IllegalArgumentException("Invalid ring capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity){
+            size <<= 1;
+        }
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Queue a frame.
+     * @param src The frame bytes.
+     * @param off Offset of the frame in src.
+     * @param len Length of the frame.
+     * @return True if the whole frame was queued, false if there was not enough room (nothing is queued in that case).
+     */
+    public boolean offer(byte src[], int off, int len){
+        return offer(src, off, len, null, 0, 0);
+    }
+
+    /**
+     * Queue a frame made of two parts (typically a header and a payload), as one unit.
+     * @return True if both parts were queued, false if there was not enough room for both (nothing is queued in that case).
+     */
+    public boolean offer(byte first[], int firstOff, int firstLen, byte second[], int secondOff, int secondLen){
+        int len = firstLen + secondLen;
+        long t = tail.get();
+        int used = (int)(t - head.get());
+        if(len > buffer.length - used){
+            framesRejected++;
+            return false;
+        }
+        copyIn(t, first, firstOff, firstLen);
+        if(secondLen > 0){
+            copyIn(t + firstLen, second, secondOff, secondLen);
+        }
+        tail.lazySet(t + len);
+        framesOffered++;
+        if(used + len > highWatermark){
+            highWatermark = used + len;
+        }
+        return true;
+    }
+
+    /**
+     * Queue a frame made of a header and a payload followed by the payload's checksum, as one unit.
+     * <p>
+     *     The checksum is computed while the payload is copied in, and appended as 4 little-endian bytes (the wire's byte order).
+     * </p>
+     * @param payloadSum The checksum to use, reset by the caller.
+     * @return True if the whole frame was queued, false if there was not enough room (nothing is queued in that case).
+     */
+    public boolean offer(byte header[], int headerOff, int headerLen, byte payload[], int payloadOff, int payloadLen, Checksum payloadSum){
+        int len = headerLen + payloadLen + trailer.length;
+        long t = tail.get();
+        int used = (int)(t - head.get());
+        if(len > buffer.length - used){
+            framesRejected++;
+            return false;
+        }
+        copyIn(t, header, headerOff, headerLen);
+        int idx = (int)((t + headerLen) & mask);
+        int chunk = Math.min(payloadLen, buffer.length - idx);
+        Crc32c.copy(payloadSum, payload, payloadOff, buffer, idx, chunk);
+        if(payloadLen > chunk){
+            Crc32c.copy(payloadSum, payload, payloadOff + chunk, buffer, 0, payloadLen - chunk);
+        }
+        int sum = (int) payloadSum.getValue();
+        for(int i=0; i<trailer.length; i++){
+            trailer[i] = (byte)(sum >>> (8 * i));
+        }
+        copyIn(t + headerLen + payloadLen, trailer, 0, trailer.length);
+        tail.lazySet(t + len);
+        framesOffered++;
+        if(used + len > highWatermark){
+            highWatermark = used + len;
+        }
+        return true;
+    }
+
+    private void copyIn(long pos, byte src[], int off, int len){
+        int idx = (int)(pos & mask);
+        int chunk = Math.min(len, buffer.length - idx);
+        System.arraycopy(src, off, buffer, idx, chunk);
+        if(len > chunk){
+            System.arraycopy(src, off + chunk, buffer, 0, len - chunk);
+        }
+    }
+
+    /**
+     * Write all published frames to a stream.
+     * @param out The destination stream.
+     * @return The number of bytes written.
+     * @throws IOException
+     */
+    public int drainTo(OutputStream out) throws IOException {
+        long h = head.get();
+        long t = tail.get();
+        int available = (int)(t - h);
+        if(available == 0){
+            return 0;
+        }
+        int idx = (int)(h & mask);
+        int chunk = Math.min(available, buffer.length - idx);
+        out.write(buffer, idx, chunk);
+        if(available > chunk){
+            out.write(buffer, 0, available - chunk);
+        }
+        head.lazySet(t);
+        bytesDrained += available;
+        return available;
+    }
+
+    public boolean isEmpty(){
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return The number of bytes queued.
+     */
+    public int size(){
+        return (int)(tail.get() - head.get());
+    }
+
+    public int capacity(){
+        return buffer.length;
+    }
+
+    /**
+     * @return The largest number of bytes ever queued at once.
+     */
+    public int getHighWatermark(){
+        return highWatermark;
+    }
+
+    public long getFramesOffered(){
+        return framesOffered;
+    }
+
+    /**
+     * @return The number of frames refused for lack of room.
+     */
+    public long getFramesRejected(){
+        return framesRejected;
+    }
+
+    /**
+     * @return The number of bytes ever accepted: the position, in the transmitted stream, of the end of the last frame offered.
+     */
+    public long getBytesOffered(){
+        return tail.get();
+    }
+
+    public long getBytesDrained(){
+        return bytesDrained;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%d/%d bytes (max=%d, frames=%d, rejected=%d)", size(), capacity(), highWatermark, framesOffered, framesRejected);
+    }
+}
@@ -1,63 +1,104 @@
 package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
 
-import android.os.Handler;
-import android.os.Message;
-
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketTrace;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
-import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.AddressConversions;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.ConcurrentLongObjectMap;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.InternetLayerHeaders;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.IPv4Header;
 
 /**
  *An interface for multiplexing and demultiplexing local connections on the external-facing bridge.
  * The interface has many internal-facing sockets and one external-facing socket, hence the need for multiplexing/demultiplexing.
  * Internal-facing sockets are identified by assigned connection tags.
- * This is implemented to maintain a single socket to a remote device.
+ * Each remote device is reached through one delivery listener: a {@link ChannelGroup} when its connections register as channels,
+ * which stripes flows over the parallel connections to the device.
+ * Remote peers are keyed by their {@link BDAddr} longs on the datapath; String overloads are kept for callers holding Android device addresses.
+ * Received packets are processed by a {@link PacketProcessingEngine}, in parallel across flows.
  *
  * Created by butshuti on 5/17/18.
  */
 
 public class InterfaceController{
-    public static class NetworkEvent {
-        String remoteAddress;
-        Packet pkt;
-        NetworkEvent(String remoteAddress, Packet pkt){
-            this.remoteAddress = remoteAddress;
-            this.pkt = pkt;
-        }
-    }
-
     public interface NetworkEventListener{
         void notifyIrrecoverableException(String channelID, String remotePeerAddress);
         void onNewConnection(String channelID, String remotePeerAddress);
     }
 
     public interface LocalDatagramDeliveryListener{
+        /**
+         * Deliver a packet to the local end.
+         * The packet is only borrowed: implementations keeping it beyond the call must {@link Packet#retain()} it,
+         * and callers must not modify a packet once it was accepted.
+         */
         boolean deliver(Packet pkt);
     }
 
     public interface RemoteDatagramDeliveryListener{
+        /**
+         * Send a packet to a remote peer.
+         * The packet is only borrowed: implementations keeping it beyond the call must {@link Packet#retain()} it,
+         * and callers must not modify a packet once it was accepted.
+         * @return True if the packet was accepted, false if it was dropped (e.g. by a full queue).
+         * @throws IOException If the channel failed or was closed: it will not accept packets anymore.
+         */
         boolean write(Packet pkt, boolean async) throws IOException;
         void shutdown();
         boolean isPrimary();
     }
 
+    /**
+     * A remote delivery listener with a bounded queue, letting local senders wait for room instead of losing datagrams.
+     */
+    public interface FlowControlledListener extends RemoteDatagramDeliveryListener{
+        /**
+         * @return True if a packet like this one would be accepted now.
+         */
+        boolean hasCapacity(Packet pkt);
+
+        /**
+         * Wait until a packet like this one would be accepted.
+         * @return True if there is room, false if the timeout elapsed first.
+         * @throws InterruptedException
+         */
+        boolean awaitCapacity(Packet pkt, long timeout, TimeUnit unit) throws InterruptedException;
+    }
+
+    /**
+     * The outcome of sending a local datagram.
+     */
+    public enum SendResult {
+        /**
+         * Queued for the next hop.
+         */
+        SENT,
+        /**
+         * Not sent, because the next hop's queue is full. The caller may send the datagram again once there is room
+         * (see {@link #awaitCapacity(Packet, long, TimeUnit)}), or count it under {@link DatapathMetrics#DROPS_BACKPRESSURE}.
+         */
+        BACKPRESSURE,
+        /**
+         * Dropped: no route, invalid datagram, or failed link.
+         */
+        DROPPED
+    }
+
     public interface InterfaceConfigurationView{
         String getLocalBDAddr();
         String getInterfaceAddress();
         void updateLocalBDAddr(String addr);
     }
 
-    private final class RemoteDatagramForwardingListener implements RemoteDatagramDeliveryListener {
-        private RemoteDatagramDeliveryListener listener;
+    private final class RemoteDatagramForwardingListener implements FlowControlledListener {
+        private final RemoteDatagramDeliveryListener listener;
         private RemoteDatagramForwardingListener(RemoteDatagramDeliveryListener listener){
             this.listener = listener;
         }
@@ -66,6 +107,16 @@ public class InterfaceController{
             return listener.write(pkt, async);
         }
 
+        @Override
+        public boolean hasCapacity(Packet pkt) {
+            return !(listener instanceof FlowControlledListener) || ((FlowControlledListener) listener).hasCapacity(pkt);
+        }
+
+        @Override
+        public boolean awaitCapacity(Packet pkt, long timeout, TimeUnit unit) throws InterruptedException {
+            return !(listener instanceof FlowControlledListener) || ((FlowControlledListener) listener).awaitCapacity(pkt, timeout, unit);
+        }
+
         @Override
         public void shutdown() {
 
@@ -77,39 +128,87 @@ public class InterfaceController{
         }
     }
 
+    /**
+     * The local device address, as last read from the configuration view, and parsed.
+     */
+    private static final class LocalBDAddr {
+        private final String addrStr;
+        private final long addr;
+
+        private LocalBDAddr(String addrStr){
+            this.addrStr = addrStr;
+            addr = addrStr != null ? BDAddr.parse(addrStr) : BDAddr.INVALID;
+        }
+    }
+
     public static final int DEFAULT_RECEIVE_TIMEOUT_MS = 300;
-    private final Map<String, RemoteDatagramDeliveryListener> remoteDatagramDeliveryMap = new HashMap<>(); //Registered handlers for output streams to specific peers
-    private LocalDatagramDeliveryListener localDatagramDeliveryListener;
-    private Map<String, String> outputChannels = new HashMap<>(); //Control channels for sockets
-    private List<NetworkEventListener> eventListeners = new ArrayList<>(); //Event listeners for socket events (mainly exceptions).
+    //Registered handlers for output streams to specific peers, and the control channels of their sockets.
+    //Reads are lock-free; compound updates of both maps synchronize on remoteDatagramDeliveryMap.
+    private final ConcurrentLongObjectMap<RemoteDatagramDeliveryListener> remoteDatagramDeliveryMap = new ConcurrentLongObjectMap<>();
+    private final ConcurrentLongObjectMap<String> outputChannels = new ConcurrentLongObjectMap<>();
+    private volatile LocalDatagramDeliveryListener localDatagramDeliveryListener;
+    private final List<NetworkEventListener> eventListeners = new CopyOnWriteArrayList<>(); //Event listeners for socket events (mainly exceptions).
     private InterfaceConfigurationView interfaceConfigurationView;
-    private boolean active = true; //controller is active
+    private volatile LocalBDAddr localBDAddr = new LocalBDAddr(null); //Parsed again only when the view's address changes.
+    private volatile boolean active = true; //controller is active
     private int timeout = DEFAULT_RECEIVE_TIMEOUT_MS;
     private static InterfaceController instance = null;
-    private boolean echoPending = true, enableRouting = true;
-    private Handler handler;
+    private volatile boolean echoPending = true, enableRouting = true;
+    private final PacketProcessingEngine processingEngine;
+    private final LocalInterfaceBridge bridge = new LocalInterfaceBridge();
+    private static final Logger.Limiter PACKET_LOGS = Logger.Limiter.perSecond(10); //Per-packet traces
+    private static final Logger.Limiter ROUTE_LOGS = Logger.Limiter.perSecond(10); //Relay registrations, learned from received packets
 
     private InterfaceController(InterfaceConfigurationView interfaceConfigurationView){
+        this(interfaceConfigurationView, PacketProcessingEngine.getDefaultWorkerCount());
+    }
+
+    /**
+     * Create a standalone controller, e.g. one of several simulated nodes in a JVM.
+     * The application uses the shared instance from {@link #getDefault(InterfaceConfigurationView)} instead.
+     * @param processingThreads The number of threads processing received packets.
+     */
+    public InterfaceController(InterfaceConfigurationView interfaceConfigurationView, int processingThreads){
         this.interfaceConfigurationView = interfaceConfigurationView;
-        handler = new Handler(){
-            @Override
-            public void handleMessage(Message msg) {
-                if(msg.obj instanceof NetworkEvent){
-                    NetworkEvent event = (NetworkEvent) msg.obj;
-                    InterfaceController.this.process(event.remoteAddress, event.pkt);
-                }
-            }
-        };
-        instance = this;
+        processingEngine = new PacketProcessingEngine("InterfaceController", processingThreads, PacketProcessingEngine.DEFAULT_QUEUE_CAPACITY,
+                new PacketProcessingEngine.PacketProcessor() {
+                    @Override
+                    public void process(long receivedFrom, Packet pkt) {
+                        InterfaceController.this.process(receivedFrom, pkt);
+                    }
+                });
+        processingEngine.start();
     }
 
-    public static InterfaceController getDefault(InterfaceConfigurationView interfaceConfigurationView){
+    public static synchronized InterfaceController getDefault(InterfaceConfigurationView interfaceConfigurationView){
         if(instance == null){
             instance = new InterfaceController(interfaceConfigurationView);
         }
         return instance;
     }
 
+    /**
+     * @return This controller's address and route associations.
+     */
+    public LocalInterfaceBridge getBridge(){
+        return bridge;
+    }
+
+    /**
+     * Deactivate this controller and stop its packet processing threads. It cannot be reused afterwards.
+     */
+    public void shutdown(){
+        deactivate();
+        processingEngine.stop();
+    }
+
+    /**
+     * @return The engine processing received packets, for metrics.
+     */
+    public PacketProcessingEngine getProcessingEngine(){
+        return processingEngine;
+    }
+
     public String getLocalInterfaceAddress() throws UnknownHostException {
         if(interfaceConfigurationView != null){
             String address = interfaceConfigurationView.getInterfaceAddress();
@@ -136,11 +235,23 @@ public class InterfaceController{
         return timeout;
     }
 
-    private boolean isLocalBDAddr(String addr){
-        if(interfaceConfigurationView != null && interfaceConfigurationView.getLocalBDAddr() != null){
-            return interfaceConfigurationView.getLocalBDAddr().equals(addr);
+    private boolean isLocalBDAddr(long addr){
+        LocalBDAddr local = getLocalBDAddr();
+        return local.addrStr != null && local.addr == addr;
+    }
+
+    /**
+     * @return The local device address, as last read from the configuration view.
+     */
+    private LocalBDAddr getLocalBDAddr(){
+        LocalBDAddr current = localBDAddr;
+        String addrStr = interfaceConfigurationView != null ? interfaceConfigurationView.getLocalBDAddr() : null;
+        if(addrStr != current.addrStr){
+            //Changed (or first read): only then is the address parsed again.
+            current = new LocalBDAddr(addrStr);
+            localBDAddr = current;
         }
-        return false;
+        return current;
     }
 
     private boolean isLocalIPAddr(String addr){
@@ -231,18 +342,125 @@ public class InterfaceController{
      * @param listener The listener.
      */
     public void registerRemoteDeliveryListener(String remoteAddress, String channelID, RemoteDatagramDeliveryListener listener){
-        Logger.logE("Registering remote delivery listener for " + remoteAddress + ": " + listener);
-        if(listener != null){
-            if(listener.isPrimary() || !remoteDatagramDeliveryMap.containsKey(remoteAddress) || !remoteDatagramDeliveryMap.get(remoteAddress).isPrimary()){
+        long addr = BDAddr.parse(remoteAddress);
+        if(addr == BDAddr.INVALID){
+            Logger.logE("Malformed BD_ADDR: " + remoteAddress);
+            return;
+        }
+        registerRemoteDeliveryListener(addr, channelID, listener);
+    }
+
+    /**
+     * {@see {@link InterfaceController#registerRemoteDeliveryListener(String, String, RemoteDatagramDeliveryListener)}}
+     */
+    public void registerRemoteDeliveryListener(long remoteAddress, String channelID, RemoteDatagramDeliveryListener listener){
+        synchronized (remoteDatagramDeliveryMap){
+            RemoteDatagramDeliveryListener current = remoteDatagramDeliveryMap.get(remoteAddress);
+            if(listener != null){
+                if(current == listener && outputChannels.containsKey(remoteAddress)){
+                    return;
+                }
+                if(!listener.isPrimary() && current != null && current.isPrimary()){
+                    return;
+                }
                 remoteDatagramDeliveryMap.put(remoteAddress, listener);
                 outputChannels.put(remoteAddress, channelID);
+            }else if(current != null){
+                remoteDatagramDeliveryMap.remove(remoteAddress);
+                outputChannels.remove(remoteAddress);
+            }else{
+                return;
+            }
+        }
+        if(Logger.admit(Logger.Level.INFO, ROUTE_LOGS)){
+            Logger.log(Logger.Level.INFO, ROUTE_LOGS, "Registered remote delivery listener for {}: {}", BDAddr.toString(remoteAddress), listener, null);
+        }
+    }
+
+    /**
+     * @return True if there is no route to register through the relay: the device is already reached through it,
+     * or through a primary listener (which a relay never replaces).
+     */
+    private boolean isRelayedThrough(long remoteAddress, RemoteDatagramDeliveryListener relay){
+        RemoteDatagramDeliveryListener current = remoteDatagramDeliveryMap.get(remoteAddress);
+        if(current == null){
+            return false;
+        }
+        return current.isPrimary() || (current instanceof RemoteDatagramForwardingListener && ((RemoteDatagramForwardingListener) current).listener == relay);
+    }
+
+    /**
+     * Add a channel to a remote peer, one of possibly several connections to it.
+     * <p>
+     *     The peer's channels are registered as one {@link ChannelGroup}, striping flows over them. A primary listener
+     *     registered for the peer beforehand joins the group; a forwarding listener (the peer was reached through a relay) is replaced.
+     *     Channels are added once, when opened: callers must not add a channel after removing it (see {@link #removeChannel(long, RemoteDatagramDeliveryListener)}).
+     * </p>
+     * @param remoteAddress The address of the remote peer.
+     * @param channelID A unique ID for the pseudo-channel
+     * @param channel The channel.
+     * @return The peer's channel group.
+     */
+    public ChannelGroup addChannel(long remoteAddress, String channelID, RemoteDatagramDeliveryListener channel){
+        RemoteDatagramDeliveryListener current = remoteDatagramDeliveryMap.get(remoteAddress);
+        if(current instanceof ChannelGroup && ((ChannelGroup) current).contains(channel)){
+            return (ChannelGroup) current;
+        }
+        ChannelGroup group;
+        synchronized (remoteDatagramDeliveryMap){
+            current = remoteDatagramDeliveryMap.get(remoteAddress);
+            if(current instanceof ChannelGroup){
+                group = (ChannelGroup) current;
+            }else{
+                group = new ChannelGroup(remoteAddress);
+                if(current != null && current.isPrimary()){
+                    group.add(current);
+                }
+                remoteDatagramDeliveryMap.put(remoteAddress, group);
+            }
+            group.add(channel);
+            outputChannels.put(remoteAddress, channelID);
+        }
+        Logger.logI("Registered channel to " + BDAddr.toString(remoteAddress) + ": " + group);
+        return group;
+    }
+
+    /**
+     * Remove a channel to a remote peer, e.g. once closed. It is not shut down.
+     * @param remoteAddress The address of the remote peer.
+     * @param channel The channel.
+     * @return True if the peer has no channel left.
+     */
+    public boolean removeChannel(long remoteAddress, RemoteDatagramDeliveryListener channel){
+        synchronized (remoteDatagramDeliveryMap){
+            RemoteDatagramDeliveryListener current = remoteDatagramDeliveryMap.get(remoteAddress);
+            if(current instanceof ChannelGroup){
+                ChannelGroup group = (ChannelGroup) current;
+                group.remove(channel);
+                if(!group.isEmpty()){
+                    return false;
+                }
+            }else if(current != channel){
+                return current == null || !current.isPrimary();
             }
-        }else if(remoteDatagramDeliveryMap.containsKey(remoteAddress)){
             remoteDatagramDeliveryMap.remove(remoteAddress);
             outputChannels.remove(remoteAddress);
+            return true;
         }
     }
 
+    /**
+     * @return The channels to a remote peer, null if it is not reached through channels.
+     */
+    public ChannelGroup getChannelGroup(long remoteAddress){
+        RemoteDatagramDeliveryListener current = remoteDatagramDeliveryMap.get(remoteAddress);
+        return current instanceof ChannelGroup ? (ChannelGroup) current : null;
+    }
+
+    private RemoteDatagramDeliveryListener getRemoteDeliveryListener(long remoteAddress){
+        return remoteDatagramDeliveryMap.get(remoteAddress);
+    }
+
     /**
      * Notify state listeners that a channel to a remote peer has generated an IO exception.
      * <p>
@@ -277,88 +495,108 @@ public class InterfaceController{
      *     If this controller acts as a forwarder and the sender's address differs from the source address marked in the packet,
      *     register the sender as a relay for the source address and forward the packet to the current next hop.
      * </p>
+     * <p>
+     *     The controller takes ownership of the packet, and releases it once processed.
+     *     Packets are processed asynchronously, in order within each flow.
+     * </p>
+     * @return True if the packet was queued for processing, false if interrupted while waiting for room.
      */
-    public boolean receive(String remoteDevice, Packet pkt){
-        Message msg = Message.obtain();
-        msg.obj= new NetworkEvent(remoteDevice, pkt);
-        handler.sendMessage(msg);
-        return true;
+    public boolean receive(long remoteDevice, Packet pkt){
+        if(pkt == null){
+            return false;
+        }
+        PacketTracer.mark(pkt, PacketTrace.Stage.CONTROLLER_ENQUEUE);
+        return processingEngine.submit(remoteDevice, pkt);
     }
 
-    private boolean process(String remoteDevice, Packet pkt){
+    /**
+     * Process a received packet on the calling thread (package-private for the benchmarks).
+     */
+    boolean process(long remoteDevice, Packet pkt){
         boolean success = false;
         if(pkt != null && pkt.getTtl() > 0){
-            try{
-                //Make sure source address is set.
-                if(!Packet.isValidBDAddr(pkt.getSrcBDAddrStr())){
-                    //Only update source address if it was not already set: sending devices may not know their physical address.
-                    //If it is already set, this may be a multihop routing, so preserve the preset address
-                    pkt.updateSrcBTAddr(remoteDevice);
-                }else if(!pkt.getSrcBDAddrStr().equals(remoteDevice)){
-                    //Update route to original peer
-                    LocalInterfaceBridge.addProximity(pkt.getSrcBDAddrStr(), pkt.getSrcBDAddrStr());
-                }
-                if(isPathPropagation(pkt)){
-                    Logger.logI("Path propagation pkt: self->" + remoteDevice + "->" + pkt.getSrcBDAddrStr());
-                }
-                if(isEchoPkt(pkt)){
-                    //Echo tests never cross the controller, they are for troubleshooting purposes only.
-                    if(interfaceConfigurationView.getLocalBDAddr() == null && echoPending){
-                        if(!Packet.NULL_BD_ADDR_STR.equals(pkt.getDstBDAddrStr())){
-                            interfaceConfigurationView.updateLocalBDAddr(pkt.getDstBDAddrStr());
-                        }
+            PacketTracer.mark(pkt, PacketTrace.Stage.ROUTED);
+            //Make sure source address is set.
+            if(!Packet.isValidBDAddr(pkt.getSrcBDAddr())){
+                //Only update source address if it was not already set: sending devices may not know their physical address.
+                //If it is already set, this may be a multihop routing, so preserve the preset address
+                pkt.setSrcBDAddr(remoteDevice);
+            }else if(pkt.getSrcBDAddr() != remoteDevice){
+                //Update route to original peer
+                bridge.addProximity(pkt.getSrcBDAddr(), pkt.getSrcBDAddr());
+            }
+            if(isPathPropagation(pkt)){
+                Logger.logI("Path propagation pkt: self->" + BDAddr.toString(remoteDevice) + "->" + pkt.getSrcBDAddrStr());
+            }
+            if(isEchoPkt(pkt)){
+                //Echo tests never cross the controller, they are for troubleshooting purposes only.
+                if(interfaceConfigurationView.getLocalBDAddr() == null && echoPending){
+                    if(pkt.getDstBDAddr() != Packet.NULL_BD_ADDR){
+                        interfaceConfigurationView.updateLocalBDAddr(pkt.getDstBDAddrStr());
+                        getLocalBDAddr(); //Refresh the cached address.
                     }
-                    return isEchoRequestPkt(pkt) ? sendEchoResponse(remoteDevice, pkt) : true;
-                }else if(forwardingServiceEnabled() && !isLocalBDAddr(pkt.getDstBDAddrStr())){
-                    success = forward(pkt, remoteDevice);
                 }
-                String srcDevAddress = pkt.getSrcBDAddrStr();
-                if(!Packet.isValidBDAddr(srcDevAddress)){
-                    srcDevAddress = remoteDevice;
-                }
-                if(srcDevAddress != null && !srcDevAddress.equals(remoteDevice) && remoteDatagramDeliveryMap.containsKey(remoteDevice)){
+                return isEchoRequestPkt(pkt) ? sendEchoResponse(remoteDevice, pkt) : true;
+            }else if(forwardingServiceEnabled() && !isLocalBDAddr(pkt.getDstBDAddr())){
+                success = forward(pkt, remoteDevice);
+            }
+            long srcDevAddress = pkt.getSrcBDAddr();
+            if(!Packet.isValidBDAddr(srcDevAddress)){
+                srcDevAddress = remoteDevice;
+            }
+            if(srcDevAddress != remoteDevice){
+                RemoteDatagramDeliveryListener relay = remoteDatagramDeliveryMap.get(remoteDevice);
+                if(relay != null && !isRelayedThrough(srcDevAddress, relay)){
                     //Mark the sender as a relay/gateway for the source address in the packet, so the sender will act as an intermediary to the source.
-                    RemoteDatagramDeliveryListener gateway = new RemoteDatagramForwardingListener(remoteDatagramDeliveryMap.get(remoteDevice));
+                    //Only done when the route changes: most relayed packets find it already in place.
+                    RemoteDatagramDeliveryListener gateway = new RemoteDatagramForwardingListener(relay);
                     registerRemoteDeliveryListener(srcDevAddress, outputChannels.get(remoteDevice), gateway);
                 }
-                Logger.logI(remoteDevice + " ->IN: /" + pkt.getSrcBDAddrStr() + " => " + pkt.getDstBDAddrStr());
-                if(isDataPkt(pkt) && isLocalBDAddr(pkt.getDstBDAddrStr())){
-                    //If forwarding is enabled, just forward and forget packets unless interception is enabled (This is similar to just routing for other peers).
-                    //If interception is enabled, deliver each packet locally in addition to forwarding it (This is similar to mirroring a session to a remote peer).
-                    if(localDatagramDeliveryListener != null) {
-                        return localDatagramDeliveryListener.deliver(pkt);
-                    }
+            }
+            if(Logger.admit(Logger.Level.DEBUG, PACKET_LOGS)){
+                Logger.log(Logger.Level.DEBUG, PACKET_LOGS, "{} ->IN: /{} => {}", BDAddr.toString(remoteDevice), pkt.getSrcBDAddrStr(), pkt.getDstBDAddrStr());
+            }
+            if(isDataPkt(pkt) && isLocalBDAddr(pkt.getDstBDAddr())){
+                //If forwarding is enabled, just forward and forget packets unless interception is enabled (This is similar to just routing for other peers).
+                //If interception is enabled, deliver each packet locally in addition to forwarding it (This is similar to mirroring a session to a remote peer).
+                if(localDatagramDeliveryListener != null) {
+                    return localDatagramDeliveryListener.deliver(pkt);
                 }
-            }catch (AddressConversions.InvalidBluetoothAdddressException e){
-                Logger.logD(e.getMessage());
             }
         }else if(pkt != null){
-            Logger.logE("Expired packet? TTL="+ pkt.getTtl());
+            DatapathMetrics.ttlExpiredDrops.increment();
+            if(Logger.admit(Logger.Level.ERROR, PACKET_LOGS)){
+                Logger.log(Logger.Level.ERROR, PACKET_LOGS, "Expired packet? TTL={}", pkt.getTtl(), null, null);
+            }
         }
         return success;
     }
 
 
-    private boolean forward(Packet pkt, String receivedFrom) {
-        try {
-            String dst = pkt.getDstBDAddrStr();
-            if(dst.equals(receivedFrom) || isLocalBDAddr(dst)){
-               return false;
-            }
-            pkt.touchTTL();
-            if(!sendDirect(pkt, dst, true)) {
-                //Destination is not an adjacent host, find indirect route if any
-                InternetLayerHeaders.AddressHeaders headers = InternetLayerHeaders.parseInetAddr(pkt.getData());
-                dst = LocalInterfaceBridge.getRoute(headers.getTo());
-                if (dst != null) {
-                    return sendDirect(pkt, dst, true);
+    private boolean forward(Packet pkt, long receivedFrom) {
+        long dst = pkt.getDstBDAddr();
+        if(dst == receivedFrom || isLocalBDAddr(dst)){
+           return false;
+        }
+        pkt.touchTTL();
+        if(!sendDirect(pkt, dst, true)) {
+            //Destination is not an adjacent host, find indirect route if any
+            IPv4Header header = pkt.getIPv4Header();
+            if(header == null){
+                DatapathMetrics.invalidDrops.increment();
+                if(Logger.admit(Logger.Level.ERROR, PACKET_LOGS)){
+                    Logger.log(Logger.Level.ERROR, PACKET_LOGS, "Invalid IP pkt: length: {}", pkt.getLength(), null, null);
                 }
-                Logger.logE(String.format("No <<forwarding>> route for outgoing packet: %s => %s", pkt.getSrcBDAddrStr(), pkt.getDstBDAddrStr()) + ":: " + headers.getFrom() + "=>" + headers.getTo());
+                return false;
+            }
+            dst = bridge.getRoute(header.getDstAddr());
+            if (dst != BDAddr.INVALID) {
+                return sendDirect(pkt, dst, true);
+            }
+            DatapathMetrics.noRouteDrops.increment();
+            if(Logger.admit(Logger.Level.ERROR, PACKET_LOGS)){
+                Logger.log(Logger.Level.ERROR, PACKET_LOGS, "No <<forwarding>> route for outgoing packet: {} => {}:: {}", pkt.getSrcBDAddrStr(), pkt.getDstBDAddrStr(), header);
             }
-        } catch (AddressConversions.InvalidBluetoothAdddressException e) {
-            Logger.logE(e.getMessage());
-        } catch (InternetLayerHeaders.InvalidDatagramException e) {
-            Logger.logE(e.getMessage());
         }
         return false;
     }
@@ -371,7 +609,32 @@ public class InterfaceController{
         if(datagram == null){
             return;
         }
-        Packet pkt = Packet.wrap(datagram);
+        send(Packet.wrap(datagram), async);
+    }
+
+    /**
+     * Send a batch of local datagrams, stopping at the first one whose next hop pushes back.
+     * @param batch The packets, each marked as by {@link Packet#wrap(byte[])}. They are only borrowed.
+     * @param count The number of packets in the batch.
+     * @return The number of packets handled (sent or dropped): if less than count, the next packet got {@link SendResult#BACKPRESSURE},
+     * and neither it nor the rest of the batch were sent.
+     */
+    public int send(Packet batch[], int count, boolean async){
+        for(int i=0; i<count; i++){
+            if(send(batch[i], async) == SendResult.BACKPRESSURE){
+                return i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Send a local datagram to the peer routing its destination.
+     * @param pkt The packet holding the IP datagram, marked as by {@link Packet#wrap(byte[])}. It is only borrowed.
+     * @return Whether the datagram was queued, pushed back by a full queue, or dropped.
+     */
+    public SendResult send(Packet pkt, boolean async){
+        PacketTracer.mark(pkt, PacketTrace.Stage.CONTROLLER_ENQUEUE);
         if(interfaceConfigurationView.getLocalBDAddr() == null){
             echoPending = true;
             pkt.setProtocol(Packet.PROTOCOL_PROXIMITY);
@@ -379,37 +642,69 @@ public class InterfaceController{
             echoPending = false;
         }
         //Parse DST IP addr, find remote delivery listener
-        try{
-            InternetLayerHeaders.AddressHeaders addressHeaders = InternetLayerHeaders.parseInetAddr(pkt.getData());
-            Logger.logI(String.format("Packet_for(%s)", addressHeaders.getTo()));
-            String dst = LocalInterfaceBridge.getRoute(addressHeaders.getTo());
-            if(dst != null && remoteDatagramDeliveryMap.containsKey(dst)) {
-                sendDirect(pkt, dst, async);
-            }else{
-                Logger.logE(String.format("No route for outgoing packet: %s => %s", pkt.getSrcBDAddrStr(), pkt.getDstBDAddrStr()) + ":: " + addressHeaders.getFrom() + "=>" + addressHeaders.getTo());
+        IPv4Header header = pkt.getIPv4Header();
+        if(header == null){
+            DatapathMetrics.invalidDrops.increment();
+            if(Logger.admit(Logger.Level.ERROR, PACKET_LOGS)){
+                Logger.log(Logger.Level.ERROR, PACKET_LOGS, "Invalid IP pkt: length: {}", pkt.getLength(), null, null);
             }
-        }catch (AddressConversions.InvalidBluetoothAdddressException e){
-            Logger.logE(e.getMessage());
-        }catch (InternetLayerHeaders.InvalidDatagramException e2){
-            Logger.logE(e2.getMessage());
+            return SendResult.DROPPED;
+        }
+        long dst = bridge.getRoute(header.getDstAddr());
+        PacketTracer.mark(pkt, PacketTrace.Stage.ROUTED);
+        RemoteDatagramDeliveryListener writer = dst != BDAddr.INVALID ? getRemoteDeliveryListener(dst) : null;
+        if(writer != null) {
+            if(writer instanceof FlowControlledListener && !((FlowControlledListener) writer).hasCapacity(pkt)){
+                //Held back rather than refused by the queue: the sender decides whether it is lost.
+                return SendResult.BACKPRESSURE;
+            }
+            return sendDirect(pkt, dst, async) ? SendResult.SENT : SendResult.DROPPED;
         }
+        DatapathMetrics.noRouteDrops.increment();
+        if(Logger.admit(Logger.Level.ERROR, PACKET_LOGS)){
+            Logger.log(Logger.Level.ERROR, PACKET_LOGS, "No route for outgoing packet: {} => {}:: {}", pkt.getSrcBDAddrStr(), pkt.getDstBDAddrStr(), header);
+        }
+        return SendResult.DROPPED;
+    }
+
+    /**
+     * Wait until the next hop for a local datagram has room for it, e.g. after {@link SendResult#BACKPRESSURE}.
+     * @param pkt The packet holding the IP datagram. It is only borrowed.
+     * @return True if there is room (or the next hop has no bounded queue), false if the timeout elapsed first.
+     * @throws InterruptedException
+     */
+    public boolean awaitCapacity(Packet pkt, long timeout, TimeUnit unit) throws InterruptedException {
+        IPv4Header header = pkt.getIPv4Header();
+        long dst = header != null ? bridge.getRoute(header.getDstAddr()) : BDAddr.INVALID;
+        RemoteDatagramDeliveryListener writer = dst != BDAddr.INVALID ? getRemoteDeliveryListener(dst) : null;
+        return !(writer instanceof FlowControlledListener) || ((FlowControlledListener) writer).awaitCapacity(pkt, timeout, unit);
     }
 
     /**
      * Send marked packet to the specified receiver.
-     * @param pkt The data parcel/packet to send.
+     * @param pkt The data parcel/packet to send. It is only borrowed.
      * @param remoteDeviceAddr The remote peer's physical address.
      */
     public boolean sendDirect(Packet pkt, String remoteDeviceAddr, boolean async){
-        RemoteDatagramDeliveryListener writer = remoteDatagramDeliveryMap.get(remoteDeviceAddr);
+        long addr = BDAddr.parse(remoteDeviceAddr);
+        if(addr == BDAddr.INVALID){
+            Logger.logE("Malformed BD_ADDR: " + remoteDeviceAddr);
+            return false;
+        }
+        return sendDirect(pkt, addr, async);
+    }
+
+    /**
+     * {@see {@link InterfaceController#sendDirect(Packet, String, boolean)}}
+     */
+    public boolean sendDirect(Packet pkt, long remoteDeviceAddr, boolean async){
+        RemoteDatagramDeliveryListener writer = getRemoteDeliveryListener(remoteDeviceAddr);
         if(isInterfaceTest(pkt)){
             processInterfaceTest(pkt);
         }else if(writer != null){
-            pkt.updateDstBTAddr(remoteDeviceAddr);
-            try{
-                Logger.logI(remoteDeviceAddr + " <-OUT::: /" + pkt.getSrcBDAddrStr() + " => " + pkt.getDstBDAddrStr());
-            }catch (AddressConversions.InvalidBluetoothAdddressException e){
-                Logger.logE(e.getMessage());
+            pkt.setDstBDAddr(remoteDeviceAddr);
+            if(Logger.admit(Logger.Level.DEBUG, PACKET_LOGS)){
+                Logger.log(Logger.Level.DEBUG, PACKET_LOGS, "{} <-OUT::: /{} => {}", BDAddr.toString(remoteDeviceAddr), pkt.getSrcBDAddrStr(), pkt.getDstBDAddrStr());
             }
             try {
                 pkt.touchTTL();
@@ -418,10 +713,13 @@ public class InterfaceController{
                 Logger.logE(e.getMessage());
                 //Invalidate current routes to this peer if an exception happens.
                 writer.shutdown();
-                remoteDatagramDeliveryMap.remove(remoteDeviceAddr);
-                if(outputChannels.containsKey(remoteDeviceAddr)) {
-                    notifyChannelException(outputChannels.get(remoteDeviceAddr), remoteDeviceAddr);
-                    outputChannels.remove(remoteDeviceAddr);
+                String channelID;
+                synchronized (remoteDatagramDeliveryMap){
+                    remoteDatagramDeliveryMap.remove(remoteDeviceAddr);
+                    channelID = outputChannels.remove(remoteDeviceAddr);
+                }
+                if(channelID != null) {
+                    notifyChannelException(channelID, BDAddr.toString(remoteDeviceAddr));
                 }
             }
         }
@@ -432,8 +730,14 @@ public class InterfaceController{
         byte data[] = new byte[InternetLayerHeaders.MIN_IP_PACKET_SIZE];
         Packet pkt = Packet.wrap(data);
         pkt.setProtocol(Packet.PROTOCOL_PROXIMITY);
-        for(String peer : LocalInterfaceBridge.getRoutes()){
-            sendDirect(pkt, peer, true);
+        for(long peer : bridge.getRoutes()){
+            //Each peer gets its own copy: the packet is addressed to the peer, and may stay queued after the call.
+            Packet probe = pkt.duplicate();
+            try {
+                sendDirect(probe, peer, true);
+            }finally {
+                probe.release();
+            }
         }
     }
 
@@ -446,25 +750,33 @@ public class InterfaceController{
      * @param pkt The reference data parcel to respond to
      * @return True if the response was queued to be sent.
      */
-    private boolean sendEchoResponse(String remoteDevAddress, Packet pkt){
+    private boolean sendEchoResponse(long remoteDevAddress, Packet pkt){
         if(pkt == null){
             return false;
         }
-        Packet resp = pkt.resp(pkt.getData()).touchTTL();
-        resp.setProtocol(Packet.PROTOCOL_PROXIMITY_ACK);
-        boolean ret = sendDirect(resp, remoteDevAddress, true);
-        if(forwardingServiceEnabled()){
-            for(String target : LocalInterfaceBridge.getRoutes()){
-                if(target.equals(remoteDevAddress)){
-                    continue;
+        Packet resp = pkt.resp().touchTTL();
+        try {
+            resp.setProtocol(Packet.PROTOCOL_PROXIMITY_ACK);
+            boolean ret = sendDirect(resp, remoteDevAddress, true);
+            if(forwardingServiceEnabled()){
+                for(long target : bridge.getRoutes()){
+                    if(target == remoteDevAddress){
+                        continue;
+                    }
+                    Packet routeAdvPacket = Packet.copy(resp);
+                    try {
+                        routeAdvPacket.setSrcBDAddr(target);
+                        routeAdvPacket.setProtocol(Packet.PROTOCOL_PATH_PROPAGATION);
+                        sendDirect(routeAdvPacket, remoteDevAddress, true);
+                    }finally {
+                        routeAdvPacket.release();
+                    }
                 }
-                Packet routeAdvPacket = Packet.copy(resp);
-                routeAdvPacket.updateSrcBTAddr(target);
-                routeAdvPacket.setProtocol(Packet.PROTOCOL_PATH_PROPAGATION);
-                sendDirect(routeAdvPacket, remoteDevAddress, true);
             }
+            return ret;
+        }finally {
+            resp.release();
         }
-        return ret;
     }
 
     /**
@@ -477,7 +789,9 @@ public class InterfaceController{
      */
     private void processInterfaceTest(Packet pkt){
         if(pkt != null && localDatagramDeliveryListener != null){
-            localDatagramDeliveryListener.deliver(pkt.resp(null));
+            Packet resp = pkt.resp(null);
+            localDatagramDeliveryListener.deliver(resp);
+            resp.release();
         }
     }
-}
\ No newline at end of file
+}
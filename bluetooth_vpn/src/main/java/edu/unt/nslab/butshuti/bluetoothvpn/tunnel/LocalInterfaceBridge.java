@@ -3,11 +3,11 @@ package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.LongObjectMap;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.NetUtils;
 
 /**
@@ -16,9 +16,9 @@ import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.NetUtils;
  * This class implements a bridge between local application sockets and the interface controller.
  * If multiple TCP/IP-like connections are opened to a remote peer, they will terminate locally into this bridge.
  * This design was aimed at establishing exactly one socket to the remote peer, regardless of how many sockets the application thinks there is.
- * There will be an instance of this class for each remote peer.
- * In the local {@link InterfaceController}, each instance of this bridge will appear with a unique IP address.
+ * Each {@link InterfaceController} owns one bridge (see {@link InterfaceController#getBridge()}), in which each remote peer appears with a unique IP address.
  * This bridge thus implements a pseudo DHCP service between remote adaptors and the local interface controller.
+ * Peers are identified by their {@link BDAddr} longs; String overloads are provided for callers holding Android device addresses.
  */
 
 public class LocalInterfaceBridge {
@@ -31,12 +31,12 @@ public class LocalInterfaceBridge {
         }
     }
 
-    private static final Map<String, InetAddress> reservedAddresses = new HashMap<>();
-    private static final Map<InetAddress, String> routes = new HashMap<>();
-    private static InetAddress ifaceAddress = null;
+    private static final Logger.Limiter NO_ROUTE_LOGS = Logger.Limiter.perSecond(1);
     private static InetAddress INET_DEFAULT = null;
 
-    private boolean defaultGateway = false;
+    private final LongObjectMap<InetAddress> reservedAddresses = new LongObjectMap<>();
+    private final RoutingTable routes = new RoutingTable();
+    private volatile InetAddress ifaceAddress = null;
 
     private static InetAddress getDefault() throws UnknownHostException {
         if(INET_DEFAULT == null){
@@ -49,27 +49,31 @@ public class LocalInterfaceBridge {
      * Return addresses currently associated with remote peers.
      * @return
      */
-    public static String[] getReservedAddresses(){
-        if(reservedAddresses.isEmpty()){
-            return new String[]{};
-        }
-        String ret[] = new String[reservedAddresses.size()];
-        int offs = 0;
-        for(InetAddress ia : reservedAddresses.values()){
-            ret[offs++] = ia.getHostAddress();
+    public String[] getReservedAddresses(){
+        synchronized (reservedAddresses){
+            if(reservedAddresses.isEmpty()){
+                return new String[]{};
+            }
+            String ret[] = new String[reservedAddresses.size()];
+            int offs = 0;
+            for(InetAddress ia : reservedAddresses.values()){
+                ret[offs++] = ia.getHostAddress();
+            }
+            return ret;
         }
-        return ret;
     }
 
-    public static boolean isInitialized(){
+    public boolean isInitialized(){
         return ifaceAddress != null;
     }
 
     /**
      * Reset the IP associations.
      */
-    public static void reset(){
-        reservedAddresses.clear();
+    public void reset(){
+        synchronized (reservedAddresses){
+            reservedAddresses.clear();
+        }
         ifaceAddress = null;
     }
 
@@ -78,12 +82,14 @@ public class LocalInterfaceBridge {
      * @param interfaceAddress The base address to reserve for the interface controller.
      * @return True on success.
      */
-    public static boolean initialize(InetAddress interfaceAddress){
-        if(ifaceAddress == null || (!ifaceAddress.equals(interfaceAddress))){
-            reservedAddresses.clear();
+    public boolean initialize(InetAddress interfaceAddress){
+        synchronized (reservedAddresses){
+            if(ifaceAddress == null || (!ifaceAddress.equals(interfaceAddress))){
+                reservedAddresses.clear();
+            }
+            ifaceAddress = interfaceAddress;
+            return ifaceAddress != null && reservedAddresses.isEmpty();
         }
-        ifaceAddress = interfaceAddress;
-        return ifaceAddress != null && reservedAddresses.isEmpty();
     }
 
     /**
@@ -91,10 +97,7 @@ public class LocalInterfaceBridge {
      * @param devAddress The remote peer's address
      * @return The associated address, or NULL if none.
      */
-    private static InetAddress getReservedAddress(String devAddress){
-        if(devAddress == null){
-            return null;
-        }
+    private InetAddress getReservedAddress(long devAddress){
         synchronized (reservedAddresses){
             return reservedAddresses.get(devAddress);
         }
@@ -107,7 +110,7 @@ public class LocalInterfaceBridge {
      * @return
      * @throws BridgeException
      */
-    private static InetAddress nextInetAddr(String devAddress, boolean isDefault) throws BridgeException {
+    private InetAddress nextInetAddr(long devAddress, boolean isDefault) throws BridgeException {
         synchronized (reservedAddresses){
             if(ifaceAddress == null){
                 throw new BridgeException("Interface bridge not initialized.");
@@ -115,14 +118,12 @@ public class LocalInterfaceBridge {
             InetAddress nextAddr = null;
             if(isDefault){
                 nextAddr = ifaceAddress;
-            }else if(reservedAddresses.containsKey(devAddress) && reservedAddresses.get(devAddress) != null){
+            }else if(reservedAddresses.get(devAddress) != null){
                 return reservedAddresses.get(devAddress);
             }else{
-                byte[] quad = ifaceAddress.getAddress();
-                quad[2] = (byte)((devAddress.hashCode() >> 16) & 0x07F);
-                quad[3] = (byte) (devAddress.hashCode() & 0x07F);
                 try {
-                    nextAddr = NetUtils.getResolvableAddress(NetUtils.getLocalBTReservedIfaceConfig(), devAddress);
+                    //Addresses are derived from the device's string form, as advertised to peers.
+                    nextAddr = NetUtils.getResolvableAddress(NetUtils.getLocalBTReservedIfaceConfig(), BDAddr.toString(devAddress));
                 } catch (UnknownHostException e) {
                     Logger.logE(e.getMessage());
                 }
@@ -137,7 +138,7 @@ public class LocalInterfaceBridge {
         }
     }
 
-    public static void addProximity(String target, String gateway){
+    public void addProximity(long target, long gateway){
         try {
             addRoute(nextInetAddr(gateway, false), gateway);
             addRoute(nextInetAddr(target, false), gateway);
@@ -147,18 +148,32 @@ public class LocalInterfaceBridge {
     }
 
     /**
-     * {@see {@link LocalInterfaceBridge#addGateway(String, boolean)}}
+     * {@see {@link LocalInterfaceBridge#addGateway(long, boolean)}}
      * @param remoteDevAddress
      * @throws BridgeException
      */
-    public static void addGateway(String remoteDevAddress) throws BridgeException {
+    public void addGateway(String remoteDevAddress) throws BridgeException {
+        long addr = BDAddr.parse(remoteDevAddress);
+        if(addr == BDAddr.INVALID){
+            throw new BridgeException("Malformed BD_ADDR: " + remoteDevAddress);
+        }
+        addGateway(addr, false);
+    }
+
+    /**
+     * {@see {@link LocalInterfaceBridge#addGateway(String)}}
+     */
+    public void addGateway(long remoteDevAddress) throws BridgeException {
         addGateway(remoteDevAddress, false);
     }
 
-    public static void deleteGateway(String remoteAddress){
-        if(routes != null && routes.containsKey(remoteAddress)){
-            routes.remove(remoteAddress);
-        }
+    /**
+     * Called when a peer disconnects.
+     * The routes through the peer are left in place: they resolve to it again once it reconnects.
+     * @param remoteAddress The peer's address.
+     */
+    public void deleteGateway(String remoteAddress){
+        //Routes are kept, see above. RoutingTable#removeRoutesVia(long) drops them if ever needed.
     }
 
     /**
@@ -167,7 +182,7 @@ public class LocalInterfaceBridge {
      * @param isDefault True if only one peer connection is assumed at any given time.
      * @throws BridgeException
      */
-    private static void addGateway(String remoteDevAddress, boolean isDefault) throws BridgeException {
+    private void addGateway(long remoteDevAddress, boolean isDefault) throws BridgeException {
         InetAddress addr = nextInetAddr(remoteDevAddress, isDefault);
         addRoute(addr, remoteDevAddress);
         if(isDefault){
@@ -179,34 +194,75 @@ public class LocalInterfaceBridge {
         }
     }
 
-    private static boolean addRoute(InetAddress inetAddress, String bdAddr){
-        if(routes.containsKey(inetAddress) && !routes.get(inetAddress).equals(bdAddr)){
+    /**
+     * Route an address through a peer: a host route, or the default route for 0.0.0.0.
+     * @return False if the address is already routed through a different peer.
+     */
+    private boolean addRoute(InetAddress inetAddress, long bdAddr){
+        int addr = RoutingTable.addrToInt(inetAddress);
+        return addRoute(addr, addr == 0 ? 0 : 32, bdAddr);
+    }
+
+    /**
+     * Route a prefix through a peer.
+     * @param prefix The IPv4 prefix, as an int in network order.
+     * @param prefixLen The prefix length.
+     * @param bdAddr The next hop.
+     * @return False if the prefix is already routed through a different peer.
+     */
+    public boolean addRoute(int prefix, int prefixLen, long bdAddr){
+        RoutingTable.Route current = routes.getRoute(prefix, prefixLen);
+        if(current != null && current.getNextHop() != bdAddr){
             Logger.logE(String.format("Competing routes for %s: (current: %s, new: %s). Failing: must invalidate current before updating.",
-                    inetAddress, routes.get(inetAddress), bdAddr));
+                    current, BDAddr.toString(current.getNextHop()), BDAddr.toString(bdAddr)));
             return false;
         }
-        Logger.logI(String.format("Registering new route [%s->%s]", inetAddress, bdAddr));
-        routes.put(inetAddress, bdAddr);
-        return routes.get(inetAddress).equals(bdAddr);
+        if(current == null){
+            Logger.logI(String.format("Registering new route [%s/%d->%s]", RoutingTable.intToStr(prefix), prefixLen, BDAddr.toString(bdAddr)));
+        }
+        return routes.addRoute(prefix, prefixLen, bdAddr);
     }
 
-    public static String getRoute(InetAddress inetAddress){
-        Logger.logE("ROUTES: " + routes);
-        if(routes.containsKey(inetAddress)){
-            return routes.get(inetAddress);
+    /**
+     * Find the peer to send a datagram to.
+     * @param inetAddress The datagram's destination.
+     * @return The next hop's address, or {@link BDAddr#INVALID} if there is no route.
+     */
+    public long getRoute(InetAddress inetAddress){
+        return getRoute(RoutingTable.addrToInt(inetAddress));
+    }
+
+    /**
+     * {@see {@link LocalInterfaceBridge#getRoute(InetAddress)}}
+     * @param addr The destination, as an int in network order.
+     */
+    public long getRoute(int addr){
+        long route = routes.getNextHop(addr);
+        if(route == BDAddr.INVALID && Logger.admit(Logger.Level.ERROR, NO_ROUTE_LOGS)){
+            //Only dump the whole table when debugging.
+            Logger.log(Logger.Level.ERROR, NO_ROUTE_LOGS, "No route to {}, {}", RoutingTable.intToStr(addr),
+                    Logger.isDebugEnabled() ? routes : routes.size() + " routes", null);
         }
-        try{
-            InetAddress defaultRoute = getDefault();
-            if(routes.containsKey(defaultRoute)){
-                return routes.get(defaultRoute);
-            }
-        }catch (UnknownHostException e){
-            Logger.logE(e.getMessage());
+        return route;
+    }
+
+    /**
+     * @return A snapshot of the next hops of all routes.
+     */
+    public long[] getRoutes(){
+        List<RoutingTable.Route> current = routes.getRoutes();
+        long ret[] = new long[current.size()];
+        int offs = 0;
+        for(RoutingTable.Route route : current){
+            ret[offs++] = route.getNextHop();
         }
-        return null;
+        return ret;
     }
 
-    public static Collection<String> getRoutes(){
-        return routes.values();
+    /**
+     * @return The forwarding table, for per-route metrics.
+     */
+    public RoutingTable getRoutingTable(){
+        return routes;
     }
-}
\ No newline at end of file
+}
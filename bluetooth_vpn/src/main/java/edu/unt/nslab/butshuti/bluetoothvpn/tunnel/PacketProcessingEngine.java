@@ -0,0 +1,189 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.IPv4Header;
+
+/**
+ * Worker threads processing received packets off the threads that read them.
+ * <p>
+ *     Packets are sharded across workers by flow: IP datagrams by addresses, protocol and ports, other packets by device addresses.
+ *     All packets of a flow go through the same worker, in order, while different flows are processed in parallel.
+ *     Each worker has its own bounded {@link PacketQueue}, so a slow flow only delays the flows sharing its worker.
+ *     Submitting to a full queue waits for room, which pushes back on the connection's reader (and so on the remote sender)
+ *     rather than silently dropping received packets.
+ * </p>
+ * <p>
+ *     The engine owns submitted packets: they are released once processed (or dropped).
+ * </p>
+ */
+public class PacketProcessingEngine {
+
+    public interface PacketProcessor {
+        /**
+         * Process a packet. The packet is only borrowed for the duration of the call.
+         * @param receivedFrom The peer the packet was received from.
+         * @param pkt The packet.
+         */
+        void process(long receivedFrom, Packet pkt);
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final int MAX_DEFAULT_WORKERS = 4;
+
+    private final class Worker extends Thread {
+        private final PacketQueue queue;
+        private volatile long processed = 0;
+
+        private Worker(String name, int queueCapacity){
+            queue = new PacketQueue(queueCapacity, PacketQueue.DropPolicy.PRIORITY);
+            setName(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run(){
+            while (!isInterrupted()){
+                Packet pkt;
+                try {
+                    pkt = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    processor.process(pkt.getReceivedFrom(), pkt);
+                } catch (RuntimeException e){
+                    Logger.logE("Packet processing failed: " + e);
+                } finally {
+                    pkt.release();
+                }
+                processed++;
+            }
+            queue.clear();
+        }
+    }
+
+    private final Worker workers[];
+    private final PacketProcessor processor;
+
+    /**
+     * @param name The name prefix of the worker threads.
+     * @param numWorkers The number of worker threads.
+     * @param queueCapacity The capacity of each worker's queue.
+     * @param processor The packet processor, called concurrently from all workers.
+     */
+    public PacketProcessingEngine(String name, int numWorkers, int queueCapacity, PacketProcessor processor){
+        if(numWorkers <= 0){
+            throw new IllegalArgumentException("Invalid number of workers: " + numWorkers);
+        }
+        this.processor = processor;
+        workers = new Worker[numWorkers];
+        for(int i=0; i<numWorkers; i++){
+            workers[i] = new Worker(name + "::worker(" + i + ")", queueCapacity);
+        }
+        MetricsRegistry.getDefault().gauge(DatapathMetrics.ENGINE_QUEUE_DEPTH, new MetricsRegistry.Gauge() {
+            @Override
+            public long read() {
+                long ret = 0;
+                for(Worker worker : workers){
+                    ret += worker.queue.size();
+                }
+                return ret;
+            }
+        });
+        MetricsRegistry.getDefault().gauge(DatapathMetrics.DROPS_ENGINE_QUEUE, new MetricsRegistry.Gauge() {
+            @Override
+            public long read() {
+                return getDrops();
+            }
+        });
+    }
+
+    /**
+     * @return One worker per core, leaving one core to the I/O threads, up to {@value #MAX_DEFAULT_WORKERS}.
+     */
+    public static int getDefaultWorkerCount(){
+        return Math.max(1, Math.min(MAX_DEFAULT_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public void start(){
+        for(Worker worker : workers){
+            worker.start();
+        }
+    }
+
+    public void stop(){
+        for(Worker worker : workers){
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Queue a packet for processing, taking over the caller's reference.
+     * Waits while the flow's worker queue is full.
+     * @param receivedFrom The peer the packet was received from.
+     * @param pkt The packet.
+     * @return True if the packet was queued, false if the caller was interrupted while waiting (the packet is released in that case).
+     */
+    public boolean submit(long receivedFrom, Packet pkt){
+        pkt.setReceivedFrom(receivedFrom);
+        return workers[(flowHash(pkt) & 0x7FFFFFFF) % workers.length].queue.put(pkt);
+    }
+
+    /**
+     * Hash a packet's flow: IPv4 addresses, protocol and, for TCP/UDP, ports; device addresses for anything else.
+     */
+    static int flowHash(Packet pkt){
+        IPv4Header header = null;
+        if(pkt.getProtocol() == Packet.PROTOCOL_DATA || pkt.getProtocol() == Packet.PROTOCOL_ITEST){
+            header = pkt.getIPv4Header();
+        }
+        int h;
+        if(header != null){
+            h = header.getSrcAddr() * 31 + header.getDstAddr();
+            h = (h * 31 + header.getProtocol()) * 31 + header.getPorts();
+        }else{
+            long addrs = pkt.getSrcBDAddr() * 31 + pkt.getDstBDAddr();
+            h = (int)(addrs ^ (addrs >>> 32));
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public int getWorkerCount(){
+        return workers.length;
+    }
+
+    /**
+     * @return A worker's queue, for depth/drop/sojourn metrics.
+     */
+    public PacketQueue getQueue(int worker){
+        return workers[worker].queue;
+    }
+
+    public long getProcessed(){
+        long ret = 0;
+        for(Worker worker : workers){
+            ret += worker.processed;
+        }
+        return ret;
+    }
+
+    public long getDrops(){
+        long ret = 0;
+        for(Worker worker : workers){
+            ret += worker.queue.getDrops();
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("PacketProcessingEngine(processed=").append(getProcessed()).append(", drops=").append(getDrops());
+        for(Worker worker : workers){
+            sb.append(", ").append(worker.getName()).append(": ").append(worker.queue.size());
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,368 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.TrafficClass;
+
+/**
+ * Bounded multi-producer/single-consumer hand-off queue for packets.
+ * <p>
+ *     Producers never block: when the queue is full, a packet is dropped according to the queue's {@link DropPolicy}.
+ *     The consumer parks in {@link #take()} while the queue is empty, instead of spinning.
+ *     Producers that prefer flow control to drops can instead wait for room with {@link #put(Packet)}.
+ * </p>
+ * <p>
+ *     The queue owns the references it is handed: packets are released when dropped, and handed over to the consumer by {@link #take()}.
+ * </p>
+ */
+public class PacketQueue {
+
+    public enum DropPolicy {
+        /**
+         * Drop the arriving packet.
+         */
+        TAIL,
+        /**
+         * Drop the oldest queued packet, favoring fresh data.
+         */
+        HEAD,
+        /**
+         * Drop the newest queued packet of the lowest class below the arriving packet's class, or the arriving packet if there is none.
+         */
+        PRIORITY
+    }
+
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private final Packet packets[];
+    private final TrafficClass classes[];
+    private final long enqueueTs[];
+    private final DropPolicy dropPolicy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+    private int head = 0, count = 0;
+    private long enqueued = 0, dequeued = 0, maxSojournNs = 0, totalSojournNs = 0;
+    private final long drops[] = new long[TrafficClass.values().length];
+    private int maxDepth = 0;
+
+    /**
+     * @param capacity The maximum number of queued packets.
+     * @param dropPolicy What to drop when the queue is full.
+     */
+    public PacketQueue(int capacity, DropPolicy dropPolicy){
+        if(capacity <= 0){
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        }
+        packets = new Packet[capacity];
+        classes = new TrafficClass[capacity];
+        enqueueTs = new long[capacity];
+        this.dropPolicy = dropPolicy;
+    }
+
+    public DropPolicy getDropPolicy(){
+        return dropPolicy;
+    }
+
+    /**
+     * Queue a packet, taking over the caller's reference.
+     * @param pkt The packet.
+     * @return True if the packet was queued, false if it was dropped (it is released in that case).
+     */
+    public boolean offer(Packet pkt){
+        TrafficClass trafficClass = TrafficClass.of(pkt);
+        Packet dropped = null;
+        boolean queued = true;
+        lock.lock();
+        try {
+            if(count == packets.length){
+                switch (dropPolicy){
+                    case HEAD:
+                        drops[classes[head].ordinal()]++;
+                        dropped = removeAt(0);
+                        break;
+                    case PRIORITY:
+                        int victim = findVictim(trafficClass);
+                        if(victim >= 0){
+                            drops[classes[slot(victim)].ordinal()]++;
+                            dropped = removeAt(victim);
+                        }else{
+                            queued = false;
+                        }
+                        break;
+                    default:
+                        queued = false;
+                }
+            }
+            if(queued){
+                int idx = slot(count++);
+                packets[idx] = pkt;
+                classes[idx] = trafficClass;
+                enqueueTs[idx] = System.nanoTime();
+                enqueued++;
+                if(count > maxDepth){
+                    maxDepth = count;
+                }
+                notEmpty.signal();
+            }else{
+                drops[trafficClass.ordinal()]++;
+            }
+        }finally {
+            lock.unlock();
+        }
+        if(dropped != null){
+            dropped.release();
+        }
+        if(!queued){
+            pkt.release();
+        }
+        return queued;
+    }
+
+    /**
+     * Queue a packet, waiting for room if the queue is full, and taking over the caller's reference.
+     * @param pkt The packet.
+     * @return True if the packet was queued, false if interrupted while waiting (the packet is released in that case).
+     */
+    public boolean put(Packet pkt){
+        lock.lock();
+        try {
+            while (count == packets.length){
+                notFull.await();
+            }
+            int idx = slot(count++);
+            packets[idx] = pkt;
+            classes[idx] = TrafficClass.of(pkt);
+            enqueueTs[idx] = System.nanoTime();
+            enqueued++;
+            if(count > maxDepth){
+                maxDepth = count;
+            }
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }finally {
+            lock.unlock();
+        }
+        pkt.release();
+        return false;
+    }
+
+    /**
+     * Wait for a packet.
+     * @return The oldest queued packet, now owned by the caller.
+     * @throws InterruptedException
+     */
+    public Packet take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0){
+                notEmpty.await();
+            }
+            return dequeue();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a packet, up to a timeout.
+     * @return The oldest queued packet, now owned by the caller, or NULL if none arrived in time.
+     * @throws InterruptedException
+     */
+    public Packet poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0){
+                if(nanos <= 0){
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The oldest queued packet, now owned by the caller, or NULL if the queue is empty.
+     */
+    public Packet poll(){
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take queued packets without waiting.
+     * @param dst Where to store the packets, now owned by the caller.
+     * @param offs The first index to fill in dst.
+     * @param max The maximum number of packets to take.
+     * @return The number of packets taken.
+     */
+    public int drainTo(Packet dst[], int offs, int max){
+        lock.lock();
+        try {
+            int n = Math.min(max, count);
+            for(int i=0; i<n; i++){
+                dst[offs + i] = dequeue();
+            }
+            return n;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release all queued packets.
+     */
+    public void clear(){
+        Packet pkt;
+        while ((pkt = poll()) != null){
+            pkt.release();
+        }
+    }
+
+    private Packet dequeue(){
+        long sojourn = System.nanoTime() - enqueueTs[head];
+        totalSojournNs += sojourn;
+        if(sojourn > maxSojournNs){
+            maxSojournNs = sojourn;
+        }
+        dequeued++;
+        return removeAt(0);
+    }
+
+    private int slot(int pos){
+        return (head + pos) % packets.length;
+    }
+
+    /**
+     * Find the newest packet of the lowest class strictly below the given class.
+     * @return Its position in the queue, or -1.
+     */
+    private int findVictim(TrafficClass arriving){
+        int victim = -1;
+        TrafficClass victimClass = arriving;
+        for(int pos = count - 1; pos >= 0; pos--){
+            TrafficClass c = classes[slot(pos)];
+            if(c.compareTo(victimClass) > 0){
+                victim = pos;
+                victimClass = c;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Remove the packet at a position in the queue, closing the gap.
+     */
+    private Packet removeAt(int pos){
+        int idx = slot(pos);
+        Packet ret = packets[idx];
+        if(pos == 0){
+            packets[head] = null;
+            classes[head] = null;
+            head = (head + 1) % packets.length;
+        }else{
+            for(int i = pos; i < count - 1; i++){
+                int cur = slot(i), next = slot(i + 1);
+                packets[cur] = packets[next];
+                classes[cur] = classes[next];
+                enqueueTs[cur] = enqueueTs[next];
+            }
+            int last = slot(count - 1);
+            packets[last] = null;
+            classes[last] = null;
+        }
+        count--;
+        notFull.signal();
+        return ret;
+    }
+
+    public int size(){
+        lock.lock();
+        try {
+            return count;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity(){
+        return packets.length;
+    }
+
+    /**
+     * @return The largest number of packets ever queued at once.
+     */
+    public int getMaxDepth(){
+        return maxDepth;
+    }
+
+    public long getEnqueued(){
+        return enqueued;
+    }
+
+    public long getDequeued(){
+        return dequeued;
+    }
+
+    /**
+     * @return The number of packets of the given class dropped, whether on arrival or evicted.
+     */
+    public long getDrops(TrafficClass trafficClass){
+        lock.lock();
+        try {
+            return drops[trafficClass.ordinal()];
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDrops(){
+        lock.lock();
+        try {
+            long ret = 0;
+            for(long d : drops){
+                ret += d;
+            }
+            return ret;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The average time packets spent queued, in microseconds.
+     */
+    public long getAverageSojournUs(){
+        lock.lock();
+        try {
+            return dequeued == 0 ? 0 : totalSojournNs / dequeued / 1000;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The longest time a packet spent queued, in microseconds.
+     */
+    public long getMaxSojournUs(){
+        return maxSojournNs / 1000;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("PacketQueue(%s, depth=%d/%d, max=%d, in=%d, out=%d, drops=%d, sojourn avg=%dus max=%dus)",
+                dropPolicy, size(), capacity(), maxDepth, enqueued, dequeued, getDrops(), getAverageSojournUs(), getMaxSojournUs());
+    }
+}
@@ -0,0 +1,181 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketTrace;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.LatencyHistogram;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+/**
+ * Samples packets entering the node and follows them through the tunnel stages (see {@link PacketTrace}).
+ * <p>
+ *     Tracing is off by default. When on, one packet out of N is traced: each stage's latency (from the previous stamped stage)
+ *     is recorded into a "trace.stage.*" histogram of the default {@link MetricsRegistry}, end-to-end latencies into
+ *     "trace.total.outbound"/"trace.total.inbound", and the most recent completed traces are kept for {@link #exportCsv(Writer)}.
+ * </p>
+ */
+public final class PacketTracer {
+    public static final String STAGE_LATENCY_PREFIX = "trace.stage.";
+    public static final String TOTAL_OUTBOUND_LATENCY = "trace.total.outbound";
+    public static final String TOTAL_INBOUND_LATENCY = "trace.total.inbound";
+    public static final int DEFAULT_MAX_RETAINED = 4096;
+
+    private static final PacketTrace.Stage STAGES[] = PacketTrace.Stage.values();
+    private static final PacketTracer DEFAULT = new PacketTracer(DEFAULT_MAX_RETAINED);
+
+    private volatile int sampleEvery = 0;
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final LatencyHistogram stageLatencies[] = new LatencyHistogram[STAGES.length];
+    private final LatencyHistogram outboundLatency, inboundLatency;
+    private final ArrayDeque<PacketTrace> completed = new ArrayDeque<>(); //Guarded by itself.
+    private final int maxRetained;
+
+    private PacketTracer(int maxRetained){
+        this.maxRetained = maxRetained;
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        for(PacketTrace.Stage stage : STAGES){
+            stageLatencies[stage.ordinal()] = registry.histogram(STAGE_LATENCY_PREFIX + stage.name().toLowerCase());
+        }
+        outboundLatency = registry.histogram(TOTAL_OUTBOUND_LATENCY);
+        inboundLatency = registry.histogram(TOTAL_INBOUND_LATENCY);
+    }
+
+    public static PacketTracer getDefault(){
+        return DEFAULT;
+    }
+
+    /**
+     * @param oneIn Trace one packet out of this many, 0 to disable tracing.
+     */
+    public void setSampling(int oneIn){
+        sampleEvery = Math.max(0, oneIn);
+    }
+
+    public int getSampling(){
+        return sampleEvery;
+    }
+
+    /**
+     * Start tracing a packet entering the node, if it is sampled.
+     * @param pkt The packet.
+     * @param first TUN_READ or WIRE_READ.
+     * @param peer The peer the packet came from, {@link Packet#NULL_BD_ADDR} for local datagrams.
+     */
+    public void sample(Packet pkt, PacketTrace.Stage first, long peer){
+        int every = sampleEvery;
+        if(every == 0 || sequence.getAndIncrement() % every != 0){
+            return;
+        }
+        pkt.setTrace(new PacketTrace(first, peer, pkt.getLength()));
+    }
+
+    /**
+     * Stamp a stage on a packet's trace, if it is traced.
+     */
+    public static void mark(Packet pkt, PacketTrace.Stage stage){
+        PacketTrace trace = pkt.getTrace();
+        if(trace != null){
+            trace.mark(stage);
+        }
+    }
+
+    /**
+     * Stamp the last stage on a packet's trace, if it is traced, and record the trace.
+     */
+    public static void complete(Packet pkt, PacketTrace.Stage stage){
+        PacketTrace trace = pkt.getTrace();
+        if(trace != null){
+            pkt.setTrace(null);
+            DEFAULT.complete(trace, stage);
+        }
+    }
+
+    /**
+     * Stamp the last stage on a trace and record it.
+     */
+    public void complete(PacketTrace trace, PacketTrace.Stage stage){
+        trace.mark(stage);
+        long first = 0, prev = 0;
+        for(PacketTrace.Stage s : STAGES){
+            long ts = trace.getTimestamp(s);
+            if(ts == 0){
+                continue;
+            }
+            if(prev != 0){
+                stageLatencies[s.ordinal()].record(ts - prev);
+            }else{
+                first = ts;
+            }
+            prev = ts;
+        }
+        (trace.isOutbound() ? outboundLatency : inboundLatency).record(prev - first);
+        synchronized (completed){
+            if(completed.size() >= maxRetained){
+                completed.pollFirst();
+            }
+            completed.addLast(trace);
+        }
+    }
+
+    /**
+     * @return The retained completed traces, oldest first.
+     */
+    public List<PacketTrace> getCompleted(){
+        synchronized (completed){
+            return new ArrayList<>(completed);
+        }
+    }
+
+    public void clear(){
+        synchronized (completed){
+            completed.clear();
+        }
+    }
+
+    /**
+     * Write the retained traces as CSV: one line per packet, with each stage's time in microseconds since the packet entered the node
+     * (empty for stages not reached).
+     */
+    public void exportCsv(Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder("direction,peer,length");
+        for(PacketTrace.Stage stage : STAGES){
+            sb.append(',').append(stage.name().toLowerCase()).append("_us");
+        }
+        out.write(sb.append('\n').toString());
+        for(PacketTrace trace : getCompleted()){
+            sb.setLength(0);
+            sb.append(trace.isOutbound() ? "out" : "in").append(',').append(BDAddr.toString(trace.getPeer())).append(',').append(trace.getLength());
+            long first = trace.getTimestamp(trace.isOutbound() ? PacketTrace.Stage.TUN_READ : PacketTrace.Stage.WIRE_READ);
+            for(PacketTrace.Stage stage : STAGES){
+                long ts = trace.getTimestamp(stage);
+                sb.append(',');
+                if(ts != 0){
+                    sb.append((ts - first) / 1000.0);
+                }
+            }
+            out.write(sb.append('\n').toString());
+        }
+        out.flush();
+    }
+
+    /**
+     * {@see {@link PacketTracer#exportCsv(Writer)}}
+     */
+    public void exportCsv(File file) throws IOException {
+        Writer out = new FileWriter(file);
+        try {
+            exportCsv(out);
+        }finally {
+            out.close();
+        }
+    }
+}
@@ -1,22 +1,27 @@
 package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
 
-import android.bluetooth.BluetoothSocket;
 import android.os.SystemClock;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Checksum;
 
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.FrameCoalescer;
 import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketTrace;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.TrafficClass;
 import edu.unt.nslab.butshuti.bluetoothvpn.datagram.WireInterface;
 import edu.unt.nslab.butshuti.bluetoothvpn.sockets.BluetoothSocketWrappers;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Crc32c;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
-import edu.unt.nslab.butshuti.bluetoothvpn.utils.ThreadLifeMonitor;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.StripedCounter;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
 
 /**
  * Created by butshuti on 5/17/18.
@@ -25,7 +30,8 @@ import edu.unt.nslab.butshuti.bluetoothvpn.utils.ThreadLifeMonitor;
  * This wrapper will extends locally though an {@link InterfaceController}.
  * Implementations of this wrapper will differ in whether they implement a server or client end of the wrapped socket.
  * For instance, while a client socket connects to exactly one remote server, a server socket handles multiple client connections and dispatches sockets to handle each received connection.
- * Individual connections are served by instances of the {@link Connection} class.
+ * Individual connections are served by instances of the {@link Connection} class, all driven by one {@link ConnectionEventLoop}.
+ * A peer may be connected over several channels at once: its connections join one {@link ChannelGroup}, which stripes flows over them.
  */
 public abstract class RemoteInterfaceAdaptor{
 
@@ -41,6 +47,30 @@ public abstract class RemoteInterfaceAdaptor{
         }
     }
 
+    /**
+     * Largest superframe built for peers accepting them: the usual RFCOMM MTU.
+     */
+    static final int SUPERFRAME_SIZE = 990;
+    static final long DEFAULT_COALESCING_DELAY_US = 1000;
+
+    private static volatile long coalescingDelayNs = TimeUnit.MICROSECONDS.toNanos(DEFAULT_COALESCING_DELAY_US);
+    private static volatile long queueDelayTargetUs = EgressScheduler.DEFAULT_TARGET_US;
+    private static volatile long queueDelayIntervalUs = EgressScheduler.DEFAULT_INTERVAL_US;
+
+    static {
+        MetricsRegistry.getDefault().gauge(DatapathMetrics.AQM_TARGET_US, new MetricsRegistry.Gauge() {
+            @Override
+            public long read() {
+                return queueDelayTargetUs;
+            }
+        });
+        MetricsRegistry.getDefault().gauge(DatapathMetrics.AQM_INTERVAL_US, new MetricsRegistry.Gauge() {
+            @Override
+            public long read() {
+                return queueDelayIntervalUs;
+            }
+        });
+    }
     private InterfaceController interfaceController;
     private String channelID;
     private Exception lastException;
@@ -55,6 +85,41 @@ public abstract class RemoteInterfaceAdaptor{
         this.interfaceController.activate();
     }
 
+    /**
+     * Set how long small packets may wait to be packed with the next ones into a superframe, for peers accepting them.
+     * With 0, packets are only packed while the connection is busy writing earlier frames.
+     * @param delayUs The delay, in microseconds.
+     */
+    public static void setCoalescingDelay(long delayUs){
+        coalescingDelayNs = TimeUnit.MICROSECONDS.toNanos(Math.max(delayUs, 0));
+    }
+
+    public static long getCoalescingDelay(){
+        return TimeUnit.NANOSECONDS.toMicros(coalescingDelayNs);
+    }
+
+    /**
+     * Set the queueing delay the peer egress queues aim for (see {@link EgressScheduler#setTarget(long, long)}),
+     * for connections made from then on.
+     * @param targetUs The acceptable standing queue delay, in microseconds.
+     * @param intervalUs How long the delay may stay above target before packets are dropped, in microseconds.
+     */
+    public static void setQueueDelayTarget(long targetUs, long intervalUs){
+        if(targetUs <= 0 || intervalUs <= 0){
+            throw new IllegalArgumentException(String.format("Invalid queue delay target: %dus/%dus", targetUs, intervalUs));
+        }
+        queueDelayTargetUs = targetUs;
+        queueDelayIntervalUs = intervalUs;
+    }
+
+    public static long getQueueDelayTarget(){
+        return queueDelayTargetUs;
+    }
+
+    public static long getQueueDelayInterval(){
+        return queueDelayIntervalUs;
+    }
+
     public String getChannelID(){
         return channelID;
     }
@@ -115,41 +180,126 @@ public abstract class RemoteInterfaceAdaptor{
      */
     public abstract void stopAdaptor();
 
-    protected final static class Connection extends WireInterface implements InterfaceController.RemoteDatagramDeliveryListener{
-        private String remoteAddress;
-        private BluetoothSocket socket;
-        private RemoteInterfaceAdaptor adaptor;
-        private boolean active;
-        private long bytesIN = 0, bytesOUT = 0;
-        private PipedInputStream pipedInputStream;
-        private PipedOutputStream pipedOutputStream;
-        private static SocketThread socketThread = null;
+    /**
+     * Ingress timestamps of the packets staged in a connection's transmit buffer, so that their TUN-to-wire or forwarding
+     * latency is recorded once their frame is written out.
+     * Packets packed into a superframe stay pending until the superframe is queued. Used by the event loop only.
+     * Packets arriving while the ring is full go unmeasured: transmit batches bound how many frames are staged at a time.
+     */
+    static final class IngressStamps {
+        private static final int CAPACITY = 256;
+        private static final int MASK = CAPACITY - 1;
+        private final long endPos[] = new long[CAPACITY];
+        private final long ingressTs[] = new long[CAPACITY];
+        private final boolean forwarded[] = new boolean[CAPACITY];
+        private int head = 0, queued = 0, pending = 0;
 
         /**
-         * Create an instance of the socket thread.
-         * @param btSocket Bluetooth socket, a termination into the remote end of the connection (Input stream and output stream).
+         * Stamp a packet going into the next frame queued.
+         */
+        void add(Packet pkt){
+            long ts = pkt.getIngressTs();
+            if(ts == 0 || queued + pending == CAPACITY){
+                return;
+            }
+            int idx = (head + queued + pending) & MASK;
+            ingressTs[idx] = ts;
+            forwarded[idx] = pkt.getReceivedFrom() != Packet.NULL_BD_ADDR;
+            pending++;
+        }
+
+        /**
+         * The frame holding the pending packets was queued.
+         * @param pos Where the frame ends in the connection's output stream.
+         */
+        void onQueued(long pos){
+            for(int i=0; i<pending; i++){
+                endPos[(head + queued + i) & MASK] = pos;
+            }
+            queued += pending;
+            pending = 0;
+        }
+
+        /**
+         * Record the latency of the packets whose frames were written out.
+         * @param pos How far the output stream was written.
+         */
+        void onWritten(long pos){
+            long now = System.nanoTime();
+            while (queued > 0 && endPos[head] <= pos){
+                (forwarded[head] ? DatapathMetrics.forwardingLatency : DatapathMetrics.tunToWireLatency).record(now - ingressTs[head]);
+                head = (head + 1) & MASK;
+                queued--;
+            }
+        }
+    }
+
+    protected final static class Connection extends WireInterface implements InterfaceController.FlowControlledListener{
+        private static final int TRANSMIT_BUFFER_SIZE = 1 << 16;
+        /**
+         * How many bytes the event loop stages in the transmit buffer at a time: frames past the scheduler can no longer be
+         * reordered, so this bounds how long a control packet waits behind bulk data.
+         */
+        private static final int TRANSMIT_BATCH_SIZE = 4 * SUPERFRAME_SIZE;
+        private static ConnectionEventLoop currentEventLoop = null;
+        private final String remoteAddress;
+        private final long remoteBDAddr;
+        private final StreamTransport transport;
+        private final RemoteInterfaceAdaptor adaptor;
+        private final AtomicBoolean pending;
+        private final EgressScheduler scheduler = new EgressScheduler();
+        private final FrameRingBuffer transmitBuffer; //Filled and drained by the event loop.
+        private final byte header[] = new byte[MAX_HEADER_SIZE]; //Event loop only.
+        private final Checksum txChecksum = Crc32c.newChecksum(); //Event loop only.
+        private final FrameCoalescer coalescer = new FrameCoalescer(SUPERFRAME_SIZE); //Event loop only.
+        private final ArrayList<PacketTrace> coalescedTraces = new ArrayList<>(); //Event loop only.
+        private final IngressStamps ingressStamps = new IngressStamps(); //Event loop only.
+        private volatile long coalescingDeadline = 0; //When the pending superframe is due (System.nanoTime()), 0 if none.
+        private volatile boolean active;
+        private final Object registrationLock = new Object(); //Not the connection: its reader holds that while blocked on the stream.
+        private volatile IOException readerException;
+        private volatile long lastWriteTs;
+        private final StripedCounter rxPkts, rxBytes, txPkts, txBytes;
+        private final ConcurrentLinkedQueue<PacketTrace> pendingTraces = new ConcurrentLinkedQueue<>(); //Traced frames not yet written, in transmit order.
+        private ConnectionEventLoop eventLoop;
+        private Thread readerThread;
+
+        /**
+         * Create a connection.
+         * @param transport Stream transport, a termination into the remote end of the connection (Input stream and output stream).
          * @param adaptor The interface adaptor, a termination into the local end of the connection (through the {@link InterfaceController}).
          */
-        public Connection(BluetoothSocket btSocket, RemoteInterfaceAdaptor adaptor){
-            socket = btSocket;
+        public Connection(StreamTransport transport, RemoteInterfaceAdaptor adaptor){
+            this.transport = transport;
             this.adaptor = adaptor;
-            remoteAddress = socket.getRemoteDevice().getAddress();
-            if(socketThread == null){
-                synchronized (SocketThread.class){
-                    if(socketThread == null){
-                        socketThread = new SocketThread(adaptor);
-                    }
-                }
-            }
+            remoteAddress = transport.getRemoteAddress();
+            remoteBDAddr = BDAddr.parse(remoteAddress);
+            rxPkts = DatapathMetrics.peerCounter(remoteAddress, DatapathMetrics.PEER_RX_PKTS);
+            rxBytes = DatapathMetrics.peerCounter(remoteAddress, DatapathMetrics.PEER_RX_BYTES);
+            txPkts = DatapathMetrics.peerCounter(remoteAddress, DatapathMetrics.PEER_TX_PKTS);
+            txBytes = DatapathMetrics.peerCounter(remoteAddress, DatapathMetrics.PEER_TX_BYTES);
+            pending = new AtomicBoolean(false);
+            transmitBuffer = new FrameRingBuffer(TRANSMIT_BUFFER_SIZE);
+            scheduler.setTarget(queueDelayTargetUs, queueDelayIntervalUs);
+            //Writable until invalidated, even before joining the peer's channel group.
+            active = true;
         }
 
         public void start() {
-            socketThread.addStream(this);
-            adaptor.getInterfaceController().registerRemoteDeliveryListener(remoteAddress, adaptor.getChannelID(), this);
-            if(!socketThread.isAlive()){
-                socketThread.start();
+            eventLoop = startEventLoop();
+            eventLoop.addStream(this);
+            //Offer the optional frame formats; frames stay in the legacy format until the peer's offer comes back.
+            Packet offer = createFeatureOffer();
+            offer.setDstBDAddr(remoteBDAddr);
+            try {
+                write(offer, true);
+            } catch (IOException e) {
+                Logger.logE(e.getMessage());
             }
-            active = true;
+            lastWriteTs = SystemClock.elapsedRealtime();
+            register();
+            readerThread = createReader();
+            readerThread.start();
         }
 
         public void interrupt(){
@@ -160,28 +310,250 @@ public abstract class RemoteInterfaceAdaptor{
             }
         }
 
-        private boolean flush() throws IOException {
+        String getRemoteAddress(){
+            return remoteAddress;
+        }
+
+        long getRemoteBDAddr(){
+            return remoteBDAddr;
+        }
+
+        RemoteInterfaceAdaptor getAdaptor(){
+            return adaptor;
+        }
+
+        long getLastWriteTs(){
+            return lastWriteTs;
+        }
+
+        boolean markPending(){
+            return pending.compareAndSet(false, true);
+        }
+
+        void clearPending(){
+            pending.set(false);
+        }
+
+        /**
+         * Rethrow the exception that terminated this connection's reader, if any.
+         * @throws IOException
+         */
+        void checkReaderState() throws IOException {
+            if(readerException != null){
+                throw readerException;
+            }
+        }
+
+        /**
+         * @return The outbound frame queue, for occupancy metrics.
+         */
+        public FrameRingBuffer getTransmitBuffer(){
+            return transmitBuffer;
+        }
+
+        /**
+         * @return The packets queued for this peer ahead of the transmit buffer, for occupancy metrics.
+         */
+        public EgressScheduler getScheduler(){
+            return scheduler;
+        }
+
+        /**
+         * @return When the packets waiting to be packed into a superframe must be sent ({@link System#nanoTime()}), 0 if none are waiting.
+         */
+        long getCoalescingDeadline(){
+            return coalescingDeadline;
+        }
+
+        /**
+         * Write out the packets queued so far, in the scheduler's order, and the pending superframe if it is due.
+         * <p>
+         *     Frames are staged and written {@link #TRANSMIT_BATCH_SIZE} bytes at a time. After a transmit buffer's worth,
+         *     the connection yields the event loop to other peers and signals itself to resume later.
+         * </p>
+         * @return True if anything was written.
+         * @throws IOException
+         */
+        boolean flush() throws IOException {
             int sent = 0;
-            while (getPipedInputStream().available() > 0){
-                getOutputStream().write(getPipedInputStream().read());
-                sent++;
+            do {
+                fillTransmitBuffer();
+                sealDueSuperframe();
+                sent += transmitBuffer.drainTo(getOutputStream());
+            } while (!scheduler.isEmpty() && sent < TRANSMIT_BUFFER_SIZE);
+            if(!scheduler.isEmpty()){
+                eventLoop.signal(this);
+            }
+            if(sent > 0){
+                lastWriteTs = SystemClock.elapsedRealtime();
+                ingressStamps.onWritten(transmitBuffer.getBytesDrained());
+                PacketTrace trace;
+                while ((trace = pendingTraces.peek()) != null && trace.getWireEndPos() <= transmitBuffer.getBytesDrained()){
+                    pendingTraces.poll();
+                    PacketTracer.getDefault().complete(trace, PacketTrace.Stage.WIRE_WRITE);
+                }
             }
             return sent > 0;
         }
 
+        /**
+         * Queue a packet for the event loop to write.
+         * <p>
+         *     This never blocks: if the packet's lane in the {@link EgressScheduler} is full, a packet is dropped.
+         *     The packet is retained until the event loop has copied it into the transmit buffer: callers must not modify it afterwards.
+         * </p>
+         * @param pkt The packet to send.
+         * @param async Unused: writes are always completed by the event loop.
+         * @return True if the packet was queued.
+         * @throws IOException If the connection was invalidated, so that the peer's channel group moves its flows to other channels.
+         */
         @Override
         public boolean write(Packet pkt, boolean async) throws IOException {
-            if(Thread.currentThread().equals(socketThread)){
-                //Avoid reading and writing from the same thread.
+            if(!active){
+                throw new RemoteInterfaceException("Connection to " + remoteAddress + " closed");
+            }
+            if(pkt != null) {
+                //Marked before queueing: the event loop may take the packet as soon as it is offered.
+                PacketTracer.mark(pkt, PacketTrace.Stage.WIRE_ENQUEUE);
+                if(scheduler.offer(pkt.retain())){
+                    txPkts.increment();
+                    eventLoop.signal(this);
+                    return true;
+                }
+                DatapathMetrics.egressQueueDrops.increment();
+            }
+            return false;
+        }
+
+        /**
+         * Move packets from the scheduler to the transmit buffer, up to {@link #TRANSMIT_BATCH_SIZE} bytes.
+         * If the peer accepts superframes, small packets are first packed together, until the superframe is full or
+         * the coalescing delay (see {@link #setCoalescingDelay(long)}) has elapsed.
+         */
+        private void fillTransmitBuffer(){
+            int features = getTxFeatures();
+            Packet pkt;
+            while (transmitBuffer.size() < TRANSMIT_BATCH_SIZE && (pkt = scheduler.poll()) != null){
+                try {
+                    boolean queued;
+                    if((features & FEATURE_SUPERFRAME) != 0 && coalescer.accepts(pkt)){
+                        queued = coalesce(pkt, features);
+                    }else if(sealSuperframe(features)){
+                        //Frames leave in order: packets already waiting for a superframe went first.
+                        //Gathering write: the header is encoded into a reused buffer, the payload is copied straight from the packet
+                        //(or from the link's buffer if compressed).
+                        int headerSize = encodeHeader(pkt, header, 0, features);
+                        queued = offerFrame(headerSize, features);
+                        if(queued){
+                            ingressStamps.add(pkt);
+                            ingressStamps.onQueued(transmitBuffer.getBytesOffered());
+                        }
+                    }else{
+                        queued = false;
+                    }
+                    PacketTrace trace = pkt.getTrace();
+                    if(queued && trace != null){
+                        //The trace follows the frame: it completes once the event loop has written the frame out.
+                        trace.setWireEndPos(transmitBuffer.getBytesOffered());
+                        pendingTraces.offer(trace);
+                        pkt.setTrace(null);
+                    }else if(!queued){
+                        DatapathMetrics.txBufferFullDrops.increment();
+                    }
+                }finally {
+                    pkt.release();
+                }
+            }
+        }
+
+        /**
+         * Queue the header just encoded in {@link #header} followed by its payload, with the payload's CRC-32C if negotiated.
+         */
+        private boolean offerFrame(int headerSize, int features){
+            byte payload[] = getTxPayload();
+            int offs = getTxPayloadOffset(), length = getTxPayloadLength();
+            boolean queued;
+            if((features & FEATURE_CRC32C) != 0){
+                //The payload's checksum is computed as it is copied in.
+                txChecksum.reset();
+                queued = transmitBuffer.offer(header, 0, headerSize, payload, offs, length, txChecksum);
+                length += CRC_TRAILER_SIZE;
+            }else{
+                queued = transmitBuffer.offer(header, 0, headerSize, payload, offs, length);
+            }
+            if(queued){
+                onHeaderQueued();
+                txBytes.add(headerSize + length);
+            }
+            return queued;
+        }
+
+        /**
+         * Pack a packet into the pending superframe, queueing the superframe first if the packet does not fit.
+         * @return False if the packet does not fit and the transmit buffer cannot take the superframe yet.
+         */
+        private boolean coalesce(Packet pkt, int features){
+            if(!coalescer.add(pkt)){
+                if(!sealSuperframe(features)){
+                    return false;
+                }
+                coalescer.add(pkt);
+            }
+            if(coalescer.size() == 1){
+                coalescingDeadline = System.nanoTime() + coalescingDelayNs;
+            }
+            ingressStamps.add(pkt);
+            PacketTrace trace = pkt.getTrace();
+            if(trace != null){
+                coalescedTraces.add(trace);
+                pkt.setTrace(null);
+            }
+            return true;
+        }
+
+        /**
+         * Queue the pending superframe, if any.
+         * @return False if the transmit buffer cannot take it yet: it stays pending.
+         */
+        private boolean sealSuperframe(int features){
+            if(coalescer.isEmpty()){
+                return true;
+            }
+            int headerSize = coalescer.encodeHeader(this, header, 0, features);
+            if(!offerFrame(headerSize, features)){
                 return false;
             }
-            byte data[] = toBytes(pkt);
-            if(data != null) {
-                getPipedOutputStream().write(data);
-                bytesOUT += data.length;
+            for(PacketTrace trace : coalescedTraces){
+                trace.setWireEndPos(transmitBuffer.getBytesOffered());
+                pendingTraces.offer(trace);
+            }
+            ingressStamps.onQueued(transmitBuffer.getBytesOffered());
+            coalescedTraces.clear();
+            coalescer.reset();
+            coalescingDeadline = 0;
+            return true;
+        }
+
+        /**
+         * Queue the pending superframe if it is due.
+         * @return False if it is due but the transmit buffer cannot take it yet.
+         */
+        private boolean sealDueSuperframe(){
+            long deadline = coalescingDeadline;
+            if(deadline == 0 || System.nanoTime() - deadline < 0){
                 return true;
             }
-            return false;
+            return sealSuperframe(getTxFeatures());
+        }
+
+        @Override
+        public boolean hasCapacity(Packet pkt) {
+            return scheduler.hasCapacity(TrafficClass.of(pkt));
+        }
+
+        @Override
+        public boolean awaitCapacity(Packet pkt, long timeout, TimeUnit unit) throws InterruptedException {
+            return scheduler.awaitCapacity(TrafficClass.of(pkt), timeout, unit);
         }
 
         @Override
@@ -198,16 +570,24 @@ public abstract class RemoteInterfaceAdaptor{
             return true;
         }
 
-        private boolean write(Packet pkt) throws IOException {
-            if(!Thread.currentThread().equals(socketThread)){
-                //Only registered socket thread is expected to write to the stream.
+        /**
+         * Write a packet straight to the transport, bypassing the transmit buffer.
+         * Only the event loop is expected to write to the stream.
+         * @param pkt The packet to write.
+         * @return True if the packet was written.
+         * @throws IOException
+         */
+        boolean writeDirect(Packet pkt) throws IOException {
+            if(!Thread.currentThread().equals(eventLoop)){
                 return false;
             }
             if(pkt != null) {
                 byte data[] = toBytes(pkt);
                 if (data != null) {
                     getOutputStream().write(data);
-                    bytesOUT += data.length;
+                    txPkts.increment();
+                    txBytes.add(data.length);
+                    lastWriteTs = SystemClock.elapsedRealtime();
                     return true;
                 }
             }
@@ -216,175 +596,116 @@ public abstract class RemoteInterfaceAdaptor{
 
 
         public boolean isConnected(){
-            return active && socket.isConnected();
+            return active && transport.isConnected();
         }
 
-        private void invalidate() throws IOException {
-            active = false;
-            adaptor.notifySocketException(remoteAddress);
-            if(socketThread != null){
-                socketThread.removeStream(remoteAddress);
-                if(socketThread.connections.size() == 0){
-                    socketThread.interrupt();
-                    socketThread = null;
+        /**
+         * Join the peer's channel group, unless invalidated already.
+         */
+        private void register(){
+            synchronized (registrationLock){
+                if(active){
+                    adaptor.getInterfaceController().addChannel(remoteBDAddr, adaptor.getChannelID(), this);
                 }
             }
-            if(socket != null){
-                socket.getInputStream().close();
-                socket.getOutputStream().close();
-                socket.close();
-            }
         }
 
-        private PipedOutputStream getPipedOutputStream() throws IOException {
-            if(pipedInputStream == null){
-                pipedInputStream = new PipedInputStream();
-                pipedOutputStream = new PipedOutputStream(pipedInputStream);
+        private void invalidate() throws IOException {
+            //Once inactive, the connection cannot join its group again (see register()).
+            synchronized (registrationLock){
+                active = false;
             }
-            return pipedOutputStream;
-        }
-
-        private PipedInputStream getPipedInputStream() throws IOException {
-            if(pipedInputStream == null){
-                pipedInputStream = new PipedInputStream();
-                pipedOutputStream = new PipedOutputStream(pipedInputStream);
+            scheduler.close();
+            //The peer's other channels, if any, take over this one's flows.
+            if(adaptor.getInterfaceController().removeChannel(remoteBDAddr, this)){
+                adaptor.notifySocketException(remoteAddress);
             }
-            return pipedInputStream;
-        }
-
-        private OutputStream getOutputStream() throws IOException {
-            if(pipedInputStream == null){
-                pipedInputStream = new PipedInputStream();
-                pipedOutputStream = new PipedOutputStream(pipedInputStream);
+            if(eventLoop != null){
+                synchronized (ConnectionEventLoop.class){
+                    eventLoop.removeStream(this);
+                    if(eventLoop.size() == 0){
+                        eventLoop.interrupt();
+                    }
+                }
             }
-            return socket.getOutputStream();
-        }
-
-        @Override
-        protected int read(byte[] buffer, int max) throws IOException {
-            if(socket.getInputStream().available() >= max){
-                bytesIN++;
-                return socket.getInputStream().read(buffer);
+            if(readerThread != null){
+                readerThread.interrupt();
             }
-            return 0;
+            transport.close();
+            closeCodecs();
         }
 
-        @Override
-        public String toString(){
-            return remoteAddress + (isConnected() ? "" : "(DISCONNECTED)" + "IN=" + bytesIN + "/OUT=" + bytesOUT);
-        }
-
-        @Override
-        public boolean equals(Object other){
-            return other != null && other instanceof Connection && ((Connection) other).remoteAddress.equals(remoteAddress);
-        }
-
-        @Override
-        public int hashCode(){
-            return remoteAddress.hashCode();
+        private static ConnectionEventLoop startEventLoop(){
+            synchronized (ConnectionEventLoop.class){
+                if(currentEventLoop == null || currentEventLoop.isInterrupted() || currentEventLoop.getState() == Thread.State.TERMINATED){
+                    currentEventLoop = new ConnectionEventLoop();
+                }
+                if(currentEventLoop.getState() == Thread.State.NEW){
+                    currentEventLoop.start();
+                }
+                return currentEventLoop;
+            }
         }
-    }
-
-    /**
-     * Thread for handling connections received from remote peers.
-     */
-    private final static class SocketThread extends Thread{
-
-        private static final int STREAM_REFRESH_INTERVAL = 5000;
-        RemoteInterfaceAdaptor adaptor;
-        private volatile Map<String, Connection> connections;
-        private boolean errorState;
-        private long pktsIn = 0, pktsOut = 0, lastPktCount = -1;
-        private long stream_refresh_schedule = -1;
-        private long startTs, lastStatsLogTs;
 
         /**
-         * Create an instance of the socket thread.
-         * @param adaptor The interface adaptor, a termination into the local end of the connection (through the {@link InterfaceController}).
+         * Create the thread blocking on the transport's input stream.
+         * <p>
+         *     Frames are decoded on this thread as soon as they are complete and handed to the {@link InterfaceController}.
+         *     On failure, the event loop is signalled so that the connection is invalidated from the loop thread.
+         * </p>
+         * @return The reader thread.
          */
-        private SocketThread(RemoteInterfaceAdaptor adaptor){
-            setDaemon(false);
-            this.adaptor = adaptor;
-            errorState = false;
-            startTs = SystemClock.uptimeMillis();
-            lastStatsLogTs = startTs;
-            connections = new ConcurrentHashMap<>();
-        }
-
-        @Override
-        public void run(){
-            long lastRefresh = Math.max(stream_refresh_schedule, SystemClock.elapsedRealtime());
-            errorState = !adaptor.isActive();
-            while (adaptor.isActive() && !errorState){
-                Iterator<Map.Entry<String, Connection>> iterator = connections.entrySet().iterator();
-                while(iterator.hasNext()) {
-                    Map.Entry<String, Connection> connectionEntry = iterator.next();
-                    if(!connectionEntry.getValue().isConnected()){
-                        continue;
-                    }
-                    Connection connection = connectionEntry.getValue();
-                    String remoteAddres = connectionEntry.getKey();
-                    try{
-                        Packet pkt = connection.readMultipartNext();
-                        if (pkt != null) {
-                            adaptor.getInterfaceController().receive(remoteAddres, pkt);
-                            pktsIn++;
-                            adaptor.getInterfaceController().registerRemoteDeliveryListener(remoteAddres, adaptor.getChannelID(), connection);
+        private Thread createReader(){
+            Thread reader = new Thread(){
+                @Override
+                public void run(){
+                    InterfaceController interfaceController = adaptor.getInterfaceController();
+                    PacketTracer tracer = PacketTracer.getDefault();
+                    try {
+                        while (active && !isInterrupted()){
+                            Packet pkt = readMultipartNext();
+                            if(pkt != null && pkt.getProtocol() == Packet.PROTOCOL_LINK_NEGOTIATION){
+                                //Link-local: settles the frame format for this connection, never routed.
+                                Logger.logI(String.format("Link to %s: frame features %x", remoteAddress, acceptFeatureOffer(pkt)));
+                                pkt.release();
+                            }else if(pkt != null){
+                                pkt.setIngressTs(System.nanoTime());
+                                tracer.sample(pkt, PacketTrace.Stage.WIRE_READ, remoteBDAddr);
+                                rxPkts.increment();
+                                //The controller takes ownership of the packet.
+                                interfaceController.receive(remoteBDAddr, pkt);
+                            }
                         }
-                        long curTs = SystemClock.elapsedRealtime();
-                        if (connection.flush()) {
-                            lastRefresh = curTs;
-                        } else if (stream_refresh_schedule < 0) {
-                            stream_refresh_schedule = curTs + STREAM_REFRESH_INTERVAL * 5;
-                        } else if (curTs > lastRefresh + STREAM_REFRESH_INTERVAL) {
-                            byte data[] = String.format("dev(%s).keepAlive(%d) @%d", remoteAddres, STREAM_REFRESH_INTERVAL, lastRefresh).getBytes();
-                            Packet keepAlivePkt = Packet.wrap(data);
-                            keepAlivePkt.setProtocol(Packet.PROTOCOL_PROXIMITY);
-                            write(keepAlivePkt, remoteAddres);
-                            lastRefresh = curTs;
+                    } catch (IOException e) {
+                        if(active){
+                            readerException = e;
+                            eventLoop.signal(Connection.this);
                         }
-                    }catch (IOException e){
-                        e.printStackTrace();
-                        Logger.logE(String.format("IOException: %s. Invalidating adaptor for %s.", e.getMessage(), remoteAddres));
-                        adaptor.getInterfaceController().registerRemoteDeliveryListener(remoteAddres, adaptor.getChannelID(), null);
-                        connection.shutdown();
-                        iterator.remove();
-                        return;
                     }
                 }
-                if ((pktsIn + pktsOut) % 10 <= 2) {
-                    printStats();
-                }
-            }
+            };
+            reader.setDaemon(true);
+            reader.setName("Connection::reader(" + remoteAddress + ")");
+            return reader;
         }
 
-        private void addStream(Connection connection){
-            connections.put(connection.remoteAddress, connection);
-        }
-
-        private void removeStream(String remoteAddress){
-            connections.remove(remoteAddress);
+        private OutputStream getOutputStream() throws IOException {
+            return transport.getOutputStream();
         }
 
-        private void printStats(){
-            long tsDiff = (SystemClock.uptimeMillis() - startTs)/1000;
-            setName("Connections " + connections.keySet() + " @ [[ " + ThreadLifeMonitor.getNextAgeDescr("__", false, pktsIn, pktsOut) + " ]]");
-            if(tsDiff == 0){
-                return;
-            }
-            if(pktsIn + pktsOut == lastPktCount && lastStatsLogTs < tsDiff + STREAM_REFRESH_INTERVAL*3){
-                return;
+        @Override
+        protected int read(byte[] buffer, int offset, int max) throws IOException {
+            int len = transport.getInputStream().read(buffer, offset, max);
+            if(len < 0){
+                throw new IOException("Connection closed by " + remoteAddress);
             }
-            lastStatsLogTs = tsDiff;
+            rxBytes.add(len);
+            return len;
         }
 
-        private boolean write(Packet pkt, String remoteAddress) throws IOException {
-            Connection connection = connections.get(remoteAddress);
-            if(pkt != null && connection != null) {
-                connection.write(pkt);
-                return true;
-            }
-            return false;
+        @Override
+        public String toString(){
+            return remoteAddress + (isConnected() ? "" : "(DISCONNECTED)" + "IN=" + rxBytes + "/OUT=" + txBytes) + " TX: " + transmitBuffer + " " + scheduler;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,318 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.StripedCounter;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.IPv4Header;
+
+/**
+ * IPv4 forwarding table mapping address prefixes to next-hop peers, with longest-prefix-match lookups.
+ * <p>
+ *     Routes are grouped by prefix length, each group being a hash table keyed by the (int) masked prefix.
+ *     A lookup probes only the prefix lengths actually in use, longest first: with the host routes and default route
+ *     installed by {@link LocalInterfaceBridge}, that is at most two hash probes, whatever the number of routes.
+ * </p>
+ * <p>
+ *     Lookups never lock: they read an immutable snapshot of the table.
+ *     Updates are serialized and publish a new snapshot, rebuilding only the group of the updated prefix length.
+ *     Route objects are shared between snapshots, so their metrics survive updates.
+ *     Lookups only write to {@link StripedCounter}s, so concurrent lookups do not contend on shared counters.
+ * </p>
+ */
+public class RoutingTable {
+    private static final int MAX_PREFIX_LEN = 32;
+
+    /**
+     * A route to a prefix through a next-hop peer.
+     */
+    public static final class Route {
+        private final int prefix;
+        private final int prefixLen;
+        private final long nextHop;
+        private final StripedCounter hits = new StripedCounter();
+
+        private Route(int prefix, int prefixLen, long nextHop){
+            this.prefix = prefix;
+            this.prefixLen = prefixLen;
+            this.nextHop = nextHop;
+        }
+
+        public int getPrefix(){
+            return prefix;
+        }
+
+        public int getPrefixLength(){
+            return prefixLen;
+        }
+
+        public long getNextHop(){
+            return nextHop;
+        }
+
+        /**
+         * @return The number of lookups resolved by this route.
+         */
+        public long getHits(){
+            return hits.sum();
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%s/%d->%s (hits=%d)", intToStr(prefix), prefixLen, BDAddr.toString(nextHop), hits.sum());
+        }
+    }
+
+    /**
+     * Immutable open-addressing table of the routes sharing one prefix length.
+     */
+    private static final class PrefixGroup {
+        private final int keys[];
+        private final Route routes[];
+        private final int mask;
+
+        private PrefixGroup(Collection<Route> members){
+            int slots = Integer.highestOneBit(Math.max(2, members.size() * 2 - 1)) << 1;
+            keys = new int[slots];
+            routes = new Route[slots];
+            mask = slots - 1;
+            for(Route route : members){
+                int idx = hash(route.prefix) & mask;
+                while (routes[idx] != null){
+                    idx = (idx + 1) & mask;
+                }
+                keys[idx] = route.prefix;
+                routes[idx] = route;
+            }
+        }
+
+        private Route get(int key){
+            for(int idx = hash(key) & mask; routes[idx] != null; idx = (idx + 1) & mask){
+                if(keys[idx] == key){
+                    return routes[idx];
+                }
+            }
+            return null;
+        }
+
+        private static int hash(int key){
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * A published state of the table.
+     */
+    private static final class Snapshot {
+        private final PrefixGroup groups[];
+        private final int lengths[]; //Prefix lengths in use, longest first.
+
+        private Snapshot(PrefixGroup groups[]){
+            this.groups = groups;
+            int count = 0;
+            for(PrefixGroup group : groups){
+                if(group != null){
+                    count++;
+                }
+            }
+            lengths = new int[count];
+            for(int len = MAX_PREFIX_LEN, offs = 0; len >= 0; len--){
+                if(groups[len] != null){
+                    lengths[offs++] = len;
+                }
+            }
+        }
+    }
+
+    private final Map<Long, Route> routes = new HashMap<>(); //All routes, keyed by (length, prefix); guarded by this.
+    private volatile Snapshot snapshot = new Snapshot(new PrefixGroup[MAX_PREFIX_LEN + 1]);
+    private final StripedCounter lookups = new StripedCounter(), misses = new StripedCounter();
+
+    private static int netmask(int prefixLen){
+        return prefixLen == 0 ? 0 : -1 << (MAX_PREFIX_LEN - prefixLen);
+    }
+
+    private static long routeKey(int prefix, int prefixLen){
+        return ((long)prefixLen << 32) | (prefix & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Convert an IPv4 address to its int form (network order: the first octet is the most significant byte).
+     */
+    public static int addrToInt(InetAddress addr){
+        byte quad[] = addr.getAddress();
+        if(quad.length != 4){
+            throw new IllegalArgumentException("Not an IPv4 address: " + addr);
+        }
+        return addrToInt(quad, 0);
+    }
+
+    /**
+     * Read an IPv4 address stored in network order, e.g. in a datagram's header.
+     */
+    public static int addrToInt(byte buf[], int offs){
+        return ((buf[offs] & 0xFF) << 24) | ((buf[offs + 1] & 0xFF) << 16) | ((buf[offs + 2] & 0xFF) << 8) | (buf[offs + 3] & 0xFF);
+    }
+
+    /**
+     * Format an int IPv4 address in dotted-quad notation.
+     */
+    public static String intToStr(int addr){
+        return IPv4Header.addrToString(addr);
+    }
+
+    /**
+     * Find the route with the longest prefix matching an address, and count the hit.
+     * @param addr The destination address.
+     * @return The route, or NULL if none matches.
+     */
+    public Route lookup(int addr){
+        lookups.increment();
+        Snapshot cur = snapshot;
+        for(int len : cur.lengths){
+            Route route = cur.groups[len].get(addr & netmask(len));
+            if(route != null){
+                route.hits.increment();
+                return route;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @return The next hop for an address, or {@link BDAddr#INVALID} if no route matches.
+     */
+    public long getNextHop(int addr){
+        Route route = lookup(addr);
+        return route == null ? BDAddr.INVALID : route.nextHop;
+    }
+
+    /**
+     * Install a route.
+     * @param prefix The destination prefix (bits beyond the prefix length are ignored).
+     * @param prefixLen The prefix length, 0 to 32.
+     * @param nextHop The next-hop peer.
+     * @return True if the route is installed, false if the prefix is already routed through a different peer
+     * (the current route must be removed first).
+     */
+    public synchronized boolean addRoute(int prefix, int prefixLen, long nextHop){
+        checkPrefixLen(prefixLen);
+        prefix &= netmask(prefixLen);
+        long key = routeKey(prefix, prefixLen);
+        Route current = routes.get(key);
+        if(current != null){
+            return current.nextHop == nextHop;
+        }
+        routes.put(key, new Route(prefix, prefixLen, nextHop));
+        rebuild(prefixLen);
+        return true;
+    }
+
+    /**
+     * @return The route currently installed for a prefix, or NULL.
+     */
+    public synchronized Route getRoute(int prefix, int prefixLen){
+        checkPrefixLen(prefixLen);
+        return routes.get(routeKey(prefix & netmask(prefixLen), prefixLen));
+    }
+
+    /**
+     * Remove the route for a prefix.
+     * @return True if a route was removed.
+     */
+    public synchronized boolean removeRoute(int prefix, int prefixLen){
+        checkPrefixLen(prefixLen);
+        if(routes.remove(routeKey(prefix & netmask(prefixLen), prefixLen)) != null){
+            rebuild(prefixLen);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove all routes through a peer.
+     * @return The number of routes removed.
+     */
+    public synchronized int removeRoutesVia(long nextHop){
+        boolean dirty[] = new boolean[MAX_PREFIX_LEN + 1];
+        int removed = 0;
+        for(Route route : new ArrayList<>(routes.values())){
+            if(route.nextHop == nextHop){
+                routes.remove(routeKey(route.prefix, route.prefixLen));
+                dirty[route.prefixLen] = true;
+                removed++;
+            }
+        }
+        if(removed > 0){
+            PrefixGroup groups[] = snapshot.groups.clone();
+            for(int len = 0; len <= MAX_PREFIX_LEN; len++){
+                if(dirty[len]){
+                    groups[len] = buildGroup(len);
+                }
+            }
+            snapshot = new Snapshot(groups);
+        }
+        return removed;
+    }
+
+    public synchronized void clear(){
+        routes.clear();
+        snapshot = new Snapshot(new PrefixGroup[MAX_PREFIX_LEN + 1]);
+    }
+
+    /**
+     * @return A snapshot of all routes.
+     */
+    public synchronized List<Route> getRoutes(){
+        return new ArrayList<>(routes.values());
+    }
+
+    public synchronized int size(){
+        return routes.size();
+    }
+
+    public long getLookups(){
+        return lookups.sum();
+    }
+
+    /**
+     * @return The number of lookups that matched no route.
+     */
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    private void rebuild(int prefixLen){
+        PrefixGroup groups[] = snapshot.groups.clone();
+        groups[prefixLen] = buildGroup(prefixLen);
+        snapshot = new Snapshot(groups);
+    }
+
+    private PrefixGroup buildGroup(int prefixLen){
+        List<Route> members = new ArrayList<>();
+        for(Route route : routes.values()){
+            if(route.prefixLen == prefixLen){
+                members.add(route);
+            }
+        }
+        return members.isEmpty() ? null : new PrefixGroup(members);
+    }
+
+    private static void checkPrefixLen(int prefixLen){
+        if(prefixLen < 0 || prefixLen > MAX_PREFIX_LEN){
+            throw new IllegalArgumentException("Invalid prefix length: " + prefixLen);
+        }
+    }
+
+    @Override
+    public synchronized String toString(){
+        return String.format("RoutingTable(routes=%s, lookups=%d, misses=%d)", routes.values(), lookups.sum(), misses.sum());
+    }
+}
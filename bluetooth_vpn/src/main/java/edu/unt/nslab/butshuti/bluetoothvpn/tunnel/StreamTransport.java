@@ -0,0 +1,73 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream to a remote peer, as seen by a {@link RemoteInterfaceAdaptor.Connection}.
+ * The Bluetooth implementation wraps an RFCOMM socket, but any pair of blocking streams (loopback sockets, pipes) will do.
+ */
+public interface StreamTransport extends Closeable {
+
+    /**
+     * @return The physical address of the remote peer.
+     */
+    String getRemoteAddress();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    boolean isConnected();
+
+    /**
+     * A transport over a plain pair of streams.
+     * <p>
+     *     This is mainly useful for running connections over in-memory pipes or loopback sockets.
+     * </p>
+     */
+    class Streams implements StreamTransport {
+        private final String remoteAddress;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+        private volatile boolean connected = true;
+
+        public Streams(String remoteAddress, InputStream inputStream, OutputStream outputStream){
+            this.remoteAddress = remoteAddress;
+            this.inputStream = inputStream;
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void close() throws IOException {
+            connected = false;
+            try{
+                inputStream.close();
+            }finally {
+                outputStream.close();
+            }
+        }
+    }
+}
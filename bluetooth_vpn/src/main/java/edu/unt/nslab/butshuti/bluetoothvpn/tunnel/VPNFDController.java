@@ -3,41 +3,120 @@ package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
 import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
 
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketPool;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketTrace;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
 
 /**
  * Created by butshuti on 5/17/18.
+ *
+ * Moves datagrams between the VPN interface's file descriptor and the {@link InterfaceController}.
+ * Datagrams for the interface are handed to the writer thread through a bounded {@link PacketQueue}: the writer parks while it is empty.
+ * <p>
+ *     Both directions work in batches: the writer drains up to a batch of queued datagrams per wake-up,
+ *     and the reader keeps reading into pooled packets while more datagrams are already available, then hands the whole batch to the controller.
+ *     Each read returns one datagram. The interface is in non-blocking mode: neither interrupting the reader nor closing the
+ *     descriptor wakes up a read blocked on it, so the reader parks between empty reads instead, for longer the longer the interface stays idle.
+ *     Terminating interrupts the threads and waits for them to let go of the descriptor before closing it.
+ *     Other streams can stand in for the interface (e.g. in benchmarks), if their reads return single datagrams and give up when interrupted.
+ * </p>
+ * <p>
+ *     When a peer's queue is full, the reader applies its {@link BackpressurePolicy}: by default, it stops reading the interface
+ *     until the peer has room, so that the backlog stays in the kernel's interface queue, where it slows the local sockets down.
+ * </p>
  */
 
 public class VPNFDController {
+
+    /**
+     * What the reader does with a datagram whose next hop pushes back (see {@link InterfaceController.SendResult#BACKPRESSURE}).
+     */
+    public enum BackpressurePolicy {
+        /**
+         * Drop the datagram and read on.
+         */
+        DROP,
+        /**
+         * Stop reading until the next hop has room, up to a maximum pause, then send the datagram again (once), or drop it.
+         * Datagrams for other peers wait too, for at most that pause.
+         */
+        PAUSE
+    }
+
+    private static final long WRITER_IDLE_CHECK_MS = 500;
+    private static final long MIN_IDLE_PARK_US = 500, MAX_IDLE_PARK_US = 20000; //Reader parking between empty reads
+    private static final long TERMINATION_TIMEOUT_MS = 1000;
+    public static final int DEFAULT_BATCH_SIZE = 16;
+    public static final long DEFAULT_MAX_PAUSE_MS = 100;
     private ParcelFileDescriptor fd;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final int batchSize;
     private InterfaceController interfaceController;
     private int mtu;
-    private final Queue<byte[]> inputQueue;
-    private final Lock inputQueueLock = new ReentrantLock();
+    private final PacketQueue inputQueue;
     private boolean active = false;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
     private long in = 0, out = 0, loopCounter = 0, startTs;
+    private long readBatches = 0, writeBatches = 0;
     private Thread readerThread, writerThread;
+    private volatile BackpressurePolicy backpressurePolicy = BackpressurePolicy.PAUSE;
+    private volatile long maxPauseMs = DEFAULT_MAX_PAUSE_MS;
 
     public VPNFDController(ParcelFileDescriptor fd, InterfaceController interfaceController, int mtu){
+        this(fd, interfaceController, mtu, PacketQueue.DEFAULT_CAPACITY, PacketQueue.DropPolicy.PRIORITY);
+    }
+
+    /**
+     * @param queueCapacity The maximum number of datagrams waiting to be written to the interface.
+     * @param dropPolicy What to drop when the interface cannot keep up.
+     */
+    public VPNFDController(ParcelFileDescriptor fd, InterfaceController interfaceController, int mtu, int queueCapacity, PacketQueue.DropPolicy dropPolicy){
+        this(new FileInputStream(fd.getFileDescriptor()), new FileOutputStream(fd.getFileDescriptor()), interfaceController, mtu, queueCapacity, dropPolicy, DEFAULT_BATCH_SIZE);
         this.fd = fd;
+    }
+
+    /**
+     * Create a controller over arbitrary streams standing in for the interface.
+     * @param inputStream Datagrams from local applications, one per read.
+     * @param outputStream Datagrams for local applications, written one per write.
+     * @param batchSize The maximum number of datagrams read or written per wake-up.
+     */
+    public VPNFDController(InputStream inputStream, OutputStream outputStream, InterfaceController interfaceController, int mtu, int queueCapacity, PacketQueue.DropPolicy dropPolicy, int batchSize){
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
         this.interfaceController = interfaceController;
         this.mtu = mtu;
-        inputQueue = new LinkedList<>();
-        readerThread = createReader(new FileInputStream(fd.getFileDescriptor()));
+        this.batchSize = Math.max(1, batchSize);
+        inputQueue = new PacketQueue(queueCapacity, dropPolicy);
+        MetricsRegistry.getDefault().gauge(DatapathMetrics.TUN_QUEUE_DEPTH, new MetricsRegistry.Gauge() {
+            @Override
+            public long read() {
+                return inputQueue.size();
+            }
+        });
+        MetricsRegistry.getDefault().gauge(DatapathMetrics.DROPS_TUN_QUEUE, new MetricsRegistry.Gauge() {
+            @Override
+            public long read() {
+                return inputQueue.getDrops();
+            }
+        });
+        readerThread = createReader(inputStream);
         readerThread.setDaemon(true);
         readerThread.setName("VPN_fd_thread::reader");
         readerThread.setPriority(Thread.MAX_PRIORITY);
-        writerThread = createWriter(new FileOutputStream(fd.getFileDescriptor()));
+        writerThread = createWriter(outputStream);
         writerThread.setDaemon(true);
         writerThread.setName("VPN_fd_thread::writer");
         writerThread.setPriority(Thread.MAX_PRIORITY);
@@ -55,42 +134,82 @@ public class VPNFDController {
         writerThread.start();
     }
 
-    public boolean deliver(byte pkt[]){
+    /**
+     * @param policy What the reader does when a peer's queue is full.
+     * @param maxPauseMs With {@link BackpressurePolicy#PAUSE}, how long the reader may wait for a datagram's next hop before dropping it.
+     */
+    public void setBackpressurePolicy(BackpressurePolicy policy, long maxPauseMs){
+        backpressurePolicy = policy;
+        this.maxPauseMs = Math.max(maxPauseMs, 0);
+    }
+
+    public BackpressurePolicy getBackpressurePolicy(){
+        return backpressurePolicy;
+    }
+
+    /**
+     * Queue a packet for writing to the VPN interface.
+     * This never blocks: when the queue is full, a packet is dropped according to the queue's drop policy.
+     * @param pkt The packet. It is retained until written.
+     * @return True if the packet was queued.
+     */
+    public boolean deliver(Packet pkt){
         if(pkt == null){
             return false;
         }
-        boolean ret = false;
-        try {
-            if(inputQueueLock.tryLock(300, TimeUnit.MILLISECONDS)){
-                ret = inputQueue.offer(pkt);
-                inputQueueLock.unlock();
-            }
-        } catch (InterruptedException e) {
-            Logger.logE(e.getMessage());
-        }
-        return ret;
+        PacketTracer.mark(pkt, PacketTrace.Stage.TUN_ENQUEUE);
+        return inputQueue.offer(pkt.retain());
     }
 
+    /**
+     * @return The queue of datagrams waiting to be written to the interface, for depth/drop/sojourn metrics.
+     */
+    public PacketQueue getInputQueue(){
+        return inputQueue;
+    }
+
+    /**
+     * Stop both threads, then close the interface. Waits up to {@link #TERMINATION_TIMEOUT_MS} for each thread to stop.
+     */
     public void terminate(){
         interfaceController.deactivate();
         readerThread.interrupt();
         writerThread.interrupt();
+        //Closed once unused: a read still running on a closed descriptor could land on a reused one.
+        awaitTermination(readerThread);
+        awaitTermination(writerThread);
+        if(!closed.compareAndSet(false, true)){
+            return;
+        }
         if(fd != null){
-            try {
-                fd.close();
-                fd = null;
-            } catch (IOException e) {
-                Logger.logE(e.getMessage());
-            }
+            close(fd);
+            fd = null;
+        }else{
+            close(inputStream);
+            close(outputStream);
         }
         active = false;
     }
 
-    private Thread createWriter(FileOutputStream fos){
+    private static void awaitTermination(Thread thread){
+        if(thread == Thread.currentThread()){
+            return;
+        }
+        try {
+            thread.join(TERMINATION_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(thread.isAlive()){
+            Logger.logE(thread.getName() + " still running after " + TERMINATION_TIMEOUT_MS + " ms");
+        }
+    }
+
+    private Thread createWriter(final OutputStream fos){
         return new Thread(){
             @Override
             public void run(){
-                byte buf[] = new byte[mtu];
+                Packet batch[] = new Packet[batchSize];
                 Logger.logI("VPN_fd_thread starting... interface active()?/"+interfaceController.isActive());
                 while (interfaceController.isActive()){
                     active = true;
@@ -98,53 +217,106 @@ public class VPNFDController {
                     if( (in + out) % 5000 <= 2){
                         //printStats();
                     }
-                    byte pkt[] = null;
-                    if(inputQueueLock.tryLock()) {
-                        if (inputQueue.peek() != null) {
-                            pkt = inputQueue.poll();
-                        }
-                        inputQueueLock.unlock();
+                    try {
+                        //Park until a datagram arrives, waking up periodically to notice deactivation.
+                        batch[0] = inputQueue.poll(WRITER_IDLE_CHECK_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if(batch[0] == null){
+                        continue;
                     }
-                    if(pkt != null){
-                        try {
-                            fos.write(pkt);
-                            fos.flush();
+                    int count = 1 + inputQueue.drainTo(batch, 1, batchSize - 1);
+                    boolean failed = false;
+                    try {
+                        //Each write must carry exactly one datagram; only the flush is shared by the batch.
+                        for(int i=0; i<count; i++){
+                            fos.write(batch[i].getData(), 0, batch[i].getLength());
                             in++;
-                        } catch (IOException e) {
-                            Logger.logE(e.getMessage());
-                            break;
+                            DatapathMetrics.tunTxBytes.add(batch[i].getLength());
+                            PacketTracer.complete(batch[i], PacketTrace.Stage.TUN_WRITE);
                         }
+                        fos.flush();
+                        DatapathMetrics.tunTxPkts.add(count);
+                        writeBatches++;
+                    } catch (IOException e) {
+                        Logger.logE(e.getMessage());
+                        failed = true;
+                    } finally {
+                        releaseAll(batch, count);
+                    }
+                    if(failed){
+                        break;
                     }
                 }
                 active = false;
+                inputQueue.clear();
                 Logger.logI("VPN_fd_thread terminating... ");
             }
         };
     }
 
-    private Thread createReader(FileInputStream fis){
+    private Thread createReader(final InputStream fis){
         return new Thread(){
             @Override
             public void run(){
-                byte buf[] = new byte[mtu];
+                PacketPool pool = PacketPool.getDefault();
+                PacketTracer tracer = PacketTracer.getDefault();
+                Packet batch[] = new Packet[batchSize];
+                long idleParkUs = 0;
                 Logger.logI("VPN_fd_thread: reader starting... interface active()?/"+interfaceController.isActive());
-                while (interfaceController.isActive()){
+                while (interfaceController.isActive() && !isInterrupted()){
                     active = true;
                     loopCounter++;
                     if( (in + out) % 5000 <= 2){
                         //printStats();
                     }
+                    int count = 0;
                     try {
-                        int len = fis.read(buf);
-                        if(len > 0){
-                            byte data[] = new byte[len];
-                            System.arraycopy(buf, 0, data, 0, len);
-                            interfaceController.send(data, false);
-                            out++;
+                        //Read a first datagram, then take whatever else is already available, up to a batch.
+                        do {
+                            //Read straight into a pooled packet: nothing is copied or allocated per datagram.
+                            Packet pkt = pool.acquire(mtu);
+                            int len;
+                            try {
+                                len = fis.read(pkt.getData(), 0, mtu);
+                            } catch (IOException e) {
+                                pkt.release();
+                                throw e;
+                            }
+                            if(len <= 0){
+                                pkt.release();
+                                if(len < 0){
+                                    throw new IOException("VPN interface closed");
+                                }
+                                break;
+                            }
+                            pkt.setLength(len);
+                            pkt.setIngressTs(System.nanoTime());
+                            tracer.sample(pkt, PacketTrace.Stage.TUN_READ, Packet.NULL_BD_ADDR);
+                            DatapathMetrics.tunRxBytes.add(len);
+                            batch[count++] = pkt.classify();
+                        } while (count < batchSize && available(fis) > 0);
+                        if(count > 0){
+                            send(batch, count);
+                            out += count;
+                            DatapathMetrics.tunRxPkts.add(count);
+                            readBatches++;
+                            idleParkUs = 0;
+                        }else{
+                            //Nothing to read: park, backing off while the interface stays idle.
+                            idleParkUs = Math.min(Math.max(idleParkUs * 2, MIN_IDLE_PARK_US), MAX_IDLE_PARK_US);
+                            TimeUnit.MICROSECONDS.sleep(idleParkUs);
                         }
+                    } catch (InterruptedException e) {
+                        break;
                     } catch (IOException e) {
-                        Logger.logE(e.getMessage());
-                        terminate();
+                        if(interfaceController.isActive()){
+                            Logger.logE(e.getMessage());
+                            terminate();
+                        }
+                    } finally {
+                        releaseAll(batch, count);
                     }
                 }
                 active = false;
@@ -153,12 +325,87 @@ public class VPNFDController {
         };
     }
 
+    /**
+     * Hand a batch of datagrams to the controller, applying the backpressure policy to those whose next hop is full.
+     * Datagrams keep their order: the rest of the batch waits while the reader pauses.
+     */
+    private void send(Packet batch[], int count){
+        int next = interfaceController.send(batch, count, false);
+        while (next < count){
+            Packet pkt = batch[next++];
+            if(backpressurePolicy != BackpressurePolicy.PAUSE || !pause(pkt)
+                    || interfaceController.send(pkt, false) == InterfaceController.SendResult.BACKPRESSURE){
+                DatapathMetrics.backpressureDrops.increment();
+            }
+            while (next < count && interfaceController.send(batch[next], false) != InterfaceController.SendResult.BACKPRESSURE){
+                next++;
+            }
+        }
+    }
+
+    /**
+     * Wait for the datagram's next hop to have room.
+     * @return True if it has room, false if the maximum pause elapsed first.
+     */
+    private boolean pause(Packet pkt){
+        long start = System.nanoTime();
+        DatapathMetrics.tunRxPauses.increment();
+        try {
+            return interfaceController.awaitCapacity(pkt, maxPauseMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            //Terminating: let the read loop notice.
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            DatapathMetrics.tunPause.recordSince(start);
+        }
+    }
+
+    private static int available(InputStream is){
+        try {
+            return is.available();
+        } catch (IOException e) {
+            //Not supported by this descriptor: read one datagram per batch.
+            return 0;
+        }
+    }
+
+    private static void releaseAll(Packet batch[], int count){
+        for(int i=0; i<count; i++){
+            batch[i].release();
+            batch[i] = null;
+        }
+    }
+
+    private static void close(Closeable closeable){
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Logger.logE(e.getMessage());
+        }
+    }
+
+    /**
+     * @return The average number of datagrams per read batch.
+     */
+    public float getAverageReadBatch(){
+        return readBatches == 0 ? 0 : (float) out / readBatches;
+    }
+
+    /**
+     * @return The average number of datagrams per write batch.
+     */
+    public float getAverageWriteBatch(){
+        return writeBatches == 0 ? 0 : (float) in / writeBatches;
+    }
+
     private void printStats(){
         long tsDiff = (SystemClock.uptimeMillis() - startTs)/1000;
         if(tsDiff == 0){
             return;
         }
-        Logger.logE(String.format("freq: %d/s, IN: %d pkts/s, OUT: %d pkts/s, inQueueSize: %d", loopCounter/tsDiff, in/tsDiff, out/tsDiff, inputQueue.size()));
+        Logger.logE(String.format("freq: %d/s, IN: %d pkts/s, OUT: %d pkts/s, batches: %.1f/%.1f, %s", loopCounter/tsDiff, in/tsDiff, out/tsDiff,
+                getAverageReadBatch(), getAverageWriteBatch(), inputQueue));
     }
 
     public boolean isAlive() {
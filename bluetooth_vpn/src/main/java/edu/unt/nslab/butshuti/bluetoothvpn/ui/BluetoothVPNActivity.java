@@ -19,12 +19,16 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
+
+import java.io.File;
 
 import edu.unt.nslab.butshuti.bluetoothvpn.R;
 import edu.unt.nslab.butshuti.bluetoothvpn.data.view_models.Repository;
 import edu.unt.nslab.butshuti.bluetoothvpn.ui.custom_views.ClickableView;
 import edu.unt.nslab.butshuti.bluetoothvpn.ui.fragments.ConnectivityGraphFragment;
 import edu.unt.nslab.butshuti.bluetoothvpn.ui.fragments.NetworkStatusFragment;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.GlobalExecutorService;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
 import edu.unt.nslab.butshuti.bluetoothvpn.vpn.BTVPNApplication;
 import edu.unt.nslab.butshuti.bluetoothvpn.vpn.BTVpnService;
@@ -150,6 +154,9 @@ public class BluetoothVPNActivity extends AppCompatActivity{
                 case R.id.nav_menu_item_traceroute:
                     runTraceroute();
                     break;
+                case R.id.nav_menu_item_export_packet_traces:
+                    exportPacketTraces();
+                    break;
                 case R.id.nav_menu_item_routing_peers:
                     configurePeers();
                     break;
@@ -194,6 +201,15 @@ public class BluetoothVPNActivity extends AppCompatActivity{
 
     }
 
+    private void exportPacketTraces(){
+        final BTVPNApplication app = (BTVPNApplication) getApplication();
+        GlobalExecutorService.submit(() -> {
+            File file = app.exportPacketTraces();
+            runOnUiThread(() -> Toast.makeText(this, file != null ? "Packet traces saved to " + file : "Failed to export packet traces",
+                    Toast.LENGTH_LONG).show());
+        }, "BluetoothVPNActivity#exportPacketTraces()");
+    }
+
     @Override
     public void onPointerCaptureChanged(boolean hasCapture) {
 
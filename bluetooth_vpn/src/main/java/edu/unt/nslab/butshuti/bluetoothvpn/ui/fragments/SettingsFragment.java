@@ -49,6 +49,8 @@ public final class SettingsFragment extends PreferenceFragmentCompat implements
             editor = editBoolean(editor, sharedPreferences, key);
         }else if(key.equals(getString(R.string.pref_key_routing_mode))){
             editor = editString(editor, sharedPreferences, key, "UNKNOWN");
+        }else if(key.equals(getString(R.string.pref_key_packet_trace_sampling))){
+            editor = editString(editor, sharedPreferences, key, "0");
         }
         editor.apply();
     }
@@ -0,0 +1,90 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils;
+
+import java.util.List;
+
+/**
+ * Thread-safe, copy-on-write variant of {@link LongObjectMap}, for tables read on every packet and rarely updated.
+ * <p>
+ *     Reads never lock: they see an immutable snapshot of the map.
+ *     Updates are serialized on this map and publish a modified copy.
+ *     Callers needing a read-modify-write sequence (e.g. conditional puts) can synchronize on the map around it.
+ * </p>
+ * @param <V> The value type.
+ */
+public class ConcurrentLongObjectMap<V> {
+    private volatile LongObjectMap<V> snapshot = new LongObjectMap<>();
+
+    public V get(long key){
+        return snapshot.get(key);
+    }
+
+    public boolean containsKey(long key){
+        return snapshot.containsKey(key);
+    }
+
+    /**
+     * @return The previous value for the key, or NULL.
+     */
+    public synchronized V put(long key, V value){
+        LongObjectMap<V> copy = new LongObjectMap<>(snapshot);
+        V prev = copy.put(key, value);
+        snapshot = copy;
+        return prev;
+    }
+
+    /**
+     * @return The removed value, or NULL.
+     */
+    public synchronized V remove(long key){
+        if(!snapshot.containsKey(key)){
+            return null;
+        }
+        LongObjectMap<V> copy = new LongObjectMap<>(snapshot);
+        V prev = copy.remove(key);
+        snapshot = copy;
+        return prev;
+    }
+
+    /**
+     * Remove a key only if it is mapped to the given value.
+     * @return True if the entry was removed.
+     */
+    public synchronized boolean remove(long key, V value){
+        if(snapshot.get(key) != value){
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    public synchronized void clear(){
+        snapshot = new LongObjectMap<>();
+    }
+
+    public int size(){
+        return snapshot.size();
+    }
+
+    public boolean isEmpty(){
+        return snapshot.isEmpty();
+    }
+
+    /**
+     * @return The keys at the time of the call.
+     */
+    public long[] keys(){
+        return snapshot.keys();
+    }
+
+    /**
+     * @return The values at the time of the call.
+     */
+    public List<V> values(){
+        return snapshot.values();
+    }
+
+    @Override
+    public String toString(){
+        return snapshot.toString();
+    }
+}
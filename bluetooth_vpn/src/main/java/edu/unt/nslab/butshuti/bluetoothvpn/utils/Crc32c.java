@@ -0,0 +1,140 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), as used by iSCSI and SCTP, computed 8 bytes at a time (slicing-by-8).
+ * <p>
+ *     {@link #newChecksum()} returns the platform's hardware-assisted {@code java.util.zip.CRC32C} when the runtime has it
+ *     (desktop Java 9+), and an instance of this class otherwise (Android). Both compute the same values.
+ *     {@link #copy(Checksum, byte[], int, byte[], int, int)} checksums data while copying it, in a single pass over the source
+ *     when this implementation is used.
+ * </p>
+ */
+public final class Crc32c implements Checksum {
+    private static final int POLY = 0x82F63B78; //Reflected Castagnoli polynomial
+    private static final int T0[] = new int[256], T1[] = new int[256], T2[] = new int[256], T3[] = new int[256],
+            T4[] = new int[256], T5[] = new int[256], T6[] = new int[256], T7[] = new int[256];
+    private static final Class<?> PLATFORM_CRC32C = findPlatformImplementation();
+
+    static {
+        int tables[][] = {T0, T1, T2, T3, T4, T5, T6, T7};
+        for(int i=0; i<256; i++){
+            int crc = i;
+            for(int bit=0; bit<8; bit++){
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            T0[i] = crc;
+        }
+        //tables[k][b]: the CRC of byte b followed by k zero bytes.
+        for(int k=1; k<8; k++){
+            for(int i=0; i<256; i++){
+                int prev = tables[k - 1][i];
+                tables[k][i] = (prev >>> 8) ^ T0[prev & 0xFF];
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    private static Class<?> findPlatformImplementation(){
+        try {
+            return Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return A CRC-32C checksum, hardware-assisted if the platform has one.
+     */
+    public static Checksum newChecksum(){
+        if(PLATFORM_CRC32C != null){
+            try {
+                return (Checksum) PLATFORM_CRC32C.newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                Logger.logW("Platform CRC32C unavailable: " + e);
+            }
+        }
+        return new Crc32c();
+    }
+
+    /**
+     * @return True if {@link #newChecksum()} returns the platform's implementation.
+     */
+    public static boolean isPlatformAccelerated(){
+        return PLATFORM_CRC32C != null;
+    }
+
+    /**
+     * @return The CRC-32C of a range of bytes, computed without allocating.
+     */
+    public static int compute(byte buf[], int offs, int len){
+        return ~update(0xFFFFFFFF, buf, offs, len, null, 0);
+    }
+
+    /**
+     * Copy bytes and add them to a checksum.
+     * <p>
+     *     With this class's implementation, the source is read once for both. Other checksums (e.g. the platform's intrinsic,
+     *     much faster than a Java loop) update over the copy, which is still in cache.
+     * </p>
+     */
+    public static void copy(Checksum sum, byte src[], int srcOffs, byte dst[], int dstOffs, int len){
+        if(sum instanceof Crc32c){
+            Crc32c crc32c = (Crc32c) sum;
+            crc32c.crc = update(crc32c.crc, src, srcOffs, len, dst, dstOffs);
+        }else{
+            System.arraycopy(src, srcOffs, dst, dstOffs, len);
+            sum.update(dst, dstOffs, len);
+        }
+    }
+
+    @Override
+    public void update(int b){
+        crc = (crc >>> 8) ^ T0[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte buf[], int offs, int len){
+        crc = update(crc, buf, offs, len, null, 0);
+    }
+
+    @Override
+    public long getValue(){
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset(){
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Slicing-by-8 update, copying the bytes to dst as they are read if dst is not NULL.
+     */
+    private static int update(int crc, byte src[], int offs, int len, byte dst[], int dstOffs){
+        int end = offs + len;
+        while (end - offs >= 8){
+            int lo = (src[offs] & 0xFF) | (src[offs + 1] & 0xFF) << 8 | (src[offs + 2] & 0xFF) << 16 | (src[offs + 3] & 0xFF) << 24;
+            int hi = (src[offs + 4] & 0xFF) | (src[offs + 5] & 0xFF) << 8 | (src[offs + 6] & 0xFF) << 16 | (src[offs + 7] & 0xFF) << 24;
+            if(dst != null){
+                for(int i=0; i<8; i++){
+                    dst[dstOffs + i] = src[offs + i];
+                }
+                dstOffs += 8;
+            }
+            lo ^= crc;
+            crc = T7[lo & 0xFF] ^ T6[(lo >>> 8) & 0xFF] ^ T5[(lo >>> 16) & 0xFF] ^ T4[lo >>> 24]
+                    ^ T3[hi & 0xFF] ^ T2[(hi >>> 8) & 0xFF] ^ T1[(hi >>> 16) & 0xFF] ^ T0[hi >>> 24];
+            offs += 8;
+        }
+        for(; offs < end; offs++){
+            if(dst != null){
+                dst[dstOffs++] = src[offs];
+            }
+            crc = (crc >>> 8) ^ T0[(crc ^ src[offs]) & 0xFF];
+        }
+        return crc;
+    }
+}
@@ -1,17 +1,111 @@
 package edu.unt.nslab.butshuti.bluetoothvpn.utils;
 
-import android.util.Log;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Logging facade.
+ * <p>
+ *     Messages below the current {@link Level} are dropped before any formatting: the parameterized overloads
+ *     (with "{}" placeholders) only build their message when it is actually logged, so disabled datapath logs cost a level check.
+ *     Arguments of primitive types are still boxed at the call site: per-packet call sites should check {@link #isLoggable(Level)} first.
+ *     The caller's class/method is only captured (which walks the stack) at or above the level set with {@link #setCallerTraceLevel(Level)}.
+ * </p>
+ * <p>
+ *     Per-packet logs can be rate-limited or sampled with a {@link Limiter}, arguments being computed only once admitted:
+ *     <pre>if(Logger.admit(Level.DEBUG, limiter)) Logger.log(Level.DEBUG, limiter, "{} => {}", src, dst);</pre>
+ *     Messages go to a pluggable {@link Sink}:
+ *     android.util.Log on devices, the standard streams on plain JVMs (simulations, benchmarks).
+ * </p>
+ */
 public class Logger {
-	private static String tag = Logger.class.getPackage().getName();
-	private static LogTracer logTracer = null;
-	static{
-		if(logTracer == null) {
-			synchronized (Logger.class) {
-				if (logTracer == null) {
-					logTracer = new LogTracer();
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, NONE
+	}
+
+	/**
+	 * Destination of log messages.
+	 */
+	public interface Sink {
+		void log(Level level, String tag, String msg);
+	}
+
+	/**
+	 * Admits a bounded share of the log messages of a call site: either up to a number of messages per interval, or one message out of N.
+	 * Suppressed messages are counted and reported with the next admitted one.
+	 */
+	public static final class Limiter {
+		private final int permits;
+		private final long intervalNs;
+		private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+		private final AtomicInteger admitted = new AtomicInteger(0);
+		private final AtomicInteger suppressed = new AtomicInteger(0);
+
+		private Limiter(int permits, long intervalNs){
+			if(permits <= 0){
+				throw new IllegalArgumentException("Invalid limit: " + permits);
+			}
+			this.permits = permits;
+			this.intervalNs = intervalNs;
+		}
+
+		/**
+		 * @return A limiter admitting up to the given number of messages per second.
+		 */
+		public static Limiter perSecond(int maxMessages){
+			return new Limiter(maxMessages, 1000000000L);
+		}
+
+		/**
+		 * @return A limiter admitting one message out of n.
+		 */
+		public static Limiter oneIn(int n){
+			return new Limiter(n, 0);
+		}
+
+		/**
+		 * @return True if the next message may be logged.
+		 */
+		public boolean allow(){
+			if(intervalNs == 0){
+				if(admitted.getAndIncrement() % permits == 0){
+					return true;
 				}
+				suppressed.incrementAndGet();
+				return false;
+			}
+			long now = System.nanoTime();
+			long start = windowStart.get();
+			if(now - start >= intervalNs && windowStart.compareAndSet(start, now)){
+				admitted.set(0);
+			}
+			if(admitted.incrementAndGet() <= permits){
+				return true;
 			}
+			suppressed.incrementAndGet();
+			return false;
+		}
+
+		/**
+		 * @return The number of messages suppressed since the last call.
+		 */
+		public int takeSuppressed(){
+			return suppressed.getAndSet(0);
+		}
+	}
+
+	private static volatile String tag = Logger.class.getPackage().getName();
+	private static volatile Level level = Level.DEBUG;
+	private static volatile Level callerTraceLevel = Level.ERROR;
+	private static volatile Sink sink = defaultSink();
+
+	private static Sink defaultSink(){
+		try {
+			Class.forName("android.util.Log");
+			return new AndroidSink();
+		} catch (ClassNotFoundException e) {
+			return new StreamSink();
 		}
 	}
 
@@ -21,29 +115,214 @@ public class Logger {
 		}
 	}
 
+	/**
+	 * Set the minimum level of logged messages.
+	 */
+	public static void setLevel(Level newLevel) {
+		if (newLevel != null) {
+			level = newLevel;
+		}
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * Set the minimum level of messages prefixed with their caller, {@link Level#NONE} to never walk the stack.
+	 */
+	public static void setCallerTraceLevel(Level newLevel) {
+		if (newLevel != null) {
+			callerTraceLevel = newLevel;
+		}
+	}
+
+	public static void setSink(Sink newSink) {
+		if (newSink != null) {
+			sink = newSink;
+		}
+	}
+
+	public static Sink getSink() {
+		return sink;
+	}
+
+	public static boolean isLoggable(Level msgLevel) {
+		return msgLevel.compareTo(level) >= 0 && msgLevel != Level.NONE;
+	}
+
+	public static boolean isDebugEnabled() {
+		return isLoggable(Level.DEBUG);
+	}
+
 	public static void logI(String s) {
-		Log.i(tag, s);
+		log(Level.INFO, s);
 	}
 
 	public static void logE(String s) {
-		Log.e(tag, logTracer.traceWithCaller(s));
+		log(Level.ERROR, s);
 	}
 
 	public static void logW(String s) {
-		Log.w(tag, s);
+		log(Level.WARN, s);
 	}
 
 	public static void logD(String s) {
-		Log.d(tag, logTracer.traceWithCaller(s));
+		log(Level.DEBUG, s);
+	}
+
+	public static void logI(String fmt, Object arg) {
+		if (isLoggable(Level.INFO)) {
+			emit(Level.INFO, format(fmt, arg, null, null, 1), null);
+		}
+	}
+
+	public static void logI(String fmt, Object arg1, Object arg2) {
+		if (isLoggable(Level.INFO)) {
+			emit(Level.INFO, format(fmt, arg1, arg2, null, 2), null);
+		}
+	}
+
+	public static void logI(String fmt, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(Level.INFO)) {
+			emit(Level.INFO, format(fmt, arg1, arg2, arg3, 3), null);
+		}
+	}
+
+	public static void logD(String fmt, Object arg) {
+		if (isLoggable(Level.DEBUG)) {
+			emit(Level.DEBUG, format(fmt, arg, null, null, 1), null);
+		}
+	}
+
+	public static void logD(String fmt, Object arg1, Object arg2) {
+		if (isLoggable(Level.DEBUG)) {
+			emit(Level.DEBUG, format(fmt, arg1, arg2, null, 2), null);
+		}
+	}
+
+	public static void logD(String fmt, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(Level.DEBUG)) {
+			emit(Level.DEBUG, format(fmt, arg1, arg2, arg3, 3), null);
+		}
+	}
+
+	public static void logW(String fmt, Object arg1, Object arg2) {
+		if (isLoggable(Level.WARN)) {
+			emit(Level.WARN, format(fmt, arg1, arg2, null, 2), null);
+		}
+	}
+
+	public static void logE(String fmt, Object arg) {
+		if (isLoggable(Level.ERROR)) {
+			emit(Level.ERROR, format(fmt, arg, null, null, 1), null);
+		}
+	}
+
+	public static void logE(String fmt, Object arg1, Object arg2) {
+		if (isLoggable(Level.ERROR)) {
+			emit(Level.ERROR, format(fmt, arg1, arg2, null, 2), null);
+		}
+	}
+
+	public static void logE(String fmt, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(Level.ERROR)) {
+			emit(Level.ERROR, format(fmt, arg1, arg2, arg3, 3), null);
+		}
+	}
+
+	/**
+	 * @return True if both the level and the limiter admit the next message of a rate-limited call site.
+	 */
+	public static boolean admit(Level msgLevel, Limiter limiter) {
+		return isLoggable(msgLevel) && limiter.allow();
+	}
+
+	/**
+	 * Log a message admitted by {@link #admit(Level, Limiter)}, reporting the messages the limiter suppressed since the last one.
+	 */
+	public static void log(Level msgLevel, Limiter limiter, String fmt, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(msgLevel)) {
+			emit(msgLevel, format(fmt, arg1, arg2, arg3, 3), limiter);
+		}
+	}
+
+	public static void log(Level msgLevel, String s) {
+		if (isLoggable(msgLevel)) {
+			emit(msgLevel, s, null);
+		}
+	}
+
+	private static void emit(Level msgLevel, String msg, Limiter limiter) {
+		if (limiter != null) {
+			int suppressed = limiter.takeSuppressed();
+			if (suppressed > 0) {
+				msg += " (" + suppressed + " similar messages suppressed)";
+			}
+		}
+		if (msgLevel.compareTo(callerTraceLevel) >= 0) {
+			msg = LogTracer.traceWithCaller(msg);
+		}
+		sink.log(msgLevel, tag, msg);
+	}
+
+	/**
+	 * Substitute up to count arguments for the "{}" placeholders of a pattern.
+	 */
+	private static String format(String fmt, Object arg1, Object arg2, Object arg3, int count) {
+		if (fmt == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder(fmt.length() + 32);
+		int offs = 0;
+		for (int i = 0; i < count; i++) {
+			int idx = fmt.indexOf("{}", offs);
+			if (idx < 0) {
+				break;
+			}
+			sb.append(fmt, offs, idx).append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+			offs = idx + 2;
+		}
+		return sb.append(fmt, offs, fmt.length()).toString();
+	}
+
+	private static class AndroidSink implements Sink {
+		@Override
+		public void log(Level level, String tag, String msg) {
+			switch (level) {
+				case DEBUG:
+					android.util.Log.d(tag, msg);
+					break;
+				case INFO:
+					android.util.Log.i(tag, msg);
+					break;
+				case WARN:
+					android.util.Log.w(tag, msg);
+					break;
+				default:
+					android.util.Log.e(tag, msg);
+			}
+		}
+	}
+
+	private static class StreamSink implements Sink {
+		@Override
+		public void log(Level level, String tag, String msg) {
+			(level.compareTo(Level.WARN) >= 0 ? System.err : System.out).println(level.name().charAt(0) + "/" + tag + ": " + msg);
+		}
 	}
 
 	private static class LogTracer {
-		private static final String traceWithCaller(String msg) {
+		private static String traceWithCaller(String msg) {
 			String caller = "";
-			//Called as CallingClass -> Logger -> LogTracer. We are interested in CallingClass.
+			//Skip the Logger frames: we are interested in the calling class.
 			StackTraceElement ste[] = new Throwable().getStackTrace();
-			if (ste != null && ste.length >= 4) {
-				caller = "[" + ste[3].getLineNumber() + "]" + ste[3].getClassName() + "#" + ste[3].getMethodName();
+			for (StackTraceElement frame : ste) {
+				String className = frame.getClassName();
+				if (!className.equals(Logger.class.getName()) && !className.startsWith(Logger.class.getName() + "$")) {
+					caller = "[" + frame.getLineNumber() + "]" + className + "#" + frame.getMethodName();
+					break;
+				}
 			}
 			return " > " + caller + "() : " + msg;
 		}
@@ -0,0 +1,206 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open-addressing hash map from primitive long keys to objects.
+ * <p>
+ *     Lookups neither box the key nor allocate, which keeps per-packet table lookups garbage-free.
+ *     This map is not thread-safe: callers sharing one across threads must synchronize access.
+ * </p>
+ * @param <V> The value type.
+ */
+public class LongObjectMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private long keys[];
+    private Object values[];
+    private boolean used[];
+    private int size = 0;
+
+    public LongObjectMap(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The expected number of entries.
+     */
+    public LongObjectMap(int capacity){
+        int slots = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1;
+        keys = new long[slots];
+        values = new Object[slots];
+        used = new boolean[slots];
+    }
+
+    /**
+     * Copy constructor.
+     * @param other The map to copy.
+     */
+    public LongObjectMap(LongObjectMap<V> other){
+        keys = other.keys.clone();
+        values = other.values.clone();
+        used = other.used.clone();
+        size = other.size;
+    }
+
+    private static int hash(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key){
+        int mask = keys.length - 1;
+        for(int idx = hash(key) & mask; used[idx]; idx = (idx + 1) & mask){
+            if(keys[idx] == key){
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key){
+        int idx = indexOf(key);
+        return idx < 0 ? null : (V) values[idx];
+    }
+
+    public boolean containsKey(long key){
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return The previous value for the key, or NULL.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value){
+        int mask = keys.length - 1;
+        int idx = hash(key) & mask;
+        for(; used[idx]; idx = (idx + 1) & mask){
+            if(keys[idx] == key){
+                V prev = (V) values[idx];
+                values[idx] = value;
+                return prev;
+            }
+        }
+        used[idx] = true;
+        keys[idx] = key;
+        values[idx] = value;
+        if(++size * 2 > keys.length){
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return The removed value, or NULL.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key){
+        int idx = indexOf(key);
+        if(idx < 0){
+            return null;
+        }
+        V prev = (V) values[idx];
+        deleteSlot(idx);
+        return prev;
+    }
+
+    /**
+     * Empty a slot, shifting back later entries of the same probe run so that lookups never stop early.
+     */
+    private void deleteSlot(int idx){
+        int mask = keys.length - 1;
+        int next = (idx + 1) & mask;
+        while (used[next]){
+            int home = hash(keys[next]) & mask;
+            //Move the entry into the hole unless its home slot lies cyclically in (idx, next].
+            if(idx <= next ? (home <= idx || home > next) : (home <= idx && home > next)){
+                keys[idx] = keys[next];
+                values[idx] = values[next];
+                idx = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[idx] = false;
+        values[idx] = null;
+        size--;
+    }
+
+    private void resize(int slots){
+        long oldKeys[] = keys;
+        Object oldValues[] = values;
+        boolean oldUsed[] = used;
+        keys = new long[slots];
+        values = new Object[slots];
+        used = new boolean[slots];
+        int mask = slots - 1;
+        for(int i=0; i<oldKeys.length; i++){
+            if(oldUsed[i]){
+                int idx = hash(oldKeys[i]) & mask;
+                while (used[idx]){
+                    idx = (idx + 1) & mask;
+                }
+                used[idx] = true;
+                keys[idx] = oldKeys[i];
+                values[idx] = oldValues[i];
+            }
+        }
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public void clear(){
+        Arrays.fill(used, false);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return A snapshot of the keys.
+     */
+    public long[] keys(){
+        long ret[] = new long[size];
+        int offs = 0;
+        for(int i=0; i<keys.length; i++){
+            if(used[i]){
+                ret[offs++] = keys[i];
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return A snapshot of the values.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values(){
+        List<V> ret = new ArrayList<>(size);
+        for(int i=0; i<keys.length; i++){
+            if(used[i]){
+                ret.add((V) values[i]);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("{");
+        for(int i=0; i<keys.length; i++){
+            if(used[i]){
+                if(sb.length() > 1){
+                    sb.append(", ");
+                }
+                sb.append(Long.toHexString(keys[i])).append('=').append(values[i]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
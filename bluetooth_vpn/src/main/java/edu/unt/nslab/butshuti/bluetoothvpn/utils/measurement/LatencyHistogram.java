@@ -0,0 +1,154 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds, with HDR-style log-linear buckets.
+ * <p>
+ *     Values below 64 get a bucket each. Above that, every power of two is split into 32 linear sub-buckets,
+ *     so a reported value is within about 3% of the recorded one, whatever its magnitude.
+ *     Values up to 2^40 ns (about 18 minutes) are tracked; larger ones land in the last bucket.
+ *     Recording is a few shifts and an atomic increment; {@link #snapshot()} copies the buckets for analysis off the datapath.
+ * </p>
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    private static int bucketOf(long value){
+        if(value < 2 * SUB_BUCKETS){
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int)(value >>> shift);
+    }
+
+    /**
+     * @return The smallest value counted in a bucket.
+     */
+    private static long lowestValueOf(int bucket){
+        if(bucket < 2 * SUB_BUCKETS){
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long)(bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return The largest value counted in a bucket.
+     */
+    private static long highestValueOf(int bucket){
+        return bucket + 1 < 2 * SUB_BUCKETS ? bucket : lowestValueOf(bucket + 1) - 1;
+    }
+
+    /**
+     * Record a latency.
+     * @param nanos The latency, in nanoseconds. Negative values are ignored.
+     */
+    public void record(long nanos){
+        if(nanos < 0){
+            return;
+        }
+        counts.incrementAndGet(bucketOf(Math.min(nanos, MAX_VALUE)));
+        total.addAndGet(nanos);
+        long cur;
+        while (nanos > (cur = max.get()) && !max.compareAndSet(cur, nanos)){
+            //Retry until the max is at least this value.
+        }
+    }
+
+    /**
+     * Record the time elapsed since a {@link System#nanoTime()} timestamp, if set (non-zero).
+     */
+    public void recordSince(long startNs){
+        if(startNs != 0){
+            record(System.nanoTime() - startNs);
+        }
+    }
+
+    public void reset(){
+        for(int i=0; i<BUCKETS; i++){
+            counts.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return A consistent-enough copy of the histogram: concurrent updates may be partially included.
+     */
+    public Snapshot snapshot(){
+        long copy[] = new long[BUCKETS];
+        long count = 0;
+        for(int i=0; i<BUCKETS; i++){
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, total.get(), max.get());
+    }
+
+    @Override
+    public String toString(){
+        return snapshot().toString();
+    }
+
+    /**
+     * An immutable copy of a histogram.
+     */
+    public static final class Snapshot {
+        private final long counts[];
+        private final long count, total, max;
+
+        private Snapshot(long counts[], long count, long total, long max){
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        public long getMaxNs(){
+            return max;
+        }
+
+        public long getMeanNs(){
+            return count == 0 ? 0 : total / count;
+        }
+
+        /**
+         * @param percentile The percentile, from 0 to 100.
+         * @return The latency below which the given share of the recorded latencies fall, in nanoseconds (0 if empty).
+         */
+        public long getPercentileNs(double percentile){
+            if(count == 0){
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+            long seen = 0;
+            for(int i=0; i<counts.length; i++){
+                seen += counts[i];
+                if(seen >= rank){
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("n=%d, mean=%dus, p50=%dus, p99=%dus, max=%dus", count, getMeanNs() / 1000,
+                    getPercentileNs(50) / 1000, getPercentileNs(99) / 1000, max / 1000);
+        }
+    }
+}
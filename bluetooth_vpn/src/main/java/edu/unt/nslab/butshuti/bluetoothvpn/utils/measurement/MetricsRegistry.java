@@ -0,0 +1,172 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named datapath metrics: counters, latency histograms and gauges.
+ * <p>
+ *     Metrics are created on first use and live as long as the registry.
+ *     Hot paths look their metrics up once and keep the references: updates then never lock or allocate.
+ *     {@link #snapshot()} reads everything into an immutable {@link Snapshot} for the UI or for logging.
+ * </p>
+ * <p>
+ *     Names are dotted paths, e.g. "tun.rx.pkts" or "peer.AA:BB:CC:DD:EE:FF.tx.bytes" (see {@link #peerMetric(String, String)}).
+ * </p>
+ */
+public class MetricsRegistry {
+
+    /**
+     * A value read at snapshot time, e.g. a queue depth.
+     */
+    public interface Gauge {
+        long read();
+    }
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, StripedCounter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry getDefault(){
+        return DEFAULT;
+    }
+
+    /**
+     * @return The name of a per-peer metric.
+     */
+    public static String peerMetric(String peerAddress, String metric){
+        return "peer." + peerAddress + "." + metric;
+    }
+
+    /**
+     * @return The counter with the given name, created if needed.
+     */
+    public StripedCounter counter(String name){
+        StripedCounter ret = counters.get(name);
+        if(ret == null){
+            StripedCounter created = new StripedCounter();
+            ret = counters.putIfAbsent(name, created);
+            if(ret == null){
+                ret = created;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The histogram with the given name, created if needed.
+     */
+    public LatencyHistogram histogram(String name){
+        LatencyHistogram ret = histograms.get(name);
+        if(ret == null){
+            LatencyHistogram created = new LatencyHistogram();
+            ret = histograms.putIfAbsent(name, created);
+            if(ret == null){
+                ret = created;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name (e.g. one left by a previous instance of a component).
+     */
+    public void gauge(String name, Gauge gauge){
+        gauges.put(name, gauge);
+    }
+
+    public void removeGauge(String name, Gauge gauge){
+        gauges.remove(name, gauge);
+    }
+
+    /**
+     * @return The current values of all metrics.
+     */
+    public Snapshot snapshot(){
+        Map<String, Long> values = new TreeMap<>();
+        for(Map.Entry<String, StripedCounter> entry : counters.entrySet()){
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        for(Map.Entry<String, Gauge> entry : gauges.entrySet()){
+            values.put(entry.getKey(), entry.getValue().read());
+        }
+        Map<String, LatencyHistogram.Snapshot> latencies = new TreeMap<>();
+        for(Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()){
+            latencies.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(System.currentTimeMillis(), values, latencies);
+    }
+
+    /**
+     * An immutable reading of a registry.
+     */
+    public static final class Snapshot {
+        private final long timestamp;
+        private final Map<String, Long> values;
+        private final Map<String, LatencyHistogram.Snapshot> latencies;
+
+        private Snapshot(long timestamp, Map<String, Long> values, Map<String, LatencyHistogram.Snapshot> latencies){
+            this.timestamp = timestamp;
+            this.values = Collections.unmodifiableMap(values);
+            this.latencies = Collections.unmodifiableMap(latencies);
+        }
+
+        /**
+         * @return The wall-clock time of the reading.
+         */
+        public long getTimestamp(){
+            return timestamp;
+        }
+
+        /**
+         * @return Counter and gauge values, sorted by name.
+         */
+        public Map<String, Long> getValues(){
+            return values;
+        }
+
+        /**
+         * @return A counter or gauge value, 0 if unknown.
+         */
+        public long getValue(String name){
+            Long ret = values.get(name);
+            return ret == null ? 0 : ret;
+        }
+
+        /**
+         * @return The sum of the values whose names start with a prefix (e.g. "drops.").
+         */
+        public long sum(String prefix){
+            long ret = 0;
+            for(Map.Entry<String, Long> entry : values.entrySet()){
+                if(entry.getKey().startsWith(prefix)){
+                    ret += entry.getValue();
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * @return Latency histograms, sorted by name.
+         */
+        public Map<String, LatencyHistogram.Snapshot> getLatencies(){
+            return latencies;
+        }
+
+        /**
+         * @return A latency histogram, or NULL if unknown.
+         */
+        public LatencyHistogram.Snapshot getLatency(String name){
+            return latencies.get(name);
+        }
+
+        @Override
+        public String toString(){
+            return "Metrics(" + values + ", " + latencies + ")";
+        }
+    }
+}
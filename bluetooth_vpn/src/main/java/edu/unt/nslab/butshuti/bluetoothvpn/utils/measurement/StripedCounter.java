@@ -0,0 +1,48 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter for hot paths updated from several threads.
+ * <p>
+ *     Increments are spread over padded stripes picked by thread, so concurrent writers rarely contend on one cache line;
+ *     {@link #sum()} adds the stripes up. This plays the role of java.util.concurrent.atomic.LongAdder, which needs API level 24.
+ * </p>
+ */
+public final class StripedCounter {
+    private static final int PADDING = 8; //Longs per stripe: one 64-byte cache line.
+    private static final int MAX_STRIPES = 16;
+    private static final int STRIPES = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1);
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripe(){
+        long id = Thread.currentThread().getId();
+        int h = (int)(id * 0x9E3779B97F4A7C15L >>> 32);
+        return (h & (STRIPES - 1)) * PADDING;
+    }
+
+    public void add(long delta){
+        cells.addAndGet(stripe(), delta);
+    }
+
+    public void increment(){
+        add(1);
+    }
+
+    /**
+     * @return The current total. Concurrent updates may or may not be included.
+     */
+    public long sum(){
+        long ret = 0;
+        for(int i=0; i<STRIPES; i++){
+            ret += cells.get(i * PADDING);
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString(){
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,138 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols;
+
+import java.nio.ByteBuffer;
+
+import static edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.AddressConversions.BD_ADDR_SIZE;
+
+/**
+ * Bluetooth device addresses packed into the low 48 bits of a long, most significant byte first
+ * (so "00:11:22:AA:BB:CC" is 0x001122AABBCCL).
+ * <p>
+ *     The datapath compares, hashes and stores addresses as primitive longs.
+ *     Strings are only produced at the edges (UI, logging, Android APIs) with {@link #toString(long)}.
+ * </p>
+ */
+public final class BDAddr {
+    /**
+     * The all-zero address, used by peers that do not know their own address yet.
+     */
+    public static final long NULL = 0L;
+
+    /**
+     * Marker for missing or malformed addresses: it lies outside the 48-bit range, so it never matches a real address.
+     */
+    public static final long INVALID = -1L;
+
+    private static final long MASK = 0xFFFFFFFFFFFFL;
+    private static final char[] DEC_TO_HEX = "0123456789ABCDEF".toCharArray();
+
+    private BDAddr(){}
+
+    /**
+     * @return True if the address is a real device address (neither {@link #NULL} nor {@link #INVALID}).
+     */
+    public static boolean isValid(long addr){
+        return addr != NULL && (addr & ~MASK) == 0;
+    }
+
+    /**
+     * Parse an address of the form "XX:XX:XX:XX:XX:XX".
+     * @param addr The address string.
+     * @return The packed address.
+     * @throws AddressConversions.InvalidBluetoothAdddressException If the string is not a well-formed address.
+     */
+    public static long fromString(String addr) throws AddressConversions.InvalidBluetoothAdddressException {
+        long ret = parse(addr);
+        if(ret == INVALID){
+            throw new AddressConversions.InvalidBluetoothAdddressException("Malformed BD_ADDR: " + addr);
+        }
+        return ret;
+    }
+
+    /**
+     * Parse an address without throwing.
+     * @param addr The address string.
+     * @return The packed address, or {@link #INVALID}.
+     */
+    public static long parse(String addr){
+        if(addr == null){
+            return INVALID;
+        }
+        long ret = 0;
+        int octets = 0, digits = 0, octet = 0;
+        for(int i=0; i<addr.length(); i++){
+            char c = addr.charAt(i);
+            if(c == ':'){
+                if(digits == 0 || octets == BD_ADDR_SIZE - 1){
+                    return INVALID;
+                }
+                ret = (ret << 8) | octet;
+                octets++;
+                digits = octet = 0;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if(digit < 0 || ++digits > 2){
+                return INVALID;
+            }
+            octet = (octet << 4) | digit;
+        }
+        if(digits == 0 || octets != BD_ADDR_SIZE - 1){
+            return INVALID;
+        }
+        return (ret << 8) | octet;
+    }
+
+    /**
+     * Format an address as "XX:XX:XX:XX:XX:XX" (upper case, as reported by Android).
+     */
+    public static String toString(long addr){
+        char ret[] = new char[3 * BD_ADDR_SIZE - 1];
+        for(int i=0; i<BD_ADDR_SIZE; i++){
+            int octet = (int)(addr >>> (8 * (BD_ADDR_SIZE - 1 - i))) & 0xFF;
+            if(i > 0){
+                ret[3 * i - 1] = ':';
+            }
+            ret[3 * i] = DEC_TO_HEX[octet >> 4];
+            ret[3 * i + 1] = DEC_TO_HEX[octet & 0x0F];
+        }
+        return new String(ret);
+    }
+
+    /**
+     * Read an address stored in {@link AddressConversions#BD_ADDR_SIZE} bytes, most significant byte first.
+     */
+    public static long read(byte buf[], int offs){
+        long ret = 0;
+        for(int i=0; i<BD_ADDR_SIZE; i++){
+            ret = (ret << 8) | (buf[offs + i] & 0xFF);
+        }
+        return ret;
+    }
+
+    /**
+     * Write an address as {@link AddressConversions#BD_ADDR_SIZE} bytes at the buffer's position, most significant byte first.
+     */
+    public static void write(long addr, ByteBuffer dst){
+        for(int i=BD_ADDR_SIZE - 1; i>=0; i--){
+            dst.put((byte)(addr >>> (8 * i)));
+        }
+    }
+
+    /**
+     * Write an address as {@link AddressConversions#BD_ADDR_SIZE} bytes at an offset, most significant byte first.
+     */
+    public static void write(long addr, byte dst[], int offs){
+        for(int i=0; i<BD_ADDR_SIZE; i++){
+            dst[offs + i] = (byte)(addr >>> (8 * (BD_ADDR_SIZE - 1 - i)));
+        }
+    }
+
+    public static byte[] toBytes(long addr){
+        byte ret[] = new byte[BD_ADDR_SIZE];
+        for(int i=0; i<BD_ADDR_SIZE; i++){
+            ret[i] = (byte)(addr >>> (8 * (BD_ADDR_SIZE - 1 - i)));
+        }
+        return ret;
+    }
+}
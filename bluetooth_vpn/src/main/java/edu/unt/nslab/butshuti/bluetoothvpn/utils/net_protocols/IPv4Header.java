@@ -0,0 +1,164 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols;
+
+/**
+ * Flyweight view over the header of an IPv4 datagram stored in a byte buffer.
+ * <p>
+ *     Fields are read straight from the buffer, and addresses are returned as ints (network order: the first octet is the most significant byte),
+ *     so nothing is allocated per datagram, unlike {@link InternetLayerHeaders#parseInetAddr(byte[], int)}.
+ *     A view can be re-pointed at another buffer with {@link #wrap(byte[], int)}; it is not thread-safe.
+ * </p>
+ */
+public final class IPv4Header {
+    public static final int MIN_HEADER_SIZE = InternetLayerHeaders.MIN_IP_PACKET_SIZE;
+    public static final int PROTO_ICMP = 1;
+    public static final int PROTO_TCP = 6;
+    public static final int PROTO_UDP = 17;
+    public static final int ECN_NOT_ECT = 0;
+    public static final int ECN_CE = 3;
+
+    private byte buf[];
+    private int length;
+    private int headerLength;
+
+    /**
+     * Point this view at a datagram.
+     * @param buf The buffer, holding the datagram from offset 0.
+     * @param length The datagram's length.
+     * @return True if the buffer holds an IPv4 header, in which case the getters may be used.
+     */
+    public boolean wrap(byte buf[], int length){
+        this.buf = buf;
+        this.length = length;
+        headerLength = 0;
+        if(buf == null || length < MIN_HEADER_SIZE || ((buf[0] >> 4) & 0x0F) != 4){
+            return false;
+        }
+        int ihl = (buf[0] & 0x0F) * 4;
+        if(ihl < MIN_HEADER_SIZE || ihl > length){
+            return false;
+        }
+        headerLength = ihl;
+        return true;
+    }
+
+    /**
+     * @return True if this view currently points at a valid IPv4 header.
+     */
+    public boolean isValid(){
+        return headerLength > 0;
+    }
+
+    public int getHeaderLength(){
+        return headerLength;
+    }
+
+    /**
+     * @return The total length announced in the header (which may differ from the buffer's datagram length).
+     */
+    public int getTotalLength(){
+        return ((buf[2] & 0xFF) << 8) | (buf[3] & 0xFF);
+    }
+
+    public int getDscp(){
+        return (buf[1] >> 2) & 0x3F;
+    }
+
+    /**
+     * @return The ECN field: {@link #ECN_NOT_ECT} if the transport does not support ECN, {@link #ECN_CE} if congestion was marked.
+     */
+    public int getEcn(){
+        return buf[1] & 0x03;
+    }
+
+    /**
+     * Mark the datagram as having experienced congestion (RFC 3168), updating the header checksum incrementally (RFC 1624).
+     * This is the only field the view writes.
+     * @return False if the datagram's transport is not ECN-capable, in which case nothing is changed.
+     */
+    public boolean markCongestionExperienced(){
+        int ecn = getEcn();
+        if(ecn == ECN_NOT_ECT){
+            return false;
+        }
+        if(ecn != ECN_CE){
+            int before = readShort(0);
+            buf[1] |= ECN_CE;
+            int sum = (~readShort(10) & 0xFFFF) + (~before & 0xFFFF) + readShort(0);
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+            int checksum = ~sum & 0xFFFF;
+            buf[10] = (byte)(checksum >> 8);
+            buf[11] = (byte)checksum;
+        }
+        return true;
+    }
+
+    public int getTtl(){
+        return buf[8] & 0xFF;
+    }
+
+    public int getProtocol(){
+        return buf[9] & 0xFF;
+    }
+
+    public int getSrcAddr(){
+        return readInt(12);
+    }
+
+    public int getDstAddr(){
+        return readInt(16);
+    }
+
+    /**
+     * @return True if the datagram is TCP or UDP, with its ports within the datagram.
+     */
+    public boolean hasPorts(){
+        int proto = getProtocol();
+        return (proto == PROTO_TCP || proto == PROTO_UDP) && length >= headerLength + 4;
+    }
+
+    /**
+     * @return The source port, or -1 if the datagram has no ports.
+     */
+    public int getSrcPort(){
+        return hasPorts() ? readShort(headerLength) : -1;
+    }
+
+    /**
+     * @return The destination port, or -1 if the datagram has no ports.
+     */
+    public int getDstPort(){
+        return hasPorts() ? readShort(headerLength + 2) : -1;
+    }
+
+    /**
+     * @return Both ports packed in an int (source port in the high half), or 0 if the datagram has no ports.
+     */
+    public int getPorts(){
+        return hasPorts() ? readInt(headerLength) : 0;
+    }
+
+    private int readShort(int offs){
+        return ((buf[offs] & 0xFF) << 8) | (buf[offs + 1] & 0xFF);
+    }
+
+    private int readInt(int offs){
+        return ((buf[offs] & 0xFF) << 24) | ((buf[offs + 1] & 0xFF) << 16) | ((buf[offs + 2] & 0xFF) << 8) | (buf[offs + 3] & 0xFF);
+    }
+
+    /**
+     * Format an int IPv4 address in dotted-quad notation.
+     */
+    public static String addrToString(int addr){
+        return ((addr >>> 24) & 0xFF) + "." + ((addr >>> 16) & 0xFF) + "." + ((addr >>> 8) & 0xFF) + "." + (addr & 0xFF);
+    }
+
+    @Override
+    public String toString(){
+        if(!isValid()){
+            return "IPv4Header(invalid)";
+        }
+        return String.format("IPv4Header(%s => %s, proto=%d, ttl=%d, len=%d)",
+                addrToString(getSrcAddr()), addrToString(getDstAddr()), getProtocol(), getTtl(), getTotalLength());
+    }
+}
@@ -38,7 +38,16 @@ public class InternetLayerHeaders {
     }
 
     public static AddressHeaders parseInetAddr(byte buf[]) throws InvalidDatagramException {
-        if(buf.length > MIN_IP_PACKET_SIZE){
+        return parseInetAddr(buf, buf.length);
+    }
+
+    /**
+     * Parse the addresses of a datagram stored at the start of a possibly larger buffer.
+     * @param buf The buffer.
+     * @param length The datagram's length.
+     */
+    public static AddressHeaders parseInetAddr(byte buf[], int length) throws InvalidDatagramException {
+        if(length > MIN_IP_PACKET_SIZE){
             try{
                 InetAddress from = InetAddress.getByAddress(new byte[]{buf[12], buf[13], buf[14], buf[15]});
                 InetAddress to = InetAddress.getByAddress(new byte[]{buf[16], buf[17], buf[18], buf[19]});
@@ -47,6 +56,6 @@ public class InternetLayerHeaders {
                 throw new InvalidDatagramException(e);
             }
         }
-        throw new InvalidDatagramException("Invalid IP pkt: length: " + buf.length);
+        throw new InvalidDatagramException("Invalid IP pkt: length: " + length);
     }
 }
@@ -19,6 +19,7 @@ import android.os.ParcelFileDescriptor;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -28,6 +29,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import edu.unt.nslab.butshuti.bluetoothvpn.BuildConfig;
 import edu.unt.nslab.butshuti.bluetoothvpn.R;
 import edu.unt.nslab.butshuti.bluetoothvpn.data.objects.Peer;
 import edu.unt.nslab.butshuti.bluetoothvpn.data.objects.ServiceStatusWrapper;
@@ -36,12 +38,14 @@ import edu.unt.nslab.butshuti.bluetoothvpn.discovery.SDConfig;
 import edu.unt.nslab.butshuti.bluetoothvpn.sockets.ServerBluetoothSockerAdaptor;
 import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.VPNFDController;
 import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.InterfaceController;
+import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.PacketTracer;
 import edu.unt.nslab.butshuti.bluetoothvpn.tunnel.RemoteInterfaceAdaptor;
 import edu.unt.nslab.butshuti.bluetoothvpn.sockets.BluetoothSocketWrappers;
 import edu.unt.nslab.butshuti.bluetoothvpn.sockets.ClientBluetoothSocketAdaptor;
 import edu.unt.nslab.butshuti.bluetoothvpn.ui.BluetoothVPNActivity;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.GlobalExecutorService;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.Logger;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
 import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.NetUtils;
 
 import static android.bluetooth.BluetoothAdapter.STATE_DISCONNECTED;
@@ -88,6 +92,7 @@ public class BTVPNApplication extends Application implements InterfaceController
     public static final int STATUS_UPDATE_EXPIRATION = 3000 ;
     public static final long MAX_PKT_COUNT = 30000;
     public static final int MTU = 512;
+    public static final String PACKET_TRACES_FILE = "packet_traces.csv";
     private final MutableLiveData<ServiceStatusWrapper> serviceStatusWrapper = new MutableLiveData<>();
 
     private BluetoothAdapter btAdapter;
@@ -119,6 +124,8 @@ public class BTVPNApplication extends Application implements InterfaceController
     @Override
     public void onCreate(){
         super.onCreate();
+        //Datapath traces are debug-level: release builds skip them, and their formatting.
+        Logger.setLevel(BuildConfig.DEBUG ? Logger.Level.DEBUG : Logger.Level.INFO);
         sdConfig = new SDConfig(getApplicationContext());
         notificationManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
         btStateBroadcastReceiver = getBTStateBroadcastReceiver();
@@ -196,7 +203,7 @@ public class BTVPNApplication extends Application implements InterfaceController
             if(pktCount >= MAX_PKT_COUNT){
                 pktCount = 0;
             }
-            return VPNFDController.deliver(pkt.getData());
+            return VPNFDController.deliver(pkt);
         }
         return false;
     }
@@ -284,6 +291,7 @@ public class BTVPNApplication extends Application implements InterfaceController
                 builder.addAddress(interfaceAddress[0], Integer.valueOf(interfaceAddress[1]));
                 builder.addRoute(config.getIpAddr(), config.prefixLen);
                 builder.setMtu(MTU);
+                //Non-blocking: a read blocked on the interface could not be woken up to terminate (see VPNFDController).
                 builder.setBlocking(false);
                 builder.setSession(String.format("Bluetooth VPN through %s", getConfiguredPeerName()));
                 builder.setConfigureIntent(configureIntent);
@@ -308,6 +316,23 @@ public class BTVPNApplication extends Application implements InterfaceController
         return serviceStatusWrapper;
     }
 
+    /**
+     * Write the retained packet traces to a CSV file in the app's storage.
+     * @return The file written, null on failure.
+     */
+    public File exportPacketTraces(){
+        File dir = getExternalFilesDir(null);
+        File file = new File(dir != null ? dir : getFilesDir(), PACKET_TRACES_FILE);
+        try {
+            PacketTracer.getDefault().exportCsv(file);
+            Logger.logI("Packet traces exported to " + file);
+            return file;
+        } catch (IOException e) {
+            Logger.logE("Failed to export packet traces: " + e.getMessage());
+            return null;
+        }
+    }
+
     private void scheduleStateTimers(){
         Runnable continuousDiscoveryTask = new Runnable() {
             @Override
@@ -338,6 +363,7 @@ public class BTVPNApplication extends Application implements InterfaceController
 
     private void refreshNetConfig(){
         sdConfig.refreshNetConfing();
+        PacketTracer.getDefault().setSampling(sdConfig.getPacketTraceSampling());
         if(sdConfig.isServerModeEnabled()){
             if(sdConfig.isClientModeEnabled()){
                 interfaceConfigMode = InterfaceConfigMode.ROUTER;
@@ -418,6 +444,7 @@ public class BTVPNApplication extends Application implements InterfaceController
         ssw.setHostName(getLocalBDAddr());
         ssw.setInterfaceAddress(getInterfaceAddress());
         ssw.setPktCount(pktCount);
+        ssw.setMetrics(MetricsRegistry.getDefault().snapshot());
         if(serverModeEnabled()){
             ssw.setStatus(getInterfaceAddress() != null ? Peer.Status.CONNECTED : Peer.Status.DISCONNECTED);
         }else{
@@ -598,6 +625,8 @@ public class BTVPNApplication extends Application implements InterfaceController
 
     private boolean refreshRouteInfo() {
         if(clientSocket != null && clientSocket.isConnected()){
+            //Reopen the extra channels to the peer that failed since.
+            clientBluetoothSocketAdaptor.refreshChannels();
             return clientBluetoothSocketAdaptor.isActive();
         }
         validatePeerConnections();
@@ -0,0 +1,178 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends frames with compact headers from one {@link MemoryWire} to another: encoding and decoding, the address
+ * contexts both ends keep, partial and malformed lengths, and the largest header.
+ */
+public class CompactHeaderTest {
+    private static final long SRC = BDAddr.parse("11:22:33:44:55:66");
+    private static final long DST = BDAddr.parse("AA:BB:CC:DD:EE:01");
+    private static final int COMPACT = WireInterface.FEATURE_COMPACT;
+    private static final int COMPACT_CRC = WireInterface.FEATURE_COMPACT | WireInterface.FEATURE_CRC32C;
+
+    private final Random random = new Random(42);
+
+    private Packet packet(long src, long dst, int length){
+        byte data[] = new byte[length];
+        random.nextBytes(data);
+        return new Packet(Packet.PROTOCOL_DATA, (byte) 7, src, dst, data);
+    }
+
+    private static void assertPacket(Packet expected, Packet actual){
+        assertNotNull(actual);
+        assertEquals(expected.getProtocol(), actual.getProtocol());
+        assertEquals(expected.getTtl(), actual.getTtl());
+        assertEquals(BDAddr.toString(expected.getSrcBDAddr()), BDAddr.toString(actual.getSrcBDAddr()));
+        assertEquals(BDAddr.toString(expected.getDstBDAddr()), BDAddr.toString(actual.getDstBDAddr()));
+        assertArrayEquals(Arrays.copyOf(expected.getData(), expected.getLength()), Arrays.copyOf(actual.getData(), actual.getLength()));
+    }
+
+    private static Packet readOne(MemoryWire receiver, byte frame[]) throws IOException {
+        receiver.feed(frame);
+        List<Packet> packets = receiver.readAll();
+        assertEquals(1, packets.size());
+        return packets.get(0);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        //Lengths on either side of the varint's 1, 2 and 3-byte encodings.
+        int lengths[] = {1, 127, 128, 1000, 16383, 16384, Short.MAX_VALUE};
+        for(int features : new int[]{COMPACT, COMPACT_CRC}){
+            MemoryWire sender = new MemoryWire(features), receiver = new MemoryWire(0);
+            for(int length : lengths){
+                Packet pkt = packet(SRC + length, DST, length);
+                byte frame[] = sender.frame(pkt);
+                assertTrue((frame[0] & WireInterface.FRAME_FLAG_COMPACT) != 0);
+                assertTrue(frame.length <= WireInterface.encodedSize(pkt, features));
+                assertPacket(pkt, readOne(receiver, frame));
+            }
+            assertEquals(0, receiver.getCorruptedFrames());
+        }
+    }
+
+    @Test
+    public void contextHitOmitsAddresses() throws IOException {
+        MemoryWire sender = new MemoryWire(COMPACT), receiver = new MemoryWire(0);
+        Packet first = packet(SRC, DST, 100), second = packet(SRC, DST, 100);
+        byte installing[] = sender.frame(first);
+        byte reusing[] = sender.frame(second);
+        assertEquals(installing.length - WireInterface.SUBFRAME_ADDRS_SIZE, reusing.length);
+        assertEquals(installing[2] & 0x7F, reusing[2]);
+        assertPacket(first, readOne(receiver, installing));
+        assertPacket(second, readOne(receiver, reusing));
+    }
+
+    @Test
+    public void unknownContextIsDropped() throws IOException {
+        MemoryWire sender = new MemoryWire(COMPACT), receiver = new MemoryWire(0);
+        sender.frame(packet(SRC, DST, 100));
+        //The receiver never got the frame installing the context: the next one cannot be addressed.
+        receiver.feed(sender.frame(packet(SRC, DST, 100)));
+        assertNull(receiver.readMultipartNext());
+        assertEquals(1, receiver.getCorruptedFrames());
+        //The stream is still in sync.
+        Packet other = packet(DST, SRC, 50);
+        assertPacket(other, readOne(receiver, sender.frame(other)));
+    }
+
+    @Test
+    public void unqueuedHeaderInstallsNothing() throws IOException {
+        MemoryWire sender = new MemoryWire(COMPACT), receiver = new MemoryWire(0);
+        Packet pkt = packet(SRC, DST, 100);
+        //Encoded, but never queued (e.g. the transmit buffer was full): the peer does not have the context.
+        byte dropped[] = sender.encode(pkt);
+        byte sent[] = sender.frame(pkt);
+        assertEquals(dropped.length, sent.length);
+        assertPacket(pkt, readOne(receiver, sent));
+    }
+
+    @Test
+    public void collidingPairReinstallsContext() throws IOException {
+        Packet first = packet(SRC, DST, 100);
+        //Find a pair sharing the first one's context: sending it evicts the first pair from the peer's table.
+        for(int i=1; i<=1 << 16; i++){
+            Packet other = packet(SRC, DST + i, 100);
+            MemoryWire sender = new MemoryWire(COMPACT), receiver = new MemoryWire(0);
+            byte installing[] = sender.frame(first);
+            byte evicting[] = sender.frame(other);
+            if(evicting[2] != installing[2]){
+                continue;
+            }
+            byte reinstalling[] = sender.frame(first);
+            assertEquals(installing.length, reinstalling.length);
+            assertEquals(installing[2], reinstalling[2]);
+            assertPacket(first, readOne(receiver, installing));
+            assertPacket(other, readOne(receiver, evicting));
+            assertPacket(first, readOne(receiver, reinstalling));
+            return;
+        }
+        fail("No colliding pair");
+    }
+
+    @Test
+    public void truncatedVarintWaitsForMoreBytes() throws IOException {
+        MemoryWire sender = new MemoryWire(COMPACT), receiver = new MemoryWire(0);
+        Packet pkt = packet(SRC, DST, 20000);
+        byte frame[] = sender.frame(pkt);
+        //Up to the first 2 bytes of the 3-byte length.
+        for(int i=1; i<=5; i++){
+            receiver.feed(frame, i - 1, 1);
+            assertNull(receiver.readMultipartNext());
+        }
+        receiver.feed(frame, 5, frame.length - 5);
+        assertPacket(pkt, receiver.readMultipartNext());
+        assertEquals(0, receiver.getCorruptedFrames());
+    }
+
+    @Test
+    public void overlongVarintIsRejected() {
+        MemoryWire receiver = new MemoryWire(0);
+        byte header[] = {(byte)(Packet.PROTOCOL_DATA | WireInterface.FRAME_FLAG_COMPACT), 1, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1, 0, 0, 0};
+        receiver.feed(header);
+        try {
+            receiver.readMultipartNext();
+            fail("Accepted a 4-byte length");
+        }catch (IOException e){
+            //Expected: the frame's end cannot be found.
+        }
+    }
+
+    @Test
+    public void largestHeader() throws IOException {
+        for(int features : new int[]{COMPACT, COMPACT_CRC}){
+            boolean crc = (features & WireInterface.FEATURE_CRC32C) != 0;
+            MemoryWire sender = new MemoryWire(features), receiver = new MemoryWire(0);
+            //A 3-byte length, installing a context, with the payload XOR: the largest header there is.
+            Packet pkt = packet(SRC, DST, Short.MAX_VALUE);
+            byte frame[] = sender.frame(pkt);
+            int headerSize = frame.length - pkt.getLength() - (crc ? WireInterface.CRC_TRAILER_SIZE : 0);
+            assertEquals(crc ? WireInterface.MAX_HEADER_SIZE - 2 : WireInterface.MAX_HEADER_SIZE, headerSize);
+            assertEquals(WireInterface.encodedSize(pkt, features) - (crc ? 2 : 0), frame.length);
+            //Several of them, in reads that do not line up with frames, fill the receive buffer past its end.
+            receiver.setReadSize(4093);
+            assertPacket(pkt, readOne(receiver, frame));
+            for(int i=0; i<4; i++){
+                Packet next = packet(SRC, DST + (i & 1), Short.MAX_VALUE);
+                assertPacket(next, readOne(receiver, sender.frame(next)));
+            }
+            assertEquals(0, receiver.getCorruptedFrames());
+        }
+    }
+}
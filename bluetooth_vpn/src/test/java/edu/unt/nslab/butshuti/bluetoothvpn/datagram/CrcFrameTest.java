@@ -0,0 +1,139 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Negotiates {@link WireInterface#FEATURE_CRC32C} with peers that do and do not support it, and feeds frames with
+ * corrupted payloads to a receiver.
+ */
+public class CrcFrameTest {
+    private static final long SRC = BDAddr.parse("11:22:33:44:55:66");
+    private static final long DST = BDAddr.parse("AA:BB:CC:DD:EE:01");
+
+    private final Random random = new Random(3);
+    private final int localFeatures = WireInterface.getLocalFeatures();
+
+    @After
+    public void tearDown(){
+        WireInterface.setLocalFeatures(localFeatures);
+    }
+
+    private Packet packet(int length){
+        byte data[] = new byte[length];
+        random.nextBytes(data);
+        return new Packet(Packet.PROTOCOL_DATA, (byte) 3, SRC, DST, data);
+    }
+
+    /**
+     * The offer a peer supporting some features sends.
+     */
+    private static Packet offerFrom(int peerFeatures){
+        int features = WireInterface.getLocalFeatures();
+        WireInterface.setLocalFeatures(peerFeatures);
+        try {
+            return WireInterface.createFeatureOffer();
+        } finally {
+            WireInterface.setLocalFeatures(features);
+        }
+    }
+
+    @Test
+    public void peerWithoutCrcGetsPlainFrames() throws IOException {
+        WireInterface.setLocalFeatures(WireInterface.FEATURES_ALL);
+        MemoryWire link = new MemoryWire(0), peer = new MemoryWire(0);
+        int peerFeatures = WireInterface.FEATURES_ALL & ~WireInterface.FEATURE_CRC32C;
+        assertEquals(peerFeatures, link.acceptFeatureOffer(offerFrom(peerFeatures)));
+        Packet pkt = packet(200);
+        byte frame[] = link.frame(pkt);
+        assertEquals(0, frame[0] & WireInterface.FRAME_FLAG_CRC32C);
+        peer.feed(frame);
+        List<Packet> received = peer.readAll();
+        assertEquals(1, received.size());
+        assertArrayEquals(pkt.getData(), Arrays.copyOf(received.get(0).getData(), received.get(0).getLength()));
+        //Without any offer, only legacy frames are sent.
+        MemoryWire fresh = new MemoryWire(0);
+        assertEquals(0, fresh.getTxFeatures());
+        assertEquals(WireInterface.encodedSize(pkt), fresh.frame(pkt).length);
+    }
+
+    @Test
+    public void crcIsOnlyUsedIfBothEndsSupportIt(){
+        WireInterface.setLocalFeatures(WireInterface.FEATURES_ALL);
+        MemoryWire link = new MemoryWire(0);
+        assertEquals(WireInterface.FEATURE_CRC32C, link.acceptFeatureOffer(offerFrom(WireInterface.FEATURE_CRC32C)));
+        Packet pkt = packet(200);
+        byte frame[] = link.frame(pkt);
+        assertTrue((frame[0] & WireInterface.FRAME_FLAG_CRC32C) != 0);
+        assertEquals(WireInterface.encodedSize(pkt, WireInterface.FEATURE_CRC32C), frame.length);
+        //This end does not support it: it is not used, whatever the peer offers.
+        WireInterface.setLocalFeatures(WireInterface.FEATURES_ALL & ~WireInterface.FEATURE_CRC32C);
+        assertEquals(0, link.acceptFeatureOffer(offerFrom(WireInterface.FEATURE_CRC32C)));
+        assertEquals(0, link.frame(pkt)[0] & WireInterface.FRAME_FLAG_CRC32C);
+    }
+
+    @Test
+    public void malformedOfferIsIgnored(){
+        MemoryWire link = new MemoryWire(WireInterface.FEATURE_CRC32C);
+        Packet offer = offerFrom(WireInterface.FEATURES_ALL);
+        offer.getData()[0] = 'X';
+        assertEquals(-1, link.acceptFeatureOffer(offer));
+        assertEquals(WireInterface.FEATURE_CRC32C, link.getTxFeatures());
+    }
+
+    @Test
+    public void flippedBitIsDroppedAndCounted() throws IOException {
+        int featureSets[] = {WireInterface.FEATURE_CRC32C, WireInterface.FEATURE_CRC32C | WireInterface.FEATURE_COMPACT};
+        for(int features : featureSets){
+            MemoryWire sender = new MemoryWire(features), receiver = new MemoryWire(0);
+            Packet first = packet(300), corrupted = packet(300), last = packet(300);
+            byte firstFrame[] = sender.frame(first), corruptedFrame[] = sender.frame(corrupted), lastFrame[] = sender.frame(last);
+            //A payload bit, then a trailer bit.
+            for(int offs : new int[]{corruptedFrame.length - WireInterface.CRC_TRAILER_SIZE - 100, corruptedFrame.length - 1}){
+                long dropped = receiver.getCorruptedFrames();
+                byte frame[] = corruptedFrame.clone();
+                frame[offs] ^= 0x10;
+                receiver.feed(firstFrame);
+                receiver.feed(frame);
+                receiver.feed(lastFrame);
+                List<Packet> received = receiver.readAll();
+                assertEquals(2, received.size());
+                assertArrayEquals(first.getData(), Arrays.copyOf(received.get(0).getData(), received.get(0).getLength()));
+                assertArrayEquals(last.getData(), Arrays.copyOf(received.get(1).getData(), received.get(1).getLength()));
+                assertEquals(dropped + 1, receiver.getCorruptedFrames());
+            }
+        }
+    }
+
+    @Test
+    public void crcCatchesWhatXorMisses() throws IOException {
+        //Swapping two 16-bit words keeps the XOR checksum: only the CRC tells the payload changed.
+        Packet pkt = packet(100);
+        for(int features : new int[]{0, WireInterface.FEATURE_CRC32C}){
+            MemoryWire sender = new MemoryWire(features), receiver = new MemoryWire(0);
+            byte frame[] = sender.frame(pkt);
+            int payloadOffs = WireInterface.PREAMBLE_SIZE;
+            for(int i=0; i<2; i++){
+                byte b = frame[payloadOffs + i];
+                frame[payloadOffs + i] = frame[payloadOffs + 2 + i];
+                frame[payloadOffs + 2 + i] = b;
+            }
+            assertFalse(Arrays.equals(pkt.getData(), Arrays.copyOfRange(frame, payloadOffs, payloadOffs + 100)));
+            receiver.feed(frame);
+            assertEquals(features == 0 ? 1 : 0, receiver.readAll().size());
+            assertEquals(features == 0 ? 0 : 1, receiver.getCorruptedFrames());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link WireInterface#readMultipartNext()} streams of frames cut at every byte, and streams long enough for its
+ * receive buffer to be compacted many times over, with frames straddling the point where it is.
+ */
+public class FrameParserTest {
+    private static final long SRC = BDAddr.parse("11:22:33:44:55:66");
+    private static final long DST = BDAddr.parse("AA:BB:CC:DD:EE:01");
+    private static final int FEATURE_SETS[] = {
+            0,
+            WireInterface.FEATURE_CRC32C,
+            WireInterface.FEATURE_COMPACT | WireInterface.FEATURE_CRC32C,
+            WireInterface.FEATURE_COMPRESSION
+    };
+
+    private final Random random = new Random(13);
+    private final List<Packet> sent = new ArrayList<>();
+    private final List<Integer> ends = new ArrayList<>();
+    private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+    private Packet packet(int length){
+        byte data[] = new byte[length];
+        if(random.nextBoolean()){
+            random.nextBytes(data);
+        }else{
+            //Compressible.
+            Arrays.fill(data, (byte) length);
+        }
+        return new Packet(Packet.PROTOCOL_DATA, (byte) 3, SRC, DST, data);
+    }
+
+    /**
+     * Append frames of up to maxLength bytes of payload, in every format, until the stream holds at least size bytes.
+     */
+    private void fill(int size, int maxLength){
+        MemoryWire senders[] = new MemoryWire[FEATURE_SETS.length];
+        for(int i=0; i<senders.length; i++){
+            senders[i] = new MemoryWire(FEATURE_SETS[i]);
+        }
+        while (stream.size() < size){
+            Packet pkt = packet(1 + random.nextInt(maxLength));
+            byte frame[] = senders[random.nextInt(senders.length)].frame(pkt);
+            stream.write(frame, 0, frame.length);
+            sent.add(pkt);
+            ends.add(stream.size());
+        }
+    }
+
+    private static void assertPacket(Packet expected, Packet actual){
+        assertNotNull(actual);
+        assertEquals(BDAddr.toString(expected.getSrcBDAddr()), BDAddr.toString(actual.getSrcBDAddr()));
+        assertEquals(BDAddr.toString(expected.getDstBDAddr()), BDAddr.toString(actual.getDstBDAddr()));
+        assertArrayEquals(Arrays.copyOf(expected.getData(), expected.getLength()), Arrays.copyOf(actual.getData(), actual.getLength()));
+    }
+
+    @Test
+    public void oneByteAtATime() throws IOException {
+        //Well over the receive buffer, so that frames also straddle its compaction.
+        fill(200000, 3000);
+        byte bytes[] = stream.toByteArray();
+        MemoryWire receiver = new MemoryWire(0);
+        int next = 0;
+        for(int i=0; i<bytes.length; i++){
+            receiver.feed(bytes, i, 1);
+            Packet pkt = receiver.readMultipartNext();
+            if(i + 1 == ends.get(next)){
+                assertPacket(sent.get(next), pkt);
+                next++;
+            }else{
+                assertNull("Byte " + i, pkt);
+            }
+        }
+        assertEquals(sent.size(), next);
+        assertEquals(0, receiver.getCorruptedFrames());
+    }
+
+    @Test
+    public void largeFramesAcrossCompaction() throws IOException {
+        //Frames up to the largest payload, so that the pending frame's start is often past the point where it must be moved.
+        fill(2000000, Short.MAX_VALUE);
+        byte bytes[] = stream.toByteArray();
+        for(int readSize : new int[]{997, 4096, 32771, Integer.MAX_VALUE}){
+            MemoryWire receiver = new MemoryWire(0);
+            receiver.setReadSize(readSize);
+            List<Packet> received = new ArrayList<>();
+            //Fed in uneven chunks, decoded as they come.
+            int offs = 0;
+            while (offs < bytes.length){
+                int len = Math.min(bytes.length - offs, 1 + random.nextInt(50000));
+                receiver.feed(bytes, offs, len);
+                offs += len;
+                received.addAll(receiver.readAll());
+            }
+            assertEquals("Read size " + readSize, sent.size(), received.size());
+            for(int i=0; i<sent.size(); i++){
+                assertPacket(sent.get(i), received.get(i));
+            }
+            assertEquals(0, receiver.getCorruptedFrames());
+        }
+        assertTrue(sent.size() > 100);
+    }
+}
@@ -0,0 +1,113 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Crc32c;
+
+/**
+ * One end of a link over an in-memory stream: frames are encoded the way a connection queues them, and the bytes fed
+ * to the receiving end are read back at most {@link #setReadSize(int) a given number} at a time.
+ */
+class MemoryWire extends WireInterface {
+    private final ByteArrayOutputStream input = new ByteArrayOutputStream();
+    private byte pending[] = new byte[0];
+    private int pendingPos = 0;
+    private int readSize = Integer.MAX_VALUE;
+    private final byte header[] = new byte[MAX_HEADER_SIZE];
+
+    /**
+     * @param features The features to send frames with, as if the peer offered them.
+     */
+    MemoryWire(int features){
+        acceptFeatureOffer(offer(features));
+    }
+
+    /**
+     * Build a peer's feature offer.
+     */
+    static Packet offer(int features){
+        byte data[] = new byte[7];
+        ByteBuffer.wrap(data).put((byte)'L').put((byte)'N').put((byte)1).putInt(features);
+        return new Packet(Packet.PROTOCOL_LINK_NEGOTIATION, (byte) 1, Packet.NULL_BD_ADDR, Packet.NULL_BD_ADDR, data);
+    }
+
+    void setReadSize(int readSize){
+        this.readSize = readSize;
+    }
+
+    /**
+     * Make bytes available to {@link #read(byte[], int, int)}.
+     */
+    void feed(byte bytes[], int offs, int len){
+        input.write(bytes, offs, len);
+    }
+
+    void feed(byte bytes[]){
+        feed(bytes, 0, bytes.length);
+    }
+
+    @Override
+    protected int read(byte buffer[], int offset, int max) {
+        if(pendingPos == pending.length){
+            pending = input.toByteArray();
+            pendingPos = 0;
+            input.reset();
+        }
+        int len = Math.min(Math.min(max, readSize), pending.length - pendingPos);
+        System.arraycopy(pending, pendingPos, buffer, offset, len);
+        pendingPos += len;
+        return len;
+    }
+
+    /**
+     * Encode a packet's frame, without queueing it: {@link #onHeaderQueued()} is left to the caller.
+     */
+    byte[] encode(Packet pkt){
+        return assemble(encodeHeader(pkt, header, 0, getTxFeatures()));
+    }
+
+    /**
+     * Encode and queue a packet's frame.
+     */
+    byte[] frame(Packet pkt){
+        byte frame[] = encode(pkt);
+        onHeaderQueued();
+        return frame;
+    }
+
+    /**
+     * Encode and queue the frame of a coalescer's packets.
+     */
+    byte[] frame(FrameCoalescer coalescer){
+        byte frame[] = assemble(coalescer.encodeHeader(this, header, 0, getTxFeatures()));
+        onHeaderQueued();
+        return frame;
+    }
+
+    private byte[] assemble(int headerSize){
+        boolean crc = (getTxFeatures() & FEATURE_CRC32C) != 0;
+        ByteBuffer frame = ByteBuffer.allocate(headerSize + getTxPayloadLength() + (crc ? CRC_TRAILER_SIZE : 0));
+        frame.put(header, 0, headerSize);
+        frame.put(getTxPayload(), getTxPayloadOffset(), getTxPayloadLength());
+        if(crc){
+            frame.putInt(Integer.reverseBytes(Crc32c.compute(getTxPayload(), getTxPayloadOffset(), getTxPayloadLength())));
+        }
+        return frame.array();
+    }
+
+    /**
+     * Decode every frame that can be from the bytes fed so far.
+     */
+    List<Packet> readAll() throws IOException {
+        List<Packet> packets = new ArrayList<>();
+        Packet pkt;
+        while ((pkt = readMultipartNext()) != null){
+            packets.add(pkt);
+        }
+        return packets;
+    }
+}
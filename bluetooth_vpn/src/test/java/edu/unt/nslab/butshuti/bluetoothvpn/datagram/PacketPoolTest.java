@@ -0,0 +1,148 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a pooled {@link Packet} goes back to its {@link PacketPool} exactly once, when its last reference is released.
+ */
+public class PacketPoolTest {
+    private final PacketPool pool = new PacketPool(256, 4);
+
+    @After
+    public void tearDown(){
+        pool.setLeakDetection(false);
+    }
+
+    /**
+     * @return True if pkt is back in the pool, and only once: consumes the pool's idle packets.
+     */
+    private boolean isIdle(Packet pkt){
+        Packet first = pool.acquire(1);
+        Packet second = pool.acquire(1);
+        assertNotSame(first, second);
+        return first == pkt;
+    }
+
+    @Test
+    public void lastReleaseRecycles(){
+        Packet pkt = pool.acquire(100);
+        assertTrue(pkt.isPooled());
+        pkt.retain().retain();
+        pkt.release();
+        pkt.release();
+        //Still referenced by its owner.
+        Packet other = pool.acquire(100);
+        assertNotSame(pkt, other);
+        other.release();
+        pkt.release();
+        assertTrue(isIdle(pkt));
+    }
+
+    @Test
+    public void recycledPacketsAreReset(){
+        Packet pkt = pool.acquire(100);
+        byte ttl = pkt.getTtl();
+        pkt.setProtocol(Packet.PROTOCOL_DATA + 1);
+        pkt.touchTTL();
+        pkt.setSrcBDAddr(BDAddr.parse("11:22:33:44:55:66"));
+        pkt.setDstBDAddr(BDAddr.parse("AA:BB:CC:DD:EE:01"));
+        pkt.setIngressTs(1234);
+        pkt.retain();
+        pkt.release();
+        pkt.release();
+        Packet reused = pool.acquire(40);
+        assertSame(pkt, reused);
+        assertEquals(40, reused.getLength());
+        assertEquals(Packet.PROTOCOL_DATA, reused.getProtocol());
+        assertEquals(ttl, reused.getTtl());
+        assertEquals(Packet.NULL_BD_ADDR, reused.getSrcBDAddr());
+        assertEquals(Packet.NULL_BD_ADDR, reused.getDstBDAddr());
+        assertEquals(0, reused.getIngressTs());
+        //A single reference again.
+        reused.release();
+        assertTrue(isIdle(pkt));
+    }
+
+    @Test
+    public void unpooledPacketsAreNotRecycled(){
+        Packet oversized = pool.acquire(pool.getBufferSize() + 1);
+        Packet wrapped = Packet.wrap(new byte[20]);
+        assertFalse(oversized.isPooled());
+        assertFalse(wrapped.isPooled());
+        oversized.release();
+        wrapped.release();
+        //Released too often, still without complaint.
+        wrapped.release();
+        Packet pkt = pool.acquire(1);
+        assertNotSame(oversized, pkt);
+        assertNotSame(wrapped, pkt);
+    }
+
+    @Test
+    public void overReleaseDoesNotRecycleTwice(){
+        Packet pkt = pool.acquire(100);
+        pkt.release();
+        //Logged, not returned to the pool again.
+        pkt.release();
+        assertTrue(isIdle(pkt));
+        pool.setLeakDetection(true);
+        pkt = pool.acquire(100);
+        pkt.release();
+        try{
+            pkt.release();
+            fail("Over-release not detected");
+        }catch (IllegalStateException e){
+            //Expected
+        }
+        assertTrue(pool.getLeaks().isEmpty());
+    }
+
+    @Test
+    public void concurrentRetainAndRelease() throws InterruptedException {
+        pool.setLeakDetection(true);
+        final Packet pkt = pool.acquire(100);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread threads[] = new Thread[4];
+        for(int i=0; i<threads.length; i++){
+            //Each thread holds a reference of its own while it churns others.
+            final Packet ref = pkt.retain();
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for(int j=0; j<100000; j++){
+                        ref.retain();
+                        ref.release();
+                    }
+                    ref.release();
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread : threads){
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(1, pool.getLeaks().size());
+        pkt.release();
+        assertTrue(pool.getLeaks().isEmpty());
+        assertTrue(isIdle(pkt));
+    }
+}
@@ -0,0 +1,204 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link PayloadCodec.Deflate} on its own, then compressed frames sent over a {@link MemoryWire}: what is counted,
+ * and how incompressible traffic backs compression off.
+ */
+public class PayloadCodecTest {
+    private static final long SRC = BDAddr.parse("11:22:33:44:55:66");
+    private static final long DST = BDAddr.parse("AA:BB:CC:DD:EE:01");
+    private static final byte REQUEST[] = ("GET /index.html HTTP/1.1\r\nHost: www.example.com\r\nAccept: */*\r\n"
+            + "Accept-Encoding: gzip, deflate\r\nConnection: keep-alive\r\n\r\n").getBytes(Charset.forName("ISO-8859-1"));
+
+    private final Random random = new Random(5);
+
+    /**
+     * A link counting its codec's compression attempts.
+     */
+    private static final class CountingWire extends MemoryWire {
+        private int attempts = 0;
+
+        CountingWire(int features){
+            super(features);
+        }
+
+        @Override
+        protected PayloadCodec createPayloadCodec(){
+            final PayloadCodec codec = super.createPayloadCodec();
+            return new PayloadCodec() {
+                @Override
+                public int compress(byte src[], int offs, int len, byte dst[], int dstOffs, int maxLen) {
+                    attempts++;
+                    return codec.compress(src, offs, len, dst, dstOffs, maxLen);
+                }
+
+                @Override
+                public int decompress(byte src[], int offs, int len, byte dst[], int dstOffs, int dstLen) {
+                    return codec.decompress(src, offs, len, dst, dstOffs, dstLen);
+                }
+
+                @Override
+                public void close() {
+                    codec.close();
+                }
+            };
+        }
+    }
+
+    private static Packet packet(byte data[]){
+        return new Packet(Packet.PROTOCOL_DATA, (byte) 3, SRC, DST, data.clone());
+    }
+
+    private byte[] noise(int length){
+        byte data[] = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static boolean isCompressed(byte frame[]){
+        return (frame[0] & WireInterface.FRAME_FLAG_COMPRESSED) != 0;
+    }
+
+    @Test
+    public void roundTrip(){
+        PayloadCodec codec = new PayloadCodec.Deflate();
+        byte compressed[] = new byte[REQUEST.length], decompressed[] = new byte[REQUEST.length + 10];
+        int size = codec.compress(REQUEST, 0, REQUEST.length, compressed, 0, compressed.length);
+        assertTrue(size > 0 && size < REQUEST.length);
+        assertEquals(REQUEST.length, codec.decompress(compressed, 0, size, decompressed, 5, REQUEST.length));
+        assertArrayEquals(REQUEST, Arrays.copyOfRange(decompressed, 5, 5 + REQUEST.length));
+        //Only the exact size is accepted.
+        assertEquals(-1, codec.decompress(compressed, 0, size, decompressed, 0, REQUEST.length - 1));
+        assertEquals(-1, codec.decompress(compressed, 0, size, decompressed, 0, REQUEST.length + 1));
+        //Truncated or garbled input.
+        assertEquals(-1, codec.decompress(compressed, 0, size - 2, decompressed, 0, REQUEST.length));
+        assertEquals(-1, codec.decompress(noise(size), 0, size, decompressed, 0, REQUEST.length));
+        codec.close();
+    }
+
+    @Test
+    public void givesUpWhenOutputDoesNotFit(){
+        PayloadCodec codec = new PayloadCodec.Deflate();
+        byte data[] = noise(500), dst[] = new byte[500];
+        assertEquals(-1, codec.compress(data, 0, data.length, dst, 0, data.length - 8));
+        //The codec is still usable.
+        assertTrue(codec.compress(REQUEST, 0, REQUEST.length, dst, 0, dst.length) > 0);
+        codec.close();
+    }
+
+    @Test
+    public void dictionaryShrinksSmallPayloads(){
+        Deflater plain = new Deflater(Deflater.BEST_SPEED, true);
+        plain.setInput(REQUEST);
+        plain.finish();
+        byte dst[] = new byte[1000];
+        int plainSize = plain.deflate(dst);
+        plain.end();
+        PayloadCodec codec = new PayloadCodec.Deflate();
+        int size = codec.compress(REQUEST, 0, REQUEST.length, dst, 0, dst.length);
+        assertTrue("With dictionary: " + size + ", without: " + plainSize, size < plainSize);
+        codec.close();
+    }
+
+    @Test
+    public void closedCodecDoesNothing(){
+        PayloadCodec codec = new PayloadCodec.Deflate();
+        byte compressed[] = new byte[REQUEST.length], decompressed[] = new byte[REQUEST.length];
+        int size = codec.compress(REQUEST, 0, REQUEST.length, compressed, 0, compressed.length);
+        codec.close();
+        codec.close();
+        assertEquals(-1, codec.compress(REQUEST, 0, REQUEST.length, compressed, 0, compressed.length));
+        assertEquals(-1, codec.decompress(compressed, 0, size, decompressed, 0, REQUEST.length));
+    }
+
+    @Test
+    public void compressedFramesRoundTrip() throws IOException {
+        int features = WireInterface.FEATURE_COMPRESSION | WireInterface.FEATURE_COMPACT | WireInterface.FEATURE_CRC32C;
+        MemoryWire sender = new MemoryWire(features), receiver = new MemoryWire(0);
+        Packet pkt = packet(REQUEST);
+        byte frame[] = sender.frame(pkt);
+        assertTrue(isCompressed(frame));
+        receiver.feed(frame);
+        List<Packet> received = receiver.readAll();
+        assertEquals(1, received.size());
+        assertArrayEquals(REQUEST, Arrays.copyOf(received.get(0).getData(), received.get(0).getLength()));
+    }
+
+    @Test
+    public void countsQueuedFramesOnce(){
+        MemoryWire sender = new MemoryWire(WireInterface.FEATURE_COMPRESSION);
+        Packet pkt = packet(REQUEST);
+        //Encoded, but not queued: nothing was sent.
+        byte frame[] = sender.encode(pkt);
+        assertTrue(isCompressed(frame));
+        assertEquals(0, sender.getCompressionInBytes());
+        //Encoded again once there is room, and queued.
+        frame = sender.frame(pkt);
+        assertEquals(REQUEST.length, sender.getCompressionInBytes());
+        assertEquals(frame.length - WireInterface.PREAMBLE_SIZE, sender.getCompressionOutBytes());
+        //Frames sent as they are do not count.
+        sender.frame(packet(noise(200)));
+        assertEquals(REQUEST.length, sender.getCompressionInBytes());
+    }
+
+    @Test
+    public void incompressibleTrafficBacksOff(){
+        CountingWire sender = new CountingWire(WireInterface.FEATURE_COMPRESSION);
+        //After n failures in a row, the next 2^n - 1 payloads are not tried, up to n = 6.
+        int tried[] = {0, 2, 6, 14, 30, 62, 126, 190};
+        int expected = 0;
+        for(int i=0; i<=tried[tried.length - 1]; i++){
+            assertFalse(isCompressed(sender.frame(packet(noise(200)))));
+            if(expected < tried.length && i == tried[expected]){
+                expected++;
+            }
+            assertEquals("Attempts after " + (i + 1) + " payloads", expected, sender.attempts);
+        }
+        //A payload that shrinks is only tried once the backoff is over, then compression resumes at once.
+        int skipped = 0;
+        while (!isCompressed(sender.frame(packet(REQUEST)))){
+            skipped++;
+        }
+        assertEquals(63, skipped);
+        int attempts = sender.attempts;
+        assertTrue(isCompressed(sender.frame(packet(REQUEST))));
+        assertTrue(isCompressed(sender.frame(packet(REQUEST))));
+        assertEquals(attempts + 2, sender.attempts);
+        //The failures are counted from the start again.
+        sender.frame(packet(noise(200)));
+        assertFalse(isCompressed(sender.frame(packet(REQUEST))));
+        assertTrue(isCompressed(sender.frame(packet(REQUEST))));
+        assertEquals(attempts + 4, sender.attempts);
+        //Payloads too small to be worth it are never tried.
+        sender.frame(packet(Arrays.copyOf(REQUEST, 20)));
+        assertEquals(attempts + 4, sender.attempts);
+    }
+
+    @Test
+    public void closedCodecsSendPlainFrames(){
+        CountingWire sender = new CountingWire(WireInterface.FEATURE_COMPRESSION);
+        assertTrue(isCompressed(sender.frame(packet(REQUEST))));
+        sender.closeCodecs();
+        assertFalse(isCompressed(sender.frame(packet(REQUEST))));
+        //A link closed before its first compressed frame does not create a live codec either.
+        CountingWire closed = new CountingWire(WireInterface.FEATURE_COMPRESSION);
+        closed.closeCodecs();
+        assertFalse(isCompressed(closed.frame(packet(REQUEST))));
+    }
+}
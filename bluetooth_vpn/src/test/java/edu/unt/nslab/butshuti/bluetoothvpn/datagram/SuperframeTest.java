@@ -0,0 +1,148 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.datagram;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packs packets into superframes with a {@link FrameCoalescer} and splits them back with {@link WireInterface#readMultipartNext()},
+ * in the legacy and compact formats.
+ */
+public class SuperframeTest {
+    private static final long LOCAL = BDAddr.parse("11:22:33:44:55:66");
+    private static final long PEER = BDAddr.parse("AA:BB:CC:DD:EE:01");
+    private static final long OTHER_PEER = BDAddr.parse("AA:BB:CC:DD:EE:02");
+    private static final int MTU = 1500;
+    private static final int FEATURE_SETS[] = {
+            WireInterface.FEATURE_SUPERFRAME,
+            WireInterface.FEATURE_SUPERFRAME | WireInterface.FEATURE_CRC32C,
+            WireInterface.FEATURE_SUPERFRAME | WireInterface.FEATURE_COMPACT | WireInterface.FEATURE_CRC32C
+    };
+
+    private final Random random = new Random(7);
+
+    /**
+     * Small packets of mixed sizes, in runs to the same destination.
+     */
+    private List<Packet> packets(int count){
+        List<Packet> packets = new ArrayList<>();
+        for(int i=0; i<count; i++){
+            byte data[] = new byte[40 + random.nextInt(60)];
+            random.nextBytes(data);
+            packets.add(new Packet(Packet.PROTOCOL_DATA, (byte)(1 + i), LOCAL, (i / 3) % 2 == 0 ? PEER : OTHER_PEER, data));
+        }
+        return packets;
+    }
+
+    private static void assertPackets(List<Packet> expected, List<Packet> actual){
+        assertEquals(expected.size(), actual.size());
+        for(int i=0; i<expected.size(); i++){
+            Packet pkt = expected.get(i), received = actual.get(i);
+            assertEquals(pkt.getProtocol(), received.getProtocol());
+            assertEquals(pkt.getTtl(), received.getTtl());
+            assertEquals(BDAddr.toString(pkt.getSrcBDAddr()), BDAddr.toString(received.getSrcBDAddr()));
+            assertEquals(BDAddr.toString(pkt.getDstBDAddr()), BDAddr.toString(received.getDstBDAddr()));
+            assertArrayEquals(Arrays.copyOf(pkt.getData(), pkt.getLength()), Arrays.copyOf(received.getData(), received.getLength()));
+        }
+    }
+
+    private static byte[] coalesce(MemoryWire sender, List<Packet> packets){
+        FrameCoalescer coalescer = new FrameCoalescer(MTU);
+        for(Packet pkt : packets){
+            assertTrue(coalescer.add(pkt));
+        }
+        assertEquals(packets.size(), coalescer.size());
+        return sender.frame(coalescer);
+    }
+
+    @Test
+    public void coalescesAndSplitsInOrder() throws IOException {
+        for(int features : FEATURE_SETS){
+            MemoryWire sender = new MemoryWire(features), receiver = new MemoryWire(0);
+            List<Packet> packets = packets(10);
+            byte frame[] = coalesce(sender, packets);
+            assertTrue((frame[0] & WireInterface.FRAME_FLAG_SUPERFRAME) != 0);
+            //One frame, smaller than the packets' own frames.
+            int separateSize = 0;
+            for(Packet pkt : packets){
+                separateSize += WireInterface.encodedSize(pkt, features);
+            }
+            assertTrue(frame.length < separateSize);
+            receiver.feed(frame);
+            assertPackets(packets, receiver.readAll());
+            assertEquals(0, receiver.getCorruptedFrames());
+        }
+    }
+
+    @Test
+    public void splitAcrossTwoReads() throws IOException {
+        for(int features : FEATURE_SETS){
+            MemoryWire sender = new MemoryWire(features);
+            List<Packet> packets = packets(6);
+            byte frame[] = coalesce(sender, packets);
+            //Split anywhere: in the header, in a sub-frame or in the trailer.
+            for(int split=1; split<frame.length; split++){
+                MemoryWire receiver = new MemoryWire(0);
+                receiver.feed(frame, 0, split);
+                assertTrue(receiver.readAll().isEmpty());
+                receiver.feed(frame, split, frame.length - split);
+                assertPackets(packets, receiver.readAll());
+                assertEquals(0, receiver.getCorruptedFrames());
+            }
+        }
+    }
+
+    @Test
+    public void backToBackSuperframes() throws IOException {
+        MemoryWire sender = new MemoryWire(WireInterface.FEATURE_SUPERFRAME | WireInterface.FEATURE_COMPACT), receiver = new MemoryWire(0);
+        List<Packet> first = packets(4), second = packets(5);
+        receiver.feed(coalesce(sender, first));
+        receiver.feed(coalesce(sender, second));
+        List<Packet> expected = new ArrayList<>(first);
+        expected.addAll(second);
+        assertPackets(expected, receiver.readAll());
+    }
+
+    @Test
+    public void fillsUpToFrameSize() throws IOException {
+        int features = WireInterface.FEATURE_SUPERFRAME | WireInterface.FEATURE_CRC32C;
+        MemoryWire sender = new MemoryWire(features), receiver = new MemoryWire(0);
+        FrameCoalescer coalescer = new FrameCoalescer(MTU);
+        List<Packet> added = new ArrayList<>();
+        for(Packet pkt : packets(100)){
+            if(!coalescer.add(pkt)){
+                break;
+            }
+            added.add(pkt);
+        }
+        assertTrue(added.size() > 1 && added.size() < 100);
+        byte frame[] = sender.frame(coalescer);
+        assertTrue("Superframe of " + frame.length + " bytes", frame.length <= MTU);
+        receiver.feed(frame);
+        assertPackets(added, receiver.readAll());
+    }
+
+    @Test
+    public void singlePacketIsPlainFrame() throws IOException {
+        for(int features : FEATURE_SETS){
+            MemoryWire sender = new MemoryWire(features), receiver = new MemoryWire(0);
+            List<Packet> packets = packets(1);
+            byte frame[] = coalesce(sender, packets);
+            assertFalse((frame[0] & WireInterface.FRAME_FLAG_SUPERFRAME) != 0);
+            assertTrue(frame.length <= WireInterface.encodedSize(packets.get(0), features));
+            receiver.feed(frame);
+            assertPackets(packets, receiver.readAll());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.simulation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs traffic over a lossless 3-node chain of multi-worker nodes: {@link SimNetwork#run(SimNetwork.Traffic)} must only
+ * return once every datagram has arrived, each having crossed the expected number of hops.
+ */
+public class SimNetworkTest {
+    private static final int PACKETS = 300;
+
+    private final SimNetwork net = new SimNetwork(1, 4);
+
+    @After
+    public void tearDown(){
+        net.shutdown();
+    }
+
+    @Test
+    public void chainDeliversEverything() throws InterruptedException {
+        List<SimNode> chain = net.addNodes(3);
+        SimNode a = chain.get(0), b = chain.get(1), c = chain.get(2);
+        net.connectChain(chain, new SimLink.Params(0, 2000, 500, 0));
+        net.installRoutes();
+        //Several flows, so that each node's workers share the load.
+        SimNetwork.Traffic traffic = new SimNetwork.Traffic(PACKETS, 200, 2000)
+                .addFlow(a, c).addFlow(c, a).addFlow(a, b).addFlow(b, c);
+        SimNetwork.Report report = net.run(traffic);
+        assertEquals(4 * PACKETS, report.getSent());
+        assertEquals(report.toString(), 4 * PACKETS, report.getDelivered());
+        assertEquals(0, report.getLinkLosses());
+        assertEquals(0, report.getLinkOverflows());
+        assertEquals(0, report.getLatency().getCount() - report.getDelivered());
+        //Only the datagrams between the ends go through the middle node, once each way.
+        assertEquals(2 * PACKETS, b.getRelayed());
+        assertEquals(0, a.getRelayed());
+        assertEquals(0, c.getRelayed());
+        assertEquals(2 * PACKETS, c.getDelivered());
+        assertEquals(PACKETS, a.getDelivered());
+        assertEquals(PACKETS, b.getDelivered());
+        //Nothing is left behind in any link.
+        for(SimLink link : net.getLinks()){
+            assertEquals(0, link.getInFlight());
+        }
+    }
+}
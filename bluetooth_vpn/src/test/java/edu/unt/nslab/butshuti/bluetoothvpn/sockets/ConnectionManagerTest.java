@@ -0,0 +1,267 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.sockets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Dials fake sockets through a {@link ConnectionManager}: parallel and serialized dials, backoff, and attempt timeouts.
+ */
+public class ConnectionManagerTest {
+    private static final int CHANNEL = 0;
+
+    private static final class FakeSocket implements Closeable {
+        private final String address;
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        private FakeSocket(String address){
+            this.address = address;
+        }
+
+        boolean isClosed(){
+            return closed.getCount() == 0;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    /**
+     * What connecting a fake socket does.
+     */
+    private interface Behavior {
+        void connect(FakeSocket socket) throws IOException, InterruptedException;
+    }
+
+    private static final Behavior SUCCEED = new Behavior() {
+        @Override
+        public void connect(FakeSocket socket) {
+        }
+    };
+
+    private static final Behavior FAIL = new Behavior() {
+        @Override
+        public void connect(FakeSocket socket) throws IOException {
+            throw new IOException("Connection refused by " + socket.address);
+        }
+    };
+
+    /**
+     * Never connects: only closing the socket aborts the attempt.
+     */
+    private static final Behavior HANG = new Behavior() {
+        @Override
+        public void connect(FakeSocket socket) throws IOException, InterruptedException {
+            socket.closed.await();
+            throw new IOException("Socket closed");
+        }
+    };
+
+    private final class FakeSocketFactory implements ConnectionManager.SocketFactory<FakeSocket> {
+        private final List<FakeSocket> created = new ArrayList<>();
+
+        @Override
+        public synchronized FakeSocket createSocket(String address, int channelIdx) {
+            FakeSocket socket = new FakeSocket(address);
+            created.add(socket);
+            return socket;
+        }
+
+        @Override
+        public void connect(FakeSocket socket) throws IOException {
+            try {
+                behavior.connect(socket);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+
+        synchronized FakeSocket last(){
+            return created.get(created.size() - 1);
+        }
+    }
+
+    private final FakeSocketFactory factory = new FakeSocketFactory();
+    private volatile Behavior behavior = SUCCEED;
+    private ConnectionManager<FakeSocket> manager;
+
+    @Before
+    public void setUp(){
+        manager = new ConnectionManager<>(factory);
+    }
+
+    @After
+    public void tearDown(){
+        manager.shutdown();
+    }
+
+    private static String address(int idx){
+        return String.format("AA:BB:CC:DD:EE:%02X", idx);
+    }
+
+    private void awaitBackoff(String address) throws InterruptedException {
+        long remaining;
+        while ((remaining = manager.getPeerState(address).getBackoffRemainingMs(CHANNEL)) > 0){
+            Thread.sleep(remaining);
+        }
+    }
+
+    @Test
+    public void dialsDifferentPeersInParallel() throws InterruptedException, ExecutionException {
+        final int peers = 4;
+        final CountDownLatch connecting = new CountDownLatch(peers);
+        //Each attempt only connects once all peers are being dialed.
+        behavior = new Behavior() {
+            @Override
+            public void connect(FakeSocket socket) throws IOException, InterruptedException {
+                connecting.countDown();
+                if(!connecting.await(5, TimeUnit.SECONDS)){
+                    throw new IOException("Dials serialized");
+                }
+            }
+        };
+        List<Future<FakeSocket>> dials = new ArrayList<>();
+        for(int i=0; i<peers; i++){
+            dials.add(manager.dial(address(i), CHANNEL, 10000));
+        }
+        for(int i=0; i<peers; i++){
+            assertEquals(address(i), dials.get(i).get().address);
+            assertEquals(1, manager.getPeerState(address(i)).getSuccesses());
+        }
+    }
+
+    @Test
+    public void serializesDialsToSamePeer() throws InterruptedException, ExecutionException {
+        final AtomicInteger connecting = new AtomicInteger(0), maxConnecting = new AtomicInteger(0);
+        behavior = new Behavior() {
+            @Override
+            public void connect(FakeSocket socket) throws InterruptedException {
+                int count = connecting.incrementAndGet();
+                maxConnecting.set(Math.max(maxConnecting.get(), count));
+                Thread.sleep(50);
+                connecting.decrementAndGet();
+            }
+        };
+        List<Future<FakeSocket>> dials = new ArrayList<>();
+        for(int i=0; i<4; i++){
+            dials.add(manager.dial(address(1), CHANNEL, 10000));
+        }
+        for(Future<FakeSocket> dial : dials){
+            assertNotNull(dial.get());
+        }
+        assertEquals(1, maxConnecting.get());
+        ConnectionManager.PeerState peer = manager.getPeerState(address(1));
+        assertEquals(4, peer.getAttempts());
+        assertEquals(4, peer.getSuccesses());
+    }
+
+    @Test
+    public void backoffGrowsAndResetsOnSuccess() throws IOException, InterruptedException {
+        manager.setAttemptTimeout(1000, 50);
+        manager.setBackoff(100, 1000);
+        String address = address(2);
+        behavior = FAIL;
+        for(int failures=1; failures<=4; failures++){
+            if(failures > 1){
+                awaitBackoff(address);
+            }
+            try {
+                //Room for one attempt: the next one would come after the backoff.
+                manager.connect(address, CHANNEL, 60);
+                fail("Connected to a refusing device");
+            }catch (ConnectionManager.BackoffException e){
+                //Expected
+            }
+            ConnectionManager.PeerState peer = manager.getPeerState(address);
+            assertEquals(failures, peer.getConsecutiveFailures(CHANNEL));
+            long backoff = 100 << (failures - 1);
+            long remaining = peer.getBackoffRemainingMs(CHANNEL);
+            assertTrue("Backoff " + remaining + " ms after " + failures + " failures", remaining > backoff / 2 - 20 && remaining <= backoff);
+        }
+        awaitBackoff(address);
+        behavior = SUCCEED;
+        assertNotNull(manager.connect(address, CHANNEL, 1000));
+        ConnectionManager.PeerState peer = manager.getPeerState(address);
+        assertEquals(0, peer.getConsecutiveFailures(CHANNEL));
+        assertEquals(0, peer.getBackoffRemainingMs(CHANNEL));
+        //The next failure backs off from the start again.
+        behavior = FAIL;
+        try {
+            manager.connect(address, CHANNEL, 60);
+            fail("Connected to a refusing device");
+        }catch (ConnectionManager.BackoffException e){
+            //Expected
+        }
+        assertEquals(1, peer.getConsecutiveFailures(CHANNEL));
+        assertTrue(peer.getBackoffRemainingMs(CHANNEL) <= 100);
+    }
+
+    @Test
+    public void attemptTimeoutClosesHangingSocket() throws InterruptedException {
+        manager.setAttemptTimeout(200, 50);
+        //Longer than the rest of the budget: one attempt only.
+        manager.setBackoff(2000, 2000);
+        behavior = HANG;
+        String address = address(3);
+        long start = System.currentTimeMillis();
+        try {
+            manager.connect(address, CHANNEL, 1000);
+            fail("Connected to a hanging device");
+        }catch (ConnectionManager.BackoffException e){
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }catch (IOException e){
+            fail("Unexpected error: " + e);
+        }
+        //Aborted at the attempt timeout, not at the end of the budget.
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Took " + elapsed + " ms", elapsed >= 200 && elapsed < 1000);
+        assertTrue(factory.last().isClosed());
+        assertEquals(1, manager.getPeerState(address).getConsecutiveFailures(CHANNEL));
+    }
+
+    @Test
+    public void budgetTruncatedAttemptIsNotAFailure() throws InterruptedException {
+        manager.setAttemptTimeout(1000, 100);
+        behavior = HANG;
+        String address = address(4);
+        try {
+            manager.connect(address, CHANNEL, 300);
+            fail("Connected to a hanging device");
+        }catch (IOException e){
+            assertTrue(e instanceof SocketTimeoutException);
+        }
+        assertTrue(factory.last().isClosed());
+        ConnectionManager.PeerState peer = manager.getPeerState(address);
+        assertEquals(1, peer.getAttempts());
+        assertEquals(0, peer.getFailures());
+        assertEquals(0, peer.getBackoffRemainingMs(CHANNEL));
+        //Too little budget for a useful attempt: none is made.
+        try {
+            manager.connect(address, CHANNEL, 50);
+            fail("Connected without an attempt");
+        }catch (IOException e){
+            assertTrue(e instanceof SocketTimeoutException);
+        }
+        assertEquals(1, peer.getAttempts());
+        assertFalse(peer.getBackoffRemainingMs(CHANNEL) > 0);
+    }
+}
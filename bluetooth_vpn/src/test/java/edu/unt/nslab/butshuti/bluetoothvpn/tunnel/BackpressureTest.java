@@ -0,0 +1,276 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link VPNFDController} reader against a peer with a small queue, drained at the test's pace:
+ * checks which datagrams each {@link VPNFDController.BackpressurePolicy} pauses for or drops, and the order the peer gets the others in.
+ */
+public class BackpressureTest {
+    private static final long LOCAL = BDAddr.parse("11:22:33:44:55:66");
+    private static final long PEER = BDAddr.parse("AA:BB:CC:DD:EE:01");
+    private static final int MTU = 1500;
+    private static final int PEER_CAPACITY = 4;
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * Numbered datagrams from local applications, one per read.
+     */
+    private static final class DatagramSource extends InputStream {
+        private int next = 0, end = 0;
+
+        synchronized void offer(int count){
+            end += count;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read(byte buffer[], int offset, int max) throws IOException {
+            try {
+                while (next == end){
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            }
+            byte datagram[] = datagram(next++);
+            System.arraycopy(datagram, 0, buffer, offset, datagram.length);
+            return datagram.length;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException("Datagrams only");
+        }
+
+        @Override
+        public synchronized int available() {
+            return next < end ? 100 : 0;
+        }
+    }
+
+    /**
+     * A peer queueing up to {@link #PEER_CAPACITY} datagrams, until the test takes them.
+     */
+    private static final class ThrottledPeer implements InterfaceController.FlowControlledListener {
+        private final List<Integer> queued = new ArrayList<>();
+        private final List<Integer> taken = new ArrayList<>();
+
+        @Override
+        public synchronized boolean hasCapacity(Packet pkt) {
+            return queued.size() < PEER_CAPACITY;
+        }
+
+        @Override
+        public synchronized boolean awaitCapacity(Packet pkt, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (queued.size() >= PEER_CAPACITY){
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if(remainingMs <= 0){
+                    return false;
+                }
+                wait(remainingMs);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean write(Packet pkt, boolean async) {
+            if(queued.size() >= PEER_CAPACITY){
+                return false;
+            }
+            queued.add(seq(pkt.getData()));
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Take the next queued datagram, waiting for it.
+         * @return False if none was queued in time.
+         */
+        synchronized boolean take(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (queued.isEmpty()){
+                long remainingMs = deadline - System.currentTimeMillis();
+                if(remainingMs <= 0){
+                    return false;
+                }
+                wait(remainingMs);
+            }
+            taken.add(queued.remove(0));
+            notifyAll();
+            return true;
+        }
+
+        synchronized List<Integer> drain(){
+            taken.addAll(queued);
+            queued.clear();
+            notifyAll();
+            return new ArrayList<>(taken);
+        }
+
+        synchronized int size(){
+            return queued.size();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public boolean isPrimary() {
+            return true;
+        }
+    }
+
+    private InterfaceController controller;
+    private VPNFDController vpn;
+    private final DatagramSource source = new DatagramSource();
+    private final ThrottledPeer peer = new ThrottledPeer();
+    private long pauses, drops;
+
+    @Before
+    public void setUp(){
+        controller = new InterfaceController(new InterfaceController.InterfaceConfigurationView() {
+            @Override
+            public String getLocalBDAddr() {
+                return BDAddr.toString(LOCAL);
+            }
+
+            @Override
+            public String getInterfaceAddress() {
+                return "10.0.0.1/24";
+            }
+
+            @Override
+            public void updateLocalBDAddr(String addr) {
+            }
+        }, 1);
+        controller.getBridge().addRoute(RoutingTable.addrToInt(datagram(0), 16), 32, PEER);
+        controller.registerRemoteDeliveryListener(PEER, "peer", peer);
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        };
+        vpn = new VPNFDController(source, sink, controller, MTU, PacketQueue.DEFAULT_CAPACITY, PacketQueue.DropPolicy.PRIORITY, BATCH_SIZE);
+        //The counters are shared: only count what this test adds.
+        pauses = DatapathMetrics.tunRxPauses.sum();
+        drops = DatapathMetrics.backpressureDrops.sum();
+    }
+
+    @After
+    public void tearDown(){
+        vpn.terminate();
+        controller.shutdown();
+    }
+
+    private static byte[] datagram(int seq){
+        byte data[] = new byte[100];
+        data[0] = 0x45;
+        data[9] = 17; //UDP
+        data[16] = 10;
+        data[19] = 3;
+        data[28] = (byte)(seq >> 8); //Sequence number, in the UDP payload
+        data[29] = (byte)seq;
+        return data;
+    }
+
+    private static int seq(byte data[]){
+        return ((data[28] & 0xFF) << 8) | (data[29] & 0xFF);
+    }
+
+    private long pauses(){
+        return DatapathMetrics.tunRxPauses.sum() - pauses;
+    }
+
+    private long drops(){
+        return DatapathMetrics.backpressureDrops.sum() - drops;
+    }
+
+    private void awaitDrops(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (drops() < count && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+        assertEquals(count, drops());
+    }
+
+    private void awaitQueued(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (peer.size() < count && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+        assertEquals(count, peer.size());
+    }
+
+    private static void assertSequence(int from, int to, List<Integer> received){
+        assertEquals(to - from, received.size());
+        for(int i=from; i<to; i++){
+            assertEquals(i, (int)received.get(i - from));
+        }
+    }
+
+    @Test
+    public void pauseDeliversEverythingInOrder() throws InterruptedException {
+        vpn.setBackpressurePolicy(VPNFDController.BackpressurePolicy.PAUSE, TimeUnit.SECONDS.toMillis(5));
+        vpn.start();
+        int count = 200;
+        source.offer(count);
+        for(int i=0; i<count; i++){
+            assertTrue("Datagram " + i + " not received", peer.take(5000));
+        }
+        assertSequence(0, count, peer.drain());
+        assertTrue("Reader never paused", pauses() > 0);
+        assertEquals(0, drops());
+    }
+
+    @Test
+    public void pauseDropsAfterMaxPause() throws InterruptedException {
+        vpn.setBackpressurePolicy(VPNFDController.BackpressurePolicy.PAUSE, 50);
+        vpn.start();
+        //The peer takes nothing: the datagrams past its queue are each held for the maximum pause, then dropped.
+        source.offer(PEER_CAPACITY + 2);
+        awaitDrops(2);
+        assertEquals(2, pauses());
+        assertSequence(0, PEER_CAPACITY, peer.drain());
+        //Once the peer has room, reading goes on where it stopped.
+        source.offer(PEER_CAPACITY);
+        awaitQueued(PEER_CAPACITY);
+        List<Integer> received = peer.drain();
+        assertSequence(PEER_CAPACITY + 2, 2 * PEER_CAPACITY + 2, received.subList(PEER_CAPACITY, received.size()));
+        assertEquals(2, drops());
+    }
+
+    @Test
+    public void dropNeverPauses() throws InterruptedException {
+        vpn.setBackpressurePolicy(VPNFDController.BackpressurePolicy.DROP, TimeUnit.SECONDS.toMillis(5));
+        vpn.start();
+        //A batch's worth: the peer's queue takes the first ones, the rest are dropped without waiting.
+        source.offer(BATCH_SIZE);
+        awaitDrops(BATCH_SIZE - PEER_CAPACITY);
+        assertEquals(0, pauses());
+        assertSequence(0, PEER_CAPACITY, peer.drain());
+        source.offer(PEER_CAPACITY);
+        awaitQueued(PEER_CAPACITY);
+        List<Integer> received = peer.drain();
+        assertSequence(BATCH_SIZE, BATCH_SIZE + PEER_CAPACITY, received.subList(PEER_CAPACITY, received.size()));
+        assertEquals(BATCH_SIZE - PEER_CAPACITY, drops());
+    }
+}
@@ -0,0 +1,224 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link RemoteInterfaceAdaptor.Connection}s over in-memory pipes: frames written on one end are decoded by the
+ * other end's reader and handed to the {@link InterfaceController}.
+ */
+public class ConnectionEventLoopTest {
+    private static final String LOCAL_ADDR = "11:22:33:44:55:66";
+    private static final String PEER_ADDR = "AA:BB:CC:DD:EE:01";
+    private static final int PIPE_SIZE = 1 << 16;
+
+    /**
+     * An adaptor opening connections over given transports.
+     */
+    private static final class PipeAdaptor extends RemoteInterfaceAdaptor {
+        private PipeAdaptor(InterfaceController interfaceController){
+            super(interfaceController);
+        }
+
+        private Connection open(StreamTransport transport){
+            Connection connection = new Connection(transport, this);
+            connection.start();
+            return connection;
+        }
+
+        @Override
+        public void startAdaptor() {
+        }
+
+        @Override
+        public void stopAdaptor() {
+        }
+    }
+
+    private InterfaceController controller;
+    private final List<Integer> delivered = new ArrayList<>();
+    private PipeAdaptor adaptor;
+
+    @Before
+    public void setUp(){
+        //Writes outpace the pipes: keep the egress queue management from dropping the backlog.
+        RemoteInterfaceAdaptor.setQueueDelayTarget(TimeUnit.SECONDS.toMicros(10), TimeUnit.SECONDS.toMicros(10));
+        controller = new InterfaceController(new InterfaceController.InterfaceConfigurationView() {
+            @Override
+            public String getLocalBDAddr() {
+                return LOCAL_ADDR;
+            }
+
+            @Override
+            public String getInterfaceAddress() {
+                return "3.3.1.1/16";
+            }
+
+            @Override
+            public void updateLocalBDAddr(String addr) {
+            }
+        }, 1);
+        controller.registerLocalDeliveryListener(new InterfaceController.LocalDatagramDeliveryListener() {
+            @Override
+            public boolean deliver(Packet pkt) {
+                synchronized (delivered){
+                    delivered.add(((pkt.getData()[28] & 0xFF) << 8) | (pkt.getData()[29] & 0xFF));
+                    delivered.notifyAll();
+                }
+                return true;
+            }
+        });
+        adaptor = new PipeAdaptor(controller);
+    }
+
+    @After
+    public void tearDown(){
+        RemoteInterfaceAdaptor.setQueueDelayTarget(EgressScheduler.DEFAULT_TARGET_US, EgressScheduler.DEFAULT_INTERVAL_US);
+        controller.shutdown();
+    }
+
+    private static Packet datagram(int seq){
+        return datagram(seq, 0);
+    }
+
+    /**
+     * @param flow The source port, telling flows apart.
+     */
+    private static Packet datagram(int seq, int flow){
+        byte data[] = new byte[300];
+        data[0] = 0x45;
+        data[9] = 17; //UDP
+        data[16] = 3;
+        data[17] = 3;
+        data[18] = 1;
+        data[19] = 1;
+        data[20] = (byte)(flow >> 8);
+        data[21] = (byte)flow;
+        data[28] = (byte)(seq >> 8); //Sequence number, in the UDP payload: one flow
+        data[29] = (byte)seq;
+        Packet pkt = Packet.wrap(data);
+        pkt.setDstBDAddr(BDAddr.parse(LOCAL_ADDR));
+        return pkt;
+    }
+
+    private void awaitDelivered(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (delivered){
+            while (delivered.size() < count && System.currentTimeMillis() < deadline){
+                delivered.wait(Math.max(deadline - System.currentTimeMillis(), 1));
+            }
+        }
+    }
+
+    @Test
+    public void deliversFramesInOrderOverPipes() throws IOException, InterruptedException {
+        PipedInputStream fromLocal = new PipedInputStream(PIPE_SIZE), fromPeer = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream toPeer = new PipedOutputStream(fromLocal), toLocal = new PipedOutputStream(fromPeer);
+        //The receiving end, connected to the peer, and the peer's end, connected back to this device.
+        RemoteInterfaceAdaptor.Connection receiving = adaptor.open(new StreamTransport.Streams(PEER_ADDR, fromLocal, toLocal));
+        RemoteInterfaceAdaptor.Connection sending = adaptor.open(new StreamTransport.Streams(LOCAL_ADDR, fromPeer, toPeer));
+        try {
+            int count = 2000;
+            for(int i=0; i<count; i++){
+                //Flow-controlled, as the VPN interface reader is: a full lane would push packets out.
+                Packet pkt = datagram(i);
+                assertTrue(sending.awaitCapacity(pkt, 5, TimeUnit.SECONDS));
+                assertTrue(sending.write(pkt, true));
+            }
+            awaitDelivered(count, 10000);
+            synchronized (delivered){
+                assertEquals(count, delivered.size());
+                for(int i=0; i<count; i++){
+                    assertEquals(i, (int)delivered.get(i));
+                }
+            }
+            assertTrue(receiving.isConnected());
+        }finally {
+            sending.shutdown();
+            receiving.shutdown();
+        }
+    }
+
+    @Test
+    public void failsOverFromClosedChannel() throws IOException, InterruptedException {
+        RemoteInterfaceAdaptor.Connection sending[] = new RemoteInterfaceAdaptor.Connection[2];
+        RemoteInterfaceAdaptor.Connection receiving[] = new RemoteInterfaceAdaptor.Connection[2];
+        ChannelGroup group = new ChannelGroup(BDAddr.parse(LOCAL_ADDR));
+        for(int i=0; i<2; i++){
+            PipedInputStream fromLocal = new PipedInputStream(PIPE_SIZE), fromPeer = new PipedInputStream(PIPE_SIZE);
+            PipedOutputStream toPeer = new PipedOutputStream(fromLocal), toLocal = new PipedOutputStream(fromPeer);
+            receiving[i] = adaptor.open(new StreamTransport.Streams(PEER_ADDR, fromLocal, toLocal));
+            sending[i] = adaptor.open(new StreamTransport.Streams(LOCAL_ADDR, fromPeer, toPeer));
+            group.add(sending[i]);
+        }
+        try {
+            //Closed, but still a member: its flows must move to the other channel on the next write.
+            sending[0].shutdown();
+            assertFalse(sending[0].isConnected());
+            int count = 200;
+            for(int i=0; i<count; i++){
+                Packet pkt = datagram(i, i);
+                assertTrue(group.awaitCapacity(pkt, 5, TimeUnit.SECONDS));
+                assertTrue(group.write(pkt, true));
+            }
+            awaitDelivered(count, 10000);
+            synchronized (delivered){
+                assertEquals(count, delivered.size());
+            }
+            assertEquals(1, group.size());
+            assertTrue(group.contains(sending[1]));
+            //Nor does the closed channel join the peer's group again.
+            assertFalse(controller.getChannelGroup(BDAddr.parse(LOCAL_ADDR)).contains(sending[0]));
+        }finally {
+            for(int i=0; i<2; i++){
+                sending[i].shutdown();
+                receiving[i].shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void invalidatesConnectionWhenStreamCloses() throws IOException, InterruptedException {
+        final CountDownLatch failed = new CountDownLatch(1);
+        controller.registerEventListener(new InterfaceController.NetworkEventListener() {
+            @Override
+            public void notifyIrrecoverableException(String channelID, String remotePeerAddress) {
+                if(PEER_ADDR.equals(remotePeerAddress)){
+                    failed.countDown();
+                }
+            }
+
+            @Override
+            public void onNewConnection(String channelID, String remotePeerAddress) {
+            }
+        });
+        PipedInputStream fromPeer = new PipedInputStream(PIPE_SIZE), fromLocal = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream toLocal = new PipedOutputStream(fromPeer);
+        PipedOutputStream toPeer = new PipedOutputStream(fromLocal);
+        RemoteInterfaceAdaptor.Connection connection = adaptor.open(new StreamTransport.Streams(PEER_ADDR, fromPeer, toPeer));
+        long peer = BDAddr.parse(PEER_ADDR);
+        assertTrue(controller.getChannelGroup(peer).contains(connection));
+        //The peer hangs up: the reader fails, and the event loop invalidates the connection.
+        toLocal.close();
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        assertFalse(connection.isConnected());
+        assertNull(controller.getChannelGroup(peer));
+    }
+}
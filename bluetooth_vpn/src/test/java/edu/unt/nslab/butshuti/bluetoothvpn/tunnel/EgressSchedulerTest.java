@@ -0,0 +1,349 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketPool;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.TrafficClass;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.IPv4Header;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the order in which an {@link EgressScheduler} hands packets out: priority between classes, deficit round robin
+ * between the flows of a class, and which packet goes when a lane is full. Then CoDel's drops and marks, on a clock
+ * the test moves.
+ */
+public class EgressSchedulerTest {
+    private static final int DSCP_EF = 46;
+    private static final int ECT_0 = 2;
+    private static final long NO_AQM_US = TimeUnit.HOURS.toMicros(1);
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final class ManualClock implements EgressScheduler.Clock {
+        long now = TimeUnit.SECONDS.toNanos(1000);
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    private final PacketPool pool = new PacketPool(PacketPool.DEFAULT_BUFFER_SIZE, 16);
+
+    /**
+     * A UDP datagram numbered in its payload.
+     * @param port The source port, telling flows apart.
+     */
+    private Packet datagram(int length, int port, int dscp, int seq){
+        Packet pkt = pool.acquire(length);
+        byte data[] = pkt.getData();
+        Arrays.fill(data, 0, length, (byte) 0);
+        data[0] = 0x45;
+        data[1] = (byte)(dscp << 2);
+        data[2] = (byte)(length >> 8);
+        data[3] = (byte) length;
+        data[9] = 17; //UDP
+        data[12] = 10;
+        data[15] = 1;
+        data[16] = 10;
+        data[19] = 2;
+        data[20] = (byte)(port >> 8);
+        data[21] = (byte) port;
+        data[28] = (byte)(seq >> 8);
+        data[29] = (byte) seq;
+        pkt.setLength(length);
+        return pkt;
+    }
+
+    private static int port(Packet pkt){
+        return ((pkt.getData()[20] & 0xFF) << 8) | (pkt.getData()[21] & 0xFF);
+    }
+
+    private static int seq(Packet pkt){
+        return ((pkt.getData()[28] & 0xFF) << 8) | (pkt.getData()[29] & 0xFF);
+    }
+
+    private Packet control(int seq){
+        Packet pkt = datagram(40, 0, 0, seq);
+        pkt.setProtocol(Packet.PROTOCOL_PROXIMITY);
+        return pkt;
+    }
+
+    private static EgressScheduler scheduler(int dataCapacity){
+        EgressScheduler scheduler = new EgressScheduler(EgressScheduler.DEFAULT_CONTROL_CAPACITY, dataCapacity, EgressScheduler.DEFAULT_FLOWS, EgressScheduler.DEFAULT_QUANTUM);
+        //Ordering only: CoDel out of the way, however slow the test runs.
+        scheduler.setTarget(NO_AQM_US, NO_AQM_US);
+        return scheduler;
+    }
+
+    /**
+     * Find a source port whose flow does not share a bucket with the given one's.
+     */
+    private int otherFlowPort(int port, int length, int dscp){
+        Packet pkt = datagram(length, port, dscp, 0);
+        int bucket = EgressScheduler.flowHash(pkt) & (EgressScheduler.DEFAULT_FLOWS - 1);
+        pkt.release();
+        for(int other = port + 1; ; other++){
+            pkt = datagram(length, other, dscp, 0);
+            int otherBucket = EgressScheduler.flowHash(pkt) & (EgressScheduler.DEFAULT_FLOWS - 1);
+            pkt.release();
+            if(otherBucket != bucket){
+                return other;
+            }
+        }
+    }
+
+    @Test
+    public void classesAreServedInPriorityOrder(){
+        EgressScheduler scheduler = scheduler(EgressScheduler.DEFAULT_DATA_CAPACITY);
+        for(int i=0; i<100; i++){
+            assertTrue(scheduler.offer(datagram(1400, 1000, 0, i)));
+        }
+        for(int i=0; i<10; i++){
+            assertTrue(scheduler.offer(datagram(64, 2000, 0, i)));
+        }
+        assertTrue(scheduler.offer(control(0)));
+        assertEquals(100, scheduler.size(TrafficClass.BULK));
+        assertEquals(10, scheduler.size(TrafficClass.INTERACTIVE));
+        //Control first, though it came last; then the small packets ahead of the bulk backlog.
+        Packet pkt = scheduler.poll();
+        assertEquals(Packet.PROTOCOL_PROXIMITY, pkt.getProtocol());
+        pkt.release();
+        for(int i=0; i<10; i++){
+            pkt = scheduler.poll();
+            assertEquals(TrafficClass.INTERACTIVE, TrafficClass.of(pkt));
+            assertEquals(i, seq(pkt));
+            pkt.release();
+        }
+        //Interactive packets arriving while the bulk flow drains go next, each time.
+        for(int i=0; i<5; i++){
+            pkt = scheduler.poll();
+            assertEquals(TrafficClass.BULK, TrafficClass.of(pkt));
+            pkt.release();
+            scheduler.offer(datagram(64, 2000, 0, 10 + i));
+            scheduler.offer(control(1 + i));
+            pkt = scheduler.poll();
+            assertEquals(Packet.PROTOCOL_PROXIMITY, pkt.getProtocol());
+            assertEquals(1 + i, seq(pkt));
+            pkt.release();
+            pkt = scheduler.poll();
+            assertEquals(TrafficClass.INTERACTIVE, TrafficClass.of(pkt));
+            assertEquals(10 + i, seq(pkt));
+            pkt.release();
+        }
+        scheduler.close();
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void controlPacketsStayInOrder(){
+        EgressScheduler scheduler = scheduler(EgressScheduler.DEFAULT_DATA_CAPACITY);
+        for(int i=0; i<20; i++){
+            scheduler.offer(i % 2 == 0 ? control(i / 2) : datagram(64, 3000 + i, 0, i));
+        }
+        for(int i=0; i<10; i++){
+            Packet pkt = scheduler.poll();
+            assertEquals(Packet.PROTOCOL_PROXIMITY, pkt.getProtocol());
+            assertEquals(i, seq(pkt));
+            pkt.release();
+        }
+        assertEquals(0, scheduler.size(TrafficClass.CONTROL));
+        scheduler.close();
+    }
+
+    @Test
+    public void roundRobinSharesBytesFairly(){
+        int quantum = EgressScheduler.DEFAULT_QUANTUM;
+        //Both flows are expedited, so that they share the interactive lane whatever their packet sizes.
+        int bigPort = 4000, smallPort = otherFlowPort(bigPort, 1500, DSCP_EF);
+        EgressScheduler scheduler = scheduler(2000);
+        for(int i=0; i<50; i++){
+            scheduler.offer(datagram(1500, bigPort, DSCP_EF, i));
+        }
+        for(int i=0; i<1500; i++){
+            scheduler.offer(datagram(64, smallPort, DSCP_EF, i));
+        }
+        assertEquals(1550, scheduler.size(TrafficClass.INTERACTIVE));
+        long bigBytes = 0, smallBytes = 0;
+        int bigSeq = 0, smallSeq = 0;
+        //Until the big flow runs out: both are backlogged all along.
+        while (bigSeq < 50){
+            Packet pkt = scheduler.poll();
+            if(port(pkt) == bigPort){
+                assertEquals(bigSeq++, seq(pkt));
+                bigBytes += pkt.getLength();
+            }else{
+                assertEquals(smallSeq++, seq(pkt));
+                smallBytes += pkt.getLength();
+            }
+            pkt.release();
+            assertTrue("Unfair share: " + bigBytes + " vs " + smallBytes + " bytes", Math.abs(bigBytes - smallBytes) <= 2 * quantum);
+        }
+        //The small flow got its share in many more packets.
+        assertTrue(smallSeq > 20 * bigSeq);
+        scheduler.close();
+    }
+
+    @Test
+    public void fullLaneDropsFromLongestFlow(){
+        pool.setLeakDetection(true);
+        int longPort = 5000, shortPort = otherFlowPort(longPort, 1000, 0);
+        EgressScheduler scheduler = scheduler(8);
+        for(int i=0; i<6; i++){
+            assertTrue(scheduler.offer(datagram(1000, longPort, 0, i)));
+        }
+        for(int i=0; i<2; i++){
+            assertTrue(scheduler.offer(datagram(1000, shortPort, 0, i)));
+        }
+        assertFalse(scheduler.hasCapacity(TrafficClass.BULK));
+        //The short flow's packet is queued, pushing out the long flow's oldest.
+        assertTrue(scheduler.offer(datagram(1000, shortPort, 0, 2)));
+        assertEquals(1, scheduler.getDrops(TrafficClass.BULK));
+        //The long flow's own packet is turned away.
+        assertFalse(scheduler.offer(datagram(1000, longPort, 0, 6)));
+        assertEquals(2, scheduler.getDrops(TrafficClass.BULK));
+        assertEquals(8, scheduler.size());
+        List<Integer> longSeqs = new ArrayList<>(), shortSeqs = new ArrayList<>();
+        Packet pkt;
+        while ((pkt = scheduler.poll()) != null){
+            (port(pkt) == longPort ? longSeqs : shortSeqs).add(seq(pkt));
+            pkt.release();
+        }
+        assertEquals("[1, 2, 3, 4, 5]", longSeqs.toString());
+        assertEquals("[0, 1, 2]", shortSeqs.toString());
+        //Dropped packets were released.
+        assertEquals(0, pool.getLeaks().size());
+        pool.setLeakDetection(false);
+    }
+
+    /**
+     * A scheduler with CoDel's default parameters, holding a backlog of one flow queued at the clock's current time.
+     */
+    private EgressScheduler backlog(ManualClock clock, int count, int ecn){
+        EgressScheduler scheduler = new EgressScheduler(EgressScheduler.DEFAULT_CONTROL_CAPACITY, count, EgressScheduler.DEFAULT_FLOWS,
+                EgressScheduler.DEFAULT_QUANTUM, clock);
+        for(int i=0; i<count; i++){
+            Packet pkt = datagram(1400, 7000, 0, i);
+            pkt.getData()[1] |= ecn;
+            pkt.setLength(pkt.getLength());
+            assertTrue(scheduler.offer(pkt));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Dequeue one packet per millisecond from the backlog, for as long as it lasts.
+     * @return When packets were dropped (or marked), in milliseconds since the backlog was queued.
+     */
+    private static List<Long> drainSlowly(ManualClock clock, EgressScheduler scheduler, boolean marks, int maxEvents){
+        List<Long> events = new ArrayList<>();
+        long start = clock.now;
+        while (events.size() < maxEvents){
+            clock.now += MS;
+            long before = marks ? scheduler.getAqmMarks() : scheduler.getAqmDrops();
+            Packet pkt = scheduler.poll();
+            assertTrue("Backlog exhausted", pkt != null);
+            long after = marks ? scheduler.getAqmMarks() : scheduler.getAqmDrops();
+            //One at most: at this pace, the next drop is never due yet.
+            assertTrue(after - before <= 1);
+            if(after > before){
+                events.add((clock.now - start) / MS);
+                if(marks){
+                    assertEquals(IPv4Header.ECN_CE, pkt.getIPv4Header().getEcn());
+                }
+            }
+            pkt.release();
+        }
+        return events;
+    }
+
+    private static void assertControlLaw(List<Long> events){
+        long interval = TimeUnit.MICROSECONDS.toMillis(EgressScheduler.DEFAULT_INTERVAL_US);
+        long target = TimeUnit.MICROSECONDS.toMillis(EgressScheduler.DEFAULT_TARGET_US);
+        //The delay first exceeds the target at the target's sojourn time; the first drop comes an interval later.
+        assertEquals(target + interval, (long) events.get(0));
+        //Then the n-th gap is interval / sqrt(n), to the millisecond the clock moves by.
+        double due = events.get(0);
+        for(int n=1; n<events.size(); n++){
+            due += interval / Math.sqrt(n);
+            assertEquals("Drop " + (n + 1), due, events.get(n), 1.0);
+        }
+    }
+
+    @Test
+    public void codelDropsNonEctPacketsBySquareRootLaw(){
+        ManualClock clock = new ManualClock();
+        EgressScheduler scheduler = backlog(clock, 1200, IPv4Header.ECN_NOT_ECT);
+        List<Long> drops = drainSlowly(clock, scheduler, false, 8);
+        assertControlLaw(drops);
+        assertEquals(0, scheduler.getAqmMarks());
+        scheduler.close();
+    }
+
+    @Test
+    public void codelMarksEctPacketsInsteadOfDropping(){
+        ManualClock clock = new ManualClock();
+        EgressScheduler scheduler = backlog(clock, 1200, ECT_0);
+        List<Long> marks = drainSlowly(clock, scheduler, true, 8);
+        assertControlLaw(marks);
+        assertEquals(0, scheduler.getAqmDrops());
+        //Nothing was lost.
+        assertEquals(1200 - (long) marks.get(marks.size() - 1), scheduler.size());
+        scheduler.close();
+    }
+
+    @Test
+    public void codelCatchesUpOnOverdueDrops(){
+        ManualClock clock = new ManualClock();
+        EgressScheduler scheduler = backlog(clock, 1200, IPv4Header.ECN_NOT_ECT);
+        long start = clock.now;
+        drainSlowly(clock, scheduler, false, 1);
+        //The consumer stalls: by the time it polls again, several drops are due, and one poll makes them all.
+        clock.now = start + 1000 * MS;
+        Packet pkt = scheduler.poll();
+        assertTrue(pkt != null);
+        pkt.release();
+        //Due at 420, 561, 677, 777, 866 and 948 ms; the next one, at 1024 ms, is not.
+        assertEquals(7, scheduler.getAqmDrops());
+        scheduler.close();
+    }
+
+    @Test
+    public void codelLeavesShortQueuesAlone(){
+        ManualClock clock = new ManualClock();
+        EgressScheduler scheduler = backlog(clock, 1, IPv4Header.ECN_NOT_ECT);
+        //However long a lone packet waited, it is no standing queue.
+        clock.now += 1000 * MS;
+        Packet pkt = scheduler.poll();
+        assertTrue(pkt != null);
+        pkt.release();
+        assertEquals(0, scheduler.getAqmDrops());
+        scheduler.close();
+    }
+
+    @Test
+    public void closedSchedulerDropsEverything(){
+        pool.setLeakDetection(true);
+        EgressScheduler scheduler = scheduler(EgressScheduler.DEFAULT_DATA_CAPACITY);
+        scheduler.offer(datagram(100, 6000, 0, 0));
+        scheduler.offer(control(0));
+        scheduler.close();
+        assertTrue(scheduler.isEmpty());
+        assertFalse(scheduler.offer(datagram(100, 6000, 0, 1)));
+        assertNull(scheduler.poll());
+        assertTrue(scheduler.hasCapacity(TrafficClass.BULK));
+        assertEquals(0, pool.getLeaks().size());
+        assertNotEquals(0, scheduler.getEnqueued());
+        pool.setLeakDetection(false);
+    }
+}
@@ -0,0 +1,174 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Checksum;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.Crc32c;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link FrameRingBuffer} hands out whole frames, in order, across its wrap point and between two threads.
+ */
+public class FrameRingBufferTest {
+    private final Random random = new Random(11);
+
+    private byte[] bytes(int length){
+        byte data[] = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] drain(FrameRingBuffer ring) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(ring.size(), ring.drainTo(out));
+        assertTrue(ring.isEmpty());
+        return out.toByteArray();
+    }
+
+    private static int trailer(byte frame[]){
+        int offs = frame.length - 4;
+        return (frame[offs] & 0xFF) | (frame[offs + 1] & 0xFF) << 8 | (frame[offs + 2] & 0xFF) << 16 | (frame[offs + 3] & 0xFF) << 24;
+    }
+
+    @Test
+    public void capacityIsRoundedUp(){
+        assertEquals(1024, new FrameRingBuffer(1000).capacity());
+        assertEquals(1024, new FrameRingBuffer(1024).capacity());
+        assertEquals(1, new FrameRingBuffer(1).capacity());
+    }
+
+    @Test
+    public void fullAndEmpty() throws IOException {
+        FrameRingBuffer ring = new FrameRingBuffer(256);
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.drainTo(new ByteArrayOutputStream()));
+        byte first[] = bytes(200), second[] = bytes(56);
+        assertTrue(ring.offer(first, 0, first.length));
+        //One byte too many is refused whole, and nothing of it is queued.
+        assertFalse(ring.offer(bytes(57), 0, 57));
+        assertFalse(ring.offer(bytes(50), 0, 50, bytes(7), 0, 7));
+        assertEquals(200, ring.size());
+        //Exactly the room left is accepted.
+        assertTrue(ring.offer(second, 0, 28, second, 28, 28));
+        assertEquals(256, ring.size());
+        assertFalse(ring.offer(bytes(1), 0, 1));
+        assertEquals(3, ring.getFramesRejected());
+        assertEquals(2, ring.getFramesOffered());
+        assertEquals(256, ring.getHighWatermark());
+        byte expected[] = Arrays.copyOf(first, 256);
+        System.arraycopy(second, 0, expected, 200, 56);
+        assertArrayEquals(expected, drain(ring));
+        assertEquals(256, ring.getBytesDrained());
+        //Draining makes the whole ring available again.
+        assertTrue(ring.offer(bytes(256), 0, 256));
+        assertEquals(512, ring.getBytesOffered());
+    }
+
+    @Test
+    public void framesCrossTheWrapPoint() throws IOException {
+        FrameRingBuffer ring = new FrameRingBuffer(1024);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream(), drained = new ByteArrayOutputStream();
+        //Mixed sizes, a few at a time, so that frames start and end at every distance from the wrap point.
+        for(int round=0; round<500; round++){
+            int count = 1 + random.nextInt(4);
+            for(int i=0; i<count; i++){
+                int len = 1 + random.nextInt(300);
+                byte header[] = bytes(1 + random.nextInt(22)), payload[] = bytes(len);
+                if(ring.offer(header, 0, header.length, payload, 0, payload.length)){
+                    expected.write(header);
+                    expected.write(payload);
+                }
+            }
+            ring.drainTo(drained);
+        }
+        assertTrue(ring.getBytesOffered() > 100 * ring.capacity());
+        assertEquals(ring.getBytesOffered(), ring.getBytesDrained());
+        assertArrayEquals(expected.toByteArray(), drained.toByteArray());
+    }
+
+    @Test
+    public void trailerMatchesPayload() throws IOException {
+        FrameRingBuffer ring = new FrameRingBuffer(512);
+        Checksum sum = Crc32c.newChecksum();
+        byte header[] = bytes(20);
+        //Move the start of the ring, so that the payload, then the trailer, straddle the wrap point.
+        for(int start : new int[]{100, 300, 490, 510}){
+            ring.offer(bytes(start), 0, start);
+            drain(ring);
+            byte payload[] = bytes(200);
+            sum.reset();
+            assertTrue(ring.offer(header, 0, header.length, payload, 0, payload.length, sum));
+            byte frame[] = drain(ring);
+            assertEquals(header.length + payload.length + 4, frame.length);
+            assertArrayEquals(payload, Arrays.copyOfRange(frame, header.length, header.length + payload.length));
+            assertEquals(Crc32c.compute(payload, 0, payload.length), trailer(frame));
+            //A frame corrupted after it was queued no longer matches its trailer.
+            frame[header.length + 50] ^= 0x01;
+            assertNotEquals(Crc32c.compute(frame, header.length, payload.length), trailer(frame));
+        }
+        //A checksum the caller did not reset gives a trailer the receiver rejects.
+        byte payload[] = bytes(100);
+        assertTrue(ring.offer(header, 0, header.length, payload, 0, payload.length, sum));
+        assertNotEquals(Crc32c.compute(payload, 0, payload.length), trailer(drain(ring)));
+    }
+
+    @Test
+    public void producerAndConsumerThreads() throws Exception {
+        final FrameRingBuffer ring = new FrameRingBuffer(4096);
+        final int frames = 20000;
+        final byte stream[] = bytes(frames * 400);
+        final int ends[] = new int[frames];
+        int pos = 0;
+        for(int i=0; i<frames; i++){
+            pos += 1 + random.nextInt(399);
+            ends[i] = pos;
+        }
+        final Set<Integer> boundaries = new HashSet<>();
+        for(int end : ends){
+            boundaries.add(end);
+        }
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int start = 0;
+                for(int i=0; i<frames; i++){
+                    int len = ends[i] - start;
+                    //Some frames in two parts, some in one.
+                    while (!(i % 2 == 0 ? ring.offer(stream, start, len) : ring.offer(stream, start, len / 2, stream, start + len / 2, len - len / 2))){
+                        Thread.yield();
+                    }
+                    start = ends[i];
+                }
+            }
+        });
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        producer.start();
+        int drains = 0;
+        while (received.size() < ends[frames - 1]){
+            if(ring.drainTo(received) > 0){
+                drains++;
+                //A drain never stops in the middle of a frame.
+                assertTrue(boundaries.contains(received.size()));
+            }else{
+                Thread.yield();
+            }
+        }
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+        assertTrue(drains > 1);
+        assertTrue(ring.isEmpty());
+        assertArrayEquals(Arrays.copyOf(stream, ends[frames - 1]), received.toByteArray());
+    }
+}
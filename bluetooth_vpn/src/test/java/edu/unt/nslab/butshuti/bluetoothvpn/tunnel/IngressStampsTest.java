@@ -0,0 +1,132 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.LatencyHistogram;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link RemoteInterfaceAdaptor.IngressStamps} records a packet's latency once, when the frame carrying it
+ * has been written out, into the TUN-to-wire or the forwarding histogram.
+ */
+public class IngressStampsTest {
+    private static final long PEER = BDAddr.parse("AA:BB:CC:DD:EE:01");
+    private static final long LATENCY_NS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final RemoteInterfaceAdaptor.IngressStamps stamps = new RemoteInterfaceAdaptor.IngressStamps();
+
+    @Before
+    public void setUp(){
+        DatapathMetrics.tunToWireLatency.reset();
+        DatapathMetrics.forwardingLatency.reset();
+    }
+
+    @After
+    public void tearDown(){
+        setUp();
+    }
+
+    /**
+     * A packet that entered the datapath LATENCY_NS ago, from the VPN interface or from a peer.
+     */
+    private static Packet packet(boolean forwarded){
+        Packet pkt = Packet.wrap(new byte[20]);
+        pkt.setIngressTs(System.nanoTime() - LATENCY_NS);
+        if(forwarded){
+            pkt.setReceivedFrom(PEER);
+        }
+        return pkt;
+    }
+
+    private static long local(){
+        return DatapathMetrics.tunToWireLatency.snapshot().getCount();
+    }
+
+    private static long forwarded(){
+        return DatapathMetrics.forwardingLatency.snapshot().getCount();
+    }
+
+    @Test
+    public void recordedOnceWritten(){
+        stamps.add(packet(false));
+        stamps.onQueued(100);
+        stamps.add(packet(true));
+        stamps.onQueued(250);
+        //Partially written: the second frame is not out yet.
+        stamps.onWritten(99);
+        assertEquals(0, local());
+        stamps.onWritten(249);
+        assertEquals(1, local());
+        assertEquals(0, forwarded());
+        stamps.onWritten(250);
+        assertEquals(1, local());
+        assertEquals(1, forwarded());
+        //Nothing is recorded twice.
+        stamps.onWritten(1000);
+        assertEquals(1, local());
+        assertEquals(1, forwarded());
+        LatencyHistogram.Snapshot snapshot = DatapathMetrics.tunToWireLatency.snapshot();
+        assertTrue(snapshot.getMaxNs() >= LATENCY_NS);
+        assertTrue(snapshot.getMaxNs() < LATENCY_NS + TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void unstampedPacketsAreSkipped(){
+        stamps.add(Packet.wrap(new byte[20]));
+        stamps.onQueued(100);
+        stamps.onWritten(100);
+        assertEquals(0, local());
+        //The ring was left empty.
+        stamps.add(packet(false));
+        stamps.onQueued(200);
+        stamps.onWritten(200);
+        assertEquals(1, local());
+    }
+
+    @Test
+    public void superframePacketsWaitUntilQueued(){
+        for(int i=0; i<3; i++){
+            stamps.add(packet(i == 1));
+        }
+        //Pending in the superframe: whatever was written so far is not theirs.
+        stamps.onWritten(Long.MAX_VALUE);
+        assertEquals(0, local() + forwarded());
+        stamps.onQueued(500);
+        stamps.onWritten(499);
+        assertEquals(0, local() + forwarded());
+        stamps.onWritten(500);
+        assertEquals(2, local());
+        assertEquals(1, forwarded());
+    }
+
+    @Test
+    public void fullRingLeavesPacketsUnmeasured(){
+        for(int i=0; i<300; i++){
+            stamps.add(packet(false));
+        }
+        stamps.onQueued(1000);
+        stamps.onWritten(1000);
+        assertEquals(256, local());
+        //Room again once written out, across the ring's wrap point.
+        long pos = 1000;
+        for(int frame=0; frame<1000; frame++){
+            stamps.add(packet(frame % 2 == 0));
+            pos += 100;
+            stamps.onQueued(pos);
+            if(frame % 7 == 6){
+                stamps.onWritten(pos);
+            }
+        }
+        stamps.onWritten(pos);
+        assertEquals(256 + 500, local());
+        assertEquals(500, forwarded());
+    }
+}
@@ -0,0 +1,199 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketPool;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs pooled packets through the {@link InterfaceController}'s forwarding, direct sending and local delivery paths with
+ * {@link PacketPool} leak detection on: every packet acquired along the way must be back in the pool afterwards.
+ */
+public class PacketOwnershipTest {
+    private static final long LOCAL = BDAddr.parse("11:22:33:44:55:66");
+    private static final long PEER = BDAddr.parse("AA:BB:CC:DD:EE:01");
+    private static final long NEXT_HOP = BDAddr.parse("AA:BB:CC:DD:EE:02");
+
+    /**
+     * A peer keeping the packets it is handed until they are "written", as a connection's queue would.
+     */
+    private static final class QueueingPeer implements InterfaceController.RemoteDatagramDeliveryListener {
+        private final List<Packet> queued = new ArrayList<>();
+
+        @Override
+        public synchronized boolean write(Packet pkt, boolean async) {
+            queued.add(pkt.retain());
+            return true;
+        }
+
+        synchronized int drain(){
+            int count = queued.size();
+            for(Packet pkt : queued){
+                pkt.release();
+            }
+            queued.clear();
+            return count;
+        }
+
+        @Override
+        public void shutdown() {
+            drain();
+        }
+
+        @Override
+        public boolean isPrimary() {
+            return true;
+        }
+    }
+
+    private final PacketPool pool = PacketPool.getDefault();
+    private InterfaceController controller;
+    private final QueueingPeer peer = new QueueingPeer(), nextHop = new QueueingPeer();
+    private int delivered = 0;
+
+    @Before
+    public void setUp(){
+        pool.setLeakDetection(true);
+        controller = new InterfaceController(new InterfaceController.InterfaceConfigurationView() {
+            @Override
+            public String getLocalBDAddr() {
+                return BDAddr.toString(LOCAL);
+            }
+
+            @Override
+            public String getInterfaceAddress() {
+                return "3.3.1.1/16";
+            }
+
+            @Override
+            public void updateLocalBDAddr(String addr) {
+            }
+        }, 2);
+        controller.registerLocalDeliveryListener(new InterfaceController.LocalDatagramDeliveryListener() {
+            @Override
+            public synchronized boolean deliver(Packet pkt) {
+                delivered++;
+                return true;
+            }
+        });
+        controller.registerRemoteDeliveryListener(PEER, "peer", peer);
+        controller.registerRemoteDeliveryListener(NEXT_HOP, "next_hop", nextHop);
+    }
+
+    @After
+    public void tearDown(){
+        controller.shutdown();
+        pool.setLeakDetection(false);
+    }
+
+    /**
+     * @return A pooled datagram, as decoded off the wire.
+     */
+    private Packet received(long src, long dst, int protocol){
+        Packet pkt = pool.acquire(200);
+        byte data[] = pkt.getData();
+        data[0] = 0x45;
+        data[9] = 17; //UDP
+        data[12] = 3;
+        data[13] = 3;
+        data[14] = 2;
+        data[15] = 2;
+        data[16] = 3;
+        data[17] = 3;
+        data[18] = 1;
+        data[19] = 1;
+        pkt.setLength(200);
+        pkt.setProtocol(protocol);
+        pkt.setSrcBDAddr(src);
+        pkt.setDstBDAddr(dst);
+        return pkt;
+    }
+
+    private void awaitProcessed(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (controller.getProcessingEngine().getProcessed() < count && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+        assertEquals(count, controller.getProcessingEngine().getProcessed());
+    }
+
+    private void assertNoLeaks(){
+        assertEquals("Leaked packets", 0, pool.getLeaks().size());
+    }
+
+    @Test
+    public void localDeliveryReleasesPackets() throws InterruptedException {
+        for(int i=0; i<100; i++){
+            assertTrue(controller.receive(PEER, received(PEER, LOCAL, Packet.PROTOCOL_DATA)));
+        }
+        awaitProcessed(100);
+        assertEquals(100, delivered);
+        assertNoLeaks();
+    }
+
+    @Test
+    public void forwardingReleasesPackets() throws InterruptedException {
+        for(int i=0; i<100; i++){
+            controller.receive(PEER, received(PEER, NEXT_HOP, Packet.PROTOCOL_DATA));
+        }
+        awaitProcessed(100);
+        //Forwarded packets are held by the next hop's queue until written.
+        assertEquals(100, pool.getLeaks().size());
+        assertEquals(100, nextHop.drain());
+        assertNoLeaks();
+    }
+
+    @Test
+    public void echoResponsesAreReleased() throws InterruptedException {
+        for(int i=0; i<10; i++){
+            controller.receive(PEER, received(PEER, LOCAL, Packet.PROTOCOL_PROXIMITY));
+        }
+        awaitProcessed(10);
+        //Responses are pooled copies, queued to the peer.
+        assertEquals(10, peer.drain());
+        assertNoLeaks();
+    }
+
+    @Test
+    public void sendDirectOnlyBorrowsPackets(){
+        for(int i=0; i<100; i++){
+            Packet pkt = received(LOCAL, NEXT_HOP, Packet.PROTOCOL_DATA);
+            try {
+                assertTrue(controller.sendDirect(pkt, NEXT_HOP, true));
+            }finally {
+                pkt.release();
+            }
+        }
+        assertEquals(100, nextHop.drain());
+        //Packets to a peer without a listener are not kept either.
+        Packet pkt = received(LOCAL, BDAddr.parse("AA:BB:CC:DD:EE:03"), Packet.PROTOCOL_DATA);
+        controller.sendDirect(pkt, pkt.getDstBDAddr(), true);
+        pkt.release();
+        assertNoLeaks();
+    }
+
+    @Test
+    public void overReleaseFailsInLeakDetectionMode(){
+        Packet pkt = pool.acquire(100);
+        pkt.retain();
+        pkt.release();
+        pkt.release();
+        assertNoLeaks();
+        try {
+            pkt.release();
+            fail("Over-release not detected");
+        }catch (IllegalStateException e){
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketPool;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs flows through a multi-worker {@link PacketProcessingEngine}: each flow must stay on one worker and keep its order,
+ * while different flows spread over the workers.
+ */
+public class PacketProcessingEngineTest {
+    private static final int WORKERS = 4;
+    private static final int FLOWS = 16;
+    private static final int PACKETS_PER_FLOW = 500;
+    private static final String NAME = "PacketProcessingEngineTest";
+
+    private final PacketPool pool = new PacketPool(PacketPool.DEFAULT_BUFFER_SIZE, 64);
+    private PacketProcessingEngine engine;
+
+    /**
+     * What a processor saw of one flow: the sequence numbers, in processing order, and the threads that processed them.
+     */
+    private static final class FlowLog {
+        final List<Integer> seqs = new ArrayList<>();
+        final Set<String> threads = new HashSet<>();
+    }
+
+    @After
+    public void tearDown(){
+        if(engine != null){
+            engine.stop();
+        }
+    }
+
+    /**
+     * A UDP datagram of the flow with the given source port, numbered in its payload.
+     */
+    private Packet datagram(int port, int seq){
+        Packet pkt = pool.acquire(64);
+        byte data[] = pkt.getData();
+        Arrays.fill(data, 0, 64, (byte) 0);
+        data[0] = 0x45;
+        data[3] = 64;
+        data[9] = 17; //UDP
+        data[12] = 10;
+        data[15] = 1;
+        data[16] = 10;
+        data[19] = 2;
+        data[20] = (byte)(port >> 8);
+        data[21] = (byte) port;
+        data[28] = (byte)(seq >> 8);
+        data[29] = (byte) seq;
+        pkt.setLength(64);
+        return pkt;
+    }
+
+    private static int port(Packet pkt){
+        return ((pkt.getData()[20] & 0xFF) << 8) | (pkt.getData()[21] & 0xFF);
+    }
+
+    private static int seq(Packet pkt){
+        return ((pkt.getData()[28] & 0xFF) << 8) | (pkt.getData()[29] & 0xFF);
+    }
+
+    private static String workerName(int worker){
+        return NAME + "::worker(" + worker + ")";
+    }
+
+    private int expectedWorker(Packet pkt){
+        return (PacketProcessingEngine.flowHash(pkt) & 0x7FFFFFFF) % WORKERS;
+    }
+
+    @Test
+    public void flowsKeepTheirOrderAndWorker() throws InterruptedException {
+        final Map<Integer, FlowLog> logs = new HashMap<>();
+        final CountDownLatch done = new CountDownLatch(FLOWS * PACKETS_PER_FLOW);
+        final Random random = new Random(17);
+        engine = new PacketProcessingEngine(NAME, WORKERS, 64, new PacketProcessingEngine.PacketProcessor() {
+            @Override
+            public void process(long receivedFrom, Packet pkt) {
+                //Uneven processing times, so that workers fall behind each other.
+                int spin;
+                synchronized (random){
+                    spin = random.nextInt(100);
+                }
+                for(int i=0; i<spin; i++){
+                    Thread.yield();
+                }
+                synchronized (logs){
+                    FlowLog log = logs.get(port(pkt));
+                    log.seqs.add(seq(pkt));
+                    log.threads.add(Thread.currentThread().getName());
+                }
+                done.countDown();
+            }
+        });
+        Map<Integer, Integer> workerOf = new HashMap<>();
+        for(int flow=0; flow<FLOWS; flow++){
+            int port = 1000 + flow;
+            logs.put(port, new FlowLog());
+            Packet pkt = datagram(port, 0);
+            workerOf.put(port, expectedWorker(pkt));
+            pkt.release();
+        }
+        engine.start();
+        //Flows interleaved, as from a reader serving several peers.
+        for(int seq=0; seq<PACKETS_PER_FLOW; seq++){
+            for(int flow=0; flow<FLOWS; flow++){
+                assertTrue(engine.submit(BDAddr.INVALID, datagram(1000 + flow, seq)));
+            }
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        //Counted once the processor returns.
+        for(int i=0; i<100 && engine.getProcessed() < FLOWS * PACKETS_PER_FLOW; i++){
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals(FLOWS * PACKETS_PER_FLOW, engine.getProcessed());
+        assertEquals(0, engine.getDrops());
+        Set<String> used = new HashSet<>();
+        for(Map.Entry<Integer, FlowLog> entry : logs.entrySet()){
+            FlowLog log = entry.getValue();
+            assertEquals(PACKETS_PER_FLOW, log.seqs.size());
+            for(int i=0; i<PACKETS_PER_FLOW; i++){
+                assertEquals("Flow " + entry.getKey(), i, (int) log.seqs.get(i));
+            }
+            //One worker per flow, the one its hash picks.
+            assertEquals(1, log.threads.size());
+            String thread = log.threads.iterator().next();
+            assertEquals(workerName(workerOf.get(entry.getKey())), thread);
+            used.add(thread);
+        }
+        assertEquals(new HashSet<>(workerOf.values()).size(), used.size());
+        assertTrue("Workers used: " + used, used.size() > 1);
+    }
+
+    @Test
+    public void flowHashSpreadsFlows(){
+        int counts[] = new int[WORKERS];
+        for(int port=0; port<4000; port++){
+            Packet pkt = datagram(port, 0);
+            counts[expectedWorker(pkt)]++;
+            //Anything else in the datagram does not move it.
+            Packet other = datagram(port, 1234);
+            assertEquals(PacketProcessingEngine.flowHash(pkt), PacketProcessingEngine.flowHash(other));
+            pkt.release();
+            other.release();
+        }
+        for(int count : counts){
+            assertTrue(Arrays.toString(counts), count > 800 && count < 1200);
+        }
+    }
+}
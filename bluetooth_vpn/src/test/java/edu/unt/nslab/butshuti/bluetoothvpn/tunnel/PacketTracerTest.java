@@ -0,0 +1,151 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.Packet;
+import edu.unt.nslab.butshuti.bluetoothvpn.datagram.PacketTrace;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement.MetricsRegistry;
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which packets {@link PacketTracer} samples, what a completed trace records, and the CSV it exports.
+ */
+public class PacketTracerTest {
+    private static final long PEER = BDAddr.parse("AA:BB:CC:DD:EE:01");
+    private static final PacketTrace.Stage STAGES[] = PacketTrace.Stage.values();
+
+    private final PacketTracer tracer = PacketTracer.getDefault();
+
+    @Before
+    public void setUp(){
+        tracer.clear();
+    }
+
+    @After
+    public void tearDown(){
+        tracer.setSampling(0);
+        tracer.clear();
+    }
+
+    private static Packet packet(){
+        return Packet.wrap(new byte[100]);
+    }
+
+    private int sampled(int count){
+        int traced = 0;
+        for(int i=0; i<count; i++){
+            Packet pkt = packet();
+            tracer.sample(pkt, PacketTrace.Stage.TUN_READ, Packet.NULL_BD_ADDR);
+            if(pkt.getTrace() != null){
+                assertTrue(pkt.getTrace().isOutbound());
+                assertEquals(100, pkt.getTrace().getLength());
+                traced++;
+            }
+        }
+        return traced;
+    }
+
+    private static long count(String histogram){
+        return MetricsRegistry.getDefault().histogram(histogram).snapshot().getCount();
+    }
+
+    @Test
+    public void samplesOneInN(){
+        assertEquals(0, tracer.getSampling());
+        assertEquals(0, sampled(1000));
+        tracer.setSampling(10);
+        assertEquals(100, sampled(1000));
+        tracer.setSampling(1);
+        assertEquals(50, sampled(50));
+        tracer.setSampling(-5);
+        assertEquals(0, tracer.getSampling());
+        assertEquals(0, sampled(1000));
+    }
+
+    @Test
+    public void completeRecordsAndRetains(){
+        long outbound = count(PacketTracer.TOTAL_OUTBOUND_LATENCY), routed = count(PacketTracer.STAGE_LATENCY_PREFIX + "routed");
+        tracer.setSampling(1);
+        Packet pkt = packet();
+        tracer.sample(pkt, PacketTrace.Stage.TUN_READ, Packet.NULL_BD_ADDR);
+        PacketTrace trace = pkt.getTrace();
+        PacketTracer.mark(pkt, PacketTrace.Stage.CONTROLLER_ENQUEUE);
+        PacketTracer.mark(pkt, PacketTrace.Stage.ROUTED);
+        PacketTracer.complete(pkt, PacketTrace.Stage.WIRE_WRITE);
+        //The trace leaves the packet once complete, so that a later stage does not record it twice.
+        assertNull(pkt.getTrace());
+        PacketTracer.complete(pkt, PacketTrace.Stage.WIRE_WRITE);
+        assertTrue(trace.getTimestamp(PacketTrace.Stage.WIRE_WRITE) != 0);
+        assertEquals(0, trace.getTimestamp(PacketTrace.Stage.WIRE_ENQUEUE));
+        assertEquals(1, tracer.getCompleted().size());
+        assertEquals(outbound + 1, count(PacketTracer.TOTAL_OUTBOUND_LATENCY));
+        assertEquals(routed + 1, count(PacketTracer.STAGE_LATENCY_PREFIX + "routed"));
+        //Untraced packets are left alone.
+        Packet untraced = packet();
+        PacketTracer.mark(untraced, PacketTrace.Stage.ROUTED);
+        PacketTracer.complete(untraced, PacketTrace.Stage.WIRE_WRITE);
+        assertEquals(1, tracer.getCompleted().size());
+    }
+
+    @Test
+    public void csvHasOneColumnPerStage() throws IOException {
+        PacketTrace outbound = new PacketTrace(PacketTrace.Stage.TUN_READ, Packet.NULL_BD_ADDR, 120);
+        outbound.mark(PacketTrace.Stage.CONTROLLER_ENQUEUE);
+        outbound.mark(PacketTrace.Stage.ROUTED);
+        outbound.mark(PacketTrace.Stage.WIRE_ENQUEUE);
+        tracer.complete(outbound, PacketTrace.Stage.WIRE_WRITE);
+        PacketTrace inbound = new PacketTrace(PacketTrace.Stage.WIRE_READ, PEER, 1400);
+        inbound.mark(PacketTrace.Stage.ROUTED);
+        tracer.complete(inbound, PacketTrace.Stage.TUN_WRITE);
+        StringWriter out = new StringWriter();
+        tracer.exportCsv(out);
+        String lines[] = out.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("direction,peer,length,tun_read_us,wire_read_us,controller_enqueue_us,routed_us,wire_enqueue_us,wire_write_us,tun_enqueue_us,tun_write_us",
+                lines[0]);
+        PacketTrace traces[] = {outbound, inbound};
+        for(int i=0; i<traces.length; i++){
+            //Empty trailing columns are kept.
+            String fields[] = lines[i + 1].split(",", -1);
+            assertEquals(3 + STAGES.length, fields.length);
+            assertEquals(traces[i].isOutbound() ? "out" : "in", fields[0]);
+            assertEquals(BDAddr.toString(traces[i].getPeer()), fields[1]);
+            assertEquals(String.valueOf(traces[i].getLength()), fields[2]);
+            long first = traces[i].getTimestamp(traces[i].isOutbound() ? PacketTrace.Stage.TUN_READ : PacketTrace.Stage.WIRE_READ);
+            for(PacketTrace.Stage stage : STAGES){
+                String field = fields[3 + stage.ordinal()];
+                long ts = traces[i].getTimestamp(stage);
+                if(ts == 0){
+                    assertEquals(stage.name(), "", field);
+                }else{
+                    assertEquals(stage.name(), (ts - first) / 1000.0, Double.parseDouble(field), 0.0);
+                }
+            }
+        }
+        assertEquals("0.0", lines[1].split(",")[3]);
+        assertEquals("", lines[1].split(",", -1)[4]);
+        assertEquals("0.0", lines[2].split(",")[4]);
+    }
+
+    @Test
+    public void retainsTheMostRecentTraces() throws IOException {
+        for(int i=0; i<PacketTracer.DEFAULT_MAX_RETAINED + 10; i++){
+            tracer.complete(new PacketTrace(PacketTrace.Stage.WIRE_READ, PEER, i), PacketTrace.Stage.TUN_WRITE);
+        }
+        assertEquals(PacketTracer.DEFAULT_MAX_RETAINED, tracer.getCompleted().size());
+        assertEquals(10, tracer.getCompleted().get(0).getLength());
+        tracer.clear();
+        StringWriter out = new StringWriter();
+        tracer.exportCsv(out);
+        assertEquals(1, out.toString().split("\n").length);
+    }
+}
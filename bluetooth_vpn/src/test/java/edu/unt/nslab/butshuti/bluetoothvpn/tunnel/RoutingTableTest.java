@@ -0,0 +1,168 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.tunnel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols.BDAddr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link RoutingTable}'s longest-prefix matches, and how adding and removing routes changes them.
+ */
+public class RoutingTableTest {
+    private static final long HOP_A = BDAddr.parse("AA:BB:CC:DD:EE:01");
+    private static final long HOP_B = BDAddr.parse("AA:BB:CC:DD:EE:02");
+    private static final long HOP_C = BDAddr.parse("AA:BB:CC:DD:EE:03");
+    private static final long HOP_D = BDAddr.parse("AA:BB:CC:DD:EE:04");
+    private static final long GATEWAY = BDAddr.parse("AA:BB:CC:DD:EE:FF");
+
+    private static int ip(String addr){
+        String quads[] = addr.split("\\.");
+        byte buf[] = new byte[4];
+        for(int i=0; i<4; i++){
+            buf[i] = (byte) Integer.parseInt(quads[i]);
+        }
+        return RoutingTable.addrToInt(buf, 0);
+    }
+
+    private static void assertNextHop(RoutingTable table, String addr, long nextHop){
+        assertEquals(addr, BDAddr.toString(nextHop), BDAddr.toString(table.getNextHop(ip(addr))));
+    }
+
+    /**
+     * Nested routes: 10/8 via A, 10.1/16 via B, 10.1.2/24 via C, 10.1.2.3/32 via D.
+     */
+    private static RoutingTable nested(){
+        RoutingTable table = new RoutingTable();
+        assertTrue(table.addRoute(ip("10.0.0.0"), 8, HOP_A));
+        assertTrue(table.addRoute(ip("10.1.0.0"), 16, HOP_B));
+        assertTrue(table.addRoute(ip("10.1.2.0"), 24, HOP_C));
+        assertTrue(table.addRoute(ip("10.1.2.3"), 32, HOP_D));
+        return table;
+    }
+
+    @Test
+    public void longestPrefixWins(){
+        RoutingTable table = nested();
+        assertNextHop(table, "10.1.2.3", HOP_D);
+        assertNextHop(table, "10.1.2.4", HOP_C);
+        assertNextHop(table, "10.1.2.255", HOP_C);
+        assertNextHop(table, "10.1.3.3", HOP_B);
+        assertNextHop(table, "10.1.255.255", HOP_B);
+        assertNextHop(table, "10.2.2.3", HOP_A);
+        assertNextHop(table, "10.255.255.255", HOP_A);
+        assertEquals(BDAddr.INVALID, table.getNextHop(ip("11.1.2.3")));
+        assertEquals(BDAddr.INVALID, table.getNextHop(ip("9.255.255.255")));
+        assertEquals(2, table.getMisses());
+        assertEquals(9, table.getLookups());
+        assertEquals(2, table.getRoute(ip("10.1.2.0"), 24).getHits());
+    }
+
+    @Test
+    public void defaultRouteCatchesTheRest(){
+        RoutingTable table = nested();
+        assertTrue(table.addRoute(0, 0, GATEWAY));
+        assertNextHop(table, "11.1.2.3", GATEWAY);
+        assertNextHop(table, "0.0.0.0", GATEWAY);
+        assertNextHop(table, "255.255.255.255", GATEWAY);
+        //It does not shadow longer prefixes.
+        assertNextHop(table, "10.1.2.3", HOP_D);
+        assertNextHop(table, "10.9.9.9", HOP_A);
+        assertEquals(0, table.getMisses());
+        assertTrue(table.removeRoute(0, 0));
+        assertEquals(BDAddr.INVALID, table.getNextHop(ip("11.1.2.3")));
+    }
+
+    @Test
+    public void prefixBitsBeyondLengthAreIgnored(){
+        RoutingTable table = new RoutingTable();
+        assertTrue(table.addRoute(ip("192.168.7.99"), 24, HOP_A));
+        RoutingTable.Route route = table.getRoute(ip("192.168.7.0"), 24);
+        assertNotNull(route);
+        assertEquals(ip("192.168.7.0"), route.getPrefix());
+        assertEquals(route, table.getRoute(ip("192.168.7.200"), 24));
+        assertNextHop(table, "192.168.7.1", HOP_A);
+    }
+
+    @Test
+    public void conflictingNextHopIsRejected(){
+        RoutingTable table = nested();
+        //The same route again is fine; another next hop for the same prefix is not.
+        assertTrue(table.addRoute(ip("10.1.0.0"), 16, HOP_B));
+        assertFalse(table.addRoute(ip("10.1.0.0"), 16, HOP_C));
+        assertFalse(table.addRoute(ip("10.1.99.99"), 16, HOP_C));
+        assertEquals(4, table.size());
+        assertNextHop(table, "10.1.3.3", HOP_B);
+        //The same prefix with another length is another route.
+        assertTrue(table.addRoute(ip("10.1.0.0"), 17, HOP_C));
+        assertNextHop(table, "10.1.3.3", HOP_C);
+        assertNextHop(table, "10.1.128.1", HOP_B);
+        //Once removed, the prefix can be routed elsewhere.
+        assertTrue(table.removeRoute(ip("10.1.0.0"), 16));
+        assertFalse(table.removeRoute(ip("10.1.0.0"), 16));
+        assertTrue(table.addRoute(ip("10.1.0.0"), 16, HOP_D));
+        assertNextHop(table, "10.1.128.1", HOP_D);
+    }
+
+    @Test
+    public void removeRoutesViaKeepsOtherRoutes(){
+        RoutingTable table = nested();
+        assertTrue(table.addRoute(ip("10.9.0.0"), 16, HOP_C));
+        assertTrue(table.addRoute(ip("172.16.0.1"), 32, HOP_C));
+        RoutingTable.Route kept = table.getRoute(ip("10.1.0.0"), 16);
+        table.getNextHop(ip("10.1.9.9"));
+        assertEquals(3, table.removeRoutesVia(HOP_C));
+        assertEquals(0, table.removeRoutesVia(HOP_C));
+        assertEquals(3, table.size());
+        assertNull(table.getRoute(ip("10.1.2.0"), 24));
+        //The addresses the removed routes covered fall back on the next longest prefix.
+        assertNextHop(table, "10.1.2.4", HOP_B);
+        assertNextHop(table, "10.9.1.1", HOP_A);
+        assertEquals(BDAddr.INVALID, table.getNextHop(ip("172.16.0.1")));
+        assertNextHop(table, "10.1.2.3", HOP_D);
+        //Surviving routes are the same objects, metrics included.
+        assertTrue(kept == table.getRoute(ip("10.1.0.0"), 16));
+        assertEquals(2, kept.getHits());
+    }
+
+    @Test
+    public void matchesLinearSearch(){
+        Random random = new Random(9);
+        RoutingTable table = new RoutingTable();
+        List<int[]> routes = new ArrayList<>();
+        long hops[] = {HOP_A, HOP_B, HOP_C, HOP_D};
+        //Many prefixes of a few lengths under a few /8s, so that prefixes nest and hash slots collide.
+        int lengths[] = {8, 12, 16, 20, 24, 28, 32};
+        for(int i=0; i<2000; i++){
+            int len = lengths[random.nextInt(lengths.length)];
+            int mask = -1 << (32 - len);
+            int prefix = ((10 + random.nextInt(3)) << 24 | random.nextInt(1 << 24)) & mask;
+            int hop = random.nextInt(hops.length);
+            if(table.getRoute(prefix, len) == null){
+                assertTrue(table.addRoute(prefix, len, hops[hop]));
+                routes.add(new int[]{prefix, len, hop});
+            }
+        }
+        for(int i=0; i<20000; i++){
+            int addr = (10 + random.nextInt(4)) << 24 | random.nextInt(1 << 24);
+            int best = -1;
+            long expected = BDAddr.INVALID;
+            for(int route[] : routes){
+                int mask = -1 << (32 - route[1]);
+                if(route[1] > best && (addr & mask) == route[0]){
+                    best = route[1];
+                    expected = hops[route[2]];
+                }
+            }
+            assertEquals(RoutingTable.intToStr(addr), expected, table.getNextHop(addr));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link Crc32c}'s slicing-by-8 implementation against published CRC-32C values and, where the runtime has one,
+ * the platform's implementation.
+ */
+public class Crc32cTest {
+
+    private static byte[] filled(int value){
+        byte buf[] = new byte[32];
+        Arrays.fill(buf, (byte) value);
+        return buf;
+    }
+
+    private static void assertCrc(int expected, byte buf[]){
+        assertEquals(Integer.toHexString(expected), Integer.toHexString(Crc32c.compute(buf, 0, buf.length)));
+        //The same through the Checksum interface, one byte at a time.
+        Crc32c sum = new Crc32c();
+        for(byte b : buf){
+            sum.update(b);
+        }
+        assertEquals(expected & 0xFFFFFFFFL, sum.getValue());
+    }
+
+    @Test
+    public void knownAnswers(){
+        assertCrc(0xE3069283, "123456789".getBytes(Charset.forName("US-ASCII")));
+        //RFC 3720, B.4
+        assertCrc(0x8A9136AA, filled(0));
+        assertCrc(0x62A8AB43, filled(0xFF));
+        byte ascending[] = new byte[32], descending[] = new byte[32];
+        for(int i=0; i<32; i++){
+            ascending[i] = (byte) i;
+            descending[i] = (byte)(31 - i);
+        }
+        assertCrc(0x46DD794E, ascending);
+        assertCrc(0x113FDB5C, descending);
+        assertEquals(0, Crc32c.compute(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void unalignedRangesAndUpdates(){
+        Random random = new Random(1);
+        byte buf[] = new byte[300];
+        random.nextBytes(buf);
+        for(int offs=0; offs<9; offs++){
+            for(int len=0; len<=buf.length - offs; len += 1 + len / 8){
+                //Each length modulo 8 goes through the 8-byte loop and the byte loop differently.
+                Crc32c whole = new Crc32c(), split = new Crc32c();
+                whole.update(buf, offs, len);
+                split.update(buf, offs, len / 3);
+                split.update(buf, offs + len / 3, len - len / 3);
+                assertEquals(whole.getValue(), split.getValue());
+                assertEquals(whole.getValue(), Crc32c.compute(buf, offs, len) & 0xFFFFFFFFL);
+                Checksum platform = Crc32c.newChecksum();
+                platform.update(buf, offs, len);
+                assertEquals(whole.getValue(), platform.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void copyChecksumsWhatItCopies(){
+        Random random = new Random(2);
+        byte src[] = new byte[1000];
+        random.nextBytes(src);
+        for(Checksum sum : new Checksum[]{new Crc32c(), Crc32c.newChecksum()}){
+            byte dst[] = new byte[src.length + 3];
+            Crc32c.copy(sum, src, 5, dst, 3, 990);
+            assertArrayEquals(Arrays.copyOfRange(src, 5, 995), Arrays.copyOfRange(dst, 3, 993));
+            assertEquals(Crc32c.compute(src, 5, 990) & 0xFFFFFFFFL, sum.getValue());
+        }
+    }
+}
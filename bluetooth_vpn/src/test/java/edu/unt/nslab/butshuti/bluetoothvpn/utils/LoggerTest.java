@@ -0,0 +1,170 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which messages {@link Logger} lets through at each level, how it fills "{}" placeholders, and what a
+ * {@link Logger.Limiter} admits.
+ */
+public class LoggerTest {
+    private final List<String> messages = new ArrayList<>();
+    private final List<Logger.Level> levels = new ArrayList<>();
+    private Logger.Sink sink;
+    private Logger.Level level;
+
+    /**
+     * An argument counting how many times it was formatted.
+     */
+    private static final class Arg {
+        int formatted = 0;
+
+        @Override
+        public String toString(){
+            formatted++;
+            return "arg";
+        }
+    }
+
+    @Before
+    public void setUp(){
+        sink = Logger.getSink();
+        level = Logger.getLevel();
+        Logger.setSink(new Logger.Sink() {
+            @Override
+            public void log(Logger.Level level, String tag, String msg) {
+                levels.add(level);
+                messages.add(msg);
+            }
+        });
+        Logger.setCallerTraceLevel(Logger.Level.NONE);
+    }
+
+    @After
+    public void tearDown(){
+        Logger.setSink(sink);
+        Logger.setLevel(level);
+        Logger.setCallerTraceLevel(Logger.Level.ERROR);
+    }
+
+    @Test
+    public void levelGatesMessages(){
+        Logger.setLevel(Logger.Level.WARN);
+        Logger.logD("debug");
+        Logger.logI("info");
+        Logger.logW("warn");
+        Logger.logE("error");
+        assertEquals(2, messages.size());
+        assertEquals("warn", messages.get(0));
+        assertEquals(Logger.Level.WARN, levels.get(0));
+        assertEquals(Logger.Level.ERROR, levels.get(1));
+        assertFalse(Logger.isDebugEnabled());
+        assertTrue(Logger.isLoggable(Logger.Level.ERROR));
+        //NONE silences everything, and is never a message level.
+        Logger.setLevel(Logger.Level.NONE);
+        Logger.logE("error");
+        Logger.log(Logger.Level.NONE, "none");
+        assertEquals(2, messages.size());
+        Logger.setLevel(Logger.Level.DEBUG);
+        assertFalse(Logger.isLoggable(Logger.Level.NONE));
+        Logger.log(Logger.Level.NONE, "none");
+        assertEquals(2, messages.size());
+        //A null level is ignored.
+        Logger.setLevel(null);
+        assertEquals(Logger.Level.DEBUG, Logger.getLevel());
+    }
+
+    @Test
+    public void disabledMessagesAreNotFormatted(){
+        Arg arg = new Arg();
+        Logger.setLevel(Logger.Level.INFO);
+        Logger.logD("{}", arg);
+        Logger.logD("{} {}", arg, arg);
+        Logger.logD("{} {} {}", arg, arg, arg);
+        assertEquals(0, arg.formatted);
+        assertTrue(messages.isEmpty());
+        Logger.logI("{}", arg);
+        assertEquals(1, arg.formatted);
+        assertEquals("arg", messages.get(0));
+    }
+
+    @Test
+    public void placeholdersAreFilledInOrder(){
+        Logger.logI("{} => {}", "a", 1);
+        Logger.logE("{}, {}, {}", null, 2L, 'c');
+        //Placeholders beyond the arguments are left as they are, arguments beyond the placeholders are dropped.
+        Logger.logD("{} and {}", "x");
+        Logger.logW("only {}", "y", "z");
+        Logger.logI(null, "x");
+        assertEquals("a => 1", messages.get(0));
+        assertEquals("null, 2, c", messages.get(1));
+        assertEquals("x and {}", messages.get(2));
+        assertEquals("only y", messages.get(3));
+        assertEquals("null", messages.get(4));
+    }
+
+    @Test
+    public void callerIsTracedAboveItsLevel(){
+        Logger.setCallerTraceLevel(Logger.Level.WARN);
+        Logger.logI("plain");
+        Logger.logE("traced");
+        assertEquals("plain", messages.get(0));
+        assertTrue(messages.get(1), messages.get(1).contains(LoggerTest.class.getName() + "#callerIsTracedAboveItsLevel"));
+        assertTrue(messages.get(1).endsWith(": traced"));
+    }
+
+    @Test
+    public void oneInN(){
+        Logger.Limiter limiter = Logger.Limiter.oneIn(4);
+        int allowed = 0;
+        for(int i=0; i<12; i++){
+            boolean allow = limiter.allow();
+            assertEquals("Message " + i, i % 4 == 0, allow);
+            allowed += allow ? 1 : 0;
+        }
+        assertEquals(3, allowed);
+        assertEquals(9, limiter.takeSuppressed());
+        assertEquals(0, limiter.takeSuppressed());
+    }
+
+    @Test
+    public void perSecond() throws InterruptedException {
+        Logger.Limiter limiter = Logger.Limiter.perSecond(3);
+        int allowed = 0;
+        for(int i=0; i<10; i++){
+            allowed += limiter.allow() ? 1 : 0;
+        }
+        assertEquals(3, allowed);
+        //The next window starts afresh.
+        Thread.sleep(1100);
+        assertTrue(limiter.allow());
+        assertEquals(7, limiter.takeSuppressed());
+    }
+
+    @Test
+    public void suppressedMessagesAreReported(){
+        Logger.Limiter limiter = Logger.Limiter.oneIn(3);
+        for(int i=0; i<7; i++){
+            if(Logger.admit(Logger.Level.INFO, limiter)){
+                Logger.log(Logger.Level.INFO, limiter, "packet {} from {} to {}", i, "a", "b");
+            }
+        }
+        assertEquals(3, messages.size());
+        assertEquals("packet 0 from a to b", messages.get(0));
+        assertEquals("packet 3 from a to b (2 similar messages suppressed)", messages.get(1));
+        assertEquals("packet 6 from a to b (2 similar messages suppressed)", messages.get(2));
+        //A disabled level does not use up the limiter.
+        Logger.setLevel(Logger.Level.ERROR);
+        assertFalse(Logger.admit(Logger.Level.INFO, limiter));
+        assertFalse(Logger.admit(Logger.Level.INFO, limiter));
+        assertEquals(0, limiter.takeSuppressed());
+    }
+}
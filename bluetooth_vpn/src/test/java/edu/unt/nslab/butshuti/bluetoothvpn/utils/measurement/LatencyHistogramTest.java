@@ -0,0 +1,124 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link LatencyHistogram}'s percentiles against the exact ones, over the whole range of its buckets.
+ */
+public class LatencyHistogramTest {
+    private static final double PERCENTILES[] = {0, 1, 10, 50, 90, 99, 99.9, 100};
+
+    private final Random random = new Random(23);
+
+    private static long exactPercentile(long sorted[], double percentile){
+        long rank = Math.max(1, (long) Math.ceil(sorted.length * percentile / 100));
+        return sorted[(int) rank - 1];
+    }
+
+    private void assertPercentiles(long values[]){
+        LatencyHistogram histogram = new LatencyHistogram();
+        long total = 0;
+        for(long value : values){
+            histogram.record(value);
+            total += value;
+        }
+        long sorted[] = values.clone();
+        Arrays.sort(sorted);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(sorted[sorted.length - 1], snapshot.getMaxNs());
+        assertEquals(total / values.length, snapshot.getMeanNs());
+        for(double percentile : PERCENTILES){
+            long exact = exactPercentile(sorted, percentile);
+            long reported = snapshot.getPercentileNs(percentile);
+            //Never below the exact value, and above it by at most the width of a sub-bucket.
+            assertTrue("p" + percentile + ": " + reported + " < " + exact, reported >= exact);
+            assertTrue("p" + percentile + ": " + reported + " vs " + exact, reported - exact <= exact / 32);
+        }
+        assertEquals(snapshot.getMaxNs(), snapshot.getPercentileNs(100));
+    }
+
+    @Test
+    public void smallValuesAreExact(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i=1; i<=64; i++){
+            histogram.record(i);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getPercentileNs(0));
+        assertEquals(32, snapshot.getPercentileNs(50));
+        assertEquals(63, snapshot.getPercentileNs(98));
+        assertEquals(64, snapshot.getPercentileNs(100));
+    }
+
+    @Test
+    public void percentilesOfUniformLatencies(){
+        long values[] = new long[100000];
+        for(int i=0; i<values.length; i++){
+            values[i] = 1000000 + random.nextInt(9000000);
+        }
+        assertPercentiles(values);
+    }
+
+    @Test
+    public void percentilesAcrossMagnitudes(){
+        //Log-uniform from 1 ns to about 17 minutes, so that every power of two has samples.
+        long values[] = new long[100000];
+        for(int i=0; i<values.length; i++){
+            values[i] = (long) Math.pow(2, random.nextDouble() * 40);
+        }
+        assertPercentiles(values);
+    }
+
+    @Test
+    public void outOfRangeValues(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.recordSince(0);
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getPercentileNs(50));
+        //Beyond the tracked range: counted, and still reported as the max.
+        long huge = 1L << 45;
+        histogram.record(huge);
+        histogram.record(10);
+        assertEquals(2, histogram.snapshot().getCount());
+        assertEquals(huge, histogram.snapshot().getMaxNs());
+        assertTrue(histogram.snapshot().getPercentileNs(100) >= (1L << 39));
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getMaxNs());
+    }
+
+    @Test
+    public void concurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread threads[] = new Thread[4];
+        for(int i=0; i<threads.length; i++){
+            final int thread = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j=0; j<50000; j++){
+                        histogram.record(1000 * (thread + 1));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread thread : threads){
+            thread.join(10000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(200000, snapshot.getCount());
+        assertEquals(2500, snapshot.getMeanNs());
+        assertEquals(4000, snapshot.getMaxNs());
+        long p25 = snapshot.getPercentileNs(25);
+        assertTrue(String.valueOf(p25), p25 >= 1000 && p25 <= 1000 + 1000 / 32);
+    }
+}
@@ -0,0 +1,59 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.measurement;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that {@link StripedCounter#sum()} adds up every stripe, whichever threads did the updates.
+ */
+public class StripedCounterTest {
+
+    @Test
+    public void singleThread(){
+        StripedCounter counter = new StripedCounter();
+        assertEquals(0, counter.sum());
+        counter.increment();
+        counter.add(41);
+        counter.add(-2);
+        assertEquals(40, counter.sum());
+        assertEquals("40", counter.toString());
+    }
+
+    @Test
+    public void sumOverThreads() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        final CountDownLatch start = new CountDownLatch(1);
+        //More threads than stripes, so that several share one.
+        Thread threads[] = new Thread[40];
+        long expected = 0;
+        for(int i=0; i<threads.length; i++){
+            final int delta = i + 1;
+            expected += 20000L * delta;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for(int j=0; j<10000; j++){
+                        counter.increment();
+                        counter.add(2 * delta - 1);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread : threads){
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(expected, counter.sum());
+    }
+}
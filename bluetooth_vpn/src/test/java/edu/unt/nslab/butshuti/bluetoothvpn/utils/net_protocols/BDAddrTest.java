@@ -0,0 +1,84 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how {@link BDAddr} packs addresses into longs, against the byte-array conversions of {@link AddressConversions},
+ * and that malformed addresses come out as {@link BDAddr#INVALID}, distinct from {@link BDAddr#NULL}.
+ */
+public class BDAddrTest {
+    private final Random random = new Random(19);
+
+    @Test
+    public void packsMostSignificantByteFirst(){
+        assertEquals(0x001122AABBCCL, BDAddr.parse("00:11:22:AA:BB:CC"));
+        assertEquals(0xFFFFFFFFFFFFL, BDAddr.parse("FF:FF:FF:FF:FF:FF"));
+        //Lower case and single digits are accepted; the string form is canonical.
+        assertEquals(0x0A0B0C0D0E0FL, BDAddr.parse("a:b:c:d:e:f"));
+        assertEquals("0A:0B:0C:0D:0E:0F", BDAddr.toString(0x0A0B0C0D0E0FL));
+        assertEquals("00:00:00:00:00:00", BDAddr.toString(BDAddr.NULL));
+    }
+
+    @Test
+    public void matchesByteArrayConversions() throws AddressConversions.InvalidBluetoothAdddressException {
+        for(int i=0; i<1000; i++){
+            byte bytes[] = new byte[AddressConversions.BD_ADDR_SIZE];
+            random.nextBytes(bytes);
+            String str = AddressConversions.BDAddrToStr(bytes);
+            long addr = BDAddr.fromString(str);
+            assertEquals(str, BDAddr.toString(addr));
+            assertArrayEquals(bytes, BDAddr.toBytes(addr));
+            assertArrayEquals(AddressConversions.stringToBDAddr(str), BDAddr.toBytes(addr));
+            //Round trips through buffers, at an offset.
+            byte buf[] = new byte[AddressConversions.BD_ADDR_SIZE + 3];
+            BDAddr.write(addr, buf, 3);
+            assertEquals(addr, BDAddr.read(buf, 3));
+            ByteBuffer dst = ByteBuffer.allocate(buf.length);
+            dst.position(3);
+            BDAddr.write(addr, dst);
+            assertArrayEquals(buf, dst.array());
+            assertEquals(0, addr >>> 48);
+        }
+    }
+
+    @Test
+    public void malformedAddressesAreInvalid(){
+        String malformed[] = {
+                null, "", "00:11:22:33:44", "00:11:22:33:44:55:66", "00:11:22:33:44:", ":11:22:33:44:55",
+                "00:11::33:44:55", "00:11:22:33:44:555", "00:11:22:33:44:5G", "00-11-22-33-44-55", " 00:11:22:33:44:55"
+        };
+        for(String addr : malformed){
+            assertEquals(addr, BDAddr.INVALID, BDAddr.parse(addr));
+            try{
+                BDAddr.fromString(addr);
+                fail("Accepted " + addr);
+            }catch (AddressConversions.InvalidBluetoothAdddressException e){
+                //Expected
+            }
+        }
+    }
+
+    @Test
+    public void invalidIsNotNull() throws AddressConversions.InvalidBluetoothAdddressException {
+        //NULL is a well-formed address, just not a real device's.
+        assertEquals(BDAddr.NULL, BDAddr.fromString("00:00:00:00:00:00"));
+        assertFalse(BDAddr.isValid(BDAddr.NULL));
+        assertFalse(BDAddr.isValid(BDAddr.INVALID));
+        assertNotEquals(BDAddr.NULL, BDAddr.INVALID);
+        //INVALID lies outside the 48 bits, so it never equals a parsed address, not even the all-ones one.
+        assertNotEquals(BDAddr.INVALID, BDAddr.parse("FF:FF:FF:FF:FF:FF"));
+        assertTrue(BDAddr.isValid(BDAddr.parse("FF:FF:FF:FF:FF:FF")));
+        assertTrue(BDAddr.isValid(1L));
+        assertFalse(BDAddr.isValid(1L << 48));
+    }
+}
@@ -0,0 +1,129 @@
+package edu.unt.nslab.butshuti.bluetoothvpn.utils.net_protocols;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link IPv4Header#markCongestionExperienced()}'s incremental checksum update (RFC 1624) against a full
+ * recomputation, for every value the checksum can take.
+ */
+public class IPv4HeaderTest {
+    private static final int ECT_0 = 2, ECT_1 = 1;
+
+    private static byte[] header(int ecn, int id){
+        byte buf[] = new byte[40];
+        buf[0] = 0x45;
+        buf[1] = (byte)((46 << 2) | ecn);
+        buf[3] = 40;
+        buf[4] = (byte)(id >> 8);
+        buf[5] = (byte) id;
+        buf[6] = 0x40; //Don't fragment
+        buf[8] = 64;
+        buf[9] = IPv4Header.PROTO_UDP;
+        buf[12] = 10;
+        buf[15] = 1;
+        buf[16] = (byte) 192;
+        buf[17] = (byte) 168;
+        buf[19] = 7;
+        int checksum = checksum(buf, 20);
+        buf[10] = (byte)(checksum >> 8);
+        buf[11] = (byte) checksum;
+        return buf;
+    }
+
+    /**
+     * The header checksum, computed from scratch over the header with the checksum field taken as zero.
+     */
+    private static int checksum(byte buf[], int headerLength){
+        int sum = 0;
+        for(int i=0; i<headerLength; i+=2){
+            if(i != 10){
+                sum += ((buf[i] & 0xFF) << 8) | (buf[i + 1] & 0xFF);
+            }
+        }
+        while ((sum >>> 16) != 0){
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    private static int storedChecksum(byte buf[]){
+        return ((buf[10] & 0xFF) << 8) | (buf[11] & 0xFF);
+    }
+
+    @Test
+    public void incrementalUpdateMatchesRecomputation(){
+        IPv4Header header = new IPv4Header();
+        boolean zeroBefore = false, zeroAfter = false;
+        for(int ecn : new int[]{ECT_0, ECT_1}){
+            //The identification field takes the checksum through every value, 0x0000 included.
+            for(int id=0; id<=0xFFFF; id++){
+                byte buf[] = header(ecn, id);
+                zeroBefore |= storedChecksum(buf) == 0;
+                assertTrue(header.wrap(buf, buf.length));
+                assertTrue(header.markCongestionExperienced());
+                assertEquals(IPv4Header.ECN_CE, header.getEcn());
+                assertEquals(46, header.getDscp());
+                int expected = checksum(buf, 20);
+                assertEquals("ECN " + ecn + ", id " + id, expected, storedChecksum(buf));
+                zeroAfter |= expected == 0;
+            }
+        }
+        assertTrue(zeroBefore);
+        assertTrue(zeroAfter);
+    }
+
+    @Test
+    public void neverWritesNegativeZero(){
+        //RFC 1624: with eqn. 3, a checksum of 0x0000 stays 0x0000 rather than becoming 0xFFFF, which a full
+        //recomputation of a valid header never yields.
+        IPv4Header header = new IPv4Header();
+        for(int id=0; id<=0xFFFF; id++){
+            byte buf[] = header(ECT_0, id);
+            header.wrap(buf, buf.length);
+            header.markCongestionExperienced();
+            assertFalse("id " + id, storedChecksum(buf) == 0xFFFF);
+        }
+    }
+
+    @Test
+    public void leavesCeAndNotEctAlone(){
+        IPv4Header header = new IPv4Header();
+        byte ce[] = header(IPv4Header.ECN_CE, 0x1234);
+        byte before[] = Arrays.copyOf(ce, ce.length);
+        header.wrap(ce, ce.length);
+        //Marked already: nothing to change, but still a mark rather than a drop.
+        assertTrue(header.markCongestionExperienced());
+        assertArrayEquals(before, ce);
+        byte notEct[] = header(IPv4Header.ECN_NOT_ECT, 0x1234);
+        before = Arrays.copyOf(notEct, notEct.length);
+        header.wrap(notEct, notEct.length);
+        assertFalse(header.markCongestionExperienced());
+        assertArrayEquals(before, notEct);
+    }
+
+    @Test
+    public void marksHeadersWithOptions(){
+        IPv4Header header = new IPv4Header();
+        byte buf[] = header(ECT_1, 0x4321);
+        //An IHL of 6: one word of options, covered by the checksum too.
+        buf[0] = 0x46;
+        buf[20] = 1;
+        buf[21] = 1;
+        buf[22] = 1;
+        buf[23] = 0;
+        int checksum = checksum(buf, 24);
+        buf[10] = (byte)(checksum >> 8);
+        buf[11] = (byte) checksum;
+        assertTrue(header.wrap(buf, buf.length));
+        assertEquals(24, header.getHeaderLength());
+        assertTrue(header.markCongestionExperienced());
+        assertEquals(checksum(buf, 24), storedChecksum(buf));
+    }
+}